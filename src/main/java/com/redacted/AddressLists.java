@@ -0,0 +1,476 @@
+package com.redacted;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads and writes address lists: text files of {@code address[,expiry]}
+ * lines, where address is an IPv4 or IPv6 literal and expiry, if given, is
+ * an expiration date in milliseconds since the epoch. Blank lines and lines
+ * starting with '#' are skipped, and "\r\n" line endings are accepted.
+ *
+ * Reading memory-maps the file and parses it in chunks of 16 MB on the
+ * common {@link ForkJoinPool}, straight from the mapped bytes: no
+ * {@link String}s are created and no name lookups are made. Writing streams
+ * the addresses out through a buffer, one line at a time.
+ */
+public final class AddressLists {
+
+  /* Bytes of the file parsed by one task. */
+  private static final int CHUNK_SIZE = 16 << 20;
+
+  /* Longest line accepted; a line may run this far past the end of a chunk. */
+  private static final int MAXIMUM_LINE_LENGTH = 1024;
+
+  private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+  private AddressLists() {
+  }
+
+  /**
+   * Reads the addresses of the given address list.
+   *
+   * @param file
+   *          the address list
+   * @param defaultExpirationDate
+   *          the expiration date of addresses listed without one
+   * @return the addresses, in file order
+   * @throws IOException
+   *           if the file cannot be read or a line is malformed
+   */
+  public static List<TimedInetAddress> read(File file,
+      Date defaultExpirationDate) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      long size = channel.size();
+
+      List<Future<List<TimedInetAddress>>> chunks = new ArrayList<>();
+      for (long start = 0; start < size; start += CHUNK_SIZE) {
+        chunks.add(ForkJoinPool.commonPool().submit(
+            new ChunkParser(channel, start, Math.min(size, start + CHUNK_SIZE),
+                size, defaultExpirationDate)));
+      }
+
+      List<List<TimedInetAddress>> parsed = new ArrayList<>(chunks.size());
+      int total = 0;
+      for (Future<List<TimedInetAddress>> chunk : chunks) {
+        List<TimedInetAddress> addresses = join(chunk);
+        parsed.add(addresses);
+        total += addresses.size();
+      }
+
+      List<TimedInetAddress> addresses = new ArrayList<>(total);
+      for (List<TimedInetAddress> chunk : parsed) {
+        addresses.addAll(chunk);
+      }
+      return addresses;
+    }
+  }
+
+  /**
+   * Writes the current, unexpired contents of the given cache to an address
+   * list, oldest first, so that reading the list back into a builder
+   * restores the cache's order. The cache may be in use meanwhile; addresses
+   * added or removed during the export may or may not be written.
+   *
+   * @param cache
+   *          the cache
+   * @param file
+   *          the file to write, replaced if it exists
+   * @throws IOException
+   *           if the file cannot be written
+   */
+  public static void write(TimedAddressCache cache, File file)
+      throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      write(cache.timedAddresses(), out);
+    }
+  }
+
+  /**
+   * Writes the given addresses, with their expiration dates, as an address
+   * list.
+   *
+   * @param addresses
+   *          the addresses, in the order to write them
+   * @param out
+   *          the stream to write to, which is flushed but not closed
+   * @throws IOException
+   *           if the stream cannot be written
+   */
+  public static void write(Iterator<TimedInetAddress> addresses,
+      OutputStream out) throws IOException {
+    BufferedOutputStream buffered = new BufferedOutputStream(out,
+        WRITE_BUFFER_SIZE);
+    byte[] line = new byte[MAXIMUM_LINE_LENGTH];
+    while (addresses.hasNext()) {
+      TimedInetAddress timedAddress = addresses.next();
+      int length = formatAddress(timedAddress.getInetAddress().getAddress(),
+          line);
+      line[length++] = ',';
+      length = formatLong(timedAddress.getExpirationDate().getTime(), line,
+          length);
+      line[length++] = '\n';
+      buffered.write(line, 0, length);
+    }
+    buffered.flush();
+  }
+
+  private static List<TimedInetAddress> join(
+      Future<List<TimedInetAddress>> chunk) throws IOException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading address list", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Formats an address without name lookups: IPv4 in dotted decimal, IPv6 as
+   * eight uncompressed hexadecimal groups.
+   *
+   * @return the length of the formatted address
+   */
+  private static int formatAddress(byte[] address, byte[] line) {
+    int length = 0;
+    if (address.length == 4) {
+      for (int i = 0; i < 4; i++) {
+        if (i > 0) {
+          line[length++] = '.';
+        }
+        length = formatLong(address[i] & 0xFF, line, length);
+      }
+      return length;
+    }
+
+    for (int i = 0; i < 16; i += 2) {
+      if (i > 0) {
+        line[length++] = ':';
+      }
+      int group = (address[i] & 0xFF) << 8 | (address[i + 1] & 0xFF);
+      boolean leading = true;
+      for (int shift = 12; shift >= 0; shift -= 4) {
+        int digit = (group >>> shift) & 0xF;
+        if (digit != 0 || !leading || shift == 0) {
+          line[length++] = HEX_DIGITS[digit];
+          leading = false;
+        }
+      }
+    }
+    return length;
+  }
+
+  private static int formatLong(long value, byte[] line, int offset) {
+    if (value < 0) {
+      line[offset++] = '-';
+      value = -value; // expiration dates never reach Long.MIN_VALUE
+    }
+
+    int start = offset;
+    do {
+      line[offset++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+
+    for (int i = start, j = offset - 1; i < j; i++, j--) {
+      byte digit = line[i];
+      line[i] = line[j];
+      line[j] = digit;
+    }
+    return offset;
+  }
+
+  /**
+   * Parses the lines that start within one chunk of a memory-mapped address
+   * list. The line that crosses the end of the chunk is parsed here; the
+   * partial line at its start is left to the previous chunk.
+   */
+  private static final class ChunkParser implements
+      Callable<List<TimedInetAddress>> {
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final long fileSize;
+    private final Date defaultExpirationDate;
+
+    private MappedByteBuffer buffer;
+    private long bufferOffset;
+
+    private ChunkParser(FileChannel channel, long start, long end,
+        long fileSize, Date defaultExpirationDate) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.fileSize = fileSize;
+      this.defaultExpirationDate = defaultExpirationDate;
+    }
+
+    @Override
+    public List<TimedInetAddress> call() throws IOException {
+      // include the byte before the chunk, to tell whether a line starts here
+      bufferOffset = start == 0 ? 0 : start - 1;
+      long mapEnd = Math.min(fileSize, end + MAXIMUM_LINE_LENGTH);
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, bufferOffset, mapEnd
+          - bufferOffset);
+
+      int position = 0;
+      if (start > 0) {
+        while (position < buffer.limit() && buffer.get(position) != '\n') {
+          position++;
+        }
+        position++;
+      }
+
+      List<TimedInetAddress> addresses = new ArrayList<>(
+          (int) ((end - start) / 16));
+      byte[] scratch = new byte[16];
+      int chunkEnd = (int) (end - bufferOffset);
+      while (position < chunkEnd) {
+        int lineEnd = position;
+        while (lineEnd < buffer.limit() && buffer.get(lineEnd) != '\n') {
+          lineEnd++;
+        }
+        if (lineEnd == buffer.limit() && mapEnd < fileSize) {
+          throw malformed(position, "line longer than " + MAXIMUM_LINE_LENGTH
+              + " bytes");
+        }
+
+        TimedInetAddress timedAddress = parseLine(position, lineEnd, scratch);
+        if (timedAddress != null) {
+          addresses.add(timedAddress);
+        }
+        position = lineEnd + 1;
+      }
+      return addresses;
+    }
+
+    /**
+     * Parses one line, without its '\n'.
+     *
+     * @return the address, or {@code null} for a blank or comment line
+     */
+    private TimedInetAddress parseLine(int from, int to, byte[] scratch)
+        throws IOException {
+      from = skipBlanks(from, to);
+      to = trimBlanks(from, to);
+      if (from == to || buffer.get(from) == '#') {
+        return null;
+      }
+
+      int comma = from;
+      while (comma < to && buffer.get(comma) != ',') {
+        comma++;
+      }
+
+      InetAddress address = parseAddress(from, trimBlanks(from, comma),
+          scratch);
+      if (comma == to) {
+        return new TimedInetAddress(address, defaultExpirationDate);
+      }
+      return new TimedInetAddress(address, new Date(parseExpiry(
+          skipBlanks(comma + 1, to), to)));
+    }
+
+    private InetAddress parseAddress(int from, int to, byte[] scratch)
+        throws IOException {
+      boolean ipv6 = false;
+      for (int i = from; i < to; i++) {
+        if (buffer.get(i) == ':') {
+          ipv6 = true;
+          break;
+        }
+      }
+
+      byte[] address;
+      if (ipv6) {
+        if (!parseIpv6(from, to, scratch)) {
+          throw malformed(from, "not an IPv6 literal");
+        }
+        address = scratch;
+      } else {
+        if (!parseIpv4(from, to, scratch, 0)) {
+          throw malformed(from, "not an IPv4 literal");
+        }
+        address = new byte[4];
+        System.arraycopy(scratch, 0, address, 0, 4);
+      }
+
+      try {
+        return InetAddress.getByAddress(address); // copies, never looks up
+      } catch (UnknownHostException e) {
+        throw malformed(from, e.getMessage());
+      }
+    }
+
+    /**
+     * Parses a dotted-decimal IPv4 address into four bytes of the given
+     * array.
+     */
+    private boolean parseIpv4(int from, int to, byte[] out, int offset) {
+      int part = 0;
+      int value = 0;
+      int digits = 0;
+      for (int i = from; i < to; i++) {
+        byte b = buffer.get(i);
+        if (b >= '0' && b <= '9') {
+          value = value * 10 + (b - '0');
+          if (++digits > 3 || value > 255) {
+            return false;
+          }
+        } else if (b == '.' && digits > 0 && part < 3) {
+          out[offset + part++] = (byte) value;
+          value = 0;
+          digits = 0;
+        } else {
+          return false;
+        }
+      }
+
+      if (digits == 0 || part != 3) {
+        return false;
+      }
+      out[offset + 3] = (byte) value;
+      return true;
+    }
+
+    /**
+     * Parses an IPv6 address, with an optional "::" and an optional trailing
+     * dotted-decimal IPv4 address, into the sixteen bytes of the given array.
+     */
+    private boolean parseIpv6(int from, int to, byte[] out) {
+      int length = 0;
+      int compressedAt = -1;
+      int i = from;
+      if (to - from >= 2 && buffer.get(i) == ':') {
+        if (buffer.get(i + 1) != ':') {
+          return false;
+        }
+        compressedAt = 0;
+        i += 2;
+      }
+
+      while (i < to) {
+        int groupStart = i;
+        int value = 0;
+        int digits = 0;
+        int digit;
+        while (i < to && (digit = Character.digit(buffer.get(i), 16)) >= 0) {
+          value = value << 4 | digit;
+          if (++digits > 4) {
+            return false;
+          }
+          i++;
+        }
+
+        if (i < to && buffer.get(i) == '.') { // trailing IPv4 address
+          if (length > 12 || !parseIpv4(groupStart, to, out, length)) {
+            return false;
+          }
+          length += 4;
+          break;
+        }
+        if (digits == 0 || length > 14) {
+          return false;
+        }
+        out[length++] = (byte) (value >>> 8);
+        out[length++] = (byte) value;
+
+        if (i == to) {
+          break;
+        }
+        if (buffer.get(i++) != ':' || i == to) {
+          return false;
+        }
+        if (buffer.get(i) == ':') {
+          if (compressedAt >= 0) {
+            return false;
+          }
+          compressedAt = length;
+          i++;
+        }
+      }
+
+      if (compressedAt < 0) {
+        return length == 16;
+      }
+      if (length == 16) {
+        return false;
+      }
+      int tail = length - compressedAt;
+      System.arraycopy(out, compressedAt, out, 16 - tail, tail);
+      for (int j = compressedAt; j < 16 - tail; j++) {
+        out[j] = 0;
+      }
+      return true;
+    }
+
+    private long parseExpiry(int from, int to) throws IOException {
+      if (from == to) {
+        throw malformed(from, "missing expiration date");
+      }
+
+      boolean negative = buffer.get(from) == '-';
+      if (negative && ++from == to) {
+        throw malformed(from, "missing expiration date");
+      }
+
+      long value = 0;
+      for (int i = from; i < to; i++) {
+        byte b = buffer.get(i);
+        if (b < '0' || b > '9' || value > (Long.MAX_VALUE - (b - '0')) / 10) {
+          throw malformed(from, "not an expiration date in milliseconds");
+        }
+        value = value * 10 + (b - '0');
+      }
+      return negative ? -value : value;
+    }
+
+    private int skipBlanks(int from, int to) {
+      while (from < to && isBlank(buffer.get(from))) {
+        from++;
+      }
+      return from;
+    }
+
+    private int trimBlanks(int from, int to) {
+      while (to > from && isBlank(buffer.get(to - 1))) {
+        to--;
+      }
+      return to;
+    }
+
+    private boolean isBlank(byte b) {
+      return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private IOException malformed(int position, String reason) {
+      return new IOException("Malformed address list at byte "
+          + (bufferOffset + position) + ": " + reason);
+    }
+  }
+}
@@ -0,0 +1,728 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * The retrieval order of a {@link TimedAddressCache}: the bounded, blocking
+ * collection that decides which address peek(), remove() and take() return
+ * next. Addresses are identified by their {@link InetAddress}, as in
+ * {@link TimedInetAddress#equals(Object)}. All implementations are
+ * thread-safe.
+ */
+interface AddressOrder {
+
+  /**
+   * Adds an address if there is space.
+   *
+   * @return {@code true} if the address was added
+   */
+  boolean offer(TimedInetAddress timedAddress);
+
+  /**
+   * Adds an address, waiting up to the given time for space.
+   *
+   * @return {@code true} if the address was added
+   */
+  boolean offer(TimedInetAddress timedAddress, long timeoutNanos)
+      throws InterruptedException;
+
+  /**
+   * Adds an address, waiting as long as necessary for space.
+   */
+  void put(TimedInetAddress timedAddress) throws InterruptedException;
+
+  /**
+   * Adds the given addresses at build() time.
+   *
+   * @throws IllegalStateException
+   *           if they do not fit
+   */
+  void addAll(Collection<TimedInetAddress> timedAddresses);
+
+  /**
+   * Reorders a re-offered address, if the order depends on offers.
+   */
+  void moveFront(TimedInetAddress timedAddress);
+
+  /**
+   * Removes the given address.
+   *
+   * @return {@code true} if it was present
+   */
+  boolean remove(TimedInetAddress timedAddress);
+
+  /**
+   * Removes the given addresses, whatever their expiration date, in fewer
+   * passes than removing them one by one. The order's copy of an address's
+   * date may lag the cache's after a renewal, so addresses are matched as in
+   * remove(), by their {@link InetAddress} alone.
+   *
+   * @param addresses
+   *          the addresses
+   */
+  void removeAll(Set<InetAddress> addresses);
+
+  boolean contains(TimedInetAddress timedAddress);
+
+  /**
+   * Returns the next address without removing it.
+   *
+   * @return the address, or {@code null} if there is none
+   */
+  TimedInetAddress peek();
+
+  /**
+   * Removes and returns the next address.
+   *
+   * @return the address, or {@code null} if there is none
+   */
+  TimedInetAddress poll();
+
+  /**
+   * Removes and returns the next address, waiting for one if necessary.
+   */
+  TimedInetAddress take() throws InterruptedException;
+
+  /**
+   * Removes and returns the address that would be retrieved last, e.g. to
+   * move it to a slower tier.
+   *
+   * @return the address, or {@code null} if there is none
+   */
+  TimedInetAddress pollCold();
+
+  int size();
+
+  /**
+   * Returns a weakly consistent iterator over the addresses: it never fails
+   * because of concurrent changes, and may or may not reflect them.
+   */
+  Iterator<TimedInetAddress> iterator();
+
+  /**
+   * Removes every address and wakes every thread blocked in take(), put() or
+   * offer() with a timeout, which then throw an
+   * {@link IllegalStateException}, as do later calls of these methods and of
+   * offer() without a timeout. Blocked threads are not interrupted.
+   */
+  void close();
+
+  /**
+   * "Last-In-First-Out" order: the newest address is next, and a re-offered
+   * address moves to the other end, where it is taken last. Backed by a
+   * {@link LinkedBlockingDeque}, whose tail end is the newest.
+   *
+   * close() wakes the threads blocked in takeLast() with a sentinel, which
+   * each of them passes on to the next before throwing, and the last one
+   * removes; threads blocked in putLast() are woken by the cleared deque and
+   * undo their addition. No thread is interrupted, so the interrupt status
+   * of the waiters is left as it was.
+   */
+  final class Lifo implements AddressOrder {
+
+    /* Wakes the takers on close(); compared by identity only. */
+    private static final TimedInetAddress CLOSED = new TimedInetAddress(
+        InetAddress.getLoopbackAddress(), new Date(0));
+
+    private final LinkedBlockingDeque<TimedInetAddress> deque;
+
+    /*
+     * Threads in take(), counted before they check closed, so that close()
+     * either sees them or they see closed.
+     */
+    private final AtomicInteger takers = new AtomicInteger();
+    private volatile boolean closed;
+
+    Lifo(int maximumCapacity) {
+      deque = new LinkedBlockingDeque<>(maximumCapacity);
+    }
+
+    @Override
+    public boolean offer(TimedInetAddress timedAddress) {
+      ensureOpen();
+      boolean added = deque.offerLast(timedAddress);
+      if (added) {
+        ensureOpen(timedAddress);
+      }
+      return added;
+    }
+
+    @Override
+    public boolean offer(TimedInetAddress timedAddress, long timeoutNanos)
+        throws InterruptedException {
+      ensureOpen();
+      boolean added = deque.offerLast(timedAddress, timeoutNanos,
+          TimeUnit.NANOSECONDS);
+      if (added) {
+        ensureOpen(timedAddress);
+      }
+      return added;
+    }
+
+    @Override
+    public void put(TimedInetAddress timedAddress) throws InterruptedException {
+      ensureOpen();
+      deque.putLast(timedAddress);
+      ensureOpen(timedAddress);
+    }
+
+    /**
+     * Adds every given address in order, duplicates included.
+     */
+    @Override
+    public void addAll(Collection<TimedInetAddress> timedAddresses) {
+      deque.addAll(timedAddresses);
+    }
+
+    /**
+     * Adds the address at the front before removing the old occurrence, so
+     * that it is never missing from the deque, unless the deque is full.
+     */
+    @Override
+    public void moveFront(TimedInetAddress timedAddress) {
+      if (closed) {
+        return;
+      }
+      if (deque.offerFirst(timedAddress)) {
+        deque.removeLastOccurrence(timedAddress);
+      } else {
+        deque.removeLastOccurrence(timedAddress);
+        deque.offerFirst(timedAddress);
+      }
+    }
+
+    @Override
+    public boolean remove(TimedInetAddress timedAddress) {
+      if (closed) {
+        return false;
+      }
+      return deque.removeLastOccurrence(timedAddress); // only one should exist
+    }
+
+    /**
+     * Removes the addresses in one traversal of the deque, rather than one per
+     * address. The deque's lock is not held for the whole traversal.
+     */
+    @Override
+    public void removeAll(final Set<InetAddress> addresses) {
+      if (closed) {
+        return;
+      }
+      deque.removeIf(new Predicate<TimedInetAddress>() {
+
+        @Override
+        public boolean test(TimedInetAddress timedAddress) {
+          return timedAddress != CLOSED
+              && addresses.contains(timedAddress.getInetAddress());
+        }
+      });
+    }
+
+    @Override
+    public boolean contains(TimedInetAddress timedAddress) {
+      return !closed && deque.contains(timedAddress);
+    }
+
+    @Override
+    public TimedInetAddress peek() {
+      return closed ? null : deque.peekLast();
+    }
+
+    @Override
+    public TimedInetAddress poll() {
+      return closed ? null : deque.pollLast();
+    }
+
+    /**
+     * Removes and returns the newest address, waiting for one if necessary.
+     * An address taken as the order closes is dropped. On the way out, a
+     * taker woken by close() passes the sentinel on while other takers remain,
+     * and the last taker removes it, so that it never blocks putLast().
+     */
+    @Override
+    public TimedInetAddress take() throws InterruptedException {
+      takers.incrementAndGet();
+      TimedInetAddress timedAddress = null;
+      try {
+        ensureOpen();
+        timedAddress = deque.takeLast();
+      } finally {
+        int remaining = takers.decrementAndGet();
+        if (closed) {
+          if (remaining == 0) {
+            removeSentinel();
+          } else if (timedAddress == CLOSED) {
+            addSentinel();
+          }
+        }
+      }
+      ensureOpen();
+      return timedAddress;
+    }
+
+    @Override
+    public TimedInetAddress pollCold() {
+      return closed ? null : deque.pollFirst();
+    }
+
+    @Override
+    public int size() {
+      return closed ? 0 : deque.size();
+    }
+
+    @Override
+    public Iterator<TimedInetAddress> iterator() {
+      if (closed) {
+        return Collections.<TimedInetAddress> emptyIterator();
+      }
+      return deque.iterator();
+    }
+
+    /**
+     * Clears the deque, which wakes the threads blocked in putLast(), and
+     * adds the sentinel if threads may be blocked in takeLast().
+     */
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      deque.clear();
+      if (takers.get() > 0) {
+        addSentinel();
+      }
+    }
+
+    private void ensureOpen() {
+      if (closed) {
+        throw new IllegalStateException("Cache has been closed");
+      }
+    }
+
+    /**
+     * As ensureOpen(), after an addition, which is undone if the order has
+     * been closed meanwhile.
+     */
+    private void ensureOpen(TimedInetAddress timedAddress) {
+      if (closed) {
+        deque.removeLastOccurrence(timedAddress);
+        throw new IllegalStateException("Cache has been closed");
+      }
+    }
+
+    /**
+     * Adds the sentinel as the newest element, dropping the coldest elements
+     * if an addition racing with close() has filled the deque.
+     */
+    private void addSentinel() {
+      while (!deque.offerLast(CLOSED)) {
+        deque.pollFirst();
+      }
+    }
+
+    private void removeSentinel() {
+      deque.removeIf(new Predicate<TimedInetAddress>() {
+
+        @Override
+        public boolean test(TimedInetAddress timedAddress) {
+          return timedAddress == CLOSED;
+        }
+      });
+    }
+  }
+
+  /**
+   * Deadline order: the address with the earliest expiration date is next,
+   * ties going to the address offered first. Backed by a binary min-heap
+   * with a map from each address to its position in the heap, so that
+   * adding, removing (any address) and taking are all O(log n). The order
+   * does not depend on offers, so re-offers leave it unchanged.
+   */
+  final class Deadline implements AddressOrder {
+
+    private static final int INITIAL_HEAP_SIZE = 16;
+
+    private final int maximumCapacity;
+
+    /* Guards everything below. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Map<InetAddress, Entry> entries = new HashMap<>();
+    private Entry[] heap = new Entry[INITIAL_HEAP_SIZE];
+    private int size;
+    private long sequence;
+    private boolean closed;
+
+    Deadline(int maximumCapacity) {
+      if (maximumCapacity < 1) {
+        throw new IllegalArgumentException("Capacity must be positive");
+      }
+
+      this.maximumCapacity = maximumCapacity;
+    }
+
+    @Override
+    public boolean offer(TimedInetAddress timedAddress) {
+      lock.lock();
+      try {
+        ensureOpen();
+        if (size == maximumCapacity) {
+          return false;
+        }
+        insert(timedAddress);
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean offer(TimedInetAddress timedAddress, long timeoutNanos)
+        throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        while (size == maximumCapacity) {
+          ensureOpen();
+          if (timeoutNanos <= 0) {
+            return false;
+          }
+          timeoutNanos = notFull.awaitNanos(timeoutNanos);
+        }
+        ensureOpen();
+        insert(timedAddress);
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void put(TimedInetAddress timedAddress) throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        while (size == maximumCapacity) {
+          ensureOpen();
+          notFull.await();
+        }
+        ensureOpen();
+        insert(timedAddress);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Adds the given addresses and restores the heap order once, bottom-up,
+     * in O(n). For an address given more than once, the latest expiration
+     * date wins, as in the cache's map.
+     */
+    @Override
+    public void addAll(Collection<TimedInetAddress> timedAddresses) {
+      lock.lock();
+      try {
+        for (TimedInetAddress timedAddress : timedAddresses) {
+          Entry entry = entries.get(timedAddress.getInetAddress());
+          if (entry != null) {
+            if (entry.timedAddress.getExpirationDate().before(
+                timedAddress.getExpirationDate())) {
+              entry.timedAddress = timedAddress;
+            }
+            continue;
+          }
+
+          if (size == maximumCapacity) {
+            throw new IllegalStateException("Cache full");
+          }
+          entry = new Entry(timedAddress, sequence++);
+          entries.put(timedAddress.getInetAddress(), entry);
+          grow();
+          place(entry, size++);
+        }
+
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+          siftDown(i);
+        }
+        if (size > 0) {
+          notEmpty.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void moveFront(TimedInetAddress timedAddress) {
+      // the order is by expiration date alone
+    }
+
+    @Override
+    public boolean remove(TimedInetAddress timedAddress) {
+      lock.lock();
+      try {
+        Entry entry = entries.get(timedAddress.getInetAddress());
+        if (entry == null) {
+          return false;
+        }
+        removeAt(entry.index);
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void removeAll(Set<InetAddress> addresses) {
+      lock.lock();
+      try {
+        for (InetAddress address : addresses) {
+          Entry entry = entries.get(address);
+          if (entry != null) {
+            removeAt(entry.index);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean contains(TimedInetAddress timedAddress) {
+      lock.lock();
+      try {
+        return entries.containsKey(timedAddress.getInetAddress());
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public TimedInetAddress peek() {
+      lock.lock();
+      try {
+        return size == 0 ? null : heap[0].timedAddress;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public TimedInetAddress poll() {
+      lock.lock();
+      try {
+        return size == 0 ? null : removeAt(0);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public TimedInetAddress take() throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        while (size == 0) {
+          ensureOpen();
+          notEmpty.await();
+        }
+        return removeAt(0);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Removes the address expiring last, ties going to the one offered last.
+     * It is not at a known position in the heap, only among its leaves, so
+     * this is O(n).
+     */
+    @Override
+    public TimedInetAddress pollCold() {
+      lock.lock();
+      try {
+        if (size == 0) {
+          return null;
+        }
+
+        int coldest = size >>> 1; // the first leaf
+        for (int i = coldest + 1; i < size; i++) {
+          if (before(heap[coldest], heap[i])) {
+            coldest = i;
+          }
+        }
+        return removeAt(coldest);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int size() {
+      lock.lock();
+      try {
+        return size;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the addresses, in no particular
+     * order.
+     */
+    @Override
+    public Iterator<TimedInetAddress> iterator() {
+      TimedInetAddress[] snapshot;
+      lock.lock();
+      try {
+        snapshot = new TimedInetAddress[size];
+        for (int i = 0; i < size; i++) {
+          snapshot[i] = heap[i].timedAddress;
+        }
+      } finally {
+        lock.unlock();
+      }
+      return Arrays.asList(snapshot).iterator();
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        closed = true;
+        entries.clear();
+        heap = new Entry[INITIAL_HEAP_SIZE];
+        size = 0;
+        notEmpty.signalAll();
+        notFull.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Throws if the order has been closed. Must hold the lock.
+     */
+    private void ensureOpen() {
+      if (closed) {
+        throw new IllegalStateException("Cache has been closed");
+      }
+    }
+
+    /**
+     * Adds a new address. Must hold the lock, with space available.
+     */
+    private void insert(TimedInetAddress timedAddress) {
+      Entry previous = entries.get(timedAddress.getInetAddress());
+      if (previous != null) { // the cache only offers absent addresses
+        removeAt(previous.index);
+      }
+
+      Entry entry = new Entry(timedAddress, sequence++);
+      entries.put(timedAddress.getInetAddress(), entry);
+      grow();
+      place(entry, size++);
+      siftUp(entry.index);
+      notEmpty.signal();
+    }
+
+    /**
+     * Removes the entry at the given heap position. Must hold the lock.
+     */
+    private TimedInetAddress removeAt(int index) {
+      Entry removed = heap[index];
+      entries.remove(removed.timedAddress.getInetAddress());
+
+      Entry last = heap[--size];
+      heap[size] = null;
+      if (index < size) {
+        place(last, index);
+        siftDown(index);
+        if (heap[index] == last) {
+          siftUp(index);
+        }
+      }
+
+      notFull.signal();
+      return removed.timedAddress;
+    }
+
+    private void grow() {
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, heap.length << 1);
+      }
+    }
+
+    private void siftUp(int index) {
+      Entry entry = heap[index];
+      while (index > 0) {
+        int parent = (index - 1) >>> 1;
+        if (!before(entry, heap[parent])) {
+          break;
+        }
+        place(heap[parent], index);
+        index = parent;
+      }
+      place(entry, index);
+    }
+
+    private void siftDown(int index) {
+      Entry entry = heap[index];
+      while (true) {
+        int child = 2 * index + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && before(heap[child + 1], heap[child])) {
+          child++;
+        }
+        if (!before(heap[child], entry)) {
+          break;
+        }
+        place(heap[child], index);
+        index = child;
+      }
+      place(entry, index);
+    }
+
+    private void place(Entry entry, int index) {
+      heap[index] = entry;
+      entry.index = index;
+    }
+
+    private static boolean before(Entry a, Entry b) {
+      long aMillis = a.timedAddress.getExpirationDate().getTime();
+      long bMillis = b.timedAddress.getExpirationDate().getTime();
+      return aMillis < bMillis || (aMillis == bMillis && a.sequence < b.sequence);
+    }
+
+    /**
+     * An address and its position in the heap.
+     */
+    private static final class Entry {
+
+      private TimedInetAddress timedAddress;
+      private final long sequence;
+      private int index;
+
+      private Entry(TimedInetAddress timedAddress, long sequence) {
+        this.timedAddress = timedAddress;
+        this.sequence = sequence;
+      }
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides whether a new {@link InetAddress} may enter a
+ * {@link TimedAddressCache}: an address is only admitted once it has been
+ * offered a given number of times within the current window. This keeps
+ * one-hit wonders, such as the addresses of a port scan, from taking up the
+ * cache's capacity.
+ * 
+ * The first sighting of an address is recorded in a "doorkeeper" Bloom
+ * filter, and later sightings in a count-min sketch of 4-bit counters, so
+ * that both the memory used and the cost of a decision are constant. Over
+ * every {@code window} offers, each word of the doorkeeper is cleared and
+ * each word of counters is halved once, so that old sightings fade away. The
+ * aging is spread evenly over the window, a few words per offer, so that no
+ * single decision pays for all of it.
+ */
+final class AdmissionFilter {
+
+  /* Largest admission threshold: one doorkeeper bit plus a 4-bit counter. */
+  static final int MAXIMUM_THRESHOLD = 16;
+
+  /* Number of hashes, both for the doorkeeper and the counter rows. */
+  private static final int HASHES = 4;
+
+  /* Doorkeeper bits per offer in the window (about 2% false positives). */
+  private static final int BITS_PER_OFFER = 8;
+
+  private static final long COUNTER_MASK = 0xFL;
+  private static final long HALVING_MASK = 0x7777777777777777L;
+
+  private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35,
+      0x27D4EB2F };
+
+  private final int threshold;
+  private final long window;
+  private final AtomicLong offers = new AtomicLong();
+
+  private final int doorkeeperMask;
+  private final AtomicLongArray doorkeeper;
+
+  /* 16 counters of 4 bits per long, HASHES rows of counterMask + 1 each. */
+  private final int counterMask;
+  private final AtomicLongArray counters;
+
+  /**
+   * Creates a new {@link AdmissionFilter}.
+   * 
+   * @param threshold
+   *          the number of offers within a window after which an address is
+   *          admitted, from 2 to {@value #MAXIMUM_THRESHOLD}
+   * @param window
+   *          the number of offers after which sightings start to fade
+   */
+  AdmissionFilter(int threshold, int window) {
+    if (threshold < 2 || threshold > MAXIMUM_THRESHOLD) {
+      throw new IllegalArgumentException("Threshold must be between 2 and "
+          + MAXIMUM_THRESHOLD);
+    }
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be positive");
+    }
+
+    this.threshold = threshold;
+    this.window = window;
+
+    int doorkeeperBits = powerOfTwoAtLeast((long) window * BITS_PER_OFFER);
+    this.doorkeeperMask = doorkeeperBits - 1;
+    this.doorkeeper = new AtomicLongArray(Math.max(1, doorkeeperBits >>> 6));
+
+    int countersPerRow = powerOfTwoAtLeast(window);
+    this.counterMask = countersPerRow - 1;
+    this.counters = new AtomicLongArray(Math.max(1,
+        (HASHES * countersPerRow) >>> 4));
+  }
+
+  /**
+   * Records a sighting of the given address and decides whether it may be
+   * admitted.
+   * 
+   * @param address
+   *          the {@link InetAddress} being offered
+   * @return {@code true} if the address has now been seen often enough
+   */
+  boolean admit(InetAddress address) {
+    age(offers.incrementAndGet());
+
+    int hash = address.hashCode();
+    if (!setDoorkeeper(hash)) {
+      return false; // first sighting in this window
+    }
+
+    int count = MAXIMUM_THRESHOLD;
+    for (int row = 0; row < HASHES; row++) {
+      count = Math.min(count, incrementCounter(row * (counterMask + 1)
+          + (hash(hash, row) & counterMask)));
+    }
+    return 1 + count >= threshold;
+  }
+
+  /**
+   * Sets the doorkeeper bits of the given hash.
+   * 
+   * @return {@code true} if they were all set already
+   */
+  private boolean setDoorkeeper(int hash) {
+    boolean seen = true;
+    for (int i = 0; i < HASHES; i++) {
+      int bit = hash(hash, i) & doorkeeperMask;
+      int index = bit >>> 6;
+      long mask = 1L << bit;
+
+      long word;
+      do {
+        word = doorkeeper.get(index);
+        if ((word & mask) != 0) {
+          break;
+        }
+        seen = false;
+      } while (!doorkeeper.compareAndSet(index, word, word | mask));
+    }
+    return seen;
+  }
+
+  /**
+   * Increments the given 4-bit counter, saturating at 15.
+   * 
+   * @return the new value of the counter
+   */
+  private int incrementCounter(int counter) {
+    int index = counter >>> 4;
+    int shift = (counter & 15) << 2;
+
+    while (true) {
+      long word = counters.get(index);
+      long value = (word >>> shift) & COUNTER_MASK;
+      if (value == COUNTER_MASK) {
+        return (int) value;
+      }
+      if (counters.compareAndSet(index, word, word + (1L << shift))) {
+        return (int) value + 1;
+      }
+    }
+  }
+
+  /**
+   * Ages the share of the filter that falls to the given offer: the words
+   * of the doorkeeper and then of the counters are visited in turn, each
+   * once per window, the doorkeeper's being cleared and the counters'
+   * halved. Since both are sized by the window, an offer ages at most a few
+   * words.
+   * 
+   * @param offer
+   *          the number of the offer, counting from 1
+   */
+  private void age(long offer) {
+    long words = doorkeeper.length() + counters.length();
+    long step = (offer - 1) % window;
+    long from = step * words / window;
+    long to = (step + 1) * words / window;
+
+    for (long i = from; i < to; i++) {
+      if (i < doorkeeper.length()) {
+        doorkeeper.set((int) i, 0);
+        continue;
+      }
+
+      int index = (int) (i - doorkeeper.length());
+      long word;
+      do {
+        word = counters.get(index);
+      } while (!counters.compareAndSet(index, word,
+          (word >>> 1) & HALVING_MASK));
+    }
+  }
+
+  private static int hash(int hash, int i) {
+    int h = (hash ^ SEEDS[i]) * SEEDS[(i + 1) % HASHES];
+    h ^= h >>> 15;
+    h *= 0x2C1B3C6D;
+    h ^= h >>> 12;
+    return h;
+  }
+
+  private static int powerOfTwoAtLeast(long n) {
+    if (n >= 1 << 30) {
+      return 1 << 30;
+    }
+    return Math.max(64, Integer.highestOneBit((int) Math.max(1, n - 1)) << 1);
+  }
+}
@@ -0,0 +1,127 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+
+/**
+ * Assembles the initial contents of a {@link TimedAddressCache} from the
+ * addresses given to its builder. The internal {@link ConcurrentMap} and the
+ * expiry index are built in parallel on the common {@link ForkJoinPool}: each
+ * task indexes a slice of the addresses into its own partial index, and the
+ * partial indexes are merged pairwise as the tasks join. Meanwhile the
+ * calling thread fills the internal {@link AddressOrder}, which has to be
+ * filled in order. Each structure is presized and written once.
+ */
+final class BulkLoader {
+
+  /* Addresses indexed by one task without splitting further. */
+  private static final int LEAF_SIZE = 8192;
+
+  /* For an address given more than once, the latest expiration date wins. */
+  private static final BiFunction<Date, Date, Date> LATEST = new BiFunction<Date, Date, Date>() {
+
+    @Override
+    public Date apply(Date a, Date b) {
+      return a.before(b) ? b : a;
+    }
+  };
+
+  private BulkLoader() {
+  }
+
+  /**
+   * Creates a {@link ConcurrentMap} sized for the given number of addresses.
+   *
+   * @param expectedSize
+   *          the number of addresses
+   * @return the empty map
+   */
+  static ConcurrentMap<InetAddress, Date> newMap(int expectedSize) {
+    return new ConcurrentHashMap<>(Math.max(16, expectedSize), 0.75f,
+        ForkJoinPool.getCommonPoolParallelism());
+  }
+
+  /**
+   * Loads the given addresses into the given, empty structures. The
+   * {@link AddressOrder} receives every address (see
+   * {@link AddressOrder#addAll}); the map and the index receive each address
+   * once, with its latest expiration date.
+   *
+   * @param data
+   *          the addresses, in insertion order
+   * @param order
+   *          the internal {@link AddressOrder}
+   * @param map
+   *          the internal {@link ConcurrentMap}
+   * @param index
+   *          the expiry index
+   */
+  static void load(List<TimedInetAddress> data, AddressOrder order,
+      ConcurrentMap<InetAddress, Date> map, ExpiryIndex<InetAddress> index) {
+    ForkJoinTask<ExpiryIndex<InetAddress>> indexing = ForkJoinPool
+        .commonPool().submit(
+            new IndexTask(data, 0, data.size(), map, index.resolutionMillis()));
+
+    try {
+      order.addAll(data);
+    } finally {
+      index.merge(indexing.join());
+    }
+  }
+
+  /**
+   * Maps and indexes a slice of the addresses, returning its partial index.
+   */
+  private static final class IndexTask extends
+      RecursiveTask<ExpiryIndex<InetAddress>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<TimedInetAddress> data;
+    private final int from;
+    private final int to;
+    private final ConcurrentMap<InetAddress, Date> map;
+    private final long resolutionMillis;
+
+    private IndexTask(List<TimedInetAddress> data, int from, int to,
+        ConcurrentMap<InetAddress, Date> map, long resolutionMillis) {
+      this.data = data;
+      this.from = from;
+      this.to = to;
+      this.map = map;
+      this.resolutionMillis = resolutionMillis;
+    }
+
+    @Override
+    protected ExpiryIndex<InetAddress> compute() {
+      if (to - from <= LEAF_SIZE) {
+        ExpiryIndex<InetAddress> index = new ExpiryIndex<>(resolutionMillis);
+        for (int i = from; i < to; i++) {
+          TimedInetAddress timedAddress = data.get(i);
+          Date expirationDate = timedAddress.getExpirationDate();
+          map.merge(timedAddress.getInetAddress(), expirationDate, LATEST);
+          // an earlier date of a duplicate is left in the index; the cleanup
+          // task re-indexes such entries under the date in the map
+          index.add(timedAddress.getInetAddress(), expirationDate.getTime());
+        }
+        return index;
+      }
+
+      int middle = (from + to) >>> 1;
+      IndexTask left = new IndexTask(data, from, middle, map, resolutionMillis);
+      left.fork();
+      ExpiryIndex<InetAddress> right = new IndexTask(data, middle, to, map,
+          resolutionMillis).compute();
+      ExpiryIndex<InetAddress> leftIndex = left.join();
+      return leftIndex.size() >= right.size() ? leftIndex.merge(right) : right
+          .merge(leftIndex);
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.redacted;
+
+/**
+ * A source of the current time, in milliseconds, used by a
+ * {@link TimedAddressCache} to stamp and expire its addresses. The default,
+ * {@link #SYSTEM}, reads {@link System#currentTimeMillis()}; other
+ * implementations allow the cache to run against virtual time (e.g. when
+ * replaying recorded traffic faster than real time).
+ */
+public interface CacheClock {
+
+  /**
+   * The wall clock, backed by {@link System#currentTimeMillis()}.
+   */
+  public static final CacheClock SYSTEM = new CacheClock() {
+
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  /**
+   * Returns the current time, in milliseconds since the epoch.
+   */
+  public long currentTimeMillis();
+}
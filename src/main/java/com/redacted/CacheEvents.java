@@ -0,0 +1,100 @@
+package com.redacted;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events emitted by {@link TimedAddressCache}. Each
+ * event is created, timed and committed in place, and only when its type is
+ * enabled in the running recording, so that the cache pays nothing while
+ * nothing is recording. Thresholds default to the values below and, like any
+ * JFR setting, can be changed per recording, e.g. in a {@code .jfc} file:
+ * 
+ * <pre>
+ * &lt;event name="com.redacted.SlowTake"&gt;
+ *   &lt;setting name="enabled"&gt;true&lt;/setting&gt;
+ *   &lt;setting name="threshold"&gt;50 ms&lt;/setting&gt;
+ * &lt;/event&gt;
+ * </pre>
+ */
+final class CacheEvents {
+
+  private static final String CATEGORY = "Address Cache";
+
+  private CacheEvents() {
+  }
+
+  @Name("com.redacted.Cleanup")
+  @Label("Cache Cleanup")
+  @Category(CATEGORY)
+  @Description("A run of the cleanup task, or a threadless expiry slice")
+  @StackTrace(false)
+  static final class CleanupEvent extends Event {
+
+    @Label("Scanned")
+    @Description("Due addresses taken from the expiry index")
+    int scanned;
+
+    @Label("Expired")
+    @Description("Addresses evicted because they had expired")
+    int expired;
+
+    @Label("Budget Exhausted")
+    @Description("Whether the run stopped early because of its pause budget")
+    boolean budgetExhausted;
+  }
+
+  @Name("com.redacted.CapacityRejection")
+  @Label("Cache Capacity Rejection")
+  @Category(CATEGORY)
+  @Description("An offer() turned away because the cache was full")
+  static final class CapacityRejectionEvent extends Event {
+
+    @Label("Address")
+    String address;
+
+    @Label("Maximum Capacity")
+    int maximumCapacity;
+  }
+
+  @Name("com.redacted.SlowTake")
+  @Label("Slow Cache Take")
+  @Category(CATEGORY)
+  @Description("A take() that waited for an address longer than the threshold")
+  @Threshold("10 ms")
+  static final class SlowTakeEvent extends Event {
+
+    @Label("Address")
+    String address;
+  }
+
+  @Name("com.redacted.MoveFront")
+  @Label("Cache Move Front")
+  @Category(CATEGORY)
+  @Description("A re-offered address moved to the front of the cache")
+  @Threshold("1 ms")
+  static final class MoveFrontEvent extends Event {
+
+    @Label("Address")
+    String address;
+
+    @Label("Cache Size")
+    int size;
+  }
+
+  @Name("com.redacted.BulkLoad")
+  @Label("Cache Bulk Load")
+  @Category(CATEGORY)
+  @Description("Addresses loaded into a cache when it is built")
+  @StackTrace(false)
+  static final class BulkLoadEvent extends Event {
+
+    @Label("Addresses")
+    int addresses;
+  }
+}
@@ -0,0 +1,54 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.Date;
+
+/**
+ * Receives the changes made to a {@link TimedAddressCache}, e.g. to replicate
+ * them (see {@link com.redacted.replication.ReplicationPrimary}). Each method
+ * is called on the thread that made the change, while the cache still holds
+ * a lock for the address, so the changes to each address are reported in
+ * the order they were made in. Changes to different addresses made
+ * concurrently by different threads may be reported in either order.
+ * Implementations must be thread-safe and fast, and must not call back into
+ * the cache. Listeners that only need some of the changes can extend
+ * {@link CacheListenerAdapter}.
+ */
+public interface CacheListener {
+
+  /**
+   * An address was added by offer() or put().
+   */
+  public void offered(TimedInetAddress timedAddress);
+
+  /**
+   * An address already in the cache was offered again and moved to the
+   * front.
+   */
+  public void movedFront(InetAddress address);
+
+  /**
+   * An address was renewed by sliding expiration (see
+   * {@link TimedAddressCache.TimedAddressCacheBuilder#expireAfterWrite()}).
+   * A renewal by a re-offer is reported before the move to the front.
+   *
+   * @param expirationDate
+   *          the new expiration date
+   */
+  public void renewed(InetAddress address, Date expirationDate);
+
+  /**
+   * An address was removed by remove(InetAddress).
+   */
+  public void removed(InetAddress address);
+
+  /**
+   * An address was retrieved by remove() or take().
+   */
+  public void taken(InetAddress address);
+
+  /**
+   * An address expired and was evicted.
+   */
+  public void expired(InetAddress address);
+}
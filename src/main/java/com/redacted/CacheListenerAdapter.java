@@ -0,0 +1,35 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.Date;
+
+/**
+ * A {@link CacheListener} that ignores every change, for listeners that only
+ * care about some of them to extend and override those.
+ */
+public abstract class CacheListenerAdapter implements CacheListener {
+
+  @Override
+  public void offered(TimedInetAddress timedAddress) {
+  }
+
+  @Override
+  public void movedFront(InetAddress address) {
+  }
+
+  @Override
+  public void renewed(InetAddress address, Date expirationDate) {
+  }
+
+  @Override
+  public void removed(InetAddress address) {
+  }
+
+  @Override
+  public void taken(InetAddress address) {
+  }
+
+  @Override
+  public void expired(InetAddress address) {
+  }
+}
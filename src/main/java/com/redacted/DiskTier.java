@@ -0,0 +1,608 @@
+package com.redacted;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The on-disk tier of a {@link TimedAddressCache} built with diskTier(): a
+ * store for the addresses that do not fit in memory. Spilled addresses are
+ * appended to segment files through a write buffer, so the disk only sees
+ * large sequential writes. Each record is an address and its expiration
+ * date: a length byte, the 4 or 16 address bytes and 8 bytes of epoch
+ * milliseconds.
+ *
+ * A compact in-memory index maps a 64-bit fingerprint of each address to its
+ * expiration date and to the segment and offset of its record, in primitive
+ * arrays of 48 to 96 bytes per address, rather than the few hundred bytes an
+ * address costs in memory. Checking whether an address is on disk, or has
+ * expired, only takes the index. Removing an address reads its record back,
+ * from the write buffer if it has not been written out yet, and the address
+ * is rebuilt from the record's bytes, which also rules out fingerprint
+ * collisions. pollNewest() reads the newest segment sequentially and hands
+ * back its most recently spilled addresses in one batch, for a cache whose
+ * memory has run empty.
+ *
+ * A segment whose addresses have all gone is deleted. One that is mostly
+ * dead or wholly expired is read back sequentially when a new segment is
+ * started, and its live addresses are copied forward. Copied addresses then
+ * count as spilled at that time, so the order in which pollNewest() returns
+ * addresses only approximates the order they were spilled in.
+ *
+ * The store is a spill area, not a persistent copy of the cache: its files
+ * are deleted on close().
+ */
+final class DiskTier {
+
+  /* Bytes per segment file before a new one is started. */
+  static final long SEGMENT_SIZE_DEFAULT = 64 << 20;
+
+  private static final int BUFFER_SIZE = 64 << 10;
+  private static final int READ_BUFFER_SIZE = 1 << 20;
+  private static final int MAXIMUM_RECORD_SIZE = 1 + 16 + 8;
+  private static final int INITIAL_INDEX_SIZE = 1024;
+
+  private final File directory;
+  private final long segmentSize;
+  private final CacheClock clock;
+
+  /* Fingerprint -> expiration date, segment and offset, by open addressing. */
+  private long[] keys = new long[INITIAL_INDEX_SIZE];
+  private long[] expirations = new long[INITIAL_INDEX_SIZE];
+  private int[] segmentIds = new int[INITIAL_INDEX_SIZE];
+  private int[] offsets = new int[INITIAL_INDEX_SIZE];
+  private int indexSize;
+
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private Segment active;
+  private int nextSegmentId;
+  private boolean compacting;
+  private boolean closed;
+
+  /**
+   * Creates a new, empty disk tier.
+   *
+   * @param directory
+   *          the directory for the segment files, created if necessary
+   * @param segmentSize
+   *          the size at which a new segment file is started, in bytes
+   * @param clock
+   *          the clock to expire addresses by
+   */
+  DiskTier(File directory, long segmentSize, CacheClock clock) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new UncheckedIOException(new IOException("Cannot create "
+          + directory));
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.clock = clock;
+    this.active = newSegment();
+  }
+
+  /**
+   * Writes the given address to disk, replacing any earlier copy. Expired
+   * addresses are dropped.
+   *
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   */
+  synchronized void spill(TimedInetAddress timedAddress) {
+    checkOpen();
+    long expirationMillis = timedAddress.getExpirationDate().getTime();
+    if (clock.currentTimeMillis() > expirationMillis) {
+      return;
+    }
+
+    byte[] address = timedAddress.getInetAddress().getAddress();
+    long key = fingerprint(address);
+    int slot = find(key);
+    if (slot >= 0) {
+      release(segmentIds[slot]);
+      removeSlot(slot);
+    }
+
+    put(key, expirationMillis, active.id, append(address, expirationMillis));
+    active.live++;
+    rollIfFull();
+  }
+
+  /**
+   * Removes the given address, e.g. to promote it back to memory, reading
+   * its record back.
+   *
+   * @param address
+   *          the {@link InetAddress}
+   * @return the address as read from disk, or {@code null} if it was not on
+   *         disk or had expired
+   */
+  synchronized TimedInetAddress remove(InetAddress address) {
+    checkOpen();
+    byte[] bytes = address.getAddress();
+    int slot = find(fingerprint(bytes));
+    if (slot < 0) {
+      return null;
+    }
+
+    TimedInetAddress timedAddress = null;
+    if (clock.currentTimeMillis() <= expirations[slot]) {
+      timedAddress = read(segments.get(segmentIds[slot]), offsets[slot]);
+      if (!Arrays.equals(bytes, timedAddress.getInetAddress().getAddress())) {
+        return null; // another address with the same fingerprint
+      }
+    }
+
+    release(segmentIds[slot]);
+    removeSlot(slot);
+    return timedAddress;
+  }
+
+  /**
+   * Removes up to the given number of the most recently spilled unexpired
+   * addresses, reading segments sequentially from the newest until enough
+   * are found. Expired addresses met on the way are dropped.
+   *
+   * @param maximum
+   *          the most addresses to return
+   * @return the addresses, least recently spilled first, or an empty list if
+   *         there are none
+   */
+  synchronized List<TimedInetAddress> pollNewest(int maximum) {
+    checkOpen();
+    Deque<TimedInetAddress> polled = new ArrayDeque<>();
+    for (final Segment segment : new ArrayList<>(segments.descendingMap()
+        .values())) {
+      if (polled.size() == maximum) {
+        break;
+      }
+      if (segment.live == 0) {
+        continue;
+      }
+
+      final int wanted = maximum - polled.size();
+      final long now = clock.currentTimeMillis();
+      final List<Long> expired = new ArrayList<>();
+      final Deque<TimedInetAddress> newest = new ArrayDeque<>();
+      forEachRecord(segment, new RecordVisitor() {
+
+        @Override
+        public void visit(byte[] address, long expirationMillis, int offset) {
+          long key = fingerprint(address);
+          if (!isCurrent(find(key), segment, offset)) {
+            return;
+          }
+          if (now > expirationMillis) {
+            expired.add(key);
+            return;
+          }
+
+          if (newest.size() == wanted) {
+            newest.removeFirst();
+          }
+          newest.addLast(new TimedInetAddress(toInetAddress(address),
+              new Date(expirationMillis)));
+        }
+      });
+
+      for (long key : expired) {
+        removeKey(key);
+      }
+      while (!newest.isEmpty()) { // older than those polled so far
+        TimedInetAddress timedAddress = newest.removeLast();
+        removeKey(fingerprint(timedAddress.getInetAddress().getAddress()));
+        polled.addFirst(timedAddress);
+      }
+    }
+    return new ArrayList<>(polled);
+  }
+
+  /**
+   * Returns the number of addresses on disk, including any that have expired
+   * but not yet been dropped.
+   */
+  synchronized int size() {
+    return indexSize;
+  }
+
+  /**
+   * Returns the number of segment files.
+   */
+  synchronized int segments() {
+    return segments.size();
+  }
+
+  /**
+   * Deletes every segment file.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    for (Segment segment : new ArrayList<>(segments.values())) {
+      delete(segment);
+    }
+    keys = new long[0];
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Disk tier has been closed");
+    }
+  }
+
+  /**
+   * Appends a record to the active segment through the write buffer,
+   * writing the buffer out when full. The caller indexes the record and then
+   * calls rollIfFull().
+   *
+   * @return the offset of the record in the active segment
+   */
+  private int append(byte[] address, long expirationMillis) {
+    if (buffer.remaining() < MAXIMUM_RECORD_SIZE) {
+      flush();
+    }
+
+    int offset = (int) active.bytes;
+    buffer.put((byte) address.length).put(address).putLong(expirationMillis);
+    active.records++;
+    active.bytes += 1 + address.length + 8;
+    active.maximumExpirationMillis = Math.max(active.maximumExpirationMillis,
+        expirationMillis);
+    return offset;
+  }
+
+  private void flush() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        active.flushed += active.channel.write(buffer, active.flushed);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Starts a new segment if the active one is full.
+   */
+  private void rollIfFull() {
+    if (active.bytes >= segmentSize) {
+      roll();
+    }
+  }
+
+  /**
+   * Seals the active segment and starts a new one, then cleans up the sealed
+   * segments. Sealed segments stay open for reading.
+   */
+  private void roll() {
+    flush();
+    active = newSegment();
+
+    if (!compacting) {
+      compacting = true;
+      try {
+        cleanUp();
+      } finally {
+        compacting = false;
+      }
+    }
+  }
+
+  /**
+   * Deletes sealed segments with no live addresses, drops those whose
+   * addresses have all expired and compacts those that are mostly dead.
+   */
+  private void cleanUp() {
+    long now = clock.currentTimeMillis();
+    List<Segment> sealed = new ArrayList<>(segments.headMap(active.id)
+        .values());
+    for (Segment segment : sealed) {
+      if (segment.live == 0) {
+        delete(segment);
+      } else if (segment.maximumExpirationMillis < now) {
+        scan(segment, false);
+      } else if (segment.live * 2 < segment.records) {
+        scan(segment, true);
+      }
+    }
+  }
+
+  /**
+   * Reads a sealed segment sequentially, removing its addresses from the
+   * index or, if {@code copyLive}, copying its live, unexpired addresses to
+   * the active segment. The segment is deleted afterwards.
+   */
+  private void scan(final Segment segment, final boolean copyLive) {
+    final long now = clock.currentTimeMillis();
+    forEachRecord(segment, new RecordVisitor() {
+
+      @Override
+      public void visit(byte[] address, long expirationMillis, int offset) {
+        int slot = find(fingerprint(address));
+        if (!isCurrent(slot, segment, offset)) {
+          return;
+        }
+        if (copyLive && now <= expirationMillis) {
+          segmentIds[slot] = active.id;
+          offsets[slot] = append(address, expirationMillis);
+          active.live++;
+          rollIfFull();
+        } else {
+          removeSlot(slot);
+        }
+      }
+    });
+    delete(segment);
+  }
+
+  /**
+   * Receives the records of a segment from forEachRecord().
+   */
+  private interface RecordVisitor {
+
+    void visit(byte[] address, long expirationMillis, int offset);
+  }
+
+  /**
+   * Reads every record of the given segment sequentially, in the order they
+   * were appended. A record cut short at the end of the file is ignored.
+   */
+  private void forEachRecord(Segment segment, RecordVisitor visitor) {
+    if (segment == active) {
+      flush();
+    }
+
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    long base = 0; // offset in the file of the buffer's first byte
+    try {
+      while (true) {
+        int read = segment.channel.read(readBuffer,
+            base + readBuffer.position());
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 1) {
+          int start = readBuffer.position();
+          int length = readBuffer.get(start);
+          if (length != 4 && length != 16) {
+            throw new IOException("Corrupt record in " + segment.file);
+          }
+          if (readBuffer.remaining() < 1 + length + 8) {
+            break;
+          }
+
+          readBuffer.get();
+          byte[] address = new byte[length];
+          readBuffer.get(address);
+          long expirationMillis = readBuffer.getLong();
+          visitor.visit(address, expirationMillis, (int) (base + start));
+        }
+
+        int consumed = readBuffer.position();
+        base += consumed;
+        readBuffer.compact();
+        if (read <= 0 && consumed == 0) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads the record at the given offset, from the write buffer if it has
+   * not been written out yet.
+   */
+  private TimedInetAddress read(Segment segment, int offset) {
+    ByteBuffer record = ByteBuffer.allocate(MAXIMUM_RECORD_SIZE);
+    if (segment == active && offset >= segment.flushed) {
+      for (int i = offset - (int) segment.flushed; i < buffer.position()
+          && record.hasRemaining(); i++) {
+        record.put(buffer.get(i));
+      }
+    } else {
+      try {
+        while (record.hasRemaining()
+            && segment.channel.read(record, offset + record.position()) > 0) {
+          // until the record is read, or the end of the file
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    record.flip();
+    byte[] address = new byte[record.get()];
+    record.get(address);
+    return new TimedInetAddress(toInetAddress(address), new Date(
+        record.getLong()));
+  }
+
+  /**
+   * Checks whether the given index slot is the entry of the record at the
+   * given position, rather than of a later copy of its address.
+   */
+  private boolean isCurrent(int slot, Segment segment, int offset) {
+    return slot >= 0 && segmentIds[slot] == segment.id
+        && offsets[slot] == offset;
+  }
+
+  /**
+   * Removes the index entry of the given fingerprint.
+   */
+  private void removeKey(long key) {
+    int slot = find(key);
+    release(segmentIds[slot]);
+    removeSlot(slot);
+  }
+
+  private static InetAddress toInetAddress(byte[] address) {
+    try {
+      return InetAddress.getByAddress(address);
+    } catch (UnknownHostException e) { // not 4 or 16 bytes
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Marks one address of the given segment as gone, deleting the segment
+   * once none are left (unless it is the active one).
+   */
+  private void release(int segmentId) {
+    Segment segment = segments.get(segmentId);
+    if (segment != null && --segment.live == 0 && segment != active) {
+      delete(segment);
+    }
+  }
+
+  private Segment newSegment() {
+    Segment segment = new Segment(nextSegmentId++);
+    segment.file = new File(directory, "segment-" + segment.id + ".dat");
+    try {
+      segment.channel = FileChannel.open(segment.file.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    segments.put(segment.id, segment);
+    return segment;
+  }
+
+  private void delete(Segment segment) {
+    segments.remove(segment.id);
+    try {
+      segment.channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    segment.file.delete();
+  }
+
+  /**
+   * Returns the index slot of the given fingerprint, or -1.
+   */
+  private int find(long key) {
+    int mask = keys.length - 1;
+    for (int i = slotOf(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void put(long key, long expirationMillis, int segmentId,
+      int offset) {
+    if ((indexSize + 1) * 2 > keys.length) {
+      resize();
+    }
+
+    int mask = keys.length - 1;
+    int i = slotOf(key, mask);
+    while (keys[i] != 0 && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (keys[i] == 0) {
+      indexSize++;
+    }
+    keys[i] = key;
+    expirations[i] = expirationMillis;
+    segmentIds[i] = segmentId;
+    offsets[i] = offset;
+  }
+
+  /**
+   * Empties the given slot, shifting back later entries of the same probe
+   * sequence so that no tombstones are needed.
+   */
+  private void removeSlot(int slot) {
+    int mask = keys.length - 1;
+    indexSize--;
+    for (int j = (slot + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+      int home = slotOf(keys[j], mask);
+      if (((j - home) & mask) >= ((j - slot) & mask)) {
+        keys[slot] = keys[j];
+        expirations[slot] = expirations[j];
+        segmentIds[slot] = segmentIds[j];
+        offsets[slot] = offsets[j];
+        slot = j;
+      }
+    }
+    keys[slot] = 0;
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    long[] oldExpirations = expirations;
+    int[] oldSegmentIds = segmentIds;
+    int[] oldOffsets = offsets;
+    keys = new long[oldKeys.length << 1];
+    expirations = new long[keys.length];
+    segmentIds = new int[keys.length];
+    offsets = new int[keys.length];
+    indexSize = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        put(oldKeys[i], oldExpirations[i], oldSegmentIds[i], oldOffsets[i]);
+      }
+    }
+  }
+
+  private static int slotOf(long key, int mask) {
+    return (int) (key ^ (key >>> 32)) & mask;
+  }
+
+  /**
+   * Returns a non-zero 64-bit hash of the given address bytes.
+   */
+  private static long fingerprint(byte[] address) {
+    long h = 0xCBF29CE484222325L ^ address.length;
+    for (byte b : address) {
+      h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+
+  /**
+   * A segment file and its bookkeeping.
+   */
+  private static final class Segment {
+
+    private final int id;
+    private File file;
+    private FileChannel channel;
+    private long bytes;
+    private long flushed; // bytes written out; the rest are in the buffer
+    private int records;
+    private int live;
+    private long maximumExpirationMillis = Long.MIN_VALUE;
+
+    private Segment(int id) {
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package com.redacted;
+
+import java.net.InetAddress;
+
+/**
+ * An {@link AddressCache} whose addresses expire, and which accepts an
+ * expiration date per address. Lets code that only holds the interface, such
+ * as {@link com.redacted.server.AddressCacheServer}, make offers with their
+ * own time to live.
+ */
+public interface ExpiringAddressCache extends AddressCache {
+
+  /**
+   * Adds the {@link InetAddress} of the given {@link TimedInetAddress}, to
+   * expire at its expiration date, and returns {@code true} on success.
+   */
+  public boolean offer(TimedInetAddress timedAddress);
+}
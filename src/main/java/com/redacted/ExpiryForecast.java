@@ -0,0 +1,97 @@
+package com.redacted;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many addresses of a {@link TimedAddressCache} will expire within a
+ * given time, as of the time {@link TimedAddressCache#expiryForecast()} was
+ * called, e.g. to anticipate a wave of expirations or plan capacity.
+ *
+ * Expiration dates are counted in buckets of one second for the next minute
+ * or so, one minute for the next hour and one hour from then on, so
+ * that counts are estimated to within about a bucket: within a bucket
+ * overlapping the horizon, expirations are assumed to be spread evenly
+ * between the earliest and latest date counted in it.
+ * Addresses that are due but not yet evicted count as expiring right away.
+ * Addresses in the disk tier are not included.
+ */
+public final class ExpiryForecast {
+
+  /* Horizons listed by toString(), in milliseconds. */
+  private static final long[] SUMMARY_HORIZONS = { 1000, 10 * 1000,
+      60 * 1000, 10 * 60 * 1000, 60 * 60 * 1000 };
+  private static final String[] SUMMARY_LABELS = { "1 s", "10 s", "1 min",
+      "10 min", "1 h" };
+
+  private final long timeMillis;
+  private final long[] starts;
+  private final long[] ends;
+  private final long[] counts;
+  private final long total;
+
+  ExpiryForecast(long timeMillis, long[] starts, long[] ends, long[] counts,
+      long total) {
+    this.timeMillis = timeMillis;
+    this.starts = starts;
+    this.ends = ends;
+    this.counts = counts;
+    this.total = total;
+  }
+
+  /**
+   * Returns the time the forecast was made, by the cache's clock.
+   *
+   * @return the time in milliseconds since the epoch
+   */
+  public long getTimeMillis() {
+    return timeMillis;
+  }
+
+  /**
+   * Returns the number of addresses the forecast covers.
+   *
+   * @return the number of addresses
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Estimates the number of addresses that expire within the given time of
+   * the forecast, including those already due.
+   *
+   * @param duration
+   *          the time
+   * @param unit
+   *          the unit for the time
+   * @return the estimated number of addresses
+   */
+  public long getExpiringWithin(long duration, TimeUnit unit) {
+    if (duration < 0) {
+      throw new IllegalArgumentException("Duration cannot be negative");
+    }
+
+    long horizon = timeMillis + unit.toMillis(duration);
+    double expiring = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (ends[i] <= horizon) {
+        expiring += counts[i];
+      } else if (starts[i] < horizon) {
+        expiring += (double) counts[i] * (horizon - starts[i])
+            / (ends[i] - starts[i]);
+      }
+    }
+    return Math.min(total, Math.round(expiring));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("Expiring within ");
+    for (int i = 0; i < SUMMARY_HORIZONS.length; i++) {
+      builder.append(SUMMARY_LABELS[i]).append(": ")
+          .append(getExpiringWithin(SUMMARY_HORIZONS[i], TimeUnit.MILLISECONDS))
+          .append(", ");
+    }
+    return builder.append("total: ").append(total).toString();
+  }
+}
@@ -0,0 +1,221 @@
+package com.redacted;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts the addresses of a {@link TimedAddressCache} by expiration date, for
+ * {@link TimedAddressCache#expiryForecast()}. Adding or removing an address
+ * updates a single counter, and a forecast reads every counter once, so that
+ * neither depends on the number of addresses.
+ *
+ * The counters form three levels of 64 buckets each: one second, one minute
+ * and one hour wide. An address is counted in the finest level whose window
+ * (the 64 buckets starting at the current one) covers its expiration date,
+ * unless that bucket still counts addresses of an earlier window, in which
+ * case it goes to the next level. Addresses beyond the hour level's window,
+ * already expired when added, or turned away by every level are counted per
+ * hour of their expiration date instead, in a map that only holds the hours
+ * such addresses fall in. The levels are rings: a bucket is reused by a later
+ * window once its count drops to zero.
+ *
+ * An address is removed from the finest counter covering its expiration
+ * date, which need not be the one it was added to, and from the map only if
+ * no bucket covers it. The counts never drift: every counter lies within one
+ * hour, and a counter taken by another address of that hour leaves that
+ * address's own counter, which covers the same or a wider part of the hour,
+ * for the address it was taken from.
+ *
+ * Each bucket also keeps the earliest and latest expiration date added to it
+ * since it was last empty, which narrows down where in a wide bucket its
+ * addresses expire: those of an hour bucket typically start where the
+ * minute level's window ended when they were added.
+ */
+final class ExpiryHistogram {
+
+  /* Bucket widths of the levels, finest first, in milliseconds. */
+  private static final long[] WIDTHS = { 1000, 60 * 1000, 60 * 60 * 1000 };
+
+  /* Buckets per level. A power of two. */
+  private static final int BUCKETS = 64;
+
+  /* Guards everything below; not a monitor, which would pin virtual threads. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /* Per level, the bucket number (date / width) each bucket counts. */
+  private final long[][] tags = new long[WIDTHS.length][BUCKETS];
+  private final long[][] counts = new long[WIDTHS.length][BUCKETS];
+  private final long[][] earliest = new long[WIDTHS.length][BUCKETS];
+  private final long[][] latest = new long[WIDTHS.length][BUCKETS];
+
+  /*
+   * Per hour (date / hour width), the count, earliest and latest date of the
+   * addresses no bucket took.
+   */
+  private final Map<Long, long[]> hours = new HashMap<>();
+
+  private long total;
+
+  /**
+   * Adds an address with the given expiration date.
+   *
+   * @param nowMillis
+   *          the current time, for placing the address
+   */
+  void add(long expirationMillis, long nowMillis) {
+    lock.lock();
+    try {
+      total++;
+      for (int level = 0; level < WIDTHS.length; level++) {
+        long bucket = expirationMillis / WIDTHS[level];
+        long offset = bucket - nowMillis / WIDTHS[level];
+        if (offset < 0 || offset >= BUCKETS) {
+          continue; // expired or beyond the window
+        }
+
+        int index = (int) bucket & (BUCKETS - 1);
+        if (counts[level][index] == 0) {
+          tags[level][index] = bucket;
+          earliest[level][index] = expirationMillis;
+          latest[level][index] = expirationMillis;
+        } else if (tags[level][index] != bucket) {
+          continue; // still counting an earlier window
+        }
+
+        counts[level][index]++;
+        earliest[level][index] = Math.min(earliest[level][index],
+            expirationMillis);
+        latest[level][index] = Math.max(latest[level][index], expirationMillis);
+        return;
+      }
+
+      long hour = expirationMillis / WIDTHS[WIDTHS.length - 1];
+      long[] entry = hours.get(hour);
+      if (entry == null) {
+        hours.put(hour, new long[] { 1, expirationMillis, expirationMillis });
+      } else {
+        entry[0]++;
+        entry[1] = Math.min(entry[1], expirationMillis);
+        entry[2] = Math.max(entry[2], expirationMillis);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes an address that was added with the given expiration date.
+   *
+   * @param nowMillis
+   *          the current time
+   */
+  void remove(long expirationMillis, long nowMillis) {
+    lock.lock();
+    try {
+      for (int level = 0; level < WIDTHS.length; level++) {
+        long bucket = expirationMillis / WIDTHS[level];
+        int index = (int) bucket & (BUCKETS - 1);
+        if (counts[level][index] > 0 && tags[level][index] == bucket) {
+          counts[level][index]--;
+          total--;
+          return;
+        }
+      }
+
+      long hour = expirationMillis / WIDTHS[WIDTHS.length - 1];
+      long[] entry = hours.get(hour);
+      if (entry != null) {
+        if (--entry[0] == 0) {
+          hours.remove(hour);
+        }
+        total--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes addresses that were added with the given expiration dates, taking
+   * the lock once.
+   *
+   * @param nowMillis
+   *          the current time
+   */
+  void removeAll(Collection<Date> expirationDates,
+      long nowMillis) {
+    lock.lock();
+    try {
+      for (Date expirationDate : expirationDates) {
+        remove(expirationDate.getTime(), nowMillis);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes every address.
+   */
+  void clear() {
+    lock.lock();
+    try {
+      for (long[] levelCounts : counts) {
+        Arrays.fill(levelCounts, 0);
+      }
+      hours.clear();
+      total = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a forecast of the expirations from the given time on.
+   *
+   * @param nowMillis
+   *          the current time
+   * @return the {@link ExpiryForecast}
+   */
+  ExpiryForecast forecast(long nowMillis) {
+    lock.lock();
+    try {
+      int buckets = hours.size();
+      for (long[] levelCounts : counts) {
+        for (long count : levelCounts) {
+          if (count > 0) {
+            buckets++;
+          }
+        }
+      }
+
+      long[] starts = new long[buckets];
+      long[] ends = new long[buckets];
+      long[] bucketCounts = new long[buckets];
+      int i = 0;
+      for (int level = 0; level < WIDTHS.length; level++) {
+        for (int index = 0; index < BUCKETS; index++) {
+          if (counts[level][index] > 0) {
+            starts[i] = earliest[level][index];
+            ends[i] = latest[level][index] + 1;
+            bucketCounts[i] = counts[level][index];
+            i++;
+          }
+        }
+      }
+      for (long[] entry : hours.values()) {
+        starts[i] = entry[1];
+        ends[i] = entry[2] + 1;
+        bucketCounts[i] = entry[0];
+        i++;
+      }
+      return new ExpiryForecast(nowMillis, starts, ends, bucketCounts, total);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Indexes the addresses of a {@link TimedAddressCache} by expiration date so
+ * that the cleanup task knows when the next address is due and can find the
+ * due addresses without scanning the whole cache. Expiration dates are
+ * grouped into buckets of a fixed resolution; a bucket only becomes due once
+ * every address in it has expired, so an address is evicted at most one
+ * resolution after its expiration date. Guarded by a {@link ReentrantLock}
+ * rather than a monitor, so that a virtual thread blocked on it does not pin
+ * its carrier thread.
+ * 
+ * @param <K>
+ *          the type of the indexed entries, usually {@link InetAddress}
+ */
+final class ExpiryIndex<K> {
+
+  private final long resolutionMillis;
+
+  /* Guards everything below. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /* Bucket deadline -> the addresses expiring before that deadline. */
+  private final TreeMap<Long, Set<K>> buckets = new TreeMap<>();
+  private int size;
+
+  /**
+   * Creates a new, empty {@link ExpiryIndex}.
+   * 
+   * @param resolutionMillis
+   *          the width of each bucket, in milliseconds
+   */
+  ExpiryIndex(long resolutionMillis) {
+    if (resolutionMillis < 1) {
+      throw new IllegalArgumentException("Resolution must be positive");
+    }
+
+    this.resolutionMillis = resolutionMillis;
+  }
+
+  /**
+   * Adds an address with the given expiration date.
+   */
+  void add(K address, long expirationMillis) {
+    lock.lock();
+    try {
+      Long deadline = deadlineOf(expirationMillis);
+      Set<K> bucket = buckets.get(deadline);
+      if (bucket == null) {
+        bucket = new HashSet<>();
+        buckets.put(deadline, bucket);
+      }
+
+      if (bucket.add(address)) {
+        size++;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes an address that was added with the given expiration date.
+   * 
+   * @return {@code true} if the address was indexed
+   */
+  boolean remove(K address, long expirationMillis) {
+    lock.lock();
+    try {
+      Long deadline = deadlineOf(expirationMillis);
+      Set<K> bucket = buckets.get(deadline);
+      if (bucket == null || !bucket.remove(address)) {
+        return false;
+      }
+
+      size--;
+      if (bucket.isEmpty()) {
+        buckets.remove(deadline);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves every address of the given index into this one. The other index
+   * must not be in use by any other thread, and is left empty. Buckets are
+   * moved rather than copied where possible, so merging the partial indexes
+   * of a parallel bulk load costs about one pass over the smaller of each
+   * pair of buckets.
+   * 
+   * @param other
+   *          an index of the same resolution
+   * @return this index
+   */
+  ExpiryIndex<K> merge(ExpiryIndex<K> other) {
+    lock.lock();
+    try {
+      if (other.resolutionMillis != resolutionMillis) {
+        throw new IllegalArgumentException("Resolutions differ");
+      }
+
+      for (Map.Entry<Long, Set<K>> entry : other.buckets.entrySet()) {
+        Set<K> bucket = buckets.get(entry.getKey());
+        Set<K> incoming = entry.getValue();
+        if (bucket == null) {
+          buckets.put(entry.getKey(), incoming);
+          size += incoming.size();
+          continue;
+        }
+
+        if (bucket.size() < incoming.size()) { // add the smaller to the larger
+          buckets.put(entry.getKey(), incoming);
+          size += incoming.size() - bucket.size();
+          Set<K> smaller = bucket;
+          bucket = incoming;
+          incoming = smaller;
+        }
+        for (K address : incoming) {
+          if (bucket.add(address)) {
+            size++;
+          }
+        }
+      }
+
+      other.buckets.clear();
+      other.size = 0;
+      return this;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the time at which the earliest bucket becomes due, or
+   * {@link Long#MAX_VALUE} if the index is empty.
+   */
+  long nextDueMillis() {
+    lock.lock();
+    try {
+      return buckets.isEmpty() ? Long.MAX_VALUE : buckets.firstKey();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes and returns up to {@code limit} addresses that have expired at
+   * the given time.
+   * 
+   * @param currentTimeMillis
+   *          the current time
+   * @param limit
+   *          the maximum number of addresses to return
+   * @return the expired addresses, earliest first
+   */
+  List<K> pollDue(long currentTimeMillis, int limit) {
+    lock.lock();
+    try {
+      List<K> due = new ArrayList<>(Math.min(limit, size));
+
+      Iterator<Map.Entry<Long, Set<K>>> buckets = this.buckets
+          .headMap(currentTimeMillis, true).entrySet().iterator();
+      while (buckets.hasNext() && due.size() < limit) {
+        Set<K> bucket = buckets.next().getValue();
+        for (Iterator<K> it = bucket.iterator(); it.hasNext()
+            && due.size() < limit;) {
+          due.add(it.next());
+          it.remove();
+          size--;
+        }
+
+        if (bucket.isEmpty()) {
+          buckets.remove();
+        }
+      }
+
+      return due;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of indexed addresses.
+   */
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the width of each bucket, in milliseconds.
+   */
+  long resolutionMillis() {
+    return resolutionMillis;
+  }
+
+  /**
+   * Removes every address from the index.
+   */
+  void clear() {
+    lock.lock();
+    try {
+      buckets.clear();
+      size = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long deadlineOf(long expirationMillis) {
+    if (expirationMillis >= Long.MAX_VALUE - resolutionMillis) {
+      return Long.MAX_VALUE;
+    }
+
+    // the first bucket boundary strictly after the expiration date, since an
+    // address only expires once the current time is past its date
+    long bucket = expirationMillis / resolutionMillis;
+    if (expirationMillis < 0 && expirationMillis % resolutionMillis != 0) {
+      bucket--;
+    }
+    return (bucket + 1) * resolutionMillis;
+  }
+}
@@ -0,0 +1,291 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the most frequently seen {@link InetAddress}es in fixed memory. A
+ * count-min sketch estimates how often each address has been seen, and a
+ * bounded, indexed min-heap keeps the {@code k} addresses with the highest
+ * estimates. No per-address counters are kept beyond those {@code k}.
+ * 
+ * Counts age: once the sketch has recorded ten times as many events as it has
+ * counters per row, every count (in the sketch and in the heap) is halved, so
+ * the top addresses reflect recent traffic rather than all-time totals.
+ * 
+ * Recording is lock-free for the sketch itself; the heap is only locked when
+ * an address's estimate could place it in the top {@code k}, and recordings
+ * that find the heap busy are dropped rather than wait, which only makes the
+ * top-k view (not the sketch) slightly lossy under heavy contention.
+ */
+public final class FrequencySketch {
+
+  /* Number of rows of the count-min sketch, i.e. of independent hashes. */
+  private static final int DEPTH = 4;
+
+  /* Counters per row for each tracked heavy hitter. */
+  private static final int WIDTH_PER_HITTER = 64;
+  private static final int MINIMUM_WIDTH = 1024;
+
+  /* Per-row seeds for deriving independent hashes. */
+  private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35,
+      0x27D4EB2F };
+
+  private final int k;
+  private final int widthMask;
+  private final AtomicIntegerArray counters;
+  private final long sampleSize;
+  private final AtomicLong recorded = new AtomicLong();
+
+  /* The top k addresses, as a min-heap on their estimated counts. */
+  private final ReentrantLock heapLock = new ReentrantLock();
+  private final Map<InetAddress, HeavyHitter> hitters = new HashMap<>();
+  private final HeavyHitter[] heap;
+  private int heapSize;
+  private volatile long heapMinimum;
+
+  /**
+   * Creates a {@link FrequencySketch} tracking the top {@code k} addresses.
+   * 
+   * @param k
+   *          the number of heavy hitters to track
+   */
+  public FrequencySketch(int k) {
+    if (k < 1) {
+      throw new IllegalArgumentException("k must be positive");
+    }
+
+    int width = Integer.highestOneBit(Math.max(MINIMUM_WIDTH,
+        k * WIDTH_PER_HITTER) - 1) << 1;
+    this.k = k;
+    this.widthMask = width - 1;
+    this.counters = new AtomicIntegerArray(DEPTH * width);
+    this.sampleSize = 10L * width;
+    this.heap = new HeavyHitter[k];
+  }
+
+  /**
+   * Records one occurrence of the given address.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   */
+  public void record(InetAddress address) {
+    int hash = address.hashCode();
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      int index = row * (widthMask + 1) + indexOf(hash, row);
+      estimate = Math.min(estimate, counters.incrementAndGet(index));
+    }
+
+    if (recorded.incrementAndGet() % sampleSize == 0) {
+      age();
+    }
+
+    if (estimate > heapMinimum) { // heapMinimum is 0 until the heap fills
+      offerHitter(address, estimate);
+    }
+  }
+
+  /**
+   * Returns the estimated number of times the given address was recorded,
+   * since aging.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @return the estimate, which may overcount but never undercounts
+   */
+  public int estimate(InetAddress address) {
+    int hash = address.hashCode();
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      estimate = Math.min(estimate,
+          counters.get(row * (widthMask + 1) + indexOf(hash, row)));
+    }
+    return estimate;
+  }
+
+  /**
+   * Returns up to {@code n} of the most frequently recorded addresses, most
+   * frequent first.
+   * 
+   * @param n
+   *          the number of addresses, at most the {@code k} this sketch was
+   *          created with
+   * @return the heavy hitters
+   */
+  public List<HeavyHitter> topK(int n) {
+    List<HeavyHitter> top;
+    heapLock.lock();
+    try {
+      top = new ArrayList<>(heapSize);
+      for (int i = 0; i < heapSize; i++) {
+        top.add(new HeavyHitter(heap[i].address, heap[i].count));
+      }
+    } finally {
+      heapLock.unlock();
+    }
+
+    Collections.sort(top, new Comparator<HeavyHitter>() {
+
+      @Override
+      public int compare(HeavyHitter a, HeavyHitter b) {
+        return Long.compare(b.count, a.count);
+      }
+    });
+    return top.subList(0, Math.min(n, top.size()));
+  }
+
+  private int indexOf(int hash, int row) {
+    int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    return h & widthMask;
+  }
+
+  /**
+   * Adds or updates the given address in the heap if its estimate places it
+   * in the top k. Skipped when another thread holds the heap.
+   */
+  private void offerHitter(InetAddress address, long estimate) {
+    if (!heapLock.tryLock()) {
+      return;
+    }
+
+    try {
+      HeavyHitter hitter = hitters.get(address);
+      if (hitter != null) {
+        if (estimate > hitter.count) {
+          hitter.count = estimate;
+          siftDown(hitter.index);
+        }
+      } else if (heapSize < k) {
+        hitter = new HeavyHitter(address, estimate);
+        hitter.index = heapSize;
+        heap[heapSize++] = hitter;
+        hitters.put(address, hitter);
+        siftUp(hitter.index);
+      } else if (estimate > heap[0].count) {
+        hitters.remove(heap[0].address);
+        hitter = new HeavyHitter(address, estimate);
+        hitter.index = 0;
+        heap[0] = hitter;
+        hitters.put(address, hitter);
+        siftDown(0);
+      }
+
+      heapMinimum = heapSize < k ? 0 : heap[0].count;
+    } finally {
+      heapLock.unlock();
+    }
+  }
+
+  /**
+   * Halves every count, in the sketch and in the heap.
+   */
+  private void age() {
+    for (int i = 0; i < counters.length(); i++) {
+      int count;
+      do {
+        count = counters.get(i);
+      } while (!counters.compareAndSet(i, count, count >>> 1));
+    }
+
+    heapLock.lock();
+    try {
+      // halving preserves the heap order
+      for (int i = 0; i < heapSize; i++) {
+        heap[i].count >>>= 1;
+      }
+      heapMinimum = heapSize < k ? 0 : heap[0].count;
+    } finally {
+      heapLock.unlock();
+    }
+  }
+
+  private void siftUp(int index) {
+    HeavyHitter hitter = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (heap[parent].count <= hitter.count) {
+        break;
+      }
+      place(heap[parent], index);
+      index = parent;
+    }
+    place(hitter, index);
+  }
+
+  private void siftDown(int index) {
+    HeavyHitter hitter = heap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && heap[child + 1].count < heap[child].count) {
+        child++;
+      }
+      if (hitter.count <= heap[child].count) {
+        break;
+      }
+      place(heap[child], index);
+      index = child;
+    }
+    place(hitter, index);
+  }
+
+  private void place(HeavyHitter hitter, int index) {
+    heap[index] = hitter;
+    hitter.index = index;
+  }
+
+  @Override
+  public String toString() {
+    return "FrequencySketch[k=" + k + ", counters=" + counters.length()
+        + ", top=" + Arrays.toString(topK(k).toArray()) + "]";
+  }
+
+  /**
+   * An address and its estimated number of occurrences.
+   */
+  public static final class HeavyHitter {
+
+    private final InetAddress address;
+    private long count;
+    private int index;
+
+    private HeavyHitter(InetAddress address, long count) {
+      this.address = address;
+      this.count = count;
+    }
+
+    public InetAddress getAddress() {
+      return address;
+    }
+
+    /**
+     * Gets the estimated number of occurrences, since aging.
+     * 
+     * @return the estimated count
+     */
+    public long getEstimatedCount() {
+      return count;
+    }
+
+    @Override
+    public String toString() {
+      return address.getHostAddress() + "=" + count;
+    }
+  }
+}
@@ -0,0 +1,872 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A container of many logical {@link AddressCache}s ("namespaces", e.g. one
+ * per tenant) that share a single memory budget and a single expiration
+ * engine. Each {@link Namespace} has the same "Last-In-First-Out" (LIFO)
+ * retrieval policy as {@link TimedAddressCache}, its own quota and its own
+ * statistics, but no threads or pools of its own: one cleanup thread expires
+ * the addresses of every namespace, so that thousands of namespaces cost
+ * about as much as one cache holding all of their addresses.
+ *
+ * A namespace at its quota rejects new addresses, as a full
+ * {@link TimedAddressCache} does. When the container as a whole reaches its
+ * maximum capacity, room is made instead by evicting the oldest address of
+ * the namespace furthest over its fair share of the budget (the budget
+ * divided by the number of namespaces): the offering namespace itself if it
+ * is over its share, else the largest of a small random sample of
+ * namespaces. One busy namespace can therefore not starve the others.
+ */
+public class NamespacedAddressCache {
+
+  /* Default period after which a TimedInetAddress expires, in milliseconds. */
+  private static final long ADDRESS_TIMEOUT_MILLIS_DEFAULT = 5 * 60 * 1000;
+
+  /* Granularity of the expiry index, in milliseconds. */
+  private static final long EXPIRY_RESOLUTION_MILLIS = 100;
+
+  /* Number of due addresses the cleanup task takes from the index at once. */
+  private static final int CLEANUP_BATCH_SIZE = 64;
+
+  /* Number of namespaces sampled when looking for one to evict from. */
+  private static final int EVICTION_SAMPLE_SIZE = 8;
+
+  private final CacheClock clock;
+  private final long addressTimeoutMillis;
+  private final int maximumCapacity;
+  private final int defaultQuota;
+
+  private final ConcurrentMap<String, Namespace> namespaces = new ConcurrentHashMap<>();
+
+  /* Snapshot of the namespaces for sampling. Replaced under namespacesLock. */
+  private final Object namespacesLock = new Object();
+  private volatile Namespace[] namespaceArray = new Namespace[0];
+
+  /* Number of addresses across all namespaces. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final ExpiryIndex<Node> expiryIndex = new ExpiryIndex<>(
+      EXPIRY_RESOLUTION_MILLIS);
+  private final ScheduledExecutorService cleanupExecutor = Executors
+      .newScheduledThreadPool(1);
+  private volatile boolean closed;
+
+  /**
+   * Private constructor for {@link NamespacedAddressCache} which sets
+   * instance variables to values given by the
+   * {@link NamespacedAddressCacheBuilder}.
+   *
+   * @param builder
+   *          the builder at build() time
+   */
+  private NamespacedAddressCache(NamespacedAddressCacheBuilder builder) {
+    clock = builder.clock;
+    addressTimeoutMillis = builder.addressTimeoutMillis;
+    maximumCapacity = builder.maximumCapacity;
+    defaultQuota = builder.defaultQuota;
+
+    cleanupExecutor.scheduleWithFixedDelay(new CacheCleanupTask(),
+        builder.cleanupInitialDelayMillis, builder.cleanupRateMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the namespace of the given name, creating it with the default
+   * quota if it does not exist.
+   *
+   * @param name
+   *          the name of the namespace
+   * @return the namespace
+   */
+  public Namespace namespace(String name) {
+    Namespace namespace = namespaces.get(name);
+    return namespace != null ? namespace : namespace(name, defaultQuota);
+  }
+
+  /**
+   * Returns the namespace of the given name with the given quota, creating
+   * it if it does not exist. The quota of an existing namespace is replaced;
+   * addresses above a lowered quota stay until removed or expired.
+   *
+   * @param name
+   *          the name of the namespace
+   * @param quota
+   *          the maximum number of addresses the namespace may hold
+   * @return the namespace
+   */
+  public Namespace namespace(String name, int quota) {
+    if (quota < 0) {
+      throw new IllegalArgumentException("Quota cannot be negative");
+    }
+
+    synchronized (namespacesLock) {
+      checkOpen();
+
+      Namespace namespace = namespaces.get(name);
+      if (namespace == null) {
+        namespace = new Namespace(name, quota);
+        namespaces.put(name, namespace);
+        namespaceArray = namespaces.values().toArray(new Namespace[0]);
+      } else {
+        namespace.quota = quota;
+      }
+      return namespace;
+    }
+  }
+
+  /**
+   * Returns the statistics of every namespace.
+   *
+   * @return the statistics, in no particular order
+   */
+  public List<NamespaceStats> stats() {
+    List<NamespaceStats> stats = new ArrayList<>();
+    for (Namespace namespace : namespaceArray) {
+      stats.add(namespace.getStats());
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the number of addresses across all namespaces.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Closes every namespace and stops the cleanup task.
+   */
+  public void close() {
+    synchronized (namespacesLock) {
+      closed = true;
+    }
+
+    for (Namespace namespace : namespaceArray) {
+      namespace.close();
+    }
+    cleanupExecutor.shutdownNow();
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Cache has been closed");
+    }
+  }
+
+  private boolean isExpired(Node node) {
+    return clock.currentTimeMillis() > node.expirationMillis;
+  }
+
+  /**
+   * Claims room in the shared budget for one more address, evicting from
+   * the namespace furthest over its fair share if the budget is used up.
+   * Must not hold any namespace's lock.
+   *
+   * @param requester
+   *          the namespace that needs the room
+   * @return {@code true} if room was claimed
+   */
+  private boolean reserve(Namespace requester) {
+    while (true) {
+      int current = size.get();
+      if (current < maximumCapacity) {
+        if (size.compareAndSet(current, current + 1)) {
+          return true;
+        }
+        continue;
+      }
+
+      Namespace victim = chooseVictim(requester);
+      if (victim == null) {
+        return false;
+      }
+      victim.evictOldest();
+    }
+  }
+
+  /**
+   * Chooses the namespace to evict from: the requester if it holds at least
+   * its fair share, else the largest of a random sample of namespaces (or
+   * of all of them, if there are few or the sample is empty).
+   *
+   * @return the namespace, or {@code null} if every namespace is empty
+   */
+  private Namespace chooseVictim(Namespace requester) {
+    Namespace[] all = namespaceArray;
+    int fairShare = maximumCapacity / Math.max(1, all.length);
+    if (requester.count > 0 && requester.count >= fairShare) {
+      return requester;
+    }
+
+    Namespace largest = null;
+    if (all.length > EVICTION_SAMPLE_SIZE) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+        Namespace candidate = all[random.nextInt(all.length)];
+        if (largest == null || candidate.count > largest.count) {
+          largest = candidate;
+        }
+      }
+    }
+
+    if (largest == null || largest.count == 0) {
+      for (Namespace candidate : all) {
+        if (largest == null || candidate.count > largest.count) {
+          largest = candidate;
+        }
+      }
+    }
+    return largest == null || largest.count == 0 ? null : largest;
+  }
+
+  /**
+   * One address in a namespace, linked into the namespace's list.
+   */
+  private static final class Node {
+
+    private final Namespace namespace;
+    private final InetAddress address;
+    private final long expirationMillis;
+    private Node prev;
+    private Node next;
+
+    private Node(Namespace namespace, InetAddress address,
+        long expirationMillis) {
+      this.namespace = namespace;
+      this.address = address;
+      this.expirationMillis = expirationMillis;
+    }
+  }
+
+  /**
+   * A logical {@link AddressCache} within a {@link NamespacedAddressCache}.
+   * Operations on one namespace never block operations on another, except
+   * briefly while an address is evicted from it to make room.
+   */
+  public final class Namespace implements ExpiringAddressCache {
+
+    private final String name;
+    private volatile int quota;
+
+    /* Guards everything below. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<InetAddress, Node> nodes = new HashMap<>();
+    private Node head;
+    private Node tail;
+    private volatile int count;
+    private boolean namespaceClosed;
+
+    private long offers;
+    private long admitted;
+    private long rejected;
+    private long hits;
+    private long misses;
+    private long evicted;
+    private long expired;
+
+    private Namespace(String name, int quota) {
+      this.name = name;
+      this.quota = quota;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean offer(InetAddress address) {
+      return offer(new TimedInetAddress(address, new Date(
+          clock.currentTimeMillis() + addressTimeoutMillis)));
+    }
+
+    /**
+     * Another offer method that takes a {@link TimedInetAddress}, giving the
+     * user to configure the caching time for a particular {@link InetAddress}
+     * element.
+     *
+     * @param timedAddress
+     *          the {@link TimedInetAddress}
+     * @return {@code true} if the timedAddress was successfully added.
+     *         {@code false} if the {@link InetAddress} was already in the
+     *         namespace (in which case it is moved to the front), or the
+     *         namespace is at its quota.
+     */
+    public boolean offer(TimedInetAddress timedAddress) {
+      InetAddress address = timedAddress.getInetAddress();
+
+      lock.lock();
+      try {
+        checkNamespaceOpen();
+        offers++;
+        if (moveFrontIfCached(address) || atQuota()) {
+          return false;
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      if (!reserve(this)) {
+        lock.lock();
+        try {
+          rejected++;
+        } finally {
+          lock.unlock();
+        }
+        return false;
+      }
+
+      lock.lock();
+      try {
+        // things may have changed while we were making room
+        if (namespaceClosed || moveFrontIfCached(address) || atQuota()) {
+          size.decrementAndGet();
+          checkNamespaceOpen();
+          return false;
+        }
+
+        Node node = new Node(this, address, timedAddress.getExpirationDate()
+            .getTime());
+        node.prev = tail;
+        if (tail == null) {
+          head = node;
+        } else {
+          tail.next = node;
+        }
+        tail = node;
+        nodes.put(address, node);
+        count++;
+        admitted++;
+        expiryIndex.add(node, node.expirationMillis);
+
+        notEmpty.signal();
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Moves the given address to the front if it is cached (and has not
+     * expired). Must hold the lock.
+     */
+    private boolean moveFrontIfCached(InetAddress address) {
+      Node node = liveNode(address);
+      if (node == null) {
+        return false;
+      }
+
+      if (node != head) {
+        unlink(node);
+        node.next = head;
+        if (head == null) {
+          tail = node;
+        } else {
+          head.prev = node;
+        }
+        head = node;
+      }
+      return true;
+    }
+
+    /**
+     * Checks the quota, counting a rejection if it is reached. Must hold the
+     * lock.
+     */
+    private boolean atQuota() {
+      if (count >= quota) {
+        rejected++;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Returns the node of the given address, expiring it if it is due. Must
+     * hold the lock.
+     */
+    private Node liveNode(InetAddress address) {
+      Node node = nodes.get(address);
+      if (node != null && isExpired(node)) {
+        detach(node);
+        expired++;
+        return null;
+      }
+      return node;
+    }
+
+    @Override
+    public boolean contains(InetAddress address) {
+      lock.lock();
+      try {
+        checkNamespaceOpen();
+        if (liveNode(address) != null) {
+          hits++;
+          return true;
+        }
+        misses++;
+        return false;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean remove(InetAddress address) {
+      lock.lock();
+      try {
+        checkNamespaceOpen();
+        Node node = liveNode(address);
+        if (node == null) {
+          return false;
+        }
+        detach(node);
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public InetAddress peek() {
+      lock.lock();
+      try {
+        checkNamespaceOpen();
+        while (tail != null && isExpired(tail)) {
+          detach(tail);
+          expired++;
+        }
+        return tail == null ? null : tail.address;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public InetAddress remove() {
+      lock.lock();
+      try {
+        checkNamespaceOpen();
+        return poll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public InetAddress take() throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        InetAddress address;
+        while ((address = poll()) == null) {
+          checkNamespaceOpen();
+          notEmpty.await();
+        }
+        return address;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Removes and returns the newest address that has not expired. Must hold
+     * the lock.
+     */
+    private InetAddress poll() {
+      checkNamespaceOpen();
+      while (tail != null) {
+        Node newest = tail;
+        detach(newest);
+        if (!isExpired(newest)) {
+          return newest.address;
+        }
+        expired++;
+      }
+      return null;
+    }
+
+    /**
+     * Evicts the oldest address to make room in the shared budget.
+     */
+    private void evictOldest() {
+      lock.lock();
+      try {
+        if (head != null) {
+          detach(head);
+          evicted++;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Expires the given node if it is still in this namespace and due.
+     */
+    private void expire(Node node) {
+      lock.lock();
+      try {
+        if (nodes.get(node.address) == node && isExpired(node)) {
+          detach(node);
+          expired++;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Closes this namespace, dropping its addresses and releasing any take()
+     * callers, which fail with an {@link IllegalStateException}. The name
+     * can be reused for a new, empty namespace.
+     */
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        if (namespaceClosed) {
+          return;
+        }
+
+        namespaceClosed = true;
+        while (head != null) {
+          detach(head);
+        }
+        notEmpty.signalAll();
+      } finally {
+        lock.unlock();
+      }
+
+      synchronized (namespacesLock) {
+        if (namespaces.remove(name, this)) {
+          namespaceArray = namespaces.values().toArray(new Namespace[0]);
+        }
+      }
+    }
+
+    @Override
+    public int size() {
+      return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return count == 0;
+    }
+
+    /**
+     * Returns a snapshot of this namespace's statistics.
+     */
+    public NamespaceStats getStats() {
+      lock.lock();
+      try {
+        return new NamespaceStats(name, count, quota, offers, admitted,
+            rejected, hits, misses, evicted, expired);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Removes the given node from this namespace and the shared budget and
+     * expiry index. Must hold the lock.
+     */
+    private void detach(Node node) {
+      unlink(node);
+      nodes.remove(node.address);
+      count--;
+      size.decrementAndGet();
+      expiryIndex.remove(node, node.expirationMillis);
+    }
+
+    /**
+     * Unlinks the given node from the list. Must hold the lock.
+     */
+    private void unlink(Node node) {
+      if (node.prev == null) {
+        head = node.next;
+      } else {
+        node.prev.next = node.next;
+      }
+
+      if (node.next == null) {
+        tail = node.prev;
+      } else {
+        node.next.prev = node.prev;
+      }
+      node.prev = null;
+      node.next = null;
+    }
+
+    private void checkNamespaceOpen() {
+      if (namespaceClosed) {
+        throw new IllegalStateException("Namespace " + name
+            + " has been closed");
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Namespace[" + name + "]";
+    }
+  }
+
+  /**
+   * A snapshot of the statistics of a {@link Namespace}.
+   */
+  public static final class NamespaceStats {
+
+    private final String name;
+    private final int size;
+    private final int quota;
+    private final long offers;
+    private final long admitted;
+    private final long rejected;
+    private final long hits;
+    private final long misses;
+    private final long evicted;
+    private final long expired;
+
+    private NamespaceStats(String name, int size, int quota, long offers,
+        long admitted, long rejected, long hits, long misses, long evicted,
+        long expired) {
+      this.name = name;
+      this.size = size;
+      this.quota = quota;
+      this.offers = offers;
+      this.admitted = admitted;
+      this.rejected = rejected;
+      this.hits = hits;
+      this.misses = misses;
+      this.evicted = evicted;
+      this.expired = expired;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public int getQuota() {
+      return quota;
+    }
+
+    /**
+     * Gets the number of offer() calls, including re-offers.
+     */
+    public long getOffers() {
+      return offers;
+    }
+
+    /**
+     * Gets the number of addresses added by offer().
+     */
+    public long getAdmitted() {
+      return admitted;
+    }
+
+    /**
+     * Gets the number of new addresses turned away by the quota or budget.
+     */
+    public long getRejected() {
+      return rejected;
+    }
+
+    /**
+     * Gets the number of contains() calls that found their address.
+     */
+    public long getHits() {
+      return hits;
+    }
+
+    /**
+     * Gets the number of contains() calls that did not.
+     */
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * Gets the number of addresses evicted to make room for other addresses
+     * in the shared budget.
+     */
+    public long getEvicted() {
+      return evicted;
+    }
+
+    /**
+     * Gets the number of addresses that expired.
+     */
+    public long getExpired() {
+      return expired;
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.asList(name, size, quota, offers, admitted, rejected,
+          hits, misses, evicted, expired).toString();
+    }
+  }
+
+  /**
+   * The background cleanup task, expiring the due addresses of every
+   * namespace.
+   */
+  private final class CacheCleanupTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        List<Node> due;
+        do {
+          due = expiryIndex.pollDue(clock.currentTimeMillis(),
+              CLEANUP_BATCH_SIZE);
+          for (Node node : due) {
+            node.namespace.expire(node);
+          }
+        } while (!due.isEmpty() && !closed);
+      } catch (Exception e) {
+        System.err
+            .println("Error in executing cache cleanup task. It will no longer be run.");
+        e.printStackTrace();
+
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Builder for {@link NamespacedAddressCache}.
+   */
+  public static class NamespacedAddressCacheBuilder {
+
+    /* Instance variables set to default values. Times in milliseconds. */
+    private int maximumCapacity = Integer.MAX_VALUE;
+    private int defaultQuota = Integer.MAX_VALUE;
+    private long cleanupInitialDelayMillis = 100;
+    private long cleanupRateMillis = 5 * 1000;
+    private long addressTimeoutMillis = ADDRESS_TIMEOUT_MILLIS_DEFAULT;
+    private CacheClock clock = CacheClock.SYSTEM;
+
+    /**
+     * Sets the maximum number of addresses across all namespaces, i.e. the
+     * shared budget.
+     *
+     * @param maximumCapacity
+     *          the capacity of the container
+     * @return the resulting {@link NamespacedAddressCacheBuilder}
+     */
+    public NamespacedAddressCacheBuilder maximumCapacity(int maximumCapacity) {
+      this.maximumCapacity = maximumCapacity;
+      return this;
+    }
+
+    /**
+     * Sets the quota of namespaces created without one.
+     *
+     * @param defaultQuota
+     *          the maximum number of addresses per namespace
+     * @return the resulting {@link NamespacedAddressCacheBuilder}
+     */
+    public NamespacedAddressCacheBuilder defaultQuota(int defaultQuota) {
+      this.defaultQuota = defaultQuota;
+      return this;
+    }
+
+    /**
+     * Sets the shared background cleanup task to start after the given
+     * initial delay.
+     *
+     * @param initialDelay
+     *          the initial delay
+     * @param unit
+     *          the unit for the initial delay
+     * @return the resulting {@link NamespacedAddressCacheBuilder}
+     */
+    public NamespacedAddressCacheBuilder cleanupInitialDelay(
+        long initialDelay, TimeUnit unit) {
+      this.cleanupInitialDelayMillis = TimeUnit.MILLISECONDS.convert(
+          initialDelay, unit);
+      return this;
+    }
+
+    /**
+     * Sets the shared background cleanup task to repeat, on completion,
+     * after the given delay.
+     *
+     * @param rate
+     *          the cleanup rate
+     * @param unit
+     *          the unit for the cleanup rate
+     * @return the resulting {@link NamespacedAddressCacheBuilder}
+     */
+    public NamespacedAddressCacheBuilder cleanupRate(long rate, TimeUnit unit) {
+      this.cleanupRateMillis = TimeUnit.MILLISECONDS.convert(rate, unit);
+      return this;
+    }
+
+    /**
+     * Sets the period after which an {@link InetAddress} offered without an
+     * expiration date expires. Defaults to five minutes.
+     *
+     * @param timeout
+     *          the timeout
+     * @param unit
+     *          the unit for the timeout
+     * @return the resulting {@link NamespacedAddressCacheBuilder}
+     */
+    public NamespacedAddressCacheBuilder addressTimeout(long timeout,
+        TimeUnit unit) {
+      this.addressTimeoutMillis = TimeUnit.MILLISECONDS.convert(timeout, unit);
+      return this;
+    }
+
+    /**
+     * Sets the {@link CacheClock} used to stamp and expire addresses.
+     * Defaults to {@link CacheClock#SYSTEM}.
+     *
+     * @param clock
+     *          the clock
+     * @return the resulting {@link NamespacedAddressCacheBuilder}
+     */
+    public NamespacedAddressCacheBuilder clock(CacheClock clock) {
+      if (clock == null) {
+        throw new IllegalArgumentException("Clock cannot be null");
+      }
+
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Builds a {@link NamespacedAddressCache} from the
+     * {@link NamespacedAddressCacheBuilder}'s values.
+     *
+     * @return the resulting {@link NamespacedAddressCache}
+     */
+    public NamespacedAddressCache build() {
+      return new NamespacedAddressCache(this);
+    }
+  }
+}
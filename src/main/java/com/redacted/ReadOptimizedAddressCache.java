@@ -0,0 +1,570 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A read-optimized implementation of the {@link AddressCache} interface, with
+ * the same "Last-In-First-Out" (LIFO) retrieval policy and expiry semantics
+ * as {@link TimedAddressCache}, meant for workloads dominated by contains()
+ * and peek().
+ * 
+ * Addresses are kept in a doubly linked list, indexed by a
+ * {@link ConcurrentHashMap}. Writers (offer(), remove(), take() and the
+ * cleanup task) serialize on the write lock of a {@link StampedLock}.
+ * contains(), size() and isEmpty() never take a lock: contains() is a single
+ * map lookup, and size() and isEmpty() read a volatile count. peek() reads
+ * the volatile newest node without a lock; if that node has expired, it walks
+ * a few nodes further under an optimistic, validated read stamp, and only
+ * when that walk fails (a writer intervened, or more expired nodes than it
+ * visits lie ahead) does it take the read lock and wait for writers. Readers
+ * never contend with each other, and with writers only in that last case, so
+ * reads scale with the number of cores. Reads never return an expired
+ * address.
+ * 
+ * Unlike {@link TimedAddressCache}, removing a given address and moving an
+ * existing address to the front are constant time, as every address has its
+ * own list node.
+ */
+public class ReadOptimizedAddressCache implements ExpiringAddressCache {
+
+  /* Default period after which a TimedInetAddress expires, in milliseconds. */
+  private static final long ADDRESS_TIMEOUT_MILLIS_DEFAULT = 5 * 60 * 1000;
+
+  /* Granularity of the expiry index, in milliseconds. */
+  private static final long EXPIRY_RESOLUTION_MILLIS = 100;
+
+  /* Number of due addresses the cleanup task evicts per write lock. */
+  private static final int CLEANUP_BATCH_SIZE = 64;
+
+  /* Expired nodes peek() walks optimistically before taking the read lock. */
+  private static final int OPTIMISTIC_PEEK_STEPS = 16;
+
+  private final CacheClock clock;
+  private final long addressTimeoutMillis;
+  private final int maximumCapacity;
+
+  /* Guards the structure of the list, the map and the expiry index. */
+  private final StampedLock lock = new StampedLock();
+  private final ConcurrentMap<InetAddress, Node> nodes;
+  private final ExpiryIndex<InetAddress> expiryIndex = new ExpiryIndex<>(
+      EXPIRY_RESOLUTION_MILLIS);
+
+  /* The oldest (head) and the newest (tail) nodes. Written under the lock. */
+  private volatile Node head;
+  private volatile Node tail;
+  private volatile int size;
+  private volatile boolean closed;
+
+  /* Parks take() callers while the cache is empty. */
+  private final ReentrantLock takeLock = new ReentrantLock();
+  private final Condition notEmpty = takeLock.newCondition();
+  private final AtomicInteger waitingTakers = new AtomicInteger();
+
+  private final ScheduledExecutorService cleanupExecutor = Executors
+      .newScheduledThreadPool(1);
+
+  /**
+   * Private constructor for {@link ReadOptimizedAddressCache} which sets
+   * instance variables to values given by the
+   * {@link ReadOptimizedAddressCacheBuilder}.
+   * 
+   * @param builder
+   *          the builder at build() time
+   */
+  private ReadOptimizedAddressCache(ReadOptimizedAddressCacheBuilder builder) {
+    clock = builder.clock;
+    addressTimeoutMillis = builder.addressTimeoutMillis;
+    maximumCapacity = builder.maximumCapacity;
+    nodes = new ConcurrentHashMap<>(Math.min(builder.cacheData.size(),
+        maximumCapacity));
+
+    for (TimedInetAddress timedAddress : builder.cacheData) {
+      offer(timedAddress);
+    }
+
+    cleanupExecutor.scheduleWithFixedDelay(new CacheCleanupTask(),
+        builder.cleanupInitialDelayMillis, builder.cleanupRateMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public boolean offer(InetAddress address) {
+    return offer(new TimedInetAddress(address, new Date(
+        clock.currentTimeMillis() + addressTimeoutMillis)));
+  }
+
+  /**
+   * Another offer method that takes a {@link TimedInetAddress}, giving the user
+   * to configure the caching time for a particular {@link InetAddress} element.
+   * 
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @return {@code true} if the timedAddress was successfully added.
+   *         {@code false} if the {@link InetAddress} of the given
+   *         {@link TimedInetAddress} was already in the cache (in which case
+   *         it is moved to the front) or the cache is full.
+   */
+  public boolean offer(TimedInetAddress timedAddress) {
+    InetAddress address = timedAddress.getInetAddress();
+    long expirationMillis = timedAddress.getExpirationDate().getTime();
+
+    long stamp = lock.writeLock();
+    try {
+      checkOpen();
+
+      Node existing = nodes.get(address);
+      if (existing != null) {
+        if (!isExpired(existing)) {
+          moveFront(existing);
+          return false;
+        }
+        evict(existing);
+      }
+
+      if (size >= maximumCapacity) {
+        return false;
+      }
+
+      Node node = new Node(address, expirationMillis);
+      node.prev = tail;
+      if (tail == null) {
+        head = node;
+      } else {
+        tail.next = node;
+      }
+      tail = node;
+      nodes.put(address, node);
+      expiryIndex.add(address, expirationMillis);
+      size++;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+
+    signalTaker();
+    return true;
+  }
+
+  @Override
+  public boolean contains(InetAddress address) {
+    Node node = nodes.get(address);
+    return node != null && !isExpired(node);
+  }
+
+  @Override
+  public boolean remove(InetAddress address) {
+    long stamp = lock.writeLock();
+    try {
+      checkOpen();
+
+      Node node = nodes.get(address);
+      if (node == null) {
+        return false;
+      }
+
+      evict(node);
+      return !isExpired(node);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public InetAddress peek() {
+    Node newest = tail;
+    if (newest == null || !isExpired(newest)) { // the common case: no lock
+      return newest == null ? null : newest.address;
+    }
+
+    long stamp = lock.tryOptimisticRead();
+    Node found = newestLive(OPTIMISTIC_PEEK_STEPS);
+    if (found != null && lock.validate(stamp)) {
+      return found.address;
+    }
+
+    stamp = lock.readLock();
+    try {
+      found = newestLive(Integer.MAX_VALUE);
+      return found == null ? null : found.address;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Walks the list from its newest node for the first one that has not
+   * expired. Outside the lock, the walk may see the list mid-update and so is
+   * only trusted once the read stamp validates.
+   * 
+   * @param maxSteps
+   *          the maximum number of nodes to visit
+   * @return the newest unexpired node, or {@code null} if there is none or
+   *         the walk gave up
+   */
+  private Node newestLive(int maxSteps) {
+    long now = clock.currentTimeMillis();
+    Node node = tail;
+    for (int i = 0; node != null && i < maxSteps; i++) {
+      if (node.expirationMillis >= now) {
+        return node;
+      }
+      node = node.prev;
+    }
+    return null;
+  }
+
+  @Override
+  public InetAddress remove() {
+    long stamp = lock.writeLock();
+    try {
+      checkOpen();
+
+      while (tail != null) {
+        Node newest = tail;
+        evict(newest);
+        if (!isExpired(newest)) {
+          return newest.address;
+        }
+      }
+      return null;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public InetAddress take() throws InterruptedException {
+    while (true) {
+      InetAddress address = remove();
+      if (address != null) {
+        return address;
+      }
+
+      takeLock.lockInterruptibly();
+      try {
+        // announce ourselves before re-checking, so that an offer() either
+        // sees us waiting or we see its address
+        waitingTakers.incrementAndGet();
+        try {
+          while (size == 0) {
+            checkOpen();
+            notEmpty.await();
+          }
+        } finally {
+          waitingTakers.decrementAndGet();
+        }
+      } finally {
+        takeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Wakes up a take() caller, if there is one.
+   */
+  private void signalTaker() {
+    if (waitingTakers.get() > 0) {
+      takeLock.lock();
+      try {
+        notEmpty.signal();
+      } finally {
+        takeLock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    long stamp = lock.writeLock();
+    try {
+      closed = true;
+      nodes.clear();
+      expiryIndex.clear();
+      head = null;
+      tail = null;
+      size = 0;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+
+    cleanupExecutor.shutdownNow();
+
+    takeLock.lock();
+    try {
+      notEmpty.signalAll();
+    } finally {
+      takeLock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Cache has been closed");
+    }
+  }
+
+  private boolean isExpired(Node node) {
+    return clock.currentTimeMillis() > node.expirationMillis;
+  }
+
+  /**
+   * Moves the given node to the front (oldest end) of the list, as
+   * {@link TimedAddressCache} does for re-offered addresses. Must hold the
+   * write lock.
+   */
+  private void moveFront(Node node) {
+    if (node == head) {
+      return;
+    }
+
+    unlink(node);
+    node.prev = null;
+    node.next = head;
+    if (head == null) {
+      tail = node;
+    } else {
+      head.prev = node;
+    }
+    head = node;
+  }
+
+  /**
+   * Removes the given node from the list, the map and the expiry index. Must
+   * hold the write lock.
+   */
+  private void evict(Node node) {
+    unlink(node);
+    nodes.remove(node.address, node);
+    expiryIndex.remove(node.address, node.expirationMillis);
+    size--;
+  }
+
+  /**
+   * Unlinks the given node from the list. The node keeps its own links, so
+   * that a peek() walking the list optimistically can step off it. Must hold
+   * the write lock.
+   */
+  private void unlink(Node node) {
+    if (node.prev == null) {
+      head = node.next;
+    } else {
+      node.prev.next = node.next;
+    }
+
+    if (node.next == null) {
+      tail = node.prev;
+    } else {
+      node.next.prev = node.prev;
+    }
+  }
+
+  /**
+   * A list node holding one address. The links are only written under the
+   * write lock.
+   */
+  private static final class Node {
+
+    private final InetAddress address;
+    private final long expirationMillis;
+    private Node prev;
+    private Node next;
+
+    private Node(InetAddress address, long expirationMillis) {
+      this.address = address;
+      this.expirationMillis = expirationMillis;
+    }
+  }
+
+  /**
+   * The background cleanup task, evicting the expired addresses found in the
+   * expiry index a batch at a time, so that writers are never held up for
+   * long.
+   */
+  private final class CacheCleanupTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        List<InetAddress> due;
+        do {
+          long stamp = lock.writeLock();
+          try {
+            due = expiryIndex.pollDue(clock.currentTimeMillis(),
+                CLEANUP_BATCH_SIZE);
+            for (InetAddress address : due) {
+              Node node = nodes.get(address);
+              if (node != null && isExpired(node)) {
+                evict(node);
+              }
+            }
+          } finally {
+            lock.unlockWrite(stamp);
+          }
+        } while (!due.isEmpty() && !closed);
+      } catch (Exception e) {
+        System.err
+            .println("Error in executing cache cleanup task. It will no longer be run.");
+        e.printStackTrace();
+
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Builder for {@link ReadOptimizedAddressCache}.
+   */
+  public static class ReadOptimizedAddressCacheBuilder {
+
+    /* Instance variables set to default values. Times in milliseconds. */
+    private Collection<TimedInetAddress> cacheData = new LinkedList<>();
+    private int maximumCapacity = Integer.MAX_VALUE;
+    private long cleanupInitialDelayMillis = 100;
+    private long cleanupRateMillis = 5 * 1000;
+    private long addressTimeoutMillis = ADDRESS_TIMEOUT_MILLIS_DEFAULT;
+    private CacheClock clock = CacheClock.SYSTEM;
+
+    /**
+     * Adds the given collection of {@link InetAddress}es to the cache, added
+     * in traversal order of the given collection's iterator, each expiring
+     * after the address timeout (see addressTimeout()).
+     * 
+     * @param addresses
+     *          the given collection of {@link InetAddress}es
+     * @return the resulting {@link ReadOptimizedAddressCacheBuilder}
+     */
+    public ReadOptimizedAddressCacheBuilder addAddresses(
+        Collection<InetAddress> addresses) {
+      Date expirationDate = new Date(clock.currentTimeMillis()
+          + addressTimeoutMillis);
+      for (InetAddress address : addresses) {
+        cacheData.add(new TimedInetAddress(address, expirationDate));
+      }
+      return this;
+    }
+
+    /**
+     * Adds the given collection of {@link TimedInetAddress}es to the cache,
+     * added in traversal order of the given collection's iterator.
+     * 
+     * @param timedAddresses
+     *          the given collection of {@link TimedInetAddress}es
+     * @return the resulting {@link ReadOptimizedAddressCacheBuilder}
+     */
+    public ReadOptimizedAddressCacheBuilder addTimedAddresses(
+        Collection<TimedInetAddress> timedAddresses) {
+      cacheData.addAll(timedAddresses);
+      return this;
+    }
+
+    /**
+     * Sets a maximum capacity for the cache.
+     * 
+     * @param maximumCapacity
+     *          the capacity of the cache
+     * @return the resulting {@link ReadOptimizedAddressCacheBuilder}
+     */
+    public ReadOptimizedAddressCacheBuilder maximumCapacity(int maximumCapacity) {
+      this.maximumCapacity = maximumCapacity;
+      return this;
+    }
+
+    /**
+     * Sets the cache's background cleanup task to start after the given
+     * initial delay.
+     * 
+     * @param initialDelay
+     *          the initial delay
+     * @param unit
+     *          the unit for the initial delay
+     * @return the resulting {@link ReadOptimizedAddressCacheBuilder}
+     */
+    public ReadOptimizedAddressCacheBuilder cleanupInitialDelay(
+        long initialDelay, TimeUnit unit) {
+      this.cleanupInitialDelayMillis = TimeUnit.MILLISECONDS.convert(
+          initialDelay, unit);
+      return this;
+    }
+
+    /**
+     * Sets the cache's background cleanup task to repeat, on completion,
+     * after the given delay.
+     * 
+     * @param rate
+     *          the cleanup rate
+     * @param unit
+     *          the unit for the cleanup rate
+     * @return the resulting {@link ReadOptimizedAddressCacheBuilder}
+     */
+    public ReadOptimizedAddressCacheBuilder cleanupRate(long rate,
+        TimeUnit unit) {
+      this.cleanupRateMillis = TimeUnit.MILLISECONDS.convert(rate, unit);
+      return this;
+    }
+
+    /**
+     * Sets the period after which an {@link InetAddress} offered without an
+     * expiration date expires. Defaults to five minutes.
+     * 
+     * @param timeout
+     *          the timeout
+     * @param unit
+     *          the unit for the timeout
+     * @return the resulting {@link ReadOptimizedAddressCacheBuilder}
+     */
+    public ReadOptimizedAddressCacheBuilder addressTimeout(long timeout,
+        TimeUnit unit) {
+      this.addressTimeoutMillis = TimeUnit.MILLISECONDS.convert(timeout, unit);
+      return this;
+    }
+
+    /**
+     * Sets the {@link CacheClock} the cache uses to stamp and expire
+     * addresses. Defaults to {@link CacheClock#SYSTEM}.
+     * 
+     * @param clock
+     *          the clock
+     * @return the resulting {@link ReadOptimizedAddressCacheBuilder}
+     */
+    public ReadOptimizedAddressCacheBuilder clock(CacheClock clock) {
+      if (clock == null) {
+        throw new IllegalArgumentException("Clock cannot be null");
+      }
+
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Builds a {@link ReadOptimizedAddressCache} from the
+     * {@link ReadOptimizedAddressCacheBuilder}'s values.
+     * 
+     * @return the resulting {@link ReadOptimizedAddressCache}
+     */
+    public ReadOptimizedAddressCache build() {
+      return new ReadOptimizedAddressCache(this);
+    }
+  }
+}
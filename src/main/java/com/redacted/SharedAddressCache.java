@@ -0,0 +1,948 @@
+package com.redacted;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An implementation of the {@link AddressCache} interface whose addresses
+ * live in a memory-mapped file, shared by every process on the host that
+ * opens the same file. Each host thus keeps one copy of the addresses, and a
+ * process that opens an existing file starts with its contents. The
+ * "Last-In-First-Out" (LIFO) retrieval policy and the expiry semantics are
+ * those of {@link TimedAddressCache}.
+ *
+ * The file holds a header and an open-addressing hash table of fixed-size
+ * slots, threaded by a doubly linked list in insertion order. Processes
+ * coordinate through the header alone, with compare-and-swap (see
+ * {@link SharedMemory}): writers take a spin lock word and bump a sequence
+ * number around every change, so that contains() and peek() read without
+ * locking and retry if a writer intervened. Threads of one process first
+ * queue on a local lock, so only one thread per process spins. Every
+ * acquisition writes a fresh token to the lock word, so a waiter can tell a
+ * busy lock from a stuck one: a lock whose token has not changed for a few
+ * seconds is taken to belong to a dead process and is taken over; if that
+ * process died mid-change, the table is rebuilt from the slots' insertion
+ * stamps.
+ *
+ * Every process runs a cleanup task, but only the one holding the sweeper
+ * lease in the header sweeps the table for expired addresses; the lease is
+ * renewed on every run and taken over by another process once it lapses.
+ * take() waits on a local condition for local offers, and polls, backing off
+ * up to {@value #TAKE_POLL_MAX_MILLIS} ms, for offers by other processes.
+ *
+ * The capacity is fixed when the file is created: a process opening an
+ * existing file uses the file's capacity. Addresses are kept until they
+ * expire or are removed; close() releases this process's resources but
+ * leaves the file to the other processes.
+ */
+public class SharedAddressCache implements ExpiringAddressCache {
+
+  /* Default period after which a TimedInetAddress expires, in milliseconds. */
+  private static final long ADDRESS_TIMEOUT_MILLIS_DEFAULT = 5 * 60 * 1000;
+
+  private static final int MAXIMUM_CAPACITY_DEFAULT = 1 << 16;
+  private static final int MAXIMUM_CAPACITY_LIMIT = 1 << 22;
+
+  /* Identifies the file format. */
+  private static final int MAGIC = 0x41444331; // "ADC1"
+
+  /* Header layout. Longs that are swapped are 8-byte aligned. */
+  private static final int MAGIC_OFFSET = 0;
+  private static final int SLOT_COUNT_OFFSET = 4;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int SIZE_OFFSET = 12;
+  private static final int LOCK_OFFSET = 16;
+  private static final int SEQUENCE_OFFSET = 24;
+  private static final int SWEEPER_OFFSET = 32;
+  private static final int SWEEPER_LEASE_OFFSET = 40;
+  private static final int NEXT_STAMP_OFFSET = 48;
+  private static final int FRONT_STAMP_OFFSET = 56;
+  private static final int HEAD_OFFSET = 64;
+  private static final int TAIL_OFFSET = 68;
+  private static final int HEADER_SIZE = 128;
+
+  /* Slot layout. A slot is in use if its length is 4 or 16. */
+  private static final int SLOT_LENGTH = 0; // byte
+  private static final int SLOT_HASH = 4; // int
+  private static final int SLOT_PREV = 8; // int
+  private static final int SLOT_NEXT = 12; // int
+  private static final int SLOT_EXPIRATION = 16; // long
+  private static final int SLOT_STAMP = 24; // long
+  private static final int SLOT_ADDRESS = 32; // 16 bytes
+  private static final int SLOT_SIZE = 48;
+
+  /* No slot: the end of the list. */
+  private static final int NIL = -1;
+
+  /* A single acquisition of the lock held for longer than this is taken
+   * over, in milliseconds. */
+  private static final long LOCK_TIMEOUT_MILLIS = 5 * 1000;
+
+  /* Times a lock-free read is retried before taking the lock. */
+  private static final int OPTIMISTIC_READ_ATTEMPTS = 8;
+
+  /* Slots the sweeper inspects per lock acquisition. */
+  private static final int SWEEP_BATCH_SLOTS = 1024;
+
+  /* Bounds of take()'s poll for addresses offered by other processes. */
+  private static final long TAKE_POLL_MIN_MILLIS = 1;
+  private static final long TAKE_POLL_MAX_MILLIS = 50;
+
+  private final CacheClock clock;
+  private final long addressTimeoutMillis;
+  private final long sweeperLeaseMillis;
+  private final SharedMemory memory;
+  private final int slotCount;
+  private final int maximumCapacity;
+
+  /* Identifies this process in the sweeper lease. */
+  private final long ownerId = ThreadLocalRandom.current().nextLong() | 1;
+
+  /* Serializes this process's threads before the shared lock word. */
+  private final ReentrantLock localLock = new ReentrantLock();
+
+  /* The token of the current acquisition of the lock word, under localLock. */
+  private long lockToken;
+
+  /* Parks take() callers while the cache is empty. */
+  private final ReentrantLock takeLock = new ReentrantLock();
+  private final Condition notEmpty = takeLock.newCondition();
+  private final AtomicInteger waitingTakers = new AtomicInteger();
+
+  private final ScheduledExecutorService cleanupExecutor = Executors
+      .newScheduledThreadPool(1);
+
+  private volatile boolean closed;
+
+  /**
+   * Private constructor for {@link SharedAddressCache} which opens or
+   * creates the file given to the {@link SharedAddressCacheBuilder}.
+   *
+   * @param builder
+   *          the builder at build() time
+   */
+  private SharedAddressCache(SharedAddressCacheBuilder builder) {
+    clock = builder.clock;
+    addressTimeoutMillis = builder.addressTimeoutMillis;
+    sweeperLeaseMillis = 3 * builder.cleanupRateMillis;
+    memory = map(builder.file, builder.maximumCapacity);
+    slotCount = memory.getInt(SLOT_COUNT_OFFSET);
+    maximumCapacity = memory.getInt(CAPACITY_OFFSET);
+
+    cleanupExecutor.scheduleWithFixedDelay(new CacheCleanupTask(),
+        builder.cleanupRateMillis, builder.cleanupRateMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Maps the given file, initializing it under an exclusive file lock if it
+   * is new, so that processes starting together agree on its layout.
+   */
+  private static SharedMemory map(File file, int maximumCapacity) {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      FileLock fileLock = channel.lock();
+      try {
+        if (channel.size() == 0) {
+          int slotCount = Integer.highestOneBit(maximumCapacity) << 2;
+          long length = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+          SharedMemory memory = new SharedMemory(channel.map(
+              FileChannel.MapMode.READ_WRITE, 0, length));
+          memory.putInt(SLOT_COUNT_OFFSET, slotCount);
+          memory.putInt(CAPACITY_OFFSET, maximumCapacity);
+          memory.putInt(HEAD_OFFSET, NIL);
+          memory.putInt(TAIL_OFFSET, NIL);
+          memory.putLong(FRONT_STAMP_OFFSET, -1);
+          memory.putIntVolatile(MAGIC_OFFSET, MAGIC); // last
+          return memory;
+        }
+
+        SharedMemory memory = new SharedMemory(channel.map(
+            FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        int slotCount = memory.getInt(SLOT_COUNT_OFFSET);
+        if (memory.getIntVolatile(MAGIC_OFFSET) != MAGIC
+            || Integer.bitCount(slotCount) != 1
+            || memory.length() != HEADER_SIZE + (long) slotCount * SLOT_SIZE) {
+          throw new IllegalArgumentException("Not a shared address cache: "
+              + file);
+        }
+        return memory;
+      } finally {
+        fileLock.release();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public boolean offer(InetAddress address) {
+    return offer(new TimedInetAddress(address, new Date(
+        clock.currentTimeMillis() + addressTimeoutMillis)));
+  }
+
+  /**
+   * Another offer method that takes a {@link TimedInetAddress}, giving the user
+   * to configure the caching time for a particular {@link InetAddress} element.
+   *
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @return {@code true} if the timedAddress was successfully added.
+   *         {@code false} if the {@link InetAddress} of the given
+   *         {@link TimedInetAddress} was already in the cache (in which case
+   *         it is moved to the front) or the cache is full.
+   */
+  public boolean offer(TimedInetAddress timedAddress) {
+    byte[] address = timedAddress.getInetAddress().getAddress();
+    long expirationMillis = timedAddress.getExpirationDate().getTime();
+    long now = clock.currentTimeMillis();
+
+    lock();
+    try {
+      int slot = find(address, hash(address));
+      if (slot != NIL) {
+        if (memory.getLong(slotOffset(slot) + SLOT_EXPIRATION) >= now) {
+          moveFront(slot);
+          return false;
+        }
+        delete(slot);
+      }
+
+      if (memory.getInt(SIZE_OFFSET) >= maximumCapacity) {
+        return false;
+      }
+
+      long stamp = memory.getLong(NEXT_STAMP_OFFSET);
+      memory.putLong(NEXT_STAMP_OFFSET, stamp + 1);
+      insert(address, expirationMillis, stamp);
+    } finally {
+      unlock();
+    }
+
+    signalTaker();
+    return true;
+  }
+
+  @Override
+  public boolean contains(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    int hash = hash(bytes);
+    long now = clock.currentTimeMillis();
+
+    for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+      long sequence = memory.getLongVolatile(SEQUENCE_OFFSET);
+      if ((sequence & 1) == 0) {
+        int slot = find(bytes, hash);
+        boolean found = slot != NIL
+            && memory.getLong(slotOffset(slot) + SLOT_EXPIRATION) >= now;
+        memory.loadFence();
+        if (memory.getLongVolatile(SEQUENCE_OFFSET) == sequence) {
+          return found;
+        }
+      }
+      Thread.yield();
+    }
+
+    lock();
+    try {
+      int slot = find(bytes, hash);
+      return slot != NIL
+          && memory.getLong(slotOffset(slot) + SLOT_EXPIRATION) >= now;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    long now = clock.currentTimeMillis();
+
+    lock();
+    try {
+      int slot = find(bytes, hash(bytes));
+      if (slot == NIL) {
+        return false;
+      }
+
+      boolean expired = memory.getLong(slotOffset(slot) + SLOT_EXPIRATION) < now;
+      delete(slot);
+      return !expired;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public InetAddress peek() {
+    for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+      long sequence = memory.getLongVolatile(SEQUENCE_OFFSET);
+      if ((sequence & 1) == 0) {
+        byte[] address = newestLive(clock.currentTimeMillis());
+        memory.loadFence();
+        if (memory.getLongVolatile(SEQUENCE_OFFSET) == sequence) {
+          return toInetAddress(address);
+        }
+      }
+      Thread.yield();
+    }
+
+    lock();
+    try {
+      return toInetAddress(newestLive(clock.currentTimeMillis()));
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Walks the list from its newest slot for the first address that has not
+   * expired. Outside the lock, the walk may see the table mid-change and so
+   * is bounded, and only trusted once the sequence number validates.
+   *
+   * @return the address, or {@code null} if there is none
+   */
+  private byte[] newestLive(long now) {
+    int slot = memory.getInt(TAIL_OFFSET);
+    for (int i = 0; slot >= 0 && slot < slotCount && i < slotCount; i++) {
+      long offset = slotOffset(slot);
+      if (memory.getLong(offset + SLOT_EXPIRATION) >= now) {
+        return readAddress(slot);
+      }
+      slot = memory.getInt(offset + SLOT_PREV);
+    }
+    return null;
+  }
+
+  @Override
+  public InetAddress remove() {
+    long now = clock.currentTimeMillis();
+
+    lock();
+    try {
+      int slot;
+      while ((slot = memory.getInt(TAIL_OFFSET)) != NIL) {
+        byte[] address = readAddress(slot);
+        boolean expired = memory.getLong(slotOffset(slot) + SLOT_EXPIRATION) < now;
+        delete(slot);
+        if (!expired) {
+          return toInetAddress(address);
+        }
+      }
+      return null;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public InetAddress take() throws InterruptedException {
+    long pollMillis = TAKE_POLL_MIN_MILLIS;
+    while (true) {
+      InetAddress address = remove();
+      if (address != null) {
+        return address;
+      }
+
+      takeLock.lockInterruptibly();
+      try {
+        // announce ourselves before re-checking, so that a local offer()
+        // either sees us waiting or we see its address
+        waitingTakers.incrementAndGet();
+        try {
+          checkOpen();
+          if (memory.getIntVolatile(SIZE_OFFSET) == 0) {
+            notEmpty.await(pollMillis, TimeUnit.MILLISECONDS);
+          }
+        } finally {
+          waitingTakers.decrementAndGet();
+        }
+      } finally {
+        takeLock.unlock();
+      }
+      pollMillis = Math.min(pollMillis << 1, TAKE_POLL_MAX_MILLIS);
+    }
+  }
+
+  /**
+   * Wakes up a take() caller of this process, if there is one.
+   */
+  private void signalTaker() {
+    if (waitingTakers.get() > 0) {
+      takeLock.lock();
+      try {
+        notEmpty.signal();
+      } finally {
+        takeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Stops this process's cleanup task, hands over the sweeper lease and
+   * wakes up take() callers. The addresses stay in the file for the other
+   * processes, and for the next process to open it.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    cleanupExecutor.shutdownNow();
+    memory.compareAndSwapLong(SWEEPER_OFFSET, ownerId, 0);
+
+    takeLock.lock();
+    try {
+      notEmpty.signalAll();
+    } finally {
+      takeLock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    return memory.getIntVolatile(SIZE_OFFSET);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Returns the capacity of the shared file, which may differ from the one
+   * given to the builder if the file already existed.
+   *
+   * @return the maximum number of addresses
+   */
+  public int getMaximumCapacity() {
+    return maximumCapacity;
+  }
+
+  /**
+   * Returns whether this process currently holds the sweeper lease.
+   */
+  boolean isSweeper() {
+    return memory.getLongVolatile(SWEEPER_OFFSET) == ownerId
+        && memory.getLongVolatile(SWEEPER_LEASE_OFFSET) >= clock
+            .currentTimeMillis();
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Cache has been closed");
+    }
+  }
+
+  /**
+   * Takes the local lock, then the shared lock word, and marks the table as
+   * changing by making the sequence number odd. The lock word holds a token
+   * fresh for every acquisition, so it only stays the same while one
+   * acquisition lasts, however busy the lock is. Takes the lock word over
+   * from an acquisition that has lasted too long, and repairs the table if
+   * its holder left it mid-change.
+   */
+  private void lock() {
+    localLock.lock();
+    try {
+      checkOpen();
+
+      long token = ThreadLocalRandom.current().nextLong() | 1;
+      long holder = 0;
+      long heldSince = 0;
+      for (int spins = 0; !memory.compareAndSwapLong(LOCK_OFFSET, 0, token); spins++) {
+        long current = memory.getLongVolatile(LOCK_OFFSET);
+        if (current != holder) { // a new acquisition
+          holder = current;
+          heldSince = System.nanoTime();
+        } else if (current != 0
+            && System.nanoTime() - heldSince > TimeUnit.MILLISECONDS
+                .toNanos(LOCK_TIMEOUT_MILLIS)
+            && memory.compareAndSwapLong(LOCK_OFFSET, current, token)) {
+          break;
+        }
+
+        if (spins < 64) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+      }
+      lockToken = token;
+    } catch (RuntimeException e) {
+      localLock.unlock();
+      throw e;
+    }
+
+    long sequence = memory.getLongVolatile(SEQUENCE_OFFSET);
+    if ((sequence & 1) != 0) { // the previous holder died mid-change
+      rebuild();
+    } else {
+      memory.putLongVolatile(SEQUENCE_OFFSET, sequence + 1);
+      memory.storeFence(); // readers see the odd number before any change
+    }
+  }
+
+  /**
+   * Makes the sequence number even again and releases both locks. If the
+   * lock word was taken over meanwhile, it and the sequence number are left
+   * to the new holder, which rebuilds the table.
+   */
+  private void unlock() {
+    if (memory.getLongVolatile(LOCK_OFFSET) == lockToken) {
+      memory.putLongVolatile(SEQUENCE_OFFSET,
+          memory.getLongVolatile(SEQUENCE_OFFSET) + 1);
+      memory.compareAndSwapLong(LOCK_OFFSET, lockToken, 0);
+    }
+    localLock.unlock();
+  }
+
+  /**
+   * Rebuilds the table and the list from the slots that hold an address, in
+   * order of their insertion stamps. Must hold the lock, with an odd
+   * sequence number.
+   */
+  private void rebuild() {
+    int count = 0;
+    Integer[] slots = new Integer[slotCount];
+    byte[][] addresses = new byte[slotCount][];
+    long[] expirations = new long[slotCount];
+    long[] stamps = new long[slotCount];
+    for (int slot = 0; slot < slotCount; slot++) {
+      if (isUsed(slot)) {
+        long offset = slotOffset(slot);
+        slots[count] = count;
+        addresses[count] = readAddress(slot);
+        expirations[count] = memory.getLong(offset + SLOT_EXPIRATION);
+        stamps[count] = memory.getLong(offset + SLOT_STAMP);
+        count++;
+      }
+    }
+
+    final long[] order = stamps;
+    Arrays.sort(slots, 0, count, new Comparator<Integer>() {
+
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(order[a], order[b]);
+      }
+    });
+
+    memory.clear(HEADER_SIZE, (long) slotCount * SLOT_SIZE);
+    memory.putInt(SIZE_OFFSET, 0);
+    memory.putInt(HEAD_OFFSET, NIL);
+    memory.putInt(TAIL_OFFSET, NIL);
+    long nextStamp = memory.getLong(NEXT_STAMP_OFFSET);
+    long frontStamp = memory.getLong(FRONT_STAMP_OFFSET);
+    for (int i = 0; i < count && i < maximumCapacity; i++) {
+      int index = slots[i];
+      byte[] address = addresses[index];
+      if (find(address, hash(address)) == NIL) {
+        insert(address, expirations[index], stamps[index]);
+        nextStamp = Math.max(nextStamp, stamps[index] + 1);
+        frontStamp = Math.min(frontStamp, stamps[index] - 1);
+      }
+    }
+    memory.putLong(NEXT_STAMP_OFFSET, nextStamp);
+    memory.putLong(FRONT_STAMP_OFFSET, frontStamp);
+  }
+
+  /**
+   * Returns the slot holding the given address, or {@link #NIL}. Bounded, so
+   * that it terminates on a table seen mid-change.
+   */
+  private int find(byte[] address, int hash) {
+    int mask = slotCount - 1;
+    int slot = hash & mask;
+    for (int i = 0; i < slotCount && isUsed(slot); i++) {
+      long offset = slotOffset(slot);
+      if (memory.getInt(offset + SLOT_HASH) == hash
+          && memory.getByte(offset + SLOT_LENGTH) == address.length
+          && sameAddress(offset + SLOT_ADDRESS, address)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NIL;
+  }
+
+  private boolean sameAddress(long offset, byte[] address) {
+    for (int i = 0; i < address.length; i++) {
+      if (memory.getByte(offset + i) != address[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds an absent address to the table and at the newest end of the list.
+   * Must hold the lock, with space available.
+   */
+  private void insert(byte[] address, long expirationMillis, long stamp) {
+    int hash = hash(address);
+    int mask = slotCount - 1;
+    int slot = hash & mask;
+    while (isUsed(slot)) {
+      slot = (slot + 1) & mask;
+    }
+
+    long offset = slotOffset(slot);
+    memory.putInt(offset + SLOT_HASH, hash);
+    memory.putLong(offset + SLOT_EXPIRATION, expirationMillis);
+    memory.putLong(offset + SLOT_STAMP, stamp);
+    memory.putBytes(offset + SLOT_ADDRESS, address, address.length);
+    memory.putByte(offset + SLOT_LENGTH, (byte) address.length);
+    linkLast(slot);
+    memory.putInt(SIZE_OFFSET, memory.getInt(SIZE_OFFSET) + 1);
+  }
+
+  /**
+   * Removes the address in the given slot, shifting later addresses of its
+   * probe sequence back so that no tombstones are needed. Must hold the lock.
+   */
+  private void delete(int slot) {
+    unlink(slot);
+    memory.putByte(slotOffset(slot) + SLOT_LENGTH, (byte) 0);
+    memory.putInt(SIZE_OFFSET, memory.getInt(SIZE_OFFSET) - 1);
+
+    int mask = slotCount - 1;
+    int hole = slot;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (!isUsed(next)) {
+        return;
+      }
+
+      int home = memory.getInt(slotOffset(next) + SLOT_HASH) & mask;
+      boolean reachable = hole <= next ? (home <= hole || home > next)
+          : (home <= hole && home > next);
+      if (reachable) {
+        move(next, hole);
+        hole = next;
+      }
+    }
+  }
+
+  /**
+   * Moves the address in one slot to an empty one, relinking its list
+   * neighbours. Must hold the lock.
+   */
+  private void move(int from, int to) {
+    long fromOffset = slotOffset(from);
+    long toOffset = slotOffset(to);
+    memory.copy(fromOffset, toOffset, SLOT_SIZE);
+    memory.putByte(fromOffset + SLOT_LENGTH, (byte) 0);
+
+    int prev = memory.getInt(toOffset + SLOT_PREV);
+    int next = memory.getInt(toOffset + SLOT_NEXT);
+    if (prev == NIL) {
+      memory.putInt(HEAD_OFFSET, to);
+    } else {
+      memory.putInt(slotOffset(prev) + SLOT_NEXT, to);
+    }
+    if (next == NIL) {
+      memory.putInt(TAIL_OFFSET, to);
+    } else {
+      memory.putInt(slotOffset(next) + SLOT_PREV, to);
+    }
+  }
+
+  /**
+   * Moves the address in the given slot to the front (oldest end) of the
+   * list, as {@link TimedAddressCache} does for re-offered addresses. Must
+   * hold the lock.
+   */
+  private void moveFront(int slot) {
+    if (memory.getInt(HEAD_OFFSET) == slot) {
+      return;
+    }
+
+    unlink(slot);
+    long stamp = memory.getLong(FRONT_STAMP_OFFSET);
+    memory.putLong(FRONT_STAMP_OFFSET, stamp - 1);
+    long offset = slotOffset(slot);
+    memory.putLong(offset + SLOT_STAMP, stamp);
+
+    int head = memory.getInt(HEAD_OFFSET);
+    memory.putInt(offset + SLOT_PREV, NIL);
+    memory.putInt(offset + SLOT_NEXT, head);
+    if (head == NIL) {
+      memory.putInt(TAIL_OFFSET, slot);
+    } else {
+      memory.putInt(slotOffset(head) + SLOT_PREV, slot);
+    }
+    memory.putInt(HEAD_OFFSET, slot);
+  }
+
+  private void linkLast(int slot) {
+    long offset = slotOffset(slot);
+    int tail = memory.getInt(TAIL_OFFSET);
+    memory.putInt(offset + SLOT_PREV, tail);
+    memory.putInt(offset + SLOT_NEXT, NIL);
+    if (tail == NIL) {
+      memory.putInt(HEAD_OFFSET, slot);
+    } else {
+      memory.putInt(slotOffset(tail) + SLOT_NEXT, slot);
+    }
+    memory.putInt(TAIL_OFFSET, slot);
+  }
+
+  private void unlink(int slot) {
+    long offset = slotOffset(slot);
+    int prev = memory.getInt(offset + SLOT_PREV);
+    int next = memory.getInt(offset + SLOT_NEXT);
+    if (prev == NIL) {
+      memory.putInt(HEAD_OFFSET, next);
+    } else {
+      memory.putInt(slotOffset(prev) + SLOT_NEXT, next);
+    }
+    if (next == NIL) {
+      memory.putInt(TAIL_OFFSET, prev);
+    } else {
+      memory.putInt(slotOffset(next) + SLOT_PREV, prev);
+    }
+  }
+
+  private boolean isUsed(int slot) {
+    byte length = memory.getByte(slotOffset(slot) + SLOT_LENGTH);
+    return length == 4 || length == 16;
+  }
+
+  private byte[] readAddress(int slot) {
+    long offset = slotOffset(slot);
+    byte length = memory.getByte(offset + SLOT_LENGTH);
+    byte[] address = new byte[length == 16 ? 16 : 4];
+    memory.getBytes(offset + SLOT_ADDRESS, address, address.length);
+    return address;
+  }
+
+  private static long slotOffset(int slot) {
+    return HEADER_SIZE + (long) slot * SLOT_SIZE;
+  }
+
+  private static int hash(byte[] address) {
+    int hash = 0x811c9dc5; // FNV-1a, then a final mix
+    for (byte b : address) {
+      hash = (hash ^ (b & 0xff)) * 0x01000193;
+    }
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    return hash ^ (hash >>> 13);
+  }
+
+  private static InetAddress toInetAddress(byte[] address) {
+    if (address == null) {
+      return null;
+    }
+
+    try {
+      return InetAddress.getByAddress(address);
+    } catch (UnknownHostException e) { // only thrown for bad lengths
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The cleanup task of this process. It renews or acquires the sweeper
+   * lease and, if it holds it, removes expired addresses a batch of slots at
+   * a time, so that other processes are never held up for long.
+   */
+  private final class CacheCleanupTask implements Runnable {
+
+    private int cursor;
+
+    @Override
+    public void run() {
+      try {
+        long now = clock.currentTimeMillis();
+        long sweeper = memory.getLongVolatile(SWEEPER_OFFSET);
+        if (sweeper != ownerId) {
+          if (sweeper != 0
+              && memory.getLongVolatile(SWEEPER_LEASE_OFFSET) >= now) {
+            return; // another process is sweeping
+          }
+          if (!memory.compareAndSwapLong(SWEEPER_OFFSET, sweeper, ownerId)) {
+            return;
+          }
+        }
+        memory.putLongVolatile(SWEEPER_LEASE_OFFSET, now + sweeperLeaseMillis);
+
+        for (int swept = 0; swept < slotCount && !closed; swept += SWEEP_BATCH_SLOTS) {
+          sweep(now);
+        }
+      } catch (Exception e) {
+        if (closed) { // closed while sweeping: lock() refuses
+          return;
+        }
+        System.err
+            .println("Error in executing cache cleanup task. It will no longer be run.");
+        e.printStackTrace();
+
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Removes the expired addresses of the next batch of slots. A deletion
+     * may shift a later address into the current slot, so the cursor only
+     * advances past live or empty slots.
+     */
+    private void sweep(long now) {
+      lock();
+      try {
+        for (int i = 0; i < SWEEP_BATCH_SLOTS && i < slotCount; i++) {
+          if (isUsed(cursor)
+              && memory.getLong(slotOffset(cursor) + SLOT_EXPIRATION) < now) {
+            delete(cursor);
+            if (isUsed(cursor)) {
+              continue;
+            }
+          }
+          cursor = (cursor + 1) & (slotCount - 1);
+        }
+      } finally {
+        unlock();
+      }
+    }
+  }
+
+  /**
+   * Builder for {@link SharedAddressCache}.
+   */
+  public static class SharedAddressCacheBuilder {
+
+    /* Instance variables set to default values. Times in milliseconds. */
+    private File file;
+    private int maximumCapacity = MAXIMUM_CAPACITY_DEFAULT;
+    private long cleanupRateMillis = 5 * 1000;
+    private long addressTimeoutMillis = ADDRESS_TIMEOUT_MILLIS_DEFAULT;
+    private CacheClock clock = CacheClock.SYSTEM;
+
+    /**
+     * Sets the file the cache lives in, shared by every process that opens
+     * it. The file is created if it does not exist. Required.
+     *
+     * @param file
+     *          the file
+     * @return the resulting {@link SharedAddressCacheBuilder}
+     */
+    public SharedAddressCacheBuilder file(File file) {
+      if (file == null) {
+        throw new IllegalArgumentException("File cannot be null");
+      }
+
+      this.file = file;
+      return this;
+    }
+
+    /**
+     * Sets the maximum capacity of the cache, used if the file is created.
+     * The file has two to four slots of {@value #SLOT_SIZE} bytes per
+     * address, so that probe sequences stay short. Defaults to 65536.
+     *
+     * @param maximumCapacity
+     *          the capacity of the cache
+     * @return the resulting {@link SharedAddressCacheBuilder}
+     */
+    public SharedAddressCacheBuilder maximumCapacity(int maximumCapacity) {
+      if (maximumCapacity < 1 || maximumCapacity > MAXIMUM_CAPACITY_LIMIT) {
+        throw new IllegalArgumentException("Capacity must be between 1 and "
+            + MAXIMUM_CAPACITY_LIMIT);
+      }
+
+      this.maximumCapacity = maximumCapacity;
+      return this;
+    }
+
+    /**
+     * Sets how often this process's cleanup task runs. The sweeper lease
+     * lasts three times as long, so another process takes over sweeping
+     * within that time if this one stops.
+     *
+     * @param rate
+     *          the cleanup rate
+     * @param unit
+     *          the unit for the cleanup rate
+     * @return the resulting {@link SharedAddressCacheBuilder}
+     */
+    public SharedAddressCacheBuilder cleanupRate(long rate, TimeUnit unit) {
+      if (rate <= 0) {
+        throw new IllegalArgumentException("Cleanup rate must be positive");
+      }
+
+      this.cleanupRateMillis = TimeUnit.MILLISECONDS.convert(rate, unit);
+      return this;
+    }
+
+    /**
+     * Sets the period after which an {@link InetAddress} offered without an
+     * expiration date expires. Defaults to five minutes.
+     *
+     * @param timeout
+     *          the timeout
+     * @param unit
+     *          the unit for the timeout
+     * @return the resulting {@link SharedAddressCacheBuilder}
+     */
+    public SharedAddressCacheBuilder addressTimeout(long timeout, TimeUnit unit) {
+      this.addressTimeoutMillis = TimeUnit.MILLISECONDS.convert(timeout, unit);
+      return this;
+    }
+
+    /**
+     * Sets the {@link CacheClock} the cache uses to stamp and expire
+     * addresses and to time the sweeper lease. All processes sharing a file
+     * should use the same (wall) clock. Defaults to {@link CacheClock#SYSTEM}.
+     *
+     * @param clock
+     *          the clock
+     * @return the resulting {@link SharedAddressCacheBuilder}
+     */
+    public SharedAddressCacheBuilder clock(CacheClock clock) {
+      if (clock == null) {
+        throw new IllegalArgumentException("Clock cannot be null");
+      }
+
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Opens or creates the shared file and builds a
+     * {@link SharedAddressCache} from the
+     * {@link SharedAddressCacheBuilder}'s values.
+     *
+     * @return the resulting {@link SharedAddressCache}
+     * @throws IllegalStateException
+     *           if no file was set
+     * @throws IllegalArgumentException
+     *           if the file exists but is not a shared address cache
+     */
+    public SharedAddressCache build() {
+      if (file == null) {
+        throw new IllegalStateException("A file is required");
+      }
+
+      return new SharedAddressCache(this);
+    }
+  }
+}
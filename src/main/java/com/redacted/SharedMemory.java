@@ -0,0 +1,174 @@
+package com.redacted;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+import sun.misc.Unsafe;
+
+/**
+ * Atomic and plain access to a memory-mapped region shared with other
+ * processes. {@link MappedByteBuffer} has no compare-and-swap nor ordered
+ * reads and writes before Java 9, so the region is addressed directly through
+ * {@link Unsafe}, whose atomic operations on shared memory are atomic across
+ * processes too. Values are in native byte order; the region is only meant to
+ * be shared between processes on the same host. This is the only class of
+ * the main code using {@link Unsafe}; pom.xml compiles it against the JDK's
+ * own classes, so that it is not reported as proprietary API on every build.
+ */
+final class SharedMemory {
+
+  private static final Unsafe UNSAFE;
+  private static final long ADDRESS_FIELD_OFFSET;
+
+  static {
+    try {
+      Field field = Unsafe.class.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      UNSAFE = (Unsafe) field.get(null);
+      ADDRESS_FIELD_OFFSET = UNSAFE.objectFieldOffset(Buffer.class
+          .getDeclaredField("address"));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /* Kept reachable, as the mapping is released once the buffer is collected. */
+  private final MappedByteBuffer buffer;
+  private final long base;
+  private final int length;
+
+  /**
+   * @param buffer
+   *          the mapped region, which must be direct
+   */
+  SharedMemory(MappedByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      throw new IllegalArgumentException("Buffer must be direct");
+    }
+
+    this.buffer = buffer;
+    this.base = UNSAFE.getLong(buffer, ADDRESS_FIELD_OFFSET);
+    this.length = buffer.capacity();
+  }
+
+  int length() {
+    return length;
+  }
+
+  byte getByte(long offset) {
+    return UNSAFE.getByte(address(offset, 1));
+  }
+
+  void putByte(long offset, byte value) {
+    UNSAFE.putByte(address(offset, 1), value);
+  }
+
+  int getInt(long offset) {
+    return UNSAFE.getInt(address(offset, 4));
+  }
+
+  void putInt(long offset, int value) {
+    UNSAFE.putInt(address(offset, 4), value);
+  }
+
+  long getLong(long offset) {
+    return UNSAFE.getLong(address(offset, 8));
+  }
+
+  void putLong(long offset, long value) {
+    UNSAFE.putLong(address(offset, 8), value);
+  }
+
+  int getIntVolatile(long offset) {
+    return UNSAFE.getIntVolatile(null, address(offset, 4));
+  }
+
+  void putIntVolatile(long offset, int value) {
+    UNSAFE.putIntVolatile(null, address(offset, 4), value);
+  }
+
+  long getLongVolatile(long offset) {
+    return UNSAFE.getLongVolatile(null, address(offset, 8));
+  }
+
+  void putLongVolatile(long offset, long value) {
+    UNSAFE.putLongVolatile(null, address(offset, 8), value);
+  }
+
+  /**
+   * Atomically sets the long at the given, 8-byte aligned offset to
+   * {@code update} if it is {@code expect}.
+   *
+   * @return {@code true} if successful
+   */
+  boolean compareAndSwapLong(long offset, long expect, long update) {
+    return UNSAFE.compareAndSwapLong(null, address(offset, 8), expect, update);
+  }
+
+  /**
+   * Keeps plain reads from moving after this point, so that a sequence
+   * number read afterwards validates them.
+   */
+  void loadFence() {
+    UNSAFE.loadFence();
+  }
+
+  /**
+   * Keeps plain writes from moving before this point, so that readers see a
+   * sequence number written before them first.
+   */
+  void storeFence() {
+    UNSAFE.storeFence();
+  }
+
+  /**
+   * Copies bytes from the region into the given array.
+   */
+  void getBytes(long offset, byte[] destination, int count) {
+    UNSAFE.copyMemory(null, address(offset, count), destination,
+        Unsafe.ARRAY_BYTE_BASE_OFFSET, count);
+  }
+
+  /**
+   * Copies bytes from the given array into the region.
+   */
+  void putBytes(long offset, byte[] source, int count) {
+    UNSAFE.copyMemory(source, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, address(
+        offset, count), count);
+  }
+
+  /**
+   * Copies bytes within the region.
+   */
+  void copy(long fromOffset, long toOffset, int count) {
+    UNSAFE.copyMemory(address(fromOffset, count), address(toOffset, count),
+        count);
+  }
+
+  /**
+   * Fills a range of the region with zeros.
+   */
+  void clear(long offset, long count) {
+    if (offset < 0 || count < 0 || offset + count > length) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + count);
+    }
+    UNSAFE.setMemory(base + offset, count, (byte) 0);
+  }
+
+  /**
+   * Returns the absolute address of the given range, which must lie within
+   * the region: a bad offset would otherwise crash the JVM.
+   */
+  private long address(long offset, int count) {
+    if (offset < 0 || offset > length - count) {
+      throw new IndexOutOfBoundsException("Offset " + offset);
+    }
+    return base + offset;
+  }
+
+  @Override
+  public String toString() {
+    return "SharedMemory[" + buffer + "]";
+  }
+}
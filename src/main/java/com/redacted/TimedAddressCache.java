@@ -1,18 +1,37 @@
 package com.redacted;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Map;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import com.redacted.CacheEvents.BulkLoadEvent;
+import com.redacted.CacheEvents.CapacityRejectionEvent;
+import com.redacted.CacheEvents.CleanupEvent;
+import com.redacted.CacheEvents.MoveFrontEvent;
+import com.redacted.CacheEvents.SlowTakeEvent;
 
 /**
  * Implementation of the {@link AddressCache} interface. The cache has a
@@ -22,30 +41,160 @@ import java.util.concurrent.TimeUnit;
  * intervals removes the oldest elements from the cache.
  * 
  * Note that this cache runs two background tasks, each on their own separate
- * threads: (1) A cleanup task that evicts expired addresses periodically and
- * (2) A maintenance task that ensures consistency between the internal
- * {@link BlockingDeque} and {@link Map}. The parameters for these tasks are set
+ * threads: (1) A cleanup task that evicts expired addresses and (2) A
+ * maintenance task that ensures consistency between the internal
+ * {@link AddressOrder} and {@link Map}. The parameters for these tasks are set
  * at build() time, else with default values. These default values are: (1)
- * initial delay: 100ms, rate: 5000ms and (2) initial delay: 100ms, delay
- * (between completed tasks): 1ms.
+ * initial delay: 100ms, rate: at most 5000ms between runs, no pause budget and
+ * (2) initial delay: 100ms, delay (between completed tasks): 1ms.
+ * 
+ * The cleanup task is not run at a fixed rate. Addresses are indexed by
+ * expiration date, and each run evicts the addresses that are due and then
+ * schedules the next run for when the next address expires (or after the
+ * cleanup rate, whichever is sooner). Each run also stops once it has used
+ * its pause budget, continuing in a follow-up run, so that no single cleanup
+ * pause holds up the cache for long.
+ * 
+ * A cache built with deadlineOrder() instead retrieves the address that
+ * expires soonest first, so that consumers get to addresses before they
+ * expire (see {@link AddressOrder.Deadline}).
+ * 
+ * Alternatively, a cache built with threadless() runs no background threads
+ * at all. Instead, offer(), contains(), remove(), peek() and take() each evict
+ * a small, bounded slice of expired addresses on the calling thread, and
+ * these reads skip (and evict) any expired address they come across, so that
+ * an expired address is never returned even before it has been swept.
+ * 
+ * A cache built with touchBuffer() does not reorder an address on every
+ * re-offer. Re-offers are recorded in striped buffers instead, and applied
+ * in batches by whichever thread gets to drain them (see {@link TouchBuffer}),
+ * so that producers re-offering a few hot addresses do not serialize on the
+ * order's lock. peek(), remove() and take() drain the buffers first.
+ * 
+ * A cache built with expireAfterWrite() or expireAfterAccess() has sliding
+ * expiration: a re-offer (and with expireAfterAccess(), a contains() hit as
+ * well) pushes the address's expiration date back to the address timeout
+ * from now. A renewal only swaps the date in the internal {@link Map}; the
+ * expiry index keeps the address under its old date, and the cleanup re-files
+ * it under the current one when that old date comes due, so that renewing is
+ * O(1) however often an address is renewed in between.
+ * 
+ * close() takes the cache through the states of {@link State}. Once it has
+ * begun, every method throws an {@link IllegalStateException}, and threads
+ * blocked in take(), put() or a timed offer() are woken to throw one too.
+ * close() returns within its timeout (see closeTimeout()), having optionally
+ * written the cache's contents to a file and run close hooks first.
+ * 
+ * Cleanup runs, capacity rejections, slow take() calls, moves to the front and
+ * the initial load are reported to Java Flight Recorder (see
+ * {@link CacheEvents}).
  * 
  * @author young-raekim
  *
  */
-public class TimedAddressCache implements AddressCache {
+public class TimedAddressCache implements ExpiringAddressCache {
 
   /* Default period after which a TimedInetAddress expires, in milliseconds. */
   private static final long ADDRESS_TIMEOUT_MILLIS_DEFAULT = 5 * 60 * 1000;
 
-  /* For the background tasks. */
-  private final ScheduledExecutorService cleanupExecutor = Executors
-      .newScheduledThreadPool(1);
-  private final ScheduledExecutorService maintenanceExecutor = Executors
-      .newScheduledThreadPool(1);
+  /* Granularity of the expiry index, in milliseconds. */
+  private static final long EXPIRY_RESOLUTION_MILLIS = 100;
+
+  /* Number of due addresses the cleanup task takes from the index at once. */
+  private static final int CLEANUP_BATCH_SIZE = 64;
+
+  /* Same, when sweeping in parallel on the expiry pool. */
+  private static final int PARALLEL_CLEANUP_BATCH_SIZE = 64 * 1024;
+
+  /* Due addresses checked by one task of a parallel sweep. */
+  private static final int EXPIRY_SEGMENT_SIZE = 4096;
+
+  /* The AddressOrder of virtualThreadOrder(), in the Java 21 build only. */
+  private static final String VIRTUAL_THREAD_ORDER = "com.redacted.VirtualThreadLifo";
+
+  /* Number of due addresses a cache operation evicts in threadless mode. */
+  private static final int THREADLESS_EXPIRY_SLICE_SIZE = 8;
+
+  /* Stripes of the change locks, as a power of two. */
+  private static final int CHANGE_LOCK_BITS = 6;
+
+  /* For the background tasks. Both null in threadless mode. */
+  private final ScheduledExecutorService cleanupExecutor;
+  private final ScheduledExecutorService maintenanceExecutor;
+
+  /* Whether expiry piggybacks on cache operations instead of the tasks. */
+  private final boolean threadless;
+  private final ReentrantLock expirySliceLock = new ReentrantLock();
+
+  /* Runs large sweeps of the cleanup task in parallel. Null unless set. */
+  private final ForkJoinPool expiryPool;
+
+  /* Source of the current time for stamping and expiring addresses. */
+  private final CacheClock clock;
+
+  /* Period after which an offered InetAddress expires, in milliseconds. */
+  private final long addressTimeoutMillis;
+
+  /*
+   * Sliding expiration: whether re-offers, and contains() hits, renew the
+   * expiration date. The dates in the order may then lag those in the map.
+   */
+  private final boolean renewOnOffer;
+  private final boolean renewOnAccess;
+
+  private final int maximumCapacity;
+
+  /* Keeps rarely offered addresses out. Null unless enabled. */
+  private final AdmissionFilter admissionFilter;
+
+  /* Tracks the most offered and looked-up addresses. Null unless enabled. */
+  private final FrequencySketch frequencySketch;
+
+  /* Holds the addresses that do not fit in memory. Null unless enabled. */
+  private final DiskTier diskTier;
+
+  /* Re-offers waiting to be applied to the order. Null unless enabled. */
+  private final TouchBuffer touchBuffer;
+  private final ReentrantLock touchDrainLock = new ReentrantLock();
+
+  /* Receives every change to the cache. Null unless set. */
+  private final CacheListener listener;
+
+  /*
+   * With a listener, each change to an address's mapping is made and
+   * reported under the lock of the address's stripe, so that the listener
+   * gets each address's changes in the order they were made. Null otherwise.
+   */
+  private final ReentrantLock[] changeLocks;
+
+  /* Stores the Cache data, in retrieval order. */
+  private final AddressOrder orderedCache;
+  private final ConcurrentMap<InetAddress, Date> mapCache;
+
+  /* Lifecycle, and what close() does before the deadline. */
+  private final AtomicReference<State> state = new AtomicReference<>(
+      State.OPEN);
+  private final long closeTimeoutNanos;
+  private final File snapshotFile;
+  private final List<Runnable> closeHooks;
+
+  /* Addresses by expiration date, driving the cleanup task. */
+  private final ExpiryIndex<InetAddress> expiryIndex = new ExpiryIndex<>(
+      EXPIRY_RESOLUTION_MILLIS);
+
+  /* Counts addresses by expiration date, for expiryForecast(). */
+  private final ExpiryHistogram expiryHistogram = new ExpiryHistogram();
 
-  /* Stores the Cache data. */
-  private BlockingDeque<TimedInetAddress> blockingDequeCache;
-  private Map<InetAddress, Date> mapCache;
+  /*
+   * Cleanup scheduling. Guarded by cleanupLock, a lock rather than a monitor
+   * so that offering virtual threads never pin their carrier on it.
+   */
+  private final ReentrantLock cleanupLock = new ReentrantLock();
+  private final long cleanupRateMillis;
+  private final long cleanupPauseBudgetNanos;
+  private long cleanupNotBeforeMillis;
+  private ScheduledFuture<?> nextCleanup;
+  private volatile long nextCleanupMillis = Long.MAX_VALUE;
 
   /**
    * Private constructor for {@link TimedAddressCache} which sets instance
@@ -55,41 +204,66 @@ public class TimedAddressCache implements AddressCache {
    *          the builder at build() time
    */
   private TimedAddressCache(TimedAddressCacheBuilder builder) {
-    blockingDequeCache = new LinkedBlockingDeque<>(builder.maximumCapacity);
-    blockingDequeCache.addAll(builder.cacheData);
-    mapCache = new ConcurrentHashMap<>(toInetAddressDateMap(builder.cacheData));
-
-    runCleanupTask(builder.cleanupInitialDelayMillis, builder.cleanupRateMillis);
-    maintainConsistencyTask(builder.maintenanceInitialDelayMillis,
-        builder.maintenanceDelayMillis);
-  }
-
-  /**
-   * Creates a Map whose keys are {@link InetAddress}es and whose values are
-   * their expiration dates, derived from the {@link TimedInetAddress}es of the
-   * given Collection.
-   * 
-   * @param c
-   *          the input collection of {@link TimedInetAddress}es
-   * @return a Map of {@link InetAddress}es to expiration dates
-   */
-  private static Map<InetAddress, Date> toInetAddressDateMap(
-      Collection<TimedInetAddress> c) {
-    // HashMap has fastest performance among Maps.
-    Map<InetAddress, Date> map = new HashMap<>();
+    clock = builder.clock;
+    addressTimeoutMillis = builder.addressTimeoutMillis;
+    renewOnOffer = builder.expireAfterWrite || builder.expireAfterAccess;
+    renewOnAccess = builder.expireAfterAccess;
+    maximumCapacity = builder.maximumCapacity;
+    admissionFilter = builder.admissionThreshold > 1 ? new AdmissionFilter(
+        builder.admissionThreshold, builder.admissionWindow) : null;
+    frequencySketch = builder.heavyHitters > 0 ? new FrequencySketch(
+        builder.heavyHitters) : null;
+    diskTier = builder.diskTierDirectory != null ? new DiskTier(
+        builder.diskTierDirectory, DiskTier.SEGMENT_SIZE_DEFAULT, clock) : null;
+    touchBuffer = builder.touchBuffer ? new TouchBuffer() : null;
+    listener = builder.listener;
+    changeLocks = listener == null ? null
+        : new ReentrantLock[1 << CHANGE_LOCK_BITS];
+    for (int i = 0; changeLocks != null && i < changeLocks.length; i++) {
+      changeLocks[i] = new ReentrantLock();
+    }
+    closeTimeoutNanos = builder.closeTimeoutNanos;
+    snapshotFile = builder.snapshotFile;
+    closeHooks = new ArrayList<>(builder.closeHooks);
 
-    for (Iterator<TimedInetAddress> iter = c.iterator(); iter.hasNext();) {
-      TimedInetAddress curr = iter.next();
-      map.put(curr.getInetAddress(), curr.getExpirationDate());
+    BulkLoadEvent loadEvent = new BulkLoadEvent();
+    loadEvent.begin();
+    orderedCache = newOrder(builder);
+    mapCache = BulkLoader.newMap(builder.cacheData.size());
+    BulkLoader.load(builder.cacheData, orderedCache, mapCache, expiryIndex);
+    long nowMillis = clock.currentTimeMillis();
+    for (Date expirationDate : mapCache.values()) {
+      expiryHistogram.add(expirationDate.getTime(), nowMillis);
+    }
+    loadEvent.end();
+    if (loadEvent.shouldCommit()) {
+      loadEvent.addresses = mapCache.size();
+      loadEvent.commit();
     }
 
-    return map;
+    cleanupRateMillis = builder.cleanupRateMillis;
+    cleanupPauseBudgetNanos = builder.cleanupPauseBudgetNanos;
+    threadless = builder.threadless;
+    expiryPool = builder.expiryPool;
+    if (threadless) {
+      cleanupExecutor = null;
+      maintenanceExecutor = null;
+    } else {
+      // rescheduled runs are cancelled often; do not keep them queued
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+      executor.setRemoveOnCancelPolicy(true);
+      cleanupExecutor = executor;
+      maintenanceExecutor = Executors.newScheduledThreadPool(1);
+      runCleanupTask(builder.cleanupInitialDelayMillis);
+      maintainConsistencyTask(builder.maintenanceInitialDelayMillis,
+          builder.maintenanceDelayMillis);
+    }
   }
 
   @Override
   public boolean offer(InetAddress address) {
     TimedInetAddress timedAddress = new TimedInetAddress(address, new Date(
-        System.currentTimeMillis() + ADDRESS_TIMEOUT_MILLIS_DEFAULT));
+        clock.currentTimeMillis() + addressTimeoutMillis));
     return offer(timedAddress);
   }
 
@@ -101,22 +275,299 @@ public class TimedAddressCache implements AddressCache {
    *          the {@link TimedInetAddress}
    * @return {@code true} if the timedAddress was successfully added.
    *         {@code false} if the {@link InetAddress} of the given
-   *         {@link TimedInetAddress} was already in the cache.
+   *         {@link TimedInetAddress} was already in the cache, the cache is
+   *         full or the address has not been offered often enough to be
+   *         admitted (see admissionThreshold()).
    */
   public boolean offer(TimedInetAddress timedAddress) {
-    if (!contains(timedAddress.getInetAddress())) {
-      boolean added = blockingDequeCache.offer(timedAddress);
-      if (added) {
-        mapCache.put(timedAddress.getInetAddress(),
-            timedAddress.getExpirationDate());
+    ensureOpen();
+    if (!shouldInsert(timedAddress)) {
+      return false;
+    }
+
+    return offered(timedAddress, offerOrSpill(timedAddress));
+  }
+
+  /**
+   * Offers the given address, waiting up to the given time for space to
+   * become available if the cache is full. See offer(TimedInetAddress, long,
+   * TimeUnit).
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @param timeout
+   *          how long to wait for space
+   * @param unit
+   *          the unit for the timeout
+   * @return {@code true} if the address was added
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public boolean offer(InetAddress address, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return offer(new TimedInetAddress(address, new Date(
+        clock.currentTimeMillis() + addressTimeoutMillis)), timeout, unit);
+  }
+
+  /**
+   * Offers the given {@link TimedInetAddress}, waiting up to the given time
+   * for space to become available if the cache is full. Space is freed by
+   * take(), remove() and expiry. Waiting producers are parked (not spinning)
+   * and each freed slot wakes a single one of them, longest waiting first,
+   * although an offer() arriving at the same moment may take the slot first.
+   * An address already in the cache is moved to the front without waiting.
+   * 
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @param timeout
+   *          how long to wait for space
+   * @param unit
+   *          the unit for the timeout
+   * @return {@code true} if the address was added. {@code false} if it was
+   *         already in the cache, was not admitted (see admissionThreshold())
+   *         or no space became available in time.
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public boolean offer(TimedInetAddress timedAddress, long timeout,
+      TimeUnit unit) throws InterruptedException {
+    ensureOpen();
+    if (!shouldInsert(timedAddress)) {
+      return false;
+    }
+
+    return offered(timedAddress,
+        offerWaiting(timedAddress, unit.toNanos(timeout)));
+  }
+
+  /**
+   * Adds the given address, waiting as long as necessary for space to become
+   * available if the cache is full. See put(TimedInetAddress).
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public void put(InetAddress address) throws InterruptedException {
+    put(new TimedInetAddress(address, new Date(clock.currentTimeMillis()
+        + addressTimeoutMillis)));
+  }
+
+  /**
+   * Adds the given {@link TimedInetAddress}, waiting as long as necessary for
+   * space to become available if the cache is full, in the same way as
+   * offer(TimedInetAddress, long, TimeUnit). An address already in the cache
+   * is moved to the front instead, and an address that is not admitted (see
+   * admissionThreshold()) is dropped.
+   * 
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public void put(TimedInetAddress timedAddress) throws InterruptedException {
+    ensureOpen();
+    if (shouldInsert(timedAddress)) {
+      offered(timedAddress, offerWaiting(timedAddress, Long.MAX_VALUE));
+    }
+  }
+
+  /**
+   * Decides whether an offered address should be inserted: an address that
+   * is already cached is moved to the front instead, and a new one must pass
+   * the admission filter, if any.
+   * 
+   * @param timedAddress
+   *          the offered {@link TimedInetAddress}
+   * @return {@code true} if the address should be inserted
+   */
+  private boolean shouldInsert(TimedInetAddress timedAddress) {
+    expireSlice();
+    recordFrequency(timedAddress.getInetAddress());
+
+    if (isCached(timedAddress.getInetAddress())) {
+      if (renewOnOffer) { // before the move, which copies the date
+        renew(timedAddress.getInetAddress());
+      }
+      touch(timedAddress.getInetAddress());
+      return false;
+    }
+    if (promote(timedAddress.getInetAddress())) { // cached on disk
+      if (renewOnOffer) {
+        renew(timedAddress.getInetAddress());
       }
+      return false;
+    }
 
-      return added;
+    if (admissionFilter == null) {
+      return true;
     }
+    return admissionFilter.admit(timedAddress.getInetAddress());
+  }
 
-    moveFront(timedAddress.getInetAddress());
+  /**
+   * Adds the given address to the internal {@link AddressOrder}, waiting
+   * up to the given time for space. In threadless mode nothing else expires
+   * addresses, so the wait is broken into short slices between which the
+   * waiting thread evicts expired addresses itself.
+   * 
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @param timeoutNanos
+   *          how long to wait, or {@link Long#MAX_VALUE} to wait indefinitely
+   * @return {@code true} if the address was added
+   */
+  private boolean offerWaiting(TimedInetAddress timedAddress,
+      long timeoutNanos) throws InterruptedException {
+    if (diskTier != null) { // there is always room on disk
+      return offerOrSpill(timedAddress);
+    }
+    if (!threadless) {
+      if (timeoutNanos == Long.MAX_VALUE) {
+        orderedCache.put(timedAddress);
+        return true;
+      }
+      return orderedCache.offer(timedAddress, timeoutNanos);
+    }
 
-    return false;
+    long sliceNanos = TimeUnit.MILLISECONDS.toNanos(EXPIRY_RESOLUTION_MILLIS);
+    long deadlineNanos = System.nanoTime() + timeoutNanos;
+    while (true) {
+      long remainingNanos = timeoutNanos == Long.MAX_VALUE ? sliceNanos
+          : deadlineNanos - System.nanoTime();
+      if (orderedCache.offer(timedAddress,
+          Math.min(remainingNanos, sliceNanos))) {
+        return true;
+      }
+      if (remainingNanos <= sliceNanos) {
+        return false;
+      }
+      expireSlice();
+    }
+  }
+
+  /**
+   * Completes an insertion: maps and indexes an address that was added to
+   * the internal {@link AddressOrder}, or reports one that was not.
+   * 
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @param added
+   *          whether it was added to the {@link AddressOrder}
+   * @return {@code true} if the address was added
+   */
+  private boolean inserted(TimedInetAddress timedAddress, boolean added) {
+    if (!added) {
+      CapacityRejectionEvent event = new CapacityRejectionEvent();
+      if (event.shouldCommit()) {
+        event.address = timedAddress.getInetAddress().getHostAddress();
+        event.maximumCapacity = maximumCapacity;
+        event.commit();
+      }
+      return false;
+    }
+
+    long expirationMillis = timedAddress.getExpirationDate().getTime();
+    Date previous = mapCache.put(timedAddress.getInetAddress(),
+        timedAddress.getExpirationDate());
+    if (previous != null) { // raced with another offer of the address
+      expiryHistogram.remove(previous.getTime(), clock.currentTimeMillis());
+    }
+    expiryHistogram.add(expirationMillis, clock.currentTimeMillis());
+    expiryIndex.add(timedAddress.getInetAddress(), expirationMillis);
+    scheduleCleanupBy(expirationMillis);
+    return true;
+  }
+
+  /**
+   * Completes an offer (see inserted()) and reports it to the listener, if
+   * any, if the address was added.
+   * 
+   * @param timedAddress
+   *          the offered {@link TimedInetAddress}
+   * @param added
+   *          whether it was added to the {@link AddressOrder}
+   * @return {@code true} if the address was added
+   */
+  private boolean offered(TimedInetAddress timedAddress, boolean added) {
+    ReentrantLock changeLock = lockChanges(timedAddress.getInetAddress());
+    try {
+      if (inserted(timedAddress, added) && listener != null) {
+        listener.offered(timedAddress);
+      }
+    } finally {
+      unlockChanges(changeLock);
+    }
+    return added;
+  }
+
+  /**
+   * With a listener, locks the stripe of the given address, to make a change
+   * to its mapping and report it in one go.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @return the lock, to pass to unlockChanges(), or {@code null} without a
+   *         listener
+   */
+  private ReentrantLock lockChanges(InetAddress address) {
+    if (changeLocks == null) {
+      return null;
+    }
+
+    ReentrantLock changeLock = changeLocks[(address.hashCode() * 0x9E3779B9)
+        >>> (32 - CHANGE_LOCK_BITS)];
+    changeLock.lock();
+    return changeLock;
+  }
+
+  private static void unlockChanges(ReentrantLock changeLock) {
+    if (changeLock != null) {
+      changeLock.unlock();
+    }
+  }
+
+  /**
+   * Moves a re-offered address to the front, right away or, with a touch
+   * buffer, once the buffer is drained.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   */
+  private void touch(InetAddress address) {
+    if (touchBuffer == null) {
+      moveFront(address);
+    } else if (touchBuffer.record(address)) {
+      drainTouches(false);
+    }
+  }
+
+  /**
+   * Applies the re-offers recorded in the touch buffer, if any, to the order.
+   * 
+   * @param wait
+   *          whether to wait for a thread draining already, so that every
+   *          re-offer recorded before the call has been applied on return;
+   *          else the call returns right away if the buffer is being drained
+   */
+  private void drainTouches(boolean wait) {
+    if (touchBuffer == null) {
+      return;
+    }
+    if (wait) {
+      touchDrainLock.lock();
+    } else if (!touchDrainLock.tryLock()) {
+      return;
+    }
+
+    try {
+      for (InetAddress address : touchBuffer.drain()) {
+        moveFront(address); // skips addresses removed meanwhile
+      }
+    } finally {
+      touchDrainLock.unlock();
+    }
   }
 
   /**
@@ -128,72 +579,615 @@ public class TimedAddressCache implements AddressCache {
    *         the cache. {@code false} if given address does not exist.
    */
   private boolean moveFront(InetAddress address) {
-    if (!contains(address)) { // no element to move to front
-      return false;
+    MoveFrontEvent event = new MoveFrontEvent();
+    event.begin();
+
+    ReentrantLock changeLock = lockChanges(address);
+    try {
+      Date expirationDate = mapCache.get(address);
+      if (expirationDate == null
+          || (threadless && expire(address, expirationDate))) {
+        return false; // no element to move to front
+      }
+
+      orderedCache.moveFront(new TimedInetAddress(address, expirationDate));
+      if (listener != null) {
+        listener.movedFront(address);
+      }
+    } finally {
+      unlockChanges(changeLock);
     }
 
-    TimedInetAddress existingTimedAddress = new TimedInetAddress(address,
-        mapCache.get(address));
-    blockingDequeCache.removeLastOccurrence(existingTimedAddress);
-    blockingDequeCache.addFirst(existingTimedAddress);
+    event.end();
+    if (event.shouldCommit()) {
+      event.address = address.getHostAddress();
+      event.size = orderedCache.size();
+      event.commit();
+    }
 
     return true;
   }
 
   @Override
   public boolean contains(InetAddress address) {
-    return mapCache.containsKey(address);
+    ensureOpen();
+    expireSlice();
+    recordFrequency(address);
+
+    if (!isCached(address) && !promote(address)) {
+      return false;
+    }
+    if (renewOnAccess) {
+      renew(address);
+    }
+    return true;
+  }
+
+  /**
+   * Pushes the expiration date of a cached address back to the address
+   * timeout from now, for sliding expiration. Only the date in the internal
+   * {@link Map} and the address's histogram count change: the expiry index
+   * still has the address under an earlier date, from which the cleanup
+   * re-indexes it (see reindexOrExpire()). An address that has expired, or
+   * that already expires later, is left as it is. A renewal is reported to
+   * the listener.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   */
+  private void renew(InetAddress address) {
+    Date expirationDate = mapCache.get(address);
+    long nowMillis = clock.currentTimeMillis();
+    if (expirationDate == null || nowMillis > expirationDate.getTime()
+        || nowMillis + addressTimeoutMillis <= expirationDate.getTime()) {
+      return;
+    }
+
+    Date renewedDate = new Date(nowMillis + addressTimeoutMillis);
+    // counted first, so that a concurrent unmap() always finds the count
+    expiryHistogram.add(renewedDate.getTime(), nowMillis);
+    ReentrantLock changeLock = lockChanges(address);
+    try {
+      if (mapCache.replace(address, expirationDate, renewedDate)) {
+        expiryHistogram.remove(expirationDate.getTime(), nowMillis);
+        if (listener != null) {
+          listener.renewed(address, renewedDate);
+        }
+      } else { // removed, expired or renewed meanwhile
+        expiryHistogram.remove(renewedDate.getTime(), nowMillis);
+      }
+    } finally {
+      unlockChanges(changeLock);
+    }
+  }
+
+  /**
+   * Adds the given address to the internal {@link AddressOrder} if there is
+   * space. With a disk tier, space is made by spilling the coldest addresses
+   * to disk.
+   * 
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @return {@code true} if the address was added
+   */
+  private boolean offerOrSpill(TimedInetAddress timedAddress) {
+    while (!orderedCache.offer(timedAddress)) {
+      if (diskTier == null) {
+        return false;
+      }
+
+      drainTouches(false);
+      TimedInetAddress coldAddress = orderedCache.pollCold();
+      if (coldAddress == null) {
+        return false;
+      }
+      Date expirationDate = mapCache.get(coldAddress.getInetAddress());
+      unmap(coldAddress.getInetAddress());
+      diskTier.spill(expirationDate == null ? coldAddress
+          : new TimedInetAddress(coldAddress.getInetAddress(), expirationDate));
+    }
+    return true;
+  }
+
+  /**
+   * Moves the given address from the disk tier, if any, back into memory.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @return {@code true} if the address was on disk and had not expired
+   */
+  private boolean promote(InetAddress address) {
+    if (diskTier == null) {
+      return false;
+    }
+
+    TimedInetAddress timedAddress = diskTier.remove(address);
+    if (timedAddress == null) {
+      return false;
+    }
+
+    inserted(timedAddress, offerOrSpill(timedAddress));
+    return true;
+  }
+
+  /**
+   * With a disk tier, refills the memory tier once it has run empty with the
+   * most recently spilled addresses on disk, so that peek(), remove() and
+   * take() go on to the disk tier once memory is exhausted.
+   * 
+   * @return {@code true} if there may be addresses in memory now
+   */
+  private boolean refill() {
+    if (diskTier == null) {
+      return false;
+    }
+    if (orderedCache.size() > 0) {
+      return true;
+    }
+
+    List<TimedInetAddress> newest = diskTier.pollNewest(maximumCapacity);
+    for (TimedInetAddress timedAddress : newest) {
+      inserted(timedAddress, offerOrSpill(timedAddress));
+    }
+    return !newest.isEmpty();
+  }
+
+  /**
+   * Checks whether the given address is in the cache. In threadless mode, an
+   * expired address is evicted instead.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @return {@code true} if the address is in the cache
+   */
+  private boolean isCached(InetAddress address) {
+    if (!threadless) {
+      return mapCache.containsKey(address);
+    }
+
+    Date expirationDate = mapCache.get(address);
+    if (expirationDate == null) {
+      return false;
+    }
+
+    return !expire(address, expirationDate);
   }
 
   @Override
   public boolean remove(InetAddress address) {
+    ensureOpen();
+    expireSlice();
+
     TimedInetAddress timedAddress = new TimedInetAddress(address);
-    boolean successfullyRemoved = blockingDequeCache
-        .removeLastOccurrence(timedAddress); // only one should exist anyway
-    mapCache.remove(address);
+    boolean successfullyRemoved;
+    ReentrantLock changeLock = lockChanges(address);
+    try {
+      successfullyRemoved = orderedCache.remove(timedAddress);
+      unmap(address);
+      if (!successfullyRemoved && diskTier != null) {
+        successfullyRemoved = diskTier.remove(address) != null;
+      }
+      if (successfullyRemoved && listener != null) {
+        listener.removed(address);
+      }
+    } finally {
+      unlockChanges(changeLock);
+    }
 
     return successfullyRemoved;
   }
 
   @Override
   public InetAddress peek() {
-    return blockingDequeCache.peekLast().getInetAddress();
+    ensureOpen();
+    expireSlice();
+    drainTouches(true);
+
+    refill();
+    TimedInetAddress timedAddress = current(orderedCache.peek());
+    while (threadless && timedAddress != null && isExpired(timedAddress)) {
+      expire(timedAddress.getInetAddress(), timedAddress.getExpirationDate());
+      refill();
+      timedAddress = current(orderedCache.peek());
+    }
+
+    return timedAddress == null ? null : timedAddress.getInetAddress();
   }
 
   @Override
   public InetAddress remove() {
-    TimedInetAddress timedAddress = blockingDequeCache.pollLast();
+    ensureOpen();
+    expireSlice();
+    drainTouches(true);
 
-    if (timedAddress == null) {
-      return null;
-    }
+    TimedInetAddress timedAddress;
+    do {
+      timedAddress = orderedCache.poll();
+      while (timedAddress == null && refill()) {
+        timedAddress = orderedCache.poll();
+      }
 
-    InetAddress address = timedAddress.getInetAddress();
-    mapCache.remove(address);
+      if (timedAddress == null) {
+        return null;
+      }
+    } while ((timedAddress = retrieved(timedAddress)) == null);
 
-    return address;
+    return timedAddress.getInetAddress();
   }
 
   @Override
   public InetAddress take() throws InterruptedException {
-    TimedInetAddress timedAddress = blockingDequeCache.takeLast();
+    return takeTimed().getInetAddress();
+  }
+
+  /**
+   * Like take(), but also returns the expiration date of the address, e.g. to
+   * offer it elsewhere for the time it has left.
+   * 
+   * @return the {@link TimedInetAddress}
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public TimedInetAddress takeTimed() throws InterruptedException {
+    ensureOpen();
+    expireSlice();
+    drainTouches(true);
+
+    SlowTakeEvent event = new SlowTakeEvent();
+    event.begin();
+
+    TimedInetAddress timedAddress;
+    do {
+      timedAddress = diskTier == null ? orderedCache.take() : takeFromTiers();
+    } while ((timedAddress = retrieved(timedAddress)) == null);
+
+    event.end();
+    if (event.shouldCommit()) {
+      event.address = timedAddress.getInetAddress().getHostAddress();
+      event.commit();
+    }
+
+    return timedAddress;
+  }
+
+  /**
+   * Takes an address from memory, refilling it from the disk tier first if
+   * it has run empty. Blocking only once the disk tier is empty is safe, as
+   * addresses are only spilled while memory is full.
+   * 
+   * @return the {@link TimedInetAddress}
+   */
+  private TimedInetAddress takeFromTiers() throws InterruptedException {
+    while (true) {
+      TimedInetAddress timedAddress = orderedCache.poll();
+      if (timedAddress != null) {
+        return timedAddress;
+      }
+      if (!refill()) {
+        return orderedCache.take();
+      }
+    }
+  }
+
+  /**
+   * Unmaps an address polled by remove() or take() and reports it to the
+   * listener, if any: as taken, or as expired if it is to be skipped.
+   * 
+   * @param timedAddress
+   *          the polled {@link TimedInetAddress}
+   * @return the address with its expiration date as it was unmapped, which
+   *         is later than the polled one if the address was renewed, or
+   *         {@code null} if it has expired and is to be skipped, which only
+   *         happens in threadless mode
+   */
+  private TimedInetAddress retrieved(TimedInetAddress timedAddress) {
     InetAddress address = timedAddress.getInetAddress();
-    mapCache.remove(address);
+    ReentrantLock changeLock = lockChanges(address);
+    try {
+      Date expirationDate = unmap(address);
+      if (expirationDate != null) {
+        timedAddress = new TimedInetAddress(address, expirationDate);
+      }
+
+      boolean skip = threadless && isExpired(timedAddress);
+      if (listener != null) {
+        if (skip) {
+          listener.expired(address);
+        } else {
+          listener.taken(address);
+        }
+      }
+      return skip ? null : timedAddress;
+    } finally {
+      unlockChanges(changeLock);
+    }
+  }
+
+  /**
+   * Returns up to {@code n} of the addresses most frequently passed to offer()
+   * and contains() recently, most frequent first, with their estimated
+   * counts. Requires the cache to have been built with heavyHitters().
+   * 
+   * @param n
+   *          the number of addresses, at most the k given to heavyHitters()
+   * @return the heavy hitters
+   */
+  public List<FrequencySketch.HeavyHitter> topK(int n) {
+    ensureOpen();
+    if (frequencySketch == null) {
+      throw new IllegalStateException(
+          "Heavy-hitter tracking was not enabled at build() time");
+    }
+
+    return frequencySketch.topK(n);
+  }
+
+  /**
+   * Forecasts how many addresses will expire within the next second, minute,
+   * hour etc., without iterating over the cache: the cache keeps a count of
+   * its addresses by expiration date, in buckets, as they are added and
+   * removed (see {@link ExpiryForecast} for its precision). Addresses in the
+   * disk tier are not included.
+   * 
+   * @return the {@link ExpiryForecast} as of now, by the cache's clock
+   */
+  public ExpiryForecast expiryForecast() {
+    ensureOpen();
+    return expiryHistogram.forecast(clock.currentTimeMillis());
+  }
+
+  /**
+   * Returns the unexpired addresses in memory with their expiration dates,
+   * oldest first (or in no particular order with deadlineOrder()), e.g. to
+   * copy the cache. Offering them in order to an empty cache recreates this
+   * one's retrieval order. Addresses in the disk tier are not included.
+   * 
+   * @return a copy of the {@link TimedInetAddress}es
+   */
+  public List<TimedInetAddress> snapshot() {
+    List<TimedInetAddress> snapshot = new ArrayList<>();
+    Iterator<TimedInetAddress> iterator = timedAddresses();
+    while (iterator.hasNext()) {
+      snapshot.add(iterator.next());
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns the unexpired addresses of the cache, for exporting: oldest
+   * first, or in no particular order with deadlineOrder(). The iterator is
+   * weakly consistent: it never fails because of concurrent changes, and may
+   * or may not reflect them.
+   * 
+   * @return an iterator over the {@link TimedInetAddress}es
+   */
+  Iterator<TimedInetAddress> timedAddresses() {
+    ensureOpen();
+    return unexpiredAddresses();
+  }
+
+  /**
+   * Returns the unexpired addresses of the cache, as timedAddresses() does,
+   * whatever the state.
+   * 
+   * @return an iterator over the {@link TimedInetAddress}es
+   */
+  private Iterator<TimedInetAddress> unexpiredAddresses() {
+    drainTouches(true);
+    final Iterator<TimedInetAddress> iterator = orderedCache.iterator();
+    return new Iterator<TimedInetAddress>() {
+
+      private TimedInetAddress next = advance();
 
-    return address;
+      private TimedInetAddress advance() {
+        while (iterator.hasNext()) {
+          TimedInetAddress timedAddress = current(iterator.next());
+          if (!isExpired(timedAddress)) {
+            return timedAddress;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public TimedInetAddress next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+
+        TimedInetAddress timedAddress = next;
+        next = advance();
+        return timedAddress;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Records an occurrence of the given address for heavy-hitter tracking, if
+   * enabled.
+   */
+  private void recordFrequency(InetAddress address) {
+    if (frequencySketch != null) {
+      frequencySketch.record(address);
+    }
+  }
+
+  /**
+   * Removes the given address from the internal {@link Map} and the expiry
+   * index. A renewed address may stay in the index under an earlier date
+   * until that date comes due.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @return the expiration date it was mapped to, or {@code null}
+   */
+  private Date unmap(InetAddress address) {
+    Date expirationDate = mapCache.remove(address);
+    if (expirationDate != null) {
+      expiryIndex.remove(address, expirationDate.getTime());
+      expiryHistogram.remove(expirationDate.getTime(),
+          clock.currentTimeMillis());
+    }
+    return expirationDate;
   }
 
+  /**
+   * Closes the cache, returning within the close timeout (see
+   * closeTimeout()). From the start of the call, every method throws an
+   * {@link IllegalStateException}, and threads blocked in take(), put() or a
+   * timed offer() are woken at once and throw one too.
+   * 
+   * If a snapshot file or close hooks were set, the cache's contents as of
+   * the call are written to the file and then the hooks are run, on a
+   * separate thread. If they have not finished by the deadline they are
+   * interrupted and abandoned. Their errors are printed rather than thrown,
+   * so that close() always completes. The background tasks are stopped and
+   * waited for until the deadline as well. Calling close() again, or while
+   * the cache is closing, has no effect.
+   */
   @Override
   public void close() {
-    blockingDequeCache = null;
-    mapCache = null;
-    cleanupExecutor.shutdownNow();
-    maintenanceExecutor.shutdownNow();
+    if (!state.compareAndSet(State.OPEN, State.CLOSING)) {
+      return;
+    }
+    long deadlineNanos = System.nanoTime() + closeTimeoutNanos;
+
+    List<TimedInetAddress> snapshot = null;
+    if (snapshotFile != null) {
+      snapshot = new ArrayList<>();
+      Iterator<TimedInetAddress> iterator = unexpiredAddresses();
+      while (iterator.hasNext()) {
+        snapshot.add(iterator.next());
+      }
+    }
+
+    orderedCache.close(); // wakes the blocked threads
+    if (!threadless) {
+      cleanupLock.lock();
+      try {
+        cleanupExecutor.shutdownNow();
+      } finally {
+        cleanupLock.unlock();
+      }
+      maintenanceExecutor.shutdownNow();
+    }
+
+    runCloseTasks(snapshot, deadlineNanos);
+    if (!threadless) {
+      awaitTermination(cleanupExecutor, deadlineNanos);
+      awaitTermination(maintenanceExecutor, deadlineNanos);
+    }
+
+    mapCache.clear();
+    expiryIndex.clear();
+    expiryHistogram.clear();
+    if (diskTier != null) {
+      diskTier.close();
+    }
+    state.set(State.CLOSED);
+  }
+
+  /**
+   * Returns the state of the cache's lifecycle.
+   * 
+   * @return the {@link State}
+   */
+  public State getState() {
+    return state.get();
+  }
+
+  /**
+   * Throws an {@link IllegalStateException} once close() has begun.
+   */
+  private void ensureOpen() {
+    if (state.get() != State.OPEN) {
+      throw new IllegalStateException("Cache has been closed");
+    }
+  }
+
+  /**
+   * Writes the snapshot file, if any, and runs the close hooks on a thread of
+   * their own, waiting for them until the deadline.
+   * 
+   * @param snapshot
+   *          the addresses to write, or {@code null} for no snapshot file
+   * @param deadlineNanos
+   *          the deadline, by {@link System#nanoTime()}
+   */
+  private void runCloseTasks(final List<TimedInetAddress> snapshot,
+      long deadlineNanos) {
+    if (snapshot == null && closeHooks.isEmpty()) {
+      return;
+    }
+
+    Thread closer = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        if (snapshot != null) {
+          try (OutputStream out = new FileOutputStream(snapshotFile)) {
+            AddressLists.write(snapshot.iterator(), out);
+          } catch (IOException e) {
+            System.err.println("Error in writing the cache snapshot on close.");
+            e.printStackTrace();
+          }
+        }
+        for (Runnable hook : closeHooks) {
+          try {
+            hook.run();
+          } catch (RuntimeException e) {
+            System.err.println("Error in running a cache close hook.");
+            e.printStackTrace();
+          }
+        }
+      }
+    }, "address-cache-close");
+    closer.setDaemon(true);
+    closer.start();
+
+    try {
+      long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos
+          - System.nanoTime());
+      if (remainingMillis > 0) {
+        closer.join(remainingMillis);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (closer.isAlive()) {
+      closer.interrupt();
+      System.err
+          .println("Cache close tasks did not finish within the close timeout and were abandoned.");
+    }
+  }
+
+  /**
+   * Waits until the deadline for a shut-down executor's task to finish.
+   */
+  private static void awaitTermination(ExecutorService executor,
+      long deadlineNanos) {
+    try {
+      executor.awaitTermination(deadlineNanos - System.nanoTime(),
+          TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   @Override
   public int size() {
-    return blockingDequeCache.size();
+    ensureOpen();
+    return orderedCache.size() + (diskTier == null ? 0 : diskTier.size());
   }
 
   @Override
@@ -201,24 +1195,268 @@ public class TimedAddressCache implements AddressCache {
     return (size() == 0);
   }
 
+  /**
+   * Creates the {@link AddressOrder} chosen by the builder. The virtual thread
+   * order is only compiled by the Java 21 build, so it is looked up by name.
+   * 
+   * @param builder
+   *          the builder at build() time
+   * @return the empty {@link AddressOrder}
+   * @throws IllegalStateException
+   *           if the virtual thread order was chosen but is not in the build
+   */
+  private static AddressOrder newOrder(TimedAddressCacheBuilder builder) {
+    if (builder.deadlineOrder) {
+      return new AddressOrder.Deadline(builder.maximumCapacity);
+    } else if (!builder.virtualThreadOrder) {
+      return new AddressOrder.Lifo(builder.maximumCapacity);
+    }
+
+    try {
+      return (AddressOrder) Class.forName(VIRTUAL_THREAD_ORDER)
+          .getDeclaredConstructor(int.class)
+          .newInstance(builder.maximumCapacity);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(
+          "The virtual thread order requires the Java 21 build");
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Checks whether the given {@link TimedInetAddress} has expired according
+   * to the cache's clock.
+   */
+  private boolean isExpired(TimedInetAddress timedAddress) {
+    return timedAddress.isExpired(clock.currentTimeMillis());
+  }
+
+  /**
+   * Returns the given address of the internal {@link AddressOrder} with its
+   * current expiration date: with sliding expiration, the date in the order
+   * lags the one in the internal {@link Map} after a renewal.
+   * 
+   * @param timedAddress
+   *          the {@link TimedInetAddress} from the order, or {@code null}
+   * @return the {@link TimedInetAddress} as of now, or {@code null}
+   */
+  private TimedInetAddress current(TimedInetAddress timedAddress) {
+    if (!renewOnOffer || timedAddress == null) {
+      return timedAddress;
+    }
+
+    Date expirationDate = mapCache.get(timedAddress.getInetAddress());
+    if (expirationDate == null
+        || expirationDate.equals(timedAddress.getExpirationDate())) {
+      return timedAddress;
+    }
+    return new TimedInetAddress(timedAddress.getInetAddress(), expirationDate);
+  }
+
+  /**
+   * Evicts the given address if it has expired with the given expiration
+   * date.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   * @param expirationDate
+   *          its expiration date, as last read from the internal {@link Map}
+   * @return {@code true} if the address has expired (whether evicted by this
+   *         call or by a concurrent one). {@code false} if it has not, or if
+   *         its expiration date changed meanwhile, e.g. by a renewal.
+   */
+  private boolean expire(InetAddress address, Date expirationDate) {
+    if (!isExpired(new TimedInetAddress(address, expirationDate))) {
+      return false;
+    }
+
+    ReentrantLock changeLock = lockChanges(address);
+    try {
+      if (mapCache.remove(address, expirationDate)) {
+        expiryIndex.remove(address, expirationDate.getTime());
+        expiryHistogram.remove(expirationDate.getTime(),
+            clock.currentTimeMillis());
+        orderedCache.remove(new TimedInetAddress(address));
+        if (listener != null) {
+          listener.expired(address);
+        }
+        return true;
+      }
+    } finally {
+      unlockChanges(changeLock);
+    }
+    return !mapCache.containsKey(address);
+  }
+
+  /**
+   * Evicts an address taken from the expiry index if it has expired. An
+   * address that has not (e.g. it was removed and offered again since it was
+   * indexed, or renewed) is re-indexed under its current expiration date.
+   * 
+   * @param address
+   *          the {@link InetAddress} taken from the expiry index
+   * @return {@code true} if the address was evicted
+   */
+  private boolean reindexOrExpire(InetAddress address) {
+    Date expirationDate = mapCache.get(address);
+    if (expirationDate == null) { // removed in the meantime
+      return false;
+    }
+
+    if (!expire(address, expirationDate)) {
+      reindex(address);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Indexes an address under its current expiration date, if it is still
+   * cached. Renewals do not index the address themselves, so an address
+   * whose eviction finds it renewed must be re-indexed.
+   * 
+   * @param address
+   *          the {@link InetAddress}
+   */
+  private void reindex(InetAddress address) {
+    Date expirationDate = mapCache.get(address);
+    if (expirationDate != null) {
+      expiryIndex.add(address, expirationDate.getTime());
+    }
+  }
+
+  /**
+   * In threadless mode, evicts a bounded slice of the expired addresses on
+   * the calling thread. Only one thread sweeps at a time; the others skip it.
+   */
+  private void expireSlice() {
+    if (!threadless || !expirySliceLock.tryLock()) {
+      return;
+    }
+
+    try {
+      long now = clock.currentTimeMillis();
+      if (expiryIndex.nextDueMillis() > now) {
+        return;
+      }
+
+      CleanupEvent event = new CleanupEvent();
+      event.begin();
+      List<InetAddress> due = expiryIndex.pollDue(now,
+          THREADLESS_EXPIRY_SLICE_SIZE);
+      int expired = 0;
+      for (InetAddress address : due) {
+        if (reindexOrExpire(address)) {
+          expired++;
+        }
+      }
+      event.end();
+      if (event.shouldCommit()) {
+        event.scanned = due.size();
+        event.expired = expired;
+        event.commit();
+      }
+    } finally {
+      expirySliceLock.unlock();
+    }
+  }
+
   /**
    * Runs a background cleanup task on a separate thread, evicting expired
-   * addresses of this cache in FIFO order.
+   * addresses of this cache in order of expiration. The task reschedules
+   * itself after every run.
    * 
    * @param initialDelayMillis
    *          the initial delay for running the task, in milliseconds
-   * @param rateMillis
-   *          the frequency at which the task occurs, in milliseconds
    */
-  private void runCleanupTask(long initialDelayMillis, long rateMillis) {
-    cleanupExecutor.scheduleAtFixedRate(new CacheCleanupTask(),
-        initialDelayMillis, rateMillis, TimeUnit.MILLISECONDS);
+  private void runCleanupTask(long initialDelayMillis) {
+    cleanupLock.lock();
+    try {
+      cleanupNotBeforeMillis = clock.currentTimeMillis() + initialDelayMillis;
+      scheduleCleanup(initialDelayMillis);
+    } finally {
+      cleanupLock.unlock();
+    }
+  }
+
+  /**
+   * Schedules the next run of the cleanup task after the given delay,
+   * replacing any run already scheduled. Must hold cleanupLock.
+   * 
+   * @param delayMillis
+   *          the delay, in milliseconds
+   */
+  private void scheduleCleanup(long delayMillis) {
+    if (nextCleanup != null) {
+      nextCleanup.cancel(false);
+    }
+
+    nextCleanupMillis = clock.currentTimeMillis() + delayMillis;
+    nextCleanup = cleanupExecutor.schedule(new CacheCleanupTask(),
+        delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Brings the next run of the cleanup task forward if an address with the
+   * given expiration date would otherwise wait for it longer than necessary.
+   * 
+   * @param expirationMillis
+   *          the expiration date of a newly indexed address
+   */
+  private void scheduleCleanupBy(long expirationMillis) {
+    if (threadless) {
+      return;
+    }
+
+    long dueMillis = expirationMillis + EXPIRY_RESOLUTION_MILLIS;
+    if (dueMillis >= nextCleanupMillis) { // already early enough
+      return;
+    }
+
+    cleanupLock.lock();
+    try {
+      // no earlier than the initial delay, which may already be the next run
+      long runMillis = Math.max(dueMillis, cleanupNotBeforeMillis);
+      if (runMillis < nextCleanupMillis && !cleanupExecutor.isShutdown()) {
+        scheduleCleanup(Math.max(0, runMillis - clock.currentTimeMillis()));
+      }
+    } finally {
+      cleanupLock.unlock();
+    }
+  }
+
+  /**
+   * Schedules the run following the one that just finished: right away if it
+   * used up its pause budget, else when the next address is due or after the
+   * cleanup rate, whichever is sooner.
+   * 
+   * @param budgetExhausted
+   *          whether the finished run stopped because of its pause budget
+   */
+  private void scheduleNextCleanup(boolean budgetExhausted) {
+    cleanupLock.lock();
+    try {
+      if (cleanupExecutor.isShutdown()) {
+        return;
+      }
+
+      long delayMillis = 0;
+      if (!budgetExhausted) {
+        long untilDueMillis = expiryIndex.nextDueMillis()
+            - clock.currentTimeMillis();
+        delayMillis = Math.max(0, Math.min(untilDueMillis, cleanupRateMillis));
+      }
+      scheduleCleanup(delayMillis);
+    } finally {
+      cleanupLock.unlock();
+    }
   }
 
   /**
    * Runs a background maintenance task on a separate thread, keeping the
    * internal {@link Map} consistent with respect to the internal
-   * {@link LinkedBlockingDeque}, adding or removing addresses as necessary to
+   * {@link AddressOrder}, adding or removing addresses as necessary to
    * or from the {@link Map}.
    * 
    * @param initialDelayMillis
@@ -232,8 +1470,9 @@ public class TimedAddressCache implements AddressCache {
   }
 
   /**
-   * The background cleanup task, evicting expired addresses of
-   * {@link TimedAddressCache} in FIFO order.
+   * The background cleanup task, evicting the expired addresses of
+   * {@link TimedAddressCache} found in the expiry index, earliest first, until
+   * none are left or the pause budget is used up.
    * 
    * @author young-raekim
    *
@@ -242,22 +1481,55 @@ public class TimedAddressCache implements AddressCache {
 
     @Override
     public void run() {
-      // ensure referenced instance variables have been initialized to avoid
-      // weird-ness from multithreading
-      if (blockingDequeCache == null || mapCache == null) {
+      if (state.get() != State.OPEN) {
         return;
       }
 
       try {
-        for (Iterator<TimedInetAddress> it = blockingDequeCache.iterator(); it
-            .hasNext();) {
-          TimedInetAddress curr = it.next();
-          if (curr.isExpired()) {
-            it.remove();
+        CleanupEvent event = new CleanupEvent();
+        event.begin();
+        long startNanos = System.nanoTime();
+        boolean budgetExhausted = false;
+        int scanned = 0;
+        int expired = 0;
+
+        List<InetAddress> due;
+        while (!budgetExhausted
+            && !(due = expiryIndex.pollDue(clock.currentTimeMillis(),
+                expiryPool != null ? PARALLEL_CLEANUP_BATCH_SIZE
+                    : CLEANUP_BATCH_SIZE)).isEmpty()) {
+          if (due.size() > EXPIRY_SEGMENT_SIZE) {
+            scanned += due.size();
+            expired += sweepInParallel(due);
+            budgetExhausted = System.nanoTime() - startNanos >= cleanupPauseBudgetNanos;
+            continue;
+          }
 
-            mapCache.remove(curr.getInetAddress());
+          for (int i = 0; i < due.size(); i++) {
+            if (budgetExhausted) { // hand the rest back for the next run
+              Date expirationDate = mapCache.get(due.get(i));
+              if (expirationDate != null) {
+                expiryIndex.add(due.get(i), expirationDate.getTime());
+              }
+            } else {
+              scanned++;
+              if (reindexOrExpire(due.get(i))) {
+                expired++;
+              }
+              budgetExhausted = System.nanoTime() - startNanos >= cleanupPauseBudgetNanos;
+            }
           }
         }
+
+        event.end();
+        if (event.shouldCommit()) {
+          event.scanned = scanned;
+          event.expired = expired;
+          event.budgetExhausted = budgetExhausted;
+          event.commit();
+        }
+
+        scheduleNextCleanup(budgetExhausted);
       } catch (Exception e) {
         System.err
             .println("Error in executing cache cleanup task. It will no longer be run.");
@@ -268,13 +1540,114 @@ public class TimedAddressCache implements AddressCache {
     }
   }
 
+  /**
+   * Evicts the expired addresses among the given due addresses on the expiry
+   * pool, re-indexing the others (see reindexOrExpire()). The addresses are
+   * unmapped in parallel, then removed from the order in one pass.
+   * 
+   * @param due
+   *          the addresses taken from the expiry index
+   * @return the number of addresses evicted
+   */
+  private int sweepInParallel(List<InetAddress> due) {
+    Map<InetAddress, Date> expired = expiryPool.invoke(new ExpirySweep(due, 0,
+        due.size()));
+    orderedCache.removeAll(expired.keySet());
+    return expired.size();
+  }
+
+  /**
+   * A segment of a parallel sweep: unmaps the expired addresses among a slice
+   * of the due addresses and reports them to the listener, if any, splitting
+   * the slice further if it is large, and returns them with their expiration
+   * dates. Each segment updates the
+   * expiry histogram once for all of its addresses.
+   */
+  private final class ExpirySweep extends RecursiveTask<Map<InetAddress, Date>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<InetAddress> due;
+    private final int from;
+    private final int to;
+
+    private ExpirySweep(List<InetAddress> due, int from, int to) {
+      this.due = due;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Map<InetAddress, Date> compute() {
+      if (to - from <= EXPIRY_SEGMENT_SIZE) {
+        return sweepSegment();
+      }
+
+      int middle = (from + to) >>> 1;
+      ExpirySweep left = new ExpirySweep(due, from, middle);
+      left.fork();
+      Map<InetAddress, Date> expired = new ExpirySweep(due, middle, to)
+          .compute();
+      Map<InetAddress, Date> leftExpired = left.join();
+      if (expired.size() < leftExpired.size()) { // add the smaller
+        Map<InetAddress, Date> smaller = expired;
+        expired = leftExpired;
+        leftExpired = smaller;
+      }
+      expired.putAll(leftExpired);
+      return expired;
+    }
+
+    private Map<InetAddress, Date> sweepSegment() {
+      Map<InetAddress, Date> expired = new HashMap<>();
+      // qualified, as the task is a Future, with a State of its own
+      if (state.get() != TimedAddressCache.State.OPEN) {
+        return expired; // closing clears everything anyway
+      }
+
+      for (int i = from; i < to; i++) {
+        InetAddress address = due.get(i);
+        Date expirationDate = mapCache.get(address);
+        if (expirationDate == null) { // removed in the meantime
+          continue;
+        }
+
+        if (!isExpired(new TimedInetAddress(address, expirationDate))) {
+          expiryIndex.add(address, expirationDate.getTime());
+        } else if (unmapExpired(address, expirationDate)) {
+          expired.put(address, expirationDate);
+        } else { // renewed meanwhile
+          reindex(address);
+        }
+      }
+
+      expiryHistogram.removeAll(expired.values(), clock.currentTimeMillis());
+      return expired;
+    }
+
+    private boolean unmapExpired(InetAddress address, Date expirationDate) {
+      ReentrantLock changeLock = lockChanges(address);
+      try {
+        if (!mapCache.remove(address, expirationDate)) {
+          return false;
+        }
+        if (listener != null) {
+          listener.expired(address);
+        }
+        return true;
+      } finally {
+        unlockChanges(changeLock);
+      }
+    }
+  }
+
   /**
    * The background consistency maintenance task, ensuring that the internal
-   * {@link Map} is consistent with the internal {@link LinkedBlockingDeque}.
-   * Namely, if the {@link LinkedBlockingDeque} contains addresses that the
+   * {@link Map} is consistent with the internal {@link AddressOrder}.
+   * Namely, if the {@link AddressOrder} contains addresses that the
    * {@link Map} does not, these addresses will get added to the {@link Map}.
    * Similarly, if the {@link Map} contains addresses that the
-   * {@link LinkedBlockingDeque} does not, these addresses will be removed from
+   * {@link AddressOrder} does not, these addresses will be removed from
    * the {@link Map}.
    * 
    * @author young-raekim
@@ -284,26 +1657,44 @@ public class TimedAddressCache implements AddressCache {
 
     @Override
     public void run() {
-      if (blockingDequeCache == null || mapCache == null) {
+      if (state.get() != State.OPEN) {
         return;
       }
 
       try {
-        // If the internal BlockingDeque contains addresses that the Map does
+        // If the internal AddressOrder contains addresses that the Map does
         // not, add these addresses to the mapCache
-        for (Iterator<TimedInetAddress> it = blockingDequeCache.iterator(); it
+        for (Iterator<TimedInetAddress> it = orderedCache.iterator(); it
             .hasNext();) {
           TimedInetAddress curr = it.next();
-          if (mapCache.get(curr) == null) {
-            mapCache.put(curr.getInetAddress(), curr.getExpirationDate());
+          if (isExpired(curr)) { // unmapped by an eviction still under way
+            continue;
+          }
+          if (mapCache.putIfAbsent(curr.getInetAddress(),
+              curr.getExpirationDate()) != null) {
+            continue;
+          }
+
+          expiryHistogram.add(curr.getExpirationDate().getTime(),
+              clock.currentTimeMillis());
+          // the address may have expired or been removed since iterated
+          if (!orderedCache.contains(curr)
+              && mapCache.remove(curr.getInetAddress(),
+                  curr.getExpirationDate())) {
+            expiryHistogram.remove(curr.getExpirationDate().getTime(),
+                clock.currentTimeMillis());
           }
         }
 
-        // If the Map contains addresses that the BlockingDeque does
+        // If the Map contains addresses that the AddressOrder does
         // not, remove these entries from the Map
         for (InetAddress address : mapCache.keySet()) {
-          if (!blockingDequeCache.contains(new TimedInetAddress(address))) {
-            mapCache.remove(address);
+          if (!orderedCache.contains(new TimedInetAddress(address))) {
+            Date expirationDate = mapCache.remove(address);
+            if (expirationDate != null) {
+              expiryHistogram.remove(expirationDate.getTime(),
+                  clock.currentTimeMillis());
+            }
           }
         }
       } catch (Exception e) {
@@ -316,6 +1707,21 @@ public class TimedAddressCache implements AddressCache {
     }
   }
 
+  /**
+   * The lifecycle of a {@link TimedAddressCache}.
+   */
+  public enum State {
+
+    /** Accepting calls. */
+    OPEN,
+
+    /** close() has begun: calls are rejected, and close() is finishing up. */
+    CLOSING,
+
+    /** close() has finished. */
+    CLOSED
+  }
+
   /**
    * Builder for {@link TimedAddressCache}
    * 
@@ -325,13 +1731,30 @@ public class TimedAddressCache implements AddressCache {
   public static class TimedAddressCacheBuilder {
 
     /* Instance variables set to default values. Times in milliseconds. */
-    // LinkedList produces iterators with the desired behavior.
-    private Collection<TimedInetAddress> cacheData = new LinkedList<>();
+    private ArrayList<TimedInetAddress> cacheData = new ArrayList<>();
     private int maximumCapacity = Integer.MAX_VALUE;
     private long cleanupInitialDelayMillis = 100;
     private long cleanupRateMillis = 5 * 1000;
+    private long cleanupPauseBudgetNanos = Long.MAX_VALUE;
     private long maintenanceInitialDelayMillis = 100;
     private long maintenanceDelayMillis = 1;
+    private long addressTimeoutMillis = ADDRESS_TIMEOUT_MILLIS_DEFAULT;
+    private CacheClock clock = CacheClock.SYSTEM;
+    private boolean threadless = false;
+    private ForkJoinPool expiryPool;
+    private boolean deadlineOrder = false;
+    private boolean virtualThreadOrder = false;
+    private boolean touchBuffer = false;
+    private boolean expireAfterWrite = false;
+    private boolean expireAfterAccess = false;
+    private long closeTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+    private File snapshotFile;
+    private List<Runnable> closeHooks = new ArrayList<>();
+    private File diskTierDirectory;
+    private CacheListener listener;
+    private int heavyHitters = 0;
+    private int admissionThreshold = 1;
+    private int admissionWindow;
 
     /**
      * Adds the given collection of {@link InetAddress}es to the
@@ -347,7 +1770,59 @@ public class TimedAddressCache implements AddressCache {
      */
     public TimedAddressCacheBuilder addAddresses(
         Collection<InetAddress> addresses) {
-      this.cacheData.addAll(toTimedCollection(addresses));
+      cacheData.ensureCapacity(cacheData.size() + addresses.size());
+      return addAddresses(addresses.iterator());
+    }
+
+    /**
+     * Adds the {@link InetAddress}es of the given iterator to the
+     * {@link TimedAddressCache}, in iteration order, without collecting them
+     * first. They all expire the address timeout after the time of this call.
+     * 
+     * @param addresses
+     *          the iterator of {@link InetAddress}es
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder addAddresses(Iterator<InetAddress> addresses) {
+      // one clock reading and one Date for the whole batch
+      Date expirationDate = new Date(clock.currentTimeMillis()
+          + addressTimeoutMillis);
+      while (addresses.hasNext()) {
+        cacheData.add(new TimedInetAddress(addresses.next(), expirationDate));
+      }
+      return this;
+    }
+
+    /**
+     * Adds the {@link InetAddress}es of the given stream to the
+     * {@link TimedAddressCache}, in encounter order. See
+     * addAddresses(Iterator).
+     * 
+     * @param addresses
+     *          the stream of {@link InetAddress}es
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder addAddresses(Stream<InetAddress> addresses) {
+      return addAddresses(addresses.iterator());
+    }
+
+    /**
+     * Adds the addresses of the given address list to the
+     * {@link TimedAddressCache}, in file order. Each line holds an IPv4 or
+     * IPv6 literal, optionally followed by a comma and an expiration date in
+     * milliseconds since the epoch; addresses without one expire the address
+     * timeout after the time of this call. The file is memory-mapped and
+     * parsed in parallel, without name lookups (see {@link AddressLists}).
+     * 
+     * @param file
+     *          the address list
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     * @throws IOException
+     *           if the file cannot be read or a line is malformed
+     */
+    public TimedAddressCacheBuilder addAddresses(File file) throws IOException {
+      cacheData.addAll(AddressLists.read(file, new Date(clock
+          .currentTimeMillis() + addressTimeoutMillis)));
       return this;
     }
 
@@ -367,6 +1842,55 @@ public class TimedAddressCache implements AddressCache {
       return this;
     }
 
+    /**
+     * Adds the {@link TimedInetAddress}es of the given iterator to the
+     * {@link TimedAddressCache}, in iteration order, without collecting them
+     * first.
+     * 
+     * @param timedAddresses
+     *          the iterator of {@link TimedInetAddress}es
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder addTimedAddresses(
+        Iterator<TimedInetAddress> timedAddresses) {
+      while (timedAddresses.hasNext()) {
+        cacheData.add(timedAddresses.next());
+      }
+      return this;
+    }
+
+    /**
+     * Adds the {@link TimedInetAddress}es of the given stream to the
+     * {@link TimedAddressCache}, in encounter order.
+     * 
+     * @param timedAddresses
+     *          the stream of {@link TimedInetAddress}es
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder addTimedAddresses(
+        Stream<TimedInetAddress> timedAddresses) {
+      return addTimedAddresses(timedAddresses.iterator());
+    }
+
+    /**
+     * Presizes the builder for the given total number of addresses, so that
+     * large loads from iterators, streams or files are not copied as they
+     * grow.
+     * 
+     * @param expectedAddresses
+     *          the number of addresses that will be added
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder expectedAddresses(int expectedAddresses) {
+      if (expectedAddresses < 0) {
+        throw new IllegalArgumentException(
+            "Expected addresses cannot be negative");
+      }
+
+      cacheData.ensureCapacity(expectedAddresses);
+      return this;
+    }
+
     /**
      * Sets a maximum capacity for the {@link TimedAddressCache}.
      * 
@@ -398,7 +1922,8 @@ public class TimedAddressCache implements AddressCache {
 
     /**
      * Sets the {@link TimedAddressCache}'s background cleanup task to occur at
-     * the given rate.
+     * least at the given rate. The task runs sooner whenever addresses are due
+     * to expire sooner.
      * 
      * @param rate
      *          the cleanup rate
@@ -411,6 +1936,28 @@ public class TimedAddressCache implements AddressCache {
       return this;
     }
 
+    /**
+     * Caps the time a single run of the {@link TimedAddressCache}'s background
+     * cleanup task may spend evicting addresses. A run that reaches the
+     * budget stops and leaves the remaining expired addresses to a follow-up
+     * run. Unlimited by default.
+     * 
+     * @param budget
+     *          the pause budget
+     * @param unit
+     *          the unit for the pause budget
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder cleanupPauseBudget(long budget,
+        TimeUnit unit) {
+      if (budget < 1) {
+        throw new IllegalArgumentException("Pause budget must be positive");
+      }
+
+      this.cleanupPauseBudgetNanos = TimeUnit.NANOSECONDS.convert(budget, unit);
+      return this;
+    }
+
     /**
      * Sets the {@link TimedAddressCache}'s background maintenance task to start
      * after the given initial delay.
@@ -444,37 +1991,345 @@ public class TimedAddressCache implements AddressCache {
     }
 
     /**
-     * Builds a {@link TimedAddressCache} from the
-     * {@link TimedAddressCacheBuilder}'s values.
+     * Sets the period after which an {@link InetAddress} offered without an
+     * expiration date expires. Defaults to five minutes. Note that addresses
+     * given to addAddresses() use the timeout set at the time of that call.
      * 
-     * @return the resulting {@link TimedAddressCache}
+     * @param timeout
+     *          the timeout
+     * @param unit
+     *          the unit for the timeout
+     * @return the resulting {@link TimedAddressCacheBuilder}
      */
-    public TimedAddressCache build() {
-      return new TimedAddressCache(this);
+    public TimedAddressCacheBuilder addressTimeout(long timeout, TimeUnit unit) {
+      this.addressTimeoutMillis = TimeUnit.MILLISECONDS.convert(timeout, unit);
+      return this;
+    }
+
+    /**
+     * Makes the {@link TimedAddressCache} run without any background threads.
+     * Expired addresses are then evicted a few at a time by the cache's own
+     * operations, which also never return an expired address. The cleanup
+     * and maintenance settings are ignored.
+     * 
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder threadless() {
+      this.threadless = true;
+      return this;
+    }
+
+    /**
+     * Makes the {@link TimedAddressCache}'s cleanup task sweep large numbers
+     * of expired addresses (e.g. a bulk load expiring all at once) in parallel
+     * on the given pool. The due addresses are taken from the expiry index in
+     * rounds of up to 65536 and split into segments of 4096, each checked and
+     * unmapped by a task of the pool; the expired addresses of a round are
+     * then removed from the cache's order in a single pass, instead of one
+     * search of the order per address. The pool is not shut down by close().
+     * Ignored in threadless mode. Sequential by default.
+     * 
+     * @param pool
+     *          the pool, e.g. {@link ForkJoinPool#commonPool()}
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder expiryPool(ForkJoinPool pool) {
+      if (pool == null) {
+        throw new IllegalArgumentException("Pool cannot be null");
+      }
+
+      this.expiryPool = pool;
+      return this;
+    }
+
+    /**
+     * Only admits a new {@link InetAddress} to the
+     * {@link TimedAddressCache} once it has been offered the given number of
+     * times within a window of recent offers, however full the cache is.
+     * Offers of addresses that have not been seen often enough yet return
+     * {@code false}. This keeps bursts of one-off addresses (e.g. from port
+     * scans or crawlers) from taking the free slots of a bounded cache, which
+     * then rejects the addresses offered again and again, and, with a disk
+     * tier, from pushing the hot set out of memory. Addresses already cached
+     * and addresses given to the builder are always admitted. Disabled by
+     * default.
+     * 
+     * @param timesSeen
+     *          the number of offers needed for admission, from 2 to 16
+     * @param window
+     *          the number of offers (of addresses not in the cache) over which
+     *          sightings are counted before they start to fade
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder admissionThreshold(int timesSeen,
+        int window) {
+      if (timesSeen < 2 || timesSeen > AdmissionFilter.MAXIMUM_THRESHOLD) {
+        throw new IllegalArgumentException("Times seen must be between 2 and "
+            + AdmissionFilter.MAXIMUM_THRESHOLD);
+      }
+      if (window < 1) {
+        throw new IllegalArgumentException("Window must be positive");
+      }
+
+      this.admissionThreshold = timesSeen;
+      this.admissionWindow = window;
+      return this;
+    }
+
+    /**
+     * Makes peek(), remove() and take() of the {@link TimedAddressCache}
+     * retrieve the address with the earliest expiration date instead of the
+     * most recently added one. Addresses are kept in an indexed heap, so
+     * offers, retrievals and remove(InetAddress) are all O(log n); re-offers
+     * leave the order unchanged. LIFO by default.
+     * 
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder deadlineOrder() {
+      this.deadlineOrder = true;
+      return this;
+    }
+
+    /**
+     * Keeps the addresses of the {@link TimedAddressCache} in an order built
+     * for very many threads, typically virtual threads, blocked in take().
+     * The order is LIFO as by default, but blocked threads wait in a queue of
+     * their own instead of on the order's lock, and an address offered while
+     * a thread waits is handed straight to the longest waiting one, which
+     * returns it without taking the lock again. Threads block by parking, and
+     * never while holding a monitor, so a waiting virtual thread does not pin
+     * its carrier thread; platform threads spin briefly before parking, to
+     * catch a quick handoff. Requires the Java 21 build (the java21 Maven
+     * profile, active when building on JDK 21 or later); build() throws an
+     * {@link IllegalStateException} otherwise. Cannot be combined with
+     * deadlineOrder().
+     * 
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder virtualThreadOrder() {
+      this.virtualThreadOrder = true;
+      return this;
+    }
+
+    /**
+     * Makes re-offers of addresses already in the {@link TimedAddressCache}
+     * cheap under contention. Instead of moving the address to the front
+     * right away, which takes the lock of the cache's order, a re-offer is
+     * recorded in one of several small per-thread buffers, and the buffers are
+     * applied in batches by whichever thread finds one full and can get to
+     * drain them. Repeated re-offers of the same address in a batch are
+     * applied once. peek(), remove() and take() drain the buffers before
+     * they read the order, so that they see every re-offer made before they
+     * were called. A re-offer made while its buffer is full is dropped,
+     * leaving the address where it was. Cannot be combined with
+     * deadlineOrder(), where re-offers leave the order unchanged anyway.
+     * Disabled by default.
+     * 
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder touchBuffer() {
+      this.touchBuffer = true;
+      return this;
+    }
+
+    /**
+     * Gives the {@link TimedAddressCache} sliding expiration: re-offering an
+     * address already in the cache (in memory or on disk) renews it,
+     * pushing its expiration date back to the address timeout from now, so
+     * that an address offered often enough never expires. The renewal is
+     * O(1): it swaps the date kept for the address, and the cleanup catches
+     * up with it when the address's previous date comes due. An address that
+     * has expired already, or that was offered with a later expiration date,
+     * is not renewed. Renewals are reported to the listener. Cannot be
+     * combined with deadlineOrder(), which orders addresses by the date
+     * they were added with. Disabled by default, when addresses expire the
+     * address timeout after they were first added.
+     * 
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder expireAfterWrite() {
+      this.expireAfterWrite = true;
+      return this;
+    }
+
+    /**
+     * Gives the {@link TimedAddressCache} sliding expiration as
+     * expireAfterWrite() does, where contains() finding the address renews
+     * it as well, so that an address expires the address timeout after it
+     * was last offered or looked up. Cannot be combined with deadlineOrder().
+     * 
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder expireAfterAccess() {
+      this.expireAfterAccess = true;
+      return this;
+    }
+
+    /**
+     * Adds a disk tier to the {@link TimedAddressCache}: instead of rejecting
+     * new addresses once maximumCapacity() is reached, the cache spills its
+     * coldest addresses (those that would be taken last) to segment files in
+     * the given directory. contains(), offer() and remove(InetAddress) also
+     * look on disk, and contains() and offer() move an address found there
+     * back into memory. Once memory has run empty, peek(), remove() and
+     * take() refill it with the most recently spilled addresses on disk. The
+     * files are deleted on close(). Cannot be combined with deadlineOrder().
+     * 
+     * @param directory
+     *          the directory for the segment files, created if necessary
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder diskTier(File directory) {
+      if (directory == null) {
+        throw new IllegalArgumentException("Directory cannot be null");
+      }
+
+      this.diskTierDirectory = directory;
+      return this;
+    }
+
+    /**
+     * Sets a {@link CacheListener} to receive every change to the
+     * {@link TimedAddressCache}: offers, moves to the front, renewals,
+     * removals, retrievals and expirations. Changes made at build() time (see
+     * addAddresses()) and moves between memory and the disk tier are not
+     * reported.
+     * 
+     * @param listener
+     *          the listener
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder listener(CacheListener listener) {
+      if (listener == null) {
+        throw new IllegalArgumentException("Listener cannot be null");
+      }
+
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Enables tracking of the {@code k} addresses most frequently passed to
+     * offer() and contains(), queried with topK(). Tracking uses a fixed
+     * amount of memory, proportional to {@code k}, and favors recent traffic.
+     * Disabled by default.
+     * 
+     * @param k
+     *          the number of heavy hitters to track
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder heavyHitters(int k) {
+      if (k < 1) {
+        throw new IllegalArgumentException("k must be positive");
+      }
+
+      this.heavyHitters = k;
+      return this;
+    }
+
+    /**
+     * Sets how long close() may take: writing the snapshot file, running the
+     * close hooks and waiting for the background tasks to stop. Whatever is
+     * still running by then is abandoned. Defaults to five seconds.
+     * 
+     * @param timeout
+     *          the timeout
+     * @param unit
+     *          the unit for the timeout
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder closeTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) {
+        throw new IllegalArgumentException("Timeout cannot be negative");
+      }
+
+      this.closeTimeoutNanos = TimeUnit.NANOSECONDS.convert(timeout, unit);
+      return this;
+    }
+
+    /**
+     * Makes close() write the unexpired addresses of the
+     * {@link TimedAddressCache} in memory to the given file as an address
+     * list (see {@link AddressLists}), oldest first, so that a restarted
+     * cache can be loaded from it with addAddresses(File). The contents are
+     * taken at the start of close(), and written before the close hooks run.
+     * 
+     * @param file
+     *          the file, replaced if it exists
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder snapshotOnClose(File file) {
+      if (file == null) {
+        throw new IllegalArgumentException("File cannot be null");
+      }
+
+      this.snapshotFile = file;
+      return this;
+    }
+
+    /**
+     * Adds a hook for close() to run once the cache rejects calls, e.g. to
+     * deregister the cache or ship its snapshot file. Hooks run one after
+     * another, in the order added, on a thread of close()'s, and are
+     * interrupted if they run past the close timeout.
+     * 
+     * @param hook
+     *          the hook
+     * @return the resulting {@link TimedAddressCacheBuilder}
+     */
+    public TimedAddressCacheBuilder onClose(Runnable hook) {
+      if (hook == null) {
+        throw new IllegalArgumentException("Hook cannot be null");
+      }
+
+      this.closeHooks.add(hook);
+      return this;
     }
 
     /**
-     * Converts a given collection of {@link InetAddress}es into a collection of
-     * {@link TimedInetAddress}es in traversal order of the input's iterator.
-     * Each new TimedInetAddress gets a default expiration date set to the time
-     * of creation plus a default timeout value.
+     * Sets the {@link CacheClock} the {@link TimedAddressCache} uses to stamp
+     * and expire addresses. Defaults to {@link CacheClock#SYSTEM}. Note that
+     * addresses given to addAddresses() are stamped with the clock set at the
+     * time of that call, so the clock should be set first.
      * 
-     * @param c
-     *          the collection to be converted
-     * @return the converted collection
+     * @param clock
+     *          the clock
+     * @return the resulting {@link TimedAddressCacheBuilder}
      */
-    private static Collection<TimedInetAddress> toTimedCollection(
-        Collection<InetAddress> c) {
-      // LinkedList chosen for well-behaved iterator.
-      Collection<TimedInetAddress> timedCollection = new LinkedList<>();
+    public TimedAddressCacheBuilder clock(CacheClock clock) {
+      if (clock == null) {
+        throw new IllegalArgumentException("Clock cannot be null");
+      }
+
+      this.clock = clock;
+      return this;
+    }
 
-      for (Iterator<InetAddress> cIter = c.iterator(); cIter.hasNext();) {
-        InetAddress curr = cIter.next();
-        timedCollection.add(new TimedInetAddress(curr, new Date(System
-            .currentTimeMillis() + ADDRESS_TIMEOUT_MILLIS_DEFAULT)));
+    /**
+     * Builds a {@link TimedAddressCache} from the
+     * {@link TimedAddressCacheBuilder}'s values.
+     * 
+     * @return the resulting {@link TimedAddressCache}
+     */
+    public TimedAddressCache build() {
+      if (deadlineOrder && diskTierDirectory != null) {
+        throw new IllegalStateException(
+            "A disk tier cannot be combined with deadline order");
+      }
+      if (deadlineOrder && virtualThreadOrder) {
+        throw new IllegalStateException(
+            "The virtual thread order cannot be combined with deadline order");
+      }
+      if (deadlineOrder && touchBuffer) {
+        throw new IllegalStateException(
+            "A touch buffer cannot be combined with deadline order");
+      }
+      if (deadlineOrder && (expireAfterWrite || expireAfterAccess)) {
+        throw new IllegalStateException(
+            "Sliding expiration cannot be combined with deadline order");
       }
 
-      return timedCollection;
+      return new TimedAddressCache(this);
     }
   }
 }
@@ -72,7 +72,20 @@ public class TimedInetAddress {
    * @return whether or not the {@link TimedInetAddress} has expired
    */
   public boolean isExpired() {
-    return new Date(System.currentTimeMillis()).compareTo(expirationDate) > 0;
+    return isExpired(System.currentTimeMillis());
+  }
+
+  /**
+   * Checks the expiration date against the given time. If the given time is
+   * before or on the expirationDate, we return {@code false}.
+   * 
+   * @param currentTimeMillis
+   *          the time to check against, in milliseconds since the epoch
+   * @return whether or not the {@link TimedInetAddress} has expired at the
+   *         given time
+   */
+  public boolean isExpired(long currentTimeMillis) {
+    return currentTimeMillis > expirationDate.getTime();
   }
 
   /*
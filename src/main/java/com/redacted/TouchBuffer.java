@@ -0,0 +1,167 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records re-offers of addresses already in a {@link TimedAddressCache}, so
+ * that they can be applied to its order in batches instead of each taking
+ * the order's lock.
+ *
+ * Re-offers are recorded in one of several small ring buffers (stripes),
+ * picked by the recording thread, so that threads rarely contend. Recording
+ * is a single compare-and-set; if the stripe is full, or another thread wins
+ * the slot, the re-offer is dropped. A dropped re-offer only leaves an
+ * address where it was, which is acceptable for an ordering hint and keeps
+ * recording from ever blocking. Each recorded re-offer is stamped from a
+ * global sequence, so that draining can apply re-offers from different
+ * stripes in the order they were made. The buffers are drained by one
+ * thread at a time (the caller must ensure this, e.g. with a lock).
+ */
+final class TouchBuffer {
+
+  /* Slots per stripe. A power of two. */
+  static final int STRIPE_SIZE = 16;
+
+  /* Largest number of stripes. */
+  private static final int MAXIMUM_STRIPES = 64;
+
+  private final Stripe[] stripes;
+  private final int stripeMask;
+
+  /* Stamps recorded re-offers in the order they were made. */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Creates a new {@link TouchBuffer} with a stripe per expected concurrent
+   * thread.
+   */
+  TouchBuffer() {
+    this(4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new {@link TouchBuffer}.
+   *
+   * @param stripes
+   *          the number of stripes, rounded up to a power of two and capped at
+   *          64
+   */
+  TouchBuffer(int stripes) {
+    if (stripes < 1) {
+      throw new IllegalArgumentException("Stripes must be positive");
+    }
+
+    int size = Integer.highestOneBit(Math.min(stripes, MAXIMUM_STRIPES));
+    size = size < Math.min(stripes, MAXIMUM_STRIPES) ? size << 1 : size;
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.stripeMask = size - 1;
+  }
+
+  /**
+   * Records a re-offer of the given address, unless its stripe is full.
+   *
+   * @param address
+   *          the {@link InetAddress}
+   * @return {@code true} if the buffers should be drained: the stripe is
+   *         full, or the re-offer was dropped
+   */
+  boolean record(InetAddress address) {
+    long probe = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+    Stripe stripe = stripes[(int) (probe >>> 32) & stripeMask];
+
+    long head = stripe.readCounter;
+    long tail = stripe.writeCounter.get();
+    if (tail - head >= STRIPE_SIZE) {
+      return true;
+    }
+    if (!stripe.writeCounter.compareAndSet(tail, tail + 1)) {
+      return true; // contended: drop rather than spin
+    }
+
+    int index = (int) tail & (STRIPE_SIZE - 1);
+    stripe.stamps[index] = sequence.getAndIncrement();
+    stripe.slots.lazySet(index, address); // publishes the stamp too
+    return tail + 1 - head >= STRIPE_SIZE;
+  }
+
+  /**
+   * Takes every recorded re-offer out of the buffers. Must not be called by
+   * more than one thread at a time.
+   *
+   * @return the re-offered addresses, each once, in the order of its last
+   *         re-offer
+   */
+  Set<InetAddress> drain() {
+    List<Touch> touches = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      long head = stripe.readCounter;
+      long tail = stripe.writeCounter.get();
+      for (; head < tail; head++) {
+        int index = (int) head & (STRIPE_SIZE - 1);
+        InetAddress address = stripe.slots.get(index);
+        if (address == null) { // claimed but not written yet
+          break;
+        }
+
+        touches.add(new Touch(stripe.stamps[index], address));
+        stripe.slots.lazySet(index, null);
+      }
+      stripe.readCounter = head;
+    }
+
+    Collections.sort(touches);
+    Set<InetAddress> addresses = new LinkedHashSet<>();
+    for (Touch touch : touches) {
+      addresses.remove(touch.address); // only the last re-offer counts
+      addresses.add(touch.address);
+    }
+    return addresses;
+  }
+
+  /**
+   * A drained re-offer, ordered by its stamp.
+   */
+  private static final class Touch implements Comparable<Touch> {
+
+    private final long stamp;
+    private final InetAddress address;
+
+    private Touch(long stamp, InetAddress address) {
+      this.stamp = stamp;
+      this.address = address;
+    }
+
+    @Override
+    public int compareTo(Touch other) {
+      return Long.compare(stamp, other.stamp);
+    }
+  }
+
+  /**
+   * A ring buffer written by any thread and read by the draining thread.
+   */
+  private static final class Stripe {
+
+    private final AtomicReferenceArray<InetAddress> slots =
+        new AtomicReferenceArray<>(STRIPE_SIZE);
+
+    /* Stamp of each slot's re-offer, written before the slot's address. */
+    private final long[] stamps = new long[STRIPE_SIZE];
+
+    /* Number of slots claimed by writers. */
+    private final AtomicLong writeCounter = new AtomicLong();
+
+    /* Number of slots drained. Written by the draining thread only. */
+    private volatile long readCounter;
+  }
+}
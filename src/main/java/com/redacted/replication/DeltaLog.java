@@ -0,0 +1,231 @@
+package com.redacted.replication;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ordered log of changes to the primary's cache, held in a ring buffer.
+ * Every change gets the next sequence number. Once the ring is full, each
+ * new change overwrites the oldest one, so that the primary never waits for
+ * its replicas; a replica that needs an overwritten change has to resync
+ * from a snapshot instead.
+ *
+ * Appending takes no lock: a change claims its sequence number with one
+ * atomic increment and is published into its slot of the ring as an
+ * immutable {@link Change}. Readers copy changes out of the ring without
+ * locking either, and only read those published contiguously from where
+ * they start; a slot that holds a later change than the one wanted has been
+ * overwritten. The lock below only parks replicas waiting for changes, and
+ * appending only takes it to wake them when some are waiting.
+ */
+final class DeltaLog {
+
+  /* Operations. */
+  static final byte OFFER = 1;
+  static final byte MOVE_FRONT = 2;
+  static final byte REMOVE = 3;
+  static final byte TAKE = 4;
+  static final byte EXPIRE = 5;
+  static final byte RENEW = 6;
+
+  /* Identifies this log, so that a replica notices a restarted primary. */
+  private final long epoch = ThreadLocalRandom.current().nextLong();
+
+  private final int mask;
+  private final AtomicReferenceArray<Change> changes;
+
+  /* Sequence number of the next change to claim. */
+  private final AtomicLong next = new AtomicLong();
+
+  /* Parks readers until changes are appended. */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  /**
+   * @param capacity
+   *          the number of changes kept, rounded up to a power of two
+   */
+  DeltaLog(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+    }
+
+    int size = Integer.highestOneBit(capacity);
+    size = size < capacity ? size << 1 : size;
+    mask = size - 1;
+    changes = new AtomicReferenceArray<>(size);
+  }
+
+  long epoch() {
+    return epoch;
+  }
+
+  /**
+   * Appends a change.
+   *
+   * @param expirationMillis
+   *          the expiration date, for {@link #OFFER} and {@link #RENEW}
+   * @param nowMillis
+   *          the time of the change, for lag reporting
+   */
+  void append(byte operation, byte[] address, long expirationMillis,
+      long nowMillis) {
+    Change change = new Change(next.getAndIncrement(), operation, address,
+        expirationMillis, nowMillis);
+    int index = (int) change.sequence & mask;
+    while (true) {
+      Change current = changes.get(index);
+      if (current != null && current.sequence > change.sequence) {
+        break; // lapped by a later change: overwritten already
+      }
+      if (changes.compareAndSet(index, current, change)) {
+        break;
+      }
+    }
+
+    if (waiting.get() > 0) {
+      lock.lock();
+      try {
+        appended.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the sequence number of the next change. Changes with lower
+   * numbers have been made, but the latest may still be being published.
+   */
+  long head() {
+    return next.get();
+  }
+
+  /**
+   * Returns whether the change with the given sequence number, and all
+   * later ones, are still in the log (or are yet to come).
+   */
+  boolean contains(long sequence) {
+    long head = next.get();
+    return sequence <= head && sequence >= head - changes.length();
+  }
+
+  /**
+   * Returns the time of the given change, or of the oldest one left if it
+   * has been overwritten.
+   *
+   * @return the time, or -1 if there is no such change yet
+   */
+  long timestamp(long sequence) {
+    long head = next.get();
+    if (sequence >= head) {
+      return -1;
+    }
+
+    Change change = changes.get((int) Math.max(sequence,
+        head - changes.length()) & mask);
+    return change == null ? -1 : change.timestamp;
+  }
+
+  /**
+   * Waits until there are changes from the given sequence number on, or the
+   * timeout passes.
+   *
+   * @return {@code true} if there are
+   */
+  boolean await(long sequence, long timeoutMillis) throws InterruptedException {
+    long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lockInterruptibly();
+    waiting.incrementAndGet();
+    try {
+      while (!isPublished(sequence)) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = appended.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      waiting.decrementAndGet();
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns whether the change with the given sequence number has been
+   * published, or overwritten by a later one.
+   */
+  private boolean isPublished(long sequence) {
+    Change change = changes.get((int) sequence & mask);
+    return change != null && change.sequence >= sequence;
+  }
+
+  /**
+   * Encodes up to {@code maximum} changes, starting with the given sequence
+   * number, to the given stream (see {@link ReplicationProtocol}). Only
+   * changes published without a gap from the first are encoded.
+   *
+   * @return the number of changes encoded, or -1 if the first of them has
+   *         been overwritten
+   */
+  int read(long from, int maximum, DataOutputStream out) throws IOException {
+    if (!contains(from)) {
+      return -1;
+    }
+
+    List<Change> batch = new ArrayList<>();
+    for (long sequence = from; batch.size() < maximum; sequence++) {
+      Change change = changes.get((int) sequence & mask);
+      if (change == null || change.sequence < sequence) {
+        break; // not published yet
+      }
+      if (change.sequence > sequence) {
+        if (batch.isEmpty()) {
+          return -1;
+        }
+        break; // the next read finds it overwritten
+      }
+      batch.add(change);
+    }
+
+    for (Change change : batch) {
+      out.writeByte(change.operation);
+      ReplicationProtocol.writeAddress(out, change.address);
+      if (change.operation == OFFER || change.operation == RENEW) {
+        out.writeLong(change.expirationMillis);
+      }
+    }
+    return batch.size();
+  }
+
+  /**
+   * One change, immutable once published.
+   */
+  private static final class Change {
+
+    private final long sequence;
+    private final byte operation;
+    private final byte[] address;
+    private final long expirationMillis;
+    private final long timestamp;
+
+    private Change(long sequence, byte operation, byte[] address,
+        long expirationMillis, long timestamp) {
+      this.sequence = sequence;
+      this.operation = operation;
+      this.address = address;
+      this.expirationMillis = expirationMillis;
+      this.timestamp = timestamp;
+    }
+  }
+}
@@ -0,0 +1,496 @@
+package com.redacted.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.redacted.CacheClock;
+import com.redacted.CacheListener;
+import com.redacted.TimedAddressCache;
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+import com.redacted.TimedInetAddress;
+
+/**
+ * The primary side of replication: records every change to a
+ * {@link TimedAddressCache} in an ordered log and streams it to the
+ * connected {@link ReplicationReplica}s, so that a standby's cache stays
+ * nearly identical to the primary's.
+ *
+ * The primary is the cache's {@link CacheListener}: set it with
+ * {@link TimedAddressCacheBuilder#listener(CacheListener)}, then call
+ * {@link #start(TimedAddressCache)} with the cache to accept replicas. Each
+ * change costs the cache's thread one lock-free append to a ring buffer (see
+ * {@link DeltaLog}); the primary never waits for replicas.
+ *
+ * Each replica is served by its own thread, which sends whatever changes
+ * have accumulated since its last send as one deflated batch, up to
+ * maximumBatchSize() changes, so that batches grow with the rate of change.
+ * A replica that falls so far behind that the changes it needs have been
+ * overwritten, or that follows another log (e.g. of a restarted primary), is
+ * sent a snapshot of the cache first. Replicas acknowledge every batch;
+ * {@link #getReplicas()} reports how far behind each one is.
+ *
+ * Changes are logged in the order the cache reports them, which is the order
+ * they were made in for each address (see {@link CacheListener}), so a
+ * replica ends up with the same addresses. Concurrent changes to different
+ * addresses may be logged in either order, and snapshots are not atomic, so
+ * the retrieval order of a replica may differ slightly from the primary's;
+ * expiration dates are replicated, so any address left behind expires on
+ * the replica too.
+ */
+public class ReplicationPrimary implements CacheListener, Closeable {
+
+  /* Heartbeat period while there are no changes, in milliseconds. */
+  private static final long HEARTBEAT_MILLIS = 1000;
+
+  private final DeltaLog log;
+  private final int maximumBatchSize;
+  private final InetSocketAddress bindAddress;
+  private final CacheClock clock;
+
+  private final List<ReplicaConnection> replicas = new CopyOnWriteArrayList<>();
+
+  private volatile TimedAddressCache cache;
+  private volatile ServerSocket serverSocket;
+  private volatile boolean closed;
+
+  /**
+   * Private constructor for {@link ReplicationPrimary} which sets instance
+   * variables to values given by the {@link ReplicationPrimaryBuilder}.
+   *
+   * @param builder
+   *          the builder at build() time
+   */
+  private ReplicationPrimary(ReplicationPrimaryBuilder builder) {
+    log = new DeltaLog(builder.logCapacity);
+    maximumBatchSize = builder.maximumBatchSize;
+    bindAddress = builder.bindAddress;
+    clock = builder.clock;
+  }
+
+  /**
+   * Starts accepting replicas of the given cache, which must have been built
+   * with this primary as its listener.
+   *
+   * @param cache
+   *          the cache, for snapshots
+   * @throws IOException
+   *           if the server socket cannot be bound
+   */
+  public synchronized void start(TimedAddressCache cache) throws IOException {
+    if (this.cache != null) {
+      throw new IllegalStateException("Already started");
+    }
+    if (closed) {
+      throw new IllegalStateException("Primary has been closed");
+    }
+
+    ServerSocket socket = new ServerSocket();
+    socket.bind(bindAddress);
+    this.cache = cache;
+    this.serverSocket = socket;
+
+    Thread acceptor = new Thread(new Acceptor(), "replication-primary");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Returns the address the primary listens on, once started.
+   *
+   * @return the local address
+   */
+  public InetSocketAddress getLocalAddress() {
+    if (serverSocket == null) {
+      throw new IllegalStateException("Not started");
+    }
+
+    return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+  }
+
+  /**
+   * Returns the sequence number the next change will get, i.e. the number of
+   * changes logged so far.
+   *
+   * @return the sequence number
+   */
+  public long getSequence() {
+    return log.head();
+  }
+
+  /**
+   * Returns the replication status of every connected replica.
+   *
+   * @return the status of each replica
+   */
+  public List<ReplicaStatus> getReplicas() {
+    long head = log.head();
+    long now = clock.currentTimeMillis();
+    List<ReplicaStatus> statuses = new ArrayList<>();
+    for (ReplicaConnection replica : replicas) {
+      long acknowledged = replica.acknowledged;
+      long oldestUnacknowledged = log.timestamp(acknowledged);
+      statuses.add(new ReplicaStatus(replica.socket.getRemoteSocketAddress(),
+          acknowledged, Math.max(0, head - acknowledged),
+          oldestUnacknowledged < 0 ? 0 : Math.max(0, now
+              - oldestUnacknowledged), replica.snapshots));
+    }
+    return statuses;
+  }
+
+  /**
+   * Stops accepting replicas and disconnects the connected ones. Changes to
+   * the cache are no longer logged.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (serverSocket != null) {
+      try {
+        serverSocket.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+    for (ReplicaConnection replica : replicas) {
+      replica.close();
+    }
+  }
+
+  @Override
+  public void offered(TimedInetAddress timedAddress) {
+    append(DeltaLog.OFFER, timedAddress.getInetAddress(), timedAddress
+        .getExpirationDate().getTime());
+  }
+
+  @Override
+  public void movedFront(InetAddress address) {
+    append(DeltaLog.MOVE_FRONT, address, 0);
+  }
+
+  @Override
+  public void renewed(InetAddress address, Date expirationDate) {
+    append(DeltaLog.RENEW, address, expirationDate.getTime());
+  }
+
+  @Override
+  public void removed(InetAddress address) {
+    append(DeltaLog.REMOVE, address, 0);
+  }
+
+  @Override
+  public void taken(InetAddress address) {
+    append(DeltaLog.TAKE, address, 0);
+  }
+
+  @Override
+  public void expired(InetAddress address) {
+    append(DeltaLog.EXPIRE, address, 0);
+  }
+
+  private void append(byte operation, InetAddress address,
+      long expirationMillis) {
+    if (!closed) {
+      log.append(operation, address.getAddress(), expirationMillis,
+          clock.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Accepts replicas, each served by a thread of its own.
+   */
+  private final class Acceptor implements Runnable {
+
+    @Override
+    public void run() {
+      while (!closed) {
+        try {
+          Socket socket = serverSocket.accept();
+          socket.setTcpNoDelay(true);
+          ReplicaConnection replica = new ReplicaConnection(socket);
+          replicas.add(replica);
+
+          Thread sender = new Thread(replica, "replication-sender-"
+              + socket.getRemoteSocketAddress());
+          sender.setDaemon(true);
+          sender.start();
+        } catch (IOException e) {
+          if (!closed) {
+            System.err
+                .println("Error in accepting a replica. No more replicas will be accepted.");
+            e.printStackTrace();
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Streams the log to one replica. The sending thread also reads the
+   * replica's acknowledgment of each frame before sending the next, so that
+   * at most one batch is in flight and the lag it reports is current.
+   */
+  private final class ReplicaConnection implements Runnable {
+
+    private final Socket socket;
+    private volatile long acknowledged;
+    private volatile int snapshots;
+
+    private ReplicaConnection(Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            socket.getOutputStream()));
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+
+        long epoch = in.readLong();
+        long next = in.readLong();
+        acknowledged = next;
+        if (epoch != log.epoch() || !log.contains(next)) {
+          next = sendSnapshot(in, out, bodyBytes, body);
+        }
+
+        while (!closed) {
+          log.await(next, HEARTBEAT_MILLIS);
+
+          bodyBytes.reset();
+          int count = log.read(next, maximumBatchSize, body);
+          if (count < 0) { // overwritten: the replica is too far behind
+            next = sendSnapshot(in, out, bodyBytes, body);
+            continue;
+          }
+
+          out.writeByte(ReplicationProtocol.DELTAS);
+          out.writeLong(next);
+          out.writeInt(count);
+          out.writeLong(log.head());
+          ReplicationProtocol.writeBody(out, bodyBytes.toByteArray(),
+              bodyBytes.size());
+          out.flush();
+          next += count;
+          acknowledged = in.readLong();
+        }
+      } catch (IOException | InterruptedException e) {
+        // the replica went away, or the primary was closed
+      } finally {
+        replicas.remove(this);
+        close();
+      }
+    }
+
+    /**
+     * Sends a snapshot of the cache, and the acknowledgment returned for it.
+     *
+     * @return the sequence number of the first change not in the snapshot
+     */
+    private long sendSnapshot(DataInputStream in, DataOutputStream out,
+        ByteArrayOutputStream bodyBytes, DataOutputStream body)
+        throws IOException {
+      // changes logged while the snapshot is taken are sent again afterwards
+      long sequence = log.head();
+      List<TimedInetAddress> snapshot = cache.snapshot();
+
+      bodyBytes.reset();
+      for (TimedInetAddress timedAddress : snapshot) {
+        ReplicationProtocol.writeAddress(body, timedAddress.getInetAddress()
+            .getAddress());
+        body.writeLong(timedAddress.getExpirationDate().getTime());
+      }
+
+      out.writeByte(ReplicationProtocol.SNAPSHOT);
+      out.writeLong(log.epoch());
+      out.writeLong(sequence);
+      out.writeInt(snapshot.size());
+      ReplicationProtocol.writeBody(out, bodyBytes.toByteArray(),
+          bodyBytes.size());
+      out.flush();
+      snapshots++;
+      acknowledged = in.readLong();
+      return sequence;
+    }
+
+    private void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+  }
+
+  /**
+   * How far a replica is behind the primary.
+   */
+  public static final class ReplicaStatus {
+
+    private final SocketAddress address;
+    private final long acknowledgedSequence;
+    private final long lagChanges;
+    private final long lagMillis;
+    private final int snapshots;
+
+    private ReplicaStatus(SocketAddress address, long acknowledgedSequence,
+        long lagChanges, long lagMillis, int snapshots) {
+      this.address = address;
+      this.acknowledgedSequence = acknowledgedSequence;
+      this.lagChanges = lagChanges;
+      this.lagMillis = lagMillis;
+      this.snapshots = snapshots;
+    }
+
+    /**
+     * Returns the replica's address.
+     */
+    public SocketAddress getAddress() {
+      return address;
+    }
+
+    /**
+     * Returns the sequence number of the next change the replica needs.
+     */
+    public long getAcknowledgedSequence() {
+      return acknowledgedSequence;
+    }
+
+    /**
+     * Returns the number of changes the replica has yet to acknowledge.
+     */
+    public long getLagChanges() {
+      return lagChanges;
+    }
+
+    /**
+     * Returns how long ago the oldest change the replica has yet to
+     * acknowledge was made, in milliseconds; 0 if it is up to date.
+     */
+    public long getLagMillis() {
+      return lagMillis;
+    }
+
+    /**
+     * Returns the number of snapshots sent to the replica on this connection.
+     */
+    public int getSnapshots() {
+      return snapshots;
+    }
+
+    @Override
+    public String toString() {
+      return address + ": " + lagChanges + " changes, " + lagMillis
+          + " ms behind";
+    }
+  }
+
+  /**
+   * Builder for {@link ReplicationPrimary}.
+   */
+  public static class ReplicationPrimaryBuilder {
+
+    /* Instance variables set to default values. */
+    private InetSocketAddress bindAddress = new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), 0);
+    private int logCapacity = 1 << 16;
+    private int maximumBatchSize = 4096;
+    private CacheClock clock = CacheClock.SYSTEM;
+
+    /**
+     * Sets the address to accept replicas on. Defaults to an ephemeral port
+     * on the loopback interface.
+     *
+     * @param bindAddress
+     *          the address
+     * @return the resulting {@link ReplicationPrimaryBuilder}
+     */
+    public ReplicationPrimaryBuilder bind(InetSocketAddress bindAddress) {
+      if (bindAddress == null) {
+        throw new IllegalArgumentException("Bind address cannot be null");
+      }
+
+      this.bindAddress = bindAddress;
+      return this;
+    }
+
+    /**
+     * Sets the number of changes the log keeps. A replica that falls further
+     * behind than this is resynced from a snapshot. Defaults to 65536.
+     *
+     * @param logCapacity
+     *          the number of changes
+     * @return the resulting {@link ReplicationPrimaryBuilder}
+     */
+    public ReplicationPrimaryBuilder logCapacity(int logCapacity) {
+      if (logCapacity < 1) {
+        throw new IllegalArgumentException("Log capacity must be positive");
+      }
+
+      this.logCapacity = logCapacity;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of changes sent to a replica at once. Defaults
+     * to 4096.
+     *
+     * @param maximumBatchSize
+     *          the number of changes
+     * @return the resulting {@link ReplicationPrimaryBuilder}
+     */
+    public ReplicationPrimaryBuilder maximumBatchSize(int maximumBatchSize) {
+      if (maximumBatchSize < 1) {
+        throw new IllegalArgumentException("Batch size must be positive");
+      }
+
+      this.maximumBatchSize = maximumBatchSize;
+      return this;
+    }
+
+    /**
+     * Sets the {@link CacheClock} changes are timed by, for lag reporting.
+     * Defaults to {@link CacheClock#SYSTEM}.
+     *
+     * @param clock
+     *          the clock
+     * @return the resulting {@link ReplicationPrimaryBuilder}
+     */
+    public ReplicationPrimaryBuilder clock(CacheClock clock) {
+      if (clock == null) {
+        throw new IllegalArgumentException("Clock cannot be null");
+      }
+
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Builds a {@link ReplicationPrimary} from the
+     * {@link ReplicationPrimaryBuilder}'s values. It logs changes right
+     * away, and accepts replicas once started.
+     *
+     * @return the resulting {@link ReplicationPrimary}
+     */
+    public ReplicationPrimary build() {
+      return new ReplicationPrimary(this);
+    }
+  }
+}
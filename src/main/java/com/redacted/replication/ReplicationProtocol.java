@@ -0,0 +1,126 @@
+package com.redacted.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The stream between a {@link ReplicationPrimary} and a
+ * {@link ReplicationReplica}. The replica opens it with a handshake:
+ *
+ * <pre>
+ * long   epoch of the log it follows, or 0 if none
+ * long   sequence number of the next change it needs
+ * </pre>
+ *
+ * The primary then sends frames, each starting with a type byte:
+ *
+ * <pre>
+ * SNAPSHOT  long epoch, long sequence the changes that follow start at,
+ *           int count, body of count (address, long expiration) entries
+ * DELTAS    long sequence of the first change, int count, long sequence
+ *           of the primary's next change, body of count changes
+ * </pre>
+ *
+ * and the replica acknowledges each frame with the sequence number of the
+ * next change it needs. A change is an operation byte (see {@link DeltaLog}),
+ * an address and, for offers and renewals, a long expiration date. An address is its
+ * length (4 or 16) and its bytes. A body is its length, its deflated length
+ * and the deflated bytes. A DELTAS frame with no changes is a heartbeat.
+ */
+final class ReplicationProtocol {
+
+  static final byte SNAPSHOT = 1;
+  static final byte DELTAS = 2;
+
+  /* Largest body either side accepts, inflated. */
+  static final int MAXIMUM_BODY_LENGTH = 1 << 28;
+
+  private ReplicationProtocol() {
+  }
+
+  static void writeAddress(DataOutputStream out, byte[] address)
+      throws IOException {
+    out.writeByte(address.length);
+    out.write(address);
+  }
+
+  static InetAddress readAddress(DataInputStream in) throws IOException {
+    int length = in.readUnsignedByte();
+    if (length != 4 && length != 16) {
+      throw new IOException("Bad address length " + length);
+    }
+
+    byte[] address = new byte[length];
+    in.readFully(address);
+    return InetAddress.getByAddress(address);
+  }
+
+  /**
+   * Deflates and writes a body.
+   */
+  static void writeBody(DataOutputStream out, byte[] body, int length)
+      throws IOException {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(body, 0, length);
+      deflater.finish();
+      byte[] deflated = new byte[length + length / 1000 + 64];
+      int deflatedLength = 0;
+      while (!deflater.finished()) {
+        if (deflatedLength == deflated.length) { // incompressible
+          deflated = Arrays.copyOf(deflated, deflated.length * 2);
+        }
+        deflatedLength += deflater.deflate(deflated, deflatedLength,
+            deflated.length - deflatedLength);
+      }
+
+      out.writeInt(length);
+      out.writeInt(deflatedLength);
+      out.write(deflated, 0, deflatedLength);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Reads and inflates a body.
+   */
+  static byte[] readBody(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    int deflatedLength = in.readInt();
+    if (length < 0 || length > MAXIMUM_BODY_LENGTH || deflatedLength < 0
+        || deflatedLength > MAXIMUM_BODY_LENGTH) {
+      throw new IOException("Bad body length " + length);
+    }
+
+    byte[] deflated = new byte[deflatedLength];
+    in.readFully(deflated);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(deflated);
+      byte[] body = new byte[length];
+      int inflated = 0;
+      while (inflated < length && !inflater.finished()) {
+        int n = inflater.inflate(body, inflated, length - inflated);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += n;
+      }
+      if (inflated != length) {
+        throw new IOException("Truncated body");
+      }
+      return body;
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package com.redacted.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.redacted.TimedAddressCache;
+import com.redacted.TimedInetAddress;
+
+/**
+ * The standby side of replication: follows a {@link ReplicationPrimary},
+ * applying its changes to a local {@link TimedAddressCache} as they arrive.
+ *
+ * The replica's cache should be built with the primary's settings, apart
+ * from the listener and sliding expiration: the primary's renewals arrive
+ * as changes, with their dates, which the replica's own renewals would
+ * overtake. It should only be read while the replica follows the primary;
+ * changes made to it directly are not sent anywhere and may be undone by the
+ * next snapshot. If the connection fails, the replica reconnects after
+ * reconnectDelay() and carries on from the last change it applied, or is
+ * resynced from a snapshot if the primary no longer has it.
+ */
+public class ReplicationReplica implements Closeable {
+
+  private final InetSocketAddress primaryAddress;
+  private final TimedAddressCache cache;
+  private final long reconnectDelayMillis;
+  private final Thread thread;
+
+  /* Epoch of the primary's log followed, or 0 before the first snapshot. */
+  private long epoch;
+
+  /* Sequence number of the next change to apply. */
+  private volatile long next;
+
+  /* Sequence number of the primary's next change, as last reported. */
+  private volatile long primaryHead;
+
+  private volatile int resyncs;
+  private volatile Socket socket;
+  private volatile boolean closed;
+
+  /**
+   * Private constructor for {@link ReplicationReplica} which sets instance
+   * variables to values given by the {@link ReplicationReplicaBuilder} and
+   * starts following the primary.
+   *
+   * @param builder
+   *          the builder at build() time
+   */
+  private ReplicationReplica(ReplicationReplicaBuilder builder) {
+    primaryAddress = builder.primaryAddress;
+    cache = builder.cache;
+    reconnectDelayMillis = builder.reconnectDelayMillis;
+
+    thread = new Thread(new Follower(), "replication-replica");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the sequence number of the next change the replica needs, i.e.
+   * the number of the primary's changes it has applied.
+   *
+   * @return the sequence number
+   */
+  public long getAppliedSequence() {
+    return next;
+  }
+
+  /**
+   * Returns the number of changes the primary had made but the replica had
+   * yet to apply, as of the last batch received.
+   *
+   * @return the number of changes
+   */
+  public long getLagChanges() {
+    return Math.max(0, primaryHead - next);
+  }
+
+  /**
+   * Returns the number of times the replica has been resynced from a
+   * snapshot, including the first.
+   *
+   * @return the number of snapshots applied
+   */
+  public int getResyncs() {
+    return resyncs;
+  }
+
+  /**
+   * Returns whether the replica is connected to the primary.
+   *
+   * @return {@code true} if connected
+   */
+  public boolean isConnected() {
+    Socket current = socket;
+    return current != null && !current.isClosed();
+  }
+
+  /**
+   * Stops following the primary. The cache is left as it is.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Socket current = socket;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+    thread.interrupt();
+  }
+
+  /**
+   * Connects to the primary and applies its frames, reconnecting until
+   * closed.
+   */
+  private final class Follower implements Runnable {
+
+    @Override
+    public void run() {
+      while (!closed) {
+        try {
+          follow();
+        } catch (IOException e) {
+          // reconnect below
+        } finally {
+          Socket current = socket;
+          socket = null;
+          if (current != null) {
+            try {
+              current.close();
+            } catch (IOException e) {
+              // already gone
+            }
+          }
+        }
+
+        try {
+          Thread.sleep(reconnectDelayMillis);
+        } catch (InterruptedException e) {
+          return; // closed
+        }
+      }
+    }
+
+    private void follow() throws IOException {
+      Socket current = new Socket();
+      socket = current;
+      if (closed) {
+        return;
+      }
+      current.connect(primaryAddress);
+      current.setTcpNoDelay(true);
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          current.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          current.getOutputStream()));
+      out.writeLong(epoch);
+      out.writeLong(next);
+      out.flush();
+
+      while (!closed) {
+        byte type = in.readByte();
+        switch (type) {
+        case ReplicationProtocol.SNAPSHOT:
+          applySnapshot(in);
+          break;
+        case ReplicationProtocol.DELTAS:
+          applyDeltas(in);
+          break;
+        default:
+          throw new IOException("Unknown frame type " + type);
+        }
+        out.writeLong(next);
+        out.flush();
+      }
+    }
+
+    /**
+     * Replaces the cache's contents with a snapshot.
+     */
+    private void applySnapshot(DataInputStream in) throws IOException {
+      long snapshotEpoch = in.readLong();
+      long sequence = in.readLong();
+      int count = in.readInt();
+      DataInputStream body = body(in);
+
+      for (TimedInetAddress timedAddress : cache.snapshot()) {
+        cache.remove(timedAddress.getInetAddress());
+      }
+      for (int i = 0; i < count; i++) {
+        InetAddress address = ReplicationProtocol.readAddress(body);
+        cache.offer(new TimedInetAddress(address, new Date(body.readLong())));
+      }
+
+      epoch = snapshotEpoch;
+      next = sequence;
+      primaryHead = sequence;
+      resyncs++;
+    }
+
+    /**
+     * Applies a batch of changes, each at most once.
+     */
+    private void applyDeltas(DataInputStream in) throws IOException {
+      long first = in.readLong();
+      int count = in.readInt();
+      long head = in.readLong();
+      DataInputStream body = body(in);
+      if (first != next) {
+        throw new IOException("Expected change " + next + ", got " + first);
+      }
+
+      for (int i = 0; i < count; i++) {
+        byte operation = body.readByte();
+        InetAddress address = ReplicationProtocol.readAddress(body);
+        switch (operation) {
+        case DeltaLog.OFFER:
+          long expiration = body.readLong();
+          // may repeat a change already in the snapshot
+          if (!cache.contains(address)) {
+            cache.offer(new TimedInetAddress(address, new Date(expiration)));
+          }
+          break;
+        case DeltaLog.RENEW:
+          // offered again with the new date, since a re-offer keeps the old
+          // one; a renewing re-offer is followed by its MOVE_FRONT
+          Date renewedDate = new Date(body.readLong());
+          cache.remove(address);
+          cache.offer(new TimedInetAddress(address, renewedDate));
+          break;
+        case DeltaLog.MOVE_FRONT:
+          if (cache.contains(address)) {
+            cache.offer(address);
+          }
+          break;
+        case DeltaLog.REMOVE:
+        case DeltaLog.TAKE:
+        case DeltaLog.EXPIRE:
+          cache.remove(address);
+          break;
+        default:
+          throw new IOException("Unknown operation " + operation);
+        }
+      }
+
+      next = first + count;
+      primaryHead = head;
+    }
+
+    private DataInputStream body(DataInputStream in) throws IOException {
+      return new DataInputStream(new ByteArrayInputStream(
+          ReplicationProtocol.readBody(in)));
+    }
+  }
+
+  /**
+   * Builder for {@link ReplicationReplica}.
+   */
+  public static class ReplicationReplicaBuilder {
+
+    private final InetSocketAddress primaryAddress;
+    private final TimedAddressCache cache;
+
+    /* Instance variables set to default values. */
+    private long reconnectDelayMillis = 1000;
+
+    /**
+     * @param primaryAddress
+     *          the address of the {@link ReplicationPrimary}
+     * @param cache
+     *          the cache to apply the primary's changes to
+     */
+    public ReplicationReplicaBuilder(InetSocketAddress primaryAddress,
+        TimedAddressCache cache) {
+      if (primaryAddress == null) {
+        throw new IllegalArgumentException("Primary address cannot be null");
+      }
+      if (cache == null) {
+        throw new IllegalArgumentException("Cache cannot be null");
+      }
+
+      this.primaryAddress = primaryAddress;
+      this.cache = cache;
+    }
+
+    /**
+     * Sets how long to wait before reconnecting to the primary after the
+     * connection fails. Defaults to 1 second.
+     *
+     * @param delay
+     *          the delay
+     * @param unit
+     *          the unit for the delay
+     * @return the resulting {@link ReplicationReplicaBuilder}
+     */
+    public ReplicationReplicaBuilder reconnectDelay(long delay, TimeUnit unit) {
+      if (delay < 0) {
+        throw new IllegalArgumentException("Delay cannot be negative");
+      }
+
+      this.reconnectDelayMillis = unit.toMillis(delay);
+      return this;
+    }
+
+    /**
+     * Builds a {@link ReplicationReplica} from the
+     * {@link ReplicationReplicaBuilder}'s values, which starts following the
+     * primary right away.
+     *
+     * @return the resulting {@link ReplicationReplica}
+     */
+    public ReplicationReplica build() {
+      return new ReplicationReplica(this);
+    }
+  }
+}
@@ -0,0 +1,521 @@
+package com.redacted.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.redacted.AddressCache;
+import com.redacted.ExpiringAddressCache;
+import com.redacted.TimedInetAddress;
+import com.redacted.server.Protocol.ProtocolException;
+
+/**
+ * An {@link AddressCache} served by a remote {@link AddressCacheServer}.
+ *
+ * The client is thread-safe and uses one connection. Requests are
+ * pipelined: each is tagged with an id and sent without waiting for earlier
+ * responses, which a reader thread matches back up by id. Requests made while
+ * another thread is writing are appended to a shared buffer, and sent by that
+ * thread with its own, so that concurrent requests go out in batches. The
+ * asynchronous methods (offerAsync() etc.) let a single thread pipeline many
+ * requests; the {@link AddressCache} methods wait for their response.
+ *
+ * Failures are reported as unchecked exceptions: an
+ * {@link UncheckedIOException} if the connection fails, an
+ * {@link IllegalStateException} if the server reports an error (such as a
+ * closed cache) or the client has been closed.
+ */
+public class AddressCacheClient implements ExpiringAddressCache {
+
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final SocketChannel channel;
+  private final Thread readerThread;
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /* Offers back addresses handed out to cancelled takes, off the reader
+   * thread, which must not block on a write. */
+  private final ExecutorService offerBackExecutor = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "address-cache-client-offer-back");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /* Requests awaiting a response, by id. */
+  private final Map<Integer, Request> pending = new ConcurrentHashMap<>();
+
+  /* Guards pendingWrites and writing. */
+  private final Object writeLock = new Object();
+  private ByteBuffer pendingWrites = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+  private ByteBuffer spareWrites = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+  private boolean writing;
+
+  private volatile boolean closed;
+
+  /**
+   * Private constructor for {@link AddressCacheClient} which connects to the
+   * server given to the {@link AddressCacheClientBuilder}.
+   *
+   * @param builder
+   *          the builder at build() time
+   */
+  private AddressCacheClient(AddressCacheClientBuilder builder)
+      throws IOException {
+    channel = SocketChannel.open(builder.serverAddress);
+    channel.socket().setTcpNoDelay(true);
+
+    readerThread = new Thread(new ResponseReader(), "address-cache-client");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  @Override
+  public boolean offer(InetAddress address) {
+    return await(offerAsync(address));
+  }
+
+  /**
+   * Offers the {@link InetAddress} of the given {@link TimedInetAddress} to
+   * expire after the time left until its expiration date, by this host's
+   * clock. The server dates the address by its own clock.
+   *
+   * @param timedAddress
+   *          the {@link TimedInetAddress}
+   * @return {@code true} if the address was added
+   */
+  @Override
+  public boolean offer(TimedInetAddress timedAddress) {
+    return await(offerAsync(timedAddress));
+  }
+
+  @Override
+  public boolean contains(InetAddress address) {
+    return await(containsAsync(address));
+  }
+
+  @Override
+  public boolean remove(InetAddress address) {
+    return await(removeAsync(address));
+  }
+
+  @Override
+  public InetAddress peek() {
+    return await(this.<InetAddress> send(Protocol.PEEK, null, 0));
+  }
+
+  @Override
+  public InetAddress remove() {
+    return await(this.<InetAddress> send(Protocol.REMOVE, null, 0));
+  }
+
+  /**
+   * Waits for the server to hand out an address. If the waiting thread is
+   * interrupted, the take is cancelled on the server; an address the server
+   * handed out regardless is offered back, with the time it had left.
+   */
+  @Override
+  public InetAddress take() throws InterruptedException {
+    CompletableFuture<InetAddress> take = takeAsync();
+    try {
+      return take.get();
+    } catch (InterruptedException e) {
+      cancelTake(take);
+      throw e;
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+
+  @Override
+  public int size() {
+    return await(this.<Integer> send(Protocol.SIZE, null, 0));
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Closes the connection. Requests still awaiting a response fail with an
+   * {@link IllegalStateException}; the server cancels their take() calls.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // already gone
+    }
+    failPending(new IllegalStateException("Client has been closed"));
+    offerBackExecutor.shutdown();
+  }
+
+  /**
+   * Sends an offer() without waiting for its response.
+   *
+   * @param address
+   *          the address
+   * @return the future result of the offer
+   */
+  public CompletableFuture<Boolean> offerAsync(InetAddress address) {
+    return send(Protocol.OFFER, address, 0);
+  }
+
+  /**
+   * Sends an offer() with a time to live without waiting for its response.
+   *
+   * @param timedAddress
+   *          the address and its expiration date
+   * @return the future result of the offer
+   */
+  public CompletableFuture<Boolean> offerAsync(TimedInetAddress timedAddress) {
+    return send(Protocol.OFFER_TTL, timedAddress.getInetAddress(), timedAddress
+        .getExpirationDate().getTime() - System.currentTimeMillis());
+  }
+
+  /**
+   * Sends a contains() without waiting for its response.
+   *
+   * @param address
+   *          the address
+   * @return the future result
+   */
+  public CompletableFuture<Boolean> containsAsync(InetAddress address) {
+    return send(Protocol.CONTAINS, address, 0);
+  }
+
+  /**
+   * Sends a remove(InetAddress) without waiting for its response.
+   *
+   * @param address
+   *          the address
+   * @return the future result
+   */
+  public CompletableFuture<Boolean> removeAsync(InetAddress address) {
+    return send(Protocol.REMOVE_ADDRESS, address, 0);
+  }
+
+  /**
+   * Sends a take() without waiting for an address.
+   *
+   * @return the future address
+   */
+  public CompletableFuture<InetAddress> takeAsync() {
+    return send(Protocol.TAKE, null, 0);
+  }
+
+  /**
+   * Cancels a take() made with {@link #takeAsync()}. If the take has
+   * completed already, or the server hands out an address regardless, the
+   * address is offered back with the time it had left. Cancelling the future
+   * directly has the same effect, except that the server keeps waiting for
+   * an address.
+   *
+   * @param take
+   *          the future returned by takeAsync()
+   */
+  public void cancelTake(CompletableFuture<InetAddress> take) {
+    if (!take.cancel(false)) { // completed, so nobody else has the address
+      if ((Object) take instanceof TakeFuture
+          && !take.isCompletedExceptionally()) {
+        TakeFuture completed = (TakeFuture) (Object) take;
+        offerBack((InetAddress) completed.getNow(null), completed.ttlMillis);
+      }
+      return;
+    }
+
+    for (Map.Entry<Integer, Request> entry : pending.entrySet()) {
+      if ((Object) entry.getValue().future == take) {
+        send(Protocol.CANCEL, null, entry.getKey());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Offers an address handed out to a cancelled take back to the server, on
+   * another thread.
+   *
+   * @param ttlMillis
+   *          the time it had left, or -1 if unknown
+   */
+  private void offerBack(final InetAddress address, final long ttlMillis) {
+    if (address == null) {
+      return;
+    }
+
+    try {
+      offerBackExecutor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          if (ttlMillis < 0) {
+            send(Protocol.OFFER, address, 0);
+          } else {
+            send(Protocol.OFFER_TTL, address, ttlMillis);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // closed, so the address cannot be offered back anyway
+    }
+  }
+
+  /**
+   * Queues a request and, unless another thread is writing already, writes
+   * it with every request queued meanwhile.
+   *
+   * @param argument
+   *          see {@link Protocol#writeRequest}
+   * @return the future response
+   */
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<T> send(byte operation, InetAddress address,
+      long argument) {
+    int id = nextId.incrementAndGet();
+    Request request = new Request(operation, operation == Protocol.TAKE
+        ? new TakeFuture() : new CompletableFuture<Object>());
+    if (operation != Protocol.CANCEL) { // which has no response
+      pending.put(id, request);
+    } else {
+      request.future.complete(null);
+    }
+    if (closed) {
+      failPending(new IllegalStateException("Client has been closed"));
+      return (CompletableFuture<T>) request.future;
+    }
+
+    synchronized (writeLock) {
+      if (pendingWrites.remaining() < Protocol.maximumRequestSize()) {
+        ByteBuffer larger = ByteBuffer.allocate(pendingWrites.capacity() * 2);
+        pendingWrites.flip();
+        pendingWrites = larger.put(pendingWrites);
+      }
+      Protocol.writeRequest(pendingWrites, id, operation, address, argument);
+      if (writing) {
+        return (CompletableFuture<T>) request.future; // the writer sends it
+      }
+      writing = true;
+    }
+
+    try {
+      while (true) {
+        ByteBuffer batch;
+        synchronized (writeLock) {
+          if (pendingWrites.position() == 0) {
+            writing = false;
+            return (CompletableFuture<T>) request.future;
+          }
+          batch = pendingWrites;
+          pendingWrites = spareWrites;
+          spareWrites = batch;
+        }
+
+        batch.flip();
+        while (batch.hasRemaining()) {
+          channel.write(batch);
+        }
+        batch.clear();
+      }
+    } catch (IOException e) {
+      synchronized (writeLock) {
+        writing = false;
+      }
+      fail(new UncheckedIOException(e));
+      return (CompletableFuture<T>) request.future;
+    }
+  }
+
+  private <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while awaiting a response",
+          e);
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+
+  private static RuntimeException unwrap(Throwable cause) {
+    return cause instanceof RuntimeException ? (RuntimeException) cause
+        : new IllegalStateException(cause);
+  }
+
+  /**
+   * Closes the client after a connection failure.
+   */
+  private void fail(RuntimeException cause) {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // already gone
+    }
+    failPending(cause);
+  }
+
+  private void failPending(RuntimeException cause) {
+    List<Integer> ids = new ArrayList<>(pending.keySet());
+    for (Integer id : ids) {
+      Request request = pending.remove(id);
+      if (request != null) {
+        request.future.completeExceptionally(cause);
+      }
+    }
+  }
+
+  /**
+   * A request awaiting its response.
+   */
+  private static final class Request {
+
+    private final byte operation;
+    private final CompletableFuture<Object> future;
+
+    private Request(byte operation, CompletableFuture<Object> future) {
+      this.operation = operation;
+      this.future = future;
+    }
+  }
+
+  /**
+   * The future of a take, which also holds the time to live of the address
+   * once it completes.
+   */
+  private static final class TakeFuture extends CompletableFuture<Object> {
+
+    /* Set before the future completes; -1 if unknown. */
+    private volatile long ttlMillis = -1;
+  }
+
+  /**
+   * The reader thread, completing requests as their responses arrive.
+   */
+  private final class ResponseReader implements Runnable {
+
+    @Override
+    public void run() {
+      ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      try {
+        while (channel.read(in) >= 0) {
+          in.flip();
+          while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < Protocol.HEADER_SIZE - 4
+                || length > Protocol.MAXIMUM_FRAME_LENGTH) {
+              throw new ProtocolException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+              break;
+            }
+
+            int end = in.position() + 4 + length;
+            in.getInt();
+            complete(in);
+            in.position(end);
+          }
+          in.compact();
+        }
+        fail(new UncheckedIOException(new IOException(
+            "Connection closed by the server")));
+      } catch (IOException e) {
+        fail(new UncheckedIOException(e));
+      } catch (ProtocolException e) {
+        fail(new IllegalStateException(e));
+      }
+    }
+
+    private void complete(ByteBuffer in) throws ProtocolException {
+      int id = in.getInt();
+      byte status = in.get();
+      Request request = pending.remove(id);
+      if (request == null) {
+        throw new ProtocolException("Unknown request id " + id);
+      }
+
+      if (status == Protocol.ERROR) {
+        request.future.completeExceptionally(new IllegalStateException(
+            Protocol.readError(in)));
+        return;
+      }
+
+      Object result;
+      switch (request.operation) {
+      case Protocol.TAKE:
+        result = Protocol.readAddress(in);
+        ((TakeFuture) request.future).ttlMillis = in.getLong();
+        break;
+      case Protocol.PEEK:
+      case Protocol.REMOVE:
+        result = Protocol.readAddress(in);
+        break;
+      case Protocol.SIZE:
+        result = in.getInt();
+        break;
+      default:
+        result = in.get() != 0;
+      }
+
+      if (!request.future.complete(result) && request.future.isCancelled()
+          && request.operation == Protocol.TAKE) { // nobody is waiting for it
+        offerBack((InetAddress) result,
+            ((TakeFuture) request.future).ttlMillis);
+      }
+    }
+  }
+
+  /**
+   * Builder for {@link AddressCacheClient}.
+   */
+  public static class AddressCacheClientBuilder {
+
+    private final InetSocketAddress serverAddress;
+
+    /**
+     * @param serverAddress
+     *          the address of the {@link AddressCacheServer}
+     */
+    public AddressCacheClientBuilder(InetSocketAddress serverAddress) {
+      if (serverAddress == null) {
+        throw new IllegalArgumentException("Server address cannot be null");
+      }
+
+      this.serverAddress = serverAddress;
+    }
+
+    /**
+     * Connects an {@link AddressCacheClient} to the server.
+     *
+     * @return the resulting {@link AddressCacheClient}
+     * @throws IOException
+     *           if the connection fails
+     */
+    public AddressCacheClient build() throws IOException {
+      return new AddressCacheClient(this);
+    }
+  }
+}
@@ -0,0 +1,637 @@
+package com.redacted.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.redacted.AddressCache;
+import com.redacted.CacheClock;
+import com.redacted.ExpiringAddressCache;
+import com.redacted.TimedAddressCache;
+import com.redacted.TimedInetAddress;
+import com.redacted.server.Protocol.ProtocolException;
+
+/**
+ * Serves an {@link AddressCache} to {@link AddressCacheClient}s over the
+ * binary {@link Protocol}, so that services on several hosts can share one
+ * cache.
+ *
+ * One selector thread does all network I/O on non-blocking channels. It
+ * handles every complete request frame that one read delivers, and writes
+ * all their responses back with one write, so requests pipelined by a client
+ * are processed in batches. Only take() may block; it runs on a separate
+ * thread pool of a bounded size, beyond which takes queue for a thread, and
+ * its response is handed back to the selector thread when an address is
+ * available. A client that stops reading responses stops
+ * being read from once {@value #OUTPUT_HIGH_WATER} bytes of responses are
+ * queued for it.
+ *
+ * Offers with a time to live require an {@link ExpiringAddressCache}; the
+ * expiration date is computed from the server's {@link CacheClock}, so that
+ * clients need not agree on the time.
+ */
+public class AddressCacheServer implements Closeable {
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /* Queued response bytes above which a connection is no longer read. */
+  private static final int OUTPUT_HIGH_WATER = 1024 * 1024;
+
+  private final AddressCache cache;
+  private final CacheClock clock;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final Thread selectorThread;
+  private final ThreadPoolExecutor takeExecutor;
+
+  /* Connections with take() responses for the selector thread to send. */
+  private final Queue<Connection> completedTakes = new ConcurrentLinkedQueue<>();
+
+  private volatile boolean closed;
+
+  /**
+   * Private constructor for {@link AddressCacheServer} which binds the
+   * server socket and starts the selector thread.
+   *
+   * @param builder
+   *          the builder at build() time
+   */
+  private AddressCacheServer(AddressCacheServerBuilder builder)
+      throws IOException {
+    cache = builder.cache;
+    clock = builder.clock;
+    takeExecutor = new ThreadPoolExecutor(builder.takeThreads,
+        builder.takeThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    takeExecutor.allowCoreThreadTimeOut(true);
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.bind(builder.bindAddress, builder.backlog);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      serverChannel.close();
+      selector.close();
+      throw e;
+    }
+
+    selectorThread = new Thread(new SelectorLoop(), "address-cache-server");
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  /**
+   * Returns the address the server listens on, e.g. to find the port it was
+   * given when bound to port 0.
+   *
+   * @return the local address
+   */
+  public InetSocketAddress getLocalAddress() {
+    try {
+      return (InetSocketAddress) serverChannel.getLocalAddress();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Stops accepting connections, closes the open ones and interrupts pending
+   * take() calls. The cache itself is left open.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    takeExecutor.shutdownNow();
+  }
+
+  /**
+   * The selector thread.
+   */
+  private final class SelectorLoop implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          selector.select();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              try {
+                if (key.isReadable()) {
+                  connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                  connection.flush();
+                }
+              } catch (IOException | ProtocolException e) {
+                connection.close();
+              }
+            }
+          }
+
+          Connection connection;
+          while ((connection = completedTakes.poll()) != null) {
+            try {
+              connection.sendCompletedTakes();
+            } catch (IOException | ProtocolException e) {
+              connection.close();
+            }
+          }
+        }
+      } catch (IOException e) {
+        System.err
+            .println("Error in address cache server. It will no longer accept requests.");
+        e.printStackTrace();
+
+        throw new UncheckedIOException(e);
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).close();
+          }
+        }
+        try {
+          serverChannel.close();
+          selector.close();
+        } catch (IOException e) {
+          // nothing left to release
+        }
+      }
+    }
+
+    private void accept() throws IOException {
+      SocketChannel channel = serverChannel.accept();
+      if (channel == null) {
+        return;
+      }
+
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      Connection connection = new Connection(channel);
+      connection.key = channel.register(selector, SelectionKey.OP_READ,
+          connection);
+    }
+  }
+
+  /**
+   * One client connection. Everything but the take() bookkeeping is only
+   * touched by the selector thread.
+   */
+  private final class Connection {
+
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /* Pending take() calls by request id, guarded by the connection. */
+    private final Map<Integer, Future<?>> takes = new HashMap<>();
+    private final Queue<ByteBuffer> takeResponses = new ConcurrentLinkedQueue<>();
+    private boolean connectionClosed;
+
+    private Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Reads what is available, then handles every complete frame and sends
+     * the responses.
+     */
+    private void read() throws IOException, ProtocolException {
+      if (channel.read(in) < 0) {
+        close();
+        return;
+      }
+
+      flush();
+    }
+
+    /**
+     * Handles the complete frames in the read buffer, unless too many
+     * responses are queued already.
+     */
+    private void handleFrames() throws ProtocolException {
+      in.flip();
+      try {
+        while (in.remaining() >= 4 && out.position() < OUTPUT_HIGH_WATER) {
+          int length = in.getInt(in.position());
+          if (length < Protocol.HEADER_SIZE - 4
+              || length > Protocol.MAXIMUM_FRAME_LENGTH) {
+            throw new ProtocolException("Bad frame length " + length);
+          }
+          if (in.remaining() < 4 + length) {
+            break;
+          }
+
+          int end = in.position() + 4 + length;
+          in.getInt();
+          ByteBuffer frame = in.slice();
+          frame.limit(length);
+          in.position(end);
+          handle(frame);
+        }
+      } finally {
+        in.compact();
+      }
+    }
+
+    private void handle(ByteBuffer frame) throws ProtocolException {
+      final int id = frame.getInt();
+      byte operation = frame.get();
+      int start = out.position();
+      try {
+        switch (operation) {
+        case Protocol.OFFER:
+          writeBoolean(id, cache.offer(address(frame)));
+          break;
+        case Protocol.OFFER_TTL:
+          InetAddress address = address(frame);
+          long ttlMillis = frame.getLong();
+          if (!(cache instanceof ExpiringAddressCache)) {
+            writeError(id, "Cache does not support expiration dates");
+            break;
+          }
+          writeBoolean(id, ((ExpiringAddressCache) cache)
+              .offer(new TimedInetAddress(address, new Date(clock
+                  .currentTimeMillis() + ttlMillis))));
+          break;
+        case Protocol.CONTAINS:
+          writeBoolean(id, cache.contains(address(frame)));
+          break;
+        case Protocol.REMOVE_ADDRESS:
+          writeBoolean(id, cache.remove(address(frame)));
+          break;
+        case Protocol.PEEK:
+          writeAddress(id, cache.peek());
+          break;
+        case Protocol.REMOVE:
+          writeAddress(id, cache.remove());
+          break;
+        case Protocol.TAKE:
+          submitTake(id);
+          break;
+        case Protocol.SIZE:
+          int size = cache.size();
+          reserve(4).putInt(size);
+          finish(id);
+          break;
+        case Protocol.CANCEL:
+          cancelTake(frame.getInt());
+          break;
+        default:
+          throw new ProtocolException("Unknown operation " + operation);
+        }
+      } catch (BufferUnderflowException e) {
+        throw new ProtocolException("Truncated frame");
+      } catch (RuntimeException e) { // e.g. the cache was closed
+        out.position(start); // drop a partly written response
+        writeError(id, e.toString());
+      }
+    }
+
+    private InetAddress address(ByteBuffer frame) throws ProtocolException {
+      InetAddress address = Protocol.readAddress(frame);
+      if (address == null) {
+        throw new ProtocolException("Address required");
+      }
+      return address;
+    }
+
+    private void submitTake(final int id) {
+      synchronized (this) {
+        if (connectionClosed) {
+          return;
+        }
+        takes.put(id, takeExecutor.submit(new Runnable() {
+
+          @Override
+          public void run() {
+            ByteBuffer response = ByteBuffer.allocate(Protocol.HEADER_SIZE + 17
+                + 8);
+            TimedInetAddress timedAddress = null;
+            try {
+              long ttlMillis = -1; // unknown
+              if (cache instanceof TimedAddressCache) {
+                timedAddress = ((TimedAddressCache) cache).takeTimed();
+                ttlMillis = Math.max(0, timedAddress.getExpirationDate()
+                    .getTime() - clock.currentTimeMillis());
+              } else {
+                timedAddress = new TimedInetAddress(cache.take());
+              }
+              response.putInt(0).putInt(id).put(Protocol.OK);
+              Protocol.writeAddress(response, timedAddress.getInetAddress()
+                  .getAddress());
+              response.putLong(ttlMillis);
+            } catch (InterruptedException e) { // cancelled or disconnected
+              response.putInt(0).putInt(id).put(Protocol.ERROR);
+              Protocol.writeError(response, "Cancelled");
+            } catch (RuntimeException e) {
+              response = ByteBuffer.allocate(Protocol.MAXIMUM_FRAME_LENGTH);
+              response.putInt(0).putInt(id).put(Protocol.ERROR);
+              Protocol.writeError(response, e.toString());
+            }
+            response.putInt(0, response.position() - 4);
+            response.flip();
+
+            synchronized (Connection.this) {
+              takes.remove(id);
+              if (connectionClosed) {
+                if (timedAddress != null) { // nobody is left to receive it
+                  offerBack(timedAddress);
+                }
+                return;
+              }
+              takeResponses.add(response);
+            }
+            completedTakes.add(Connection.this);
+            selector.wakeup();
+          }
+        }));
+      }
+    }
+
+    /**
+     * Offers a taken address back to the cache, with the time it had left if
+     * it is known.
+     */
+    private void offerBack(TimedInetAddress timedAddress) {
+      if (cache instanceof TimedAddressCache) {
+        ((TimedAddressCache) cache).offer(timedAddress);
+      } else {
+        cache.offer(timedAddress.getInetAddress());
+      }
+    }
+
+    private synchronized void cancelTake(int id) {
+      Future<?> take = takes.get(id);
+      if (take != null) {
+        take.cancel(true);
+      }
+    }
+
+    private void sendCompletedTakes() throws IOException, ProtocolException {
+      ByteBuffer response;
+      while ((response = takeResponses.poll()) != null) {
+        out = ensure(out, response.remaining());
+        out.put(response);
+      }
+      flush();
+    }
+
+    private void writeBoolean(int id, boolean value) {
+      reserve(1).put(value ? (byte) 1 : (byte) 0);
+      finish(id);
+    }
+
+    private void writeAddress(int id, InetAddress address) {
+      Protocol.writeAddress(reserve(17), address == null ? null : address
+          .getAddress());
+      finish(id);
+    }
+
+    private void writeError(int id, String message) {
+      out = ensure(out, Protocol.MAXIMUM_FRAME_LENGTH);
+      int start = out.position();
+      out.putInt(0).putInt(id).put(Protocol.ERROR);
+      Protocol.writeError(out, message);
+      out.putInt(start, out.position() - start - 4);
+    }
+
+    /* Start of the response being written, for finish(). */
+    private int responseStart;
+
+    /**
+     * Starts an OK response, leaving room for its header and the given
+     * payload, and returns the buffer to write the payload to.
+     */
+    private ByteBuffer reserve(int payload) {
+      out = ensure(out, Protocol.HEADER_SIZE + payload);
+      responseStart = out.position();
+      out.position(responseStart + Protocol.HEADER_SIZE);
+      return out;
+    }
+
+    /**
+     * Fills in the header of the response started by reserve().
+     */
+    private void finish(int id) {
+      out.putInt(responseStart, out.position() - responseStart - 4);
+      out.putInt(responseStart + 4, id);
+      out.put(responseStart + 8, Protocol.OK);
+    }
+
+    /**
+     * Writes as much of the queued responses as the socket takes, handling
+     * the frames read so far while fewer than {@value #OUTPUT_HIGH_WATER}
+     * bytes are queued. Listens for writability until the rest is written,
+     * and for readability while below the high-water mark.
+     */
+    private void flush() throws IOException, ProtocolException {
+      if (connectionClosed) {
+        return;
+      }
+
+      while (true) {
+        out.flip();
+        try {
+          channel.write(out);
+        } finally {
+          out.compact();
+        }
+
+        int queued = out.position();
+        if (queued >= OUTPUT_HIGH_WATER || in.position() == 0) {
+          break;
+        }
+        handleFrames();
+        if (out.position() == queued) { // only a partial frame is left
+          break;
+        }
+      }
+
+      int interest = out.position() < OUTPUT_HIGH_WATER ? SelectionKey.OP_READ
+          : 0;
+      if (out.position() > 0) {
+        interest |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(interest);
+    }
+
+    private void close() {
+      ArrayList<Future<?>> pending;
+      synchronized (this) {
+        if (connectionClosed) {
+          return;
+        }
+        connectionClosed = true;
+        pending = new ArrayList<>(takes.values());
+      }
+
+      for (Future<?> take : pending) {
+        take.cancel(true);
+      }
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+  }
+
+  private static ByteBuffer ensure(ByteBuffer buffer, int needed) {
+    if (buffer.remaining() >= needed) {
+      return buffer;
+    }
+
+    ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+        buffer.position() + needed));
+    buffer.flip();
+    return larger.put(buffer);
+  }
+
+  /**
+   * Builder for {@link AddressCacheServer}.
+   */
+  public static class AddressCacheServerBuilder {
+
+    /* Instance variables set to default values. */
+    private final AddressCache cache;
+    private InetSocketAddress bindAddress = new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), 0);
+    private int backlog = 128;
+    private int takeThreads = 64;
+    private CacheClock clock = CacheClock.SYSTEM;
+
+    /**
+     * @param cache
+     *          the cache to serve
+     */
+    public AddressCacheServerBuilder(AddressCache cache) {
+      if (cache == null) {
+        throw new IllegalArgumentException("Cache cannot be null");
+      }
+
+      this.cache = cache;
+    }
+
+    /**
+     * Sets the address to listen on. Defaults to an ephemeral port on the
+     * loopback interface.
+     *
+     * @param bindAddress
+     *          the address
+     * @return the resulting {@link AddressCacheServerBuilder}
+     */
+    public AddressCacheServerBuilder bind(InetSocketAddress bindAddress) {
+      if (bindAddress == null) {
+        throw new IllegalArgumentException("Bind address cannot be null");
+      }
+
+      this.bindAddress = bindAddress;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of pending connections. Defaults to 128.
+     *
+     * @param backlog
+     *          the backlog
+     * @return the resulting {@link AddressCacheServerBuilder}
+     */
+    public AddressCacheServerBuilder backlog(int backlog) {
+      if (backlog < 1) {
+        throw new IllegalArgumentException("Backlog must be positive");
+      }
+
+      this.backlog = backlog;
+      return this;
+    }
+
+    /**
+     * Sets the most threads that wait in take() for clients at once. Further
+     * takes queue until a thread is free. Defaults to 64.
+     *
+     * @param takeThreads
+     *          the number of threads
+     * @return the resulting {@link AddressCacheServerBuilder}
+     */
+    public AddressCacheServerBuilder takeThreads(int takeThreads) {
+      if (takeThreads < 1) {
+        throw new IllegalArgumentException("Take threads must be positive");
+      }
+
+      this.takeThreads = takeThreads;
+      return this;
+    }
+
+    /**
+     * Sets the {@link CacheClock} that offers with a time to live are dated
+     * by. Should be the clock of the cache. Defaults to
+     * {@link CacheClock#SYSTEM}.
+     *
+     * @param clock
+     *          the clock
+     * @return the resulting {@link AddressCacheServerBuilder}
+     */
+    public AddressCacheServerBuilder clock(CacheClock clock) {
+      if (clock == null) {
+        throw new IllegalArgumentException("Clock cannot be null");
+      }
+
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Binds and starts an {@link AddressCacheServer} from the
+     * {@link AddressCacheServerBuilder}'s values.
+     *
+     * @return the resulting {@link AddressCacheServer}
+     * @throws IOException
+     *           if the server socket cannot be bound
+     */
+    public AddressCacheServer build() throws IOException {
+      return new AddressCacheServer(this);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.redacted.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol between {@link AddressCacheClient} and
+ * {@link AddressCacheServer}. Every message is a frame:
+ *
+ * <pre>
+ * int    length of the rest of the frame
+ * int    request id, chosen by the client and echoed in the response
+ * byte   operation (request) or status (response)
+ * ...    payload
+ * </pre>
+ *
+ * An address is encoded as its length (0 for none, 4 or 16) followed by its
+ * bytes; a boolean as one byte; a time to live as a long in milliseconds; an
+ * error as a short length and that many bytes of UTF-8. Integers are
+ * big-endian. A take is answered with the address's time to live as well, if
+ * the server's cache can tell, so that a client can offer it back intact.
+ * A client may send any number of requests before reading
+ * responses, and responses to blocking requests (take) may arrive after
+ * responses to later ones, hence the ids.
+ */
+final class Protocol {
+
+  /* Operations. */
+  static final byte OFFER = 1; // address -> boolean
+  static final byte OFFER_TTL = 2; // address, ttl -> boolean
+  static final byte CONTAINS = 3; // address -> boolean
+  static final byte REMOVE_ADDRESS = 4; // address -> boolean
+  static final byte PEEK = 5; // -> address
+  static final byte REMOVE = 6; // -> address
+  static final byte TAKE = 7; // -> address, ttl or -1, once one is available
+  static final byte SIZE = 8; // -> int
+  static final byte CANCEL = 9; // id of a take -> nothing
+
+  /* Response statuses. */
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+
+  /* Length, id and operation or status. */
+  static final int HEADER_SIZE = 4 + 4 + 1;
+
+  /* Longest frame either side accepts, excluding the length. */
+  static final int MAXIMUM_FRAME_LENGTH = 1024;
+
+  private Protocol() {
+  }
+
+  /**
+   * Writes a request frame for the given operation.
+   *
+   * @param address
+   *          the address, or {@code null} if the operation has none
+   * @param argument
+   *          the time to live for {@link #OFFER_TTL}, the id of the take for
+   *          {@link #CANCEL}; ignored otherwise
+   */
+  static void writeRequest(ByteBuffer out, int id, byte operation,
+      InetAddress address, long argument) {
+    int start = out.position();
+    out.putInt(0).putInt(id).put(operation);
+    if (address != null) {
+      writeAddress(out, address.getAddress());
+    }
+    if (operation == OFFER_TTL) {
+      out.putLong(argument);
+    } else if (operation == CANCEL) {
+      out.putInt((int) argument);
+    }
+    out.putInt(start, out.position() - start - 4);
+  }
+
+  /**
+   * Returns the byte size of the largest request frame.
+   */
+  static int maximumRequestSize() {
+    return HEADER_SIZE + 1 + 16 + 8;
+  }
+
+  static void writeAddress(ByteBuffer out, byte[] address) {
+    if (address == null) {
+      out.put((byte) 0);
+    } else {
+      out.put((byte) address.length).put(address);
+    }
+  }
+
+  /**
+   * Reads an address.
+   *
+   * @return the address, or {@code null} if none was encoded
+   * @throws ProtocolException
+   *           if the encoding is invalid
+   */
+  static InetAddress readAddress(ByteBuffer in) throws ProtocolException {
+    int length = in.get();
+    if (length == 0) {
+      return null;
+    }
+    if ((length != 4 && length != 16) || in.remaining() < length) {
+      throw new ProtocolException("Bad address length " + length);
+    }
+
+    byte[] address = new byte[length];
+    in.get(address);
+    try {
+      return InetAddress.getByAddress(address);
+    } catch (UnknownHostException e) { // only thrown for bad lengths
+      throw new ProtocolException(e.getMessage());
+    }
+  }
+
+  static void writeError(ByteBuffer out, String message) {
+    byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, MAXIMUM_FRAME_LENGTH - 16);
+    out.putShort((short) length).put(bytes, 0, length);
+  }
+
+  static String readError(ByteBuffer in) {
+    byte[] bytes = new byte[in.getShort()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A malformed frame. The connection it arrived on is closed, since the
+   * stream can no longer be trusted.
+   */
+  static final class ProtocolException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    ProtocolException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.redacted.simulator;
+
+import com.redacted.AddressCache;
+import com.redacted.CacheClock;
+
+/**
+ * Creates the {@link AddressCache} under test for a replay. A fresh cache is
+ * created for each replay so that configurations can be compared from the
+ * same starting point.
+ */
+public interface AddressCacheFactory {
+
+  /**
+   * Creates a new, empty {@link AddressCache}.
+   * 
+   * @param clock
+   *          the virtual clock of the replay, which caches that support a
+   *          {@link CacheClock} should use to stamp and expire addresses
+   * @return the cache
+   */
+  public AddressCache create(CacheClock clock);
+}
@@ -0,0 +1,106 @@
+package com.redacted.simulator;
+
+/**
+ * A fixed-size, log-linear histogram of latencies in nanoseconds. Each
+ * power-of-two range is split into {@value #SUB_BUCKETS} linear sub-buckets,
+ * so recorded values are reported with a relative error of at most 1/
+ * {@value #SUB_BUCKETS} while the histogram itself stays a few kilobytes no
+ * matter how many values it holds. Not thread-safe; each replay thread
+ * records into its own instance and the results are merged afterwards.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1)
+      * SUB_BUCKETS];
+  private long totalCount;
+  private long maxNanos;
+
+  /**
+   * Records a latency.
+   * 
+   * @param nanos
+   *          the latency, in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    counts[indexOf(nanos)]++;
+    totalCount++;
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  /**
+   * Adds every value recorded in the given histogram to this one.
+   * 
+   * @param other
+   *          the histogram to merge in
+   */
+  public void merge(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    maxNanos = Math.max(maxNanos, other.maxNanos);
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * Returns the latency at the given percentile, as the upper bound of the
+   * bucket it falls in.
+   * 
+   * @param percentile
+   *          the percentile, between 0 and 100
+   * @return the latency in nanoseconds, or 0 if nothing was recorded
+   */
+  public long valueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(percentile / 100 * totalCount);
+    rank = Math.max(1, Math.min(rank, totalCount));
+
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    // values in [2^k, 2^(k+1)) share a range, split by their next few bits
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
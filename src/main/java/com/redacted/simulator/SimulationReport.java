@@ -0,0 +1,162 @@
+package com.redacted.simulator;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.redacted.simulator.TraceEvent.Operation;
+
+/**
+ * The outcome of replaying a trace against an
+ * {@link com.redacted.AddressCache}: per-operation counts and latency
+ * percentiles, the hit ratio of contains(), how many addresses were evicted
+ * (expired or dropped by the cache rather than removed by the trace) and the
+ * heap retained by the cache at the end of the replay.
+ */
+public final class SimulationReport {
+
+  private final String name;
+  private final Map<Operation, LatencyHistogram> latencies;
+  private final Map<Operation, Long> successes;
+  private final Map<Operation, Long> errors;
+  private final long offersAccepted;
+  private final long removed;
+  private final long unsatisfiedTakes;
+  private final int finalSize;
+  private final long retainedHeapBytes;
+  private final long elapsedRealMillis;
+  private final long elapsedVirtualMillis;
+
+  SimulationReport(String name, Map<Operation, LatencyHistogram> latencies,
+      Map<Operation, Long> successes, Map<Operation, Long> errors,
+      long offersAccepted, long removed,
+      long unsatisfiedTakes, int finalSize, long retainedHeapBytes,
+      long elapsedRealMillis, long elapsedVirtualMillis) {
+    this.name = name;
+    this.latencies = Collections.unmodifiableMap(new EnumMap<>(latencies));
+    this.successes = Collections.unmodifiableMap(new EnumMap<>(successes));
+    this.errors = Collections.unmodifiableMap(new EnumMap<>(errors));
+    this.offersAccepted = offersAccepted;
+    this.removed = removed;
+    this.unsatisfiedTakes = unsatisfiedTakes;
+    this.finalSize = finalSize;
+    this.retainedHeapBytes = retainedHeapBytes;
+    this.elapsedRealMillis = elapsedRealMillis;
+    this.elapsedVirtualMillis = elapsedVirtualMillis;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the number of times the given operation was replayed.
+   */
+  public long getCount(Operation operation) {
+    return latencies.get(operation).getTotalCount();
+  }
+
+  /**
+   * Gets the number of times the given operation succeeded: an offer that
+   * added a new address, a contains() hit, a remove(InetAddress) that found
+   * its address, or a peek(), remove() or take() that returned an address.
+   */
+  public long getSuccessCount(Operation operation) {
+    return successes.get(operation);
+  }
+
+  /**
+   * Gets the number of times the given operation threw an exception.
+   */
+  public long getErrorCount(Operation operation) {
+    return errors.get(operation);
+  }
+
+  /**
+   * Gets the latency of the given operation at the given percentile.
+   * 
+   * @return the latency, in nanoseconds
+   */
+  public long getLatencyNanos(Operation operation, double percentile) {
+    return latencies.get(operation).valueAtPercentile(percentile);
+  }
+
+  /**
+   * Gets the fraction of contains() calls that found their address.
+   * 
+   * @return the hit ratio, or {@code NaN} if contains() was never replayed
+   */
+  public double getHitRatio() {
+    long lookups = getCount(Operation.CONTAINS);
+    return lookups == 0 ? Double.NaN : (double) getSuccessCount(Operation.CONTAINS)
+        / lookups;
+  }
+
+  /**
+   * Gets the number of addresses that left the cache without being removed
+   * by the trace, i.e. that expired or were dropped by the cache.
+   */
+  public long getEvictionCount() {
+    return Math.max(0, offersAccepted - removed - finalSize);
+  }
+
+  /**
+   * Gets the number of take() calls still waiting when the rest of the trace
+   * had finished, which were interrupted to end the replay.
+   */
+  public long getUnsatisfiedTakes() {
+    return unsatisfiedTakes;
+  }
+
+  public int getFinalSize() {
+    return finalSize;
+  }
+
+  /**
+   * Gets the growth in used heap over the replay, measured after garbage
+   * collection with the cache still reachable. This is an estimate.
+   */
+  public long getRetainedHeapBytes() {
+    return retainedHeapBytes;
+  }
+
+  public long getElapsedRealMillis() {
+    return elapsedRealMillis;
+  }
+
+  public long getElapsedVirtualMillis() {
+    return elapsedVirtualMillis;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("== %s ==%n", name));
+    sb.append(String.format(
+        "replayed %d ms of trace in %d ms; hit ratio %.4f; evictions %d; "
+            + "final size %d; retained heap ~%d KiB; unsatisfied takes %d%n",
+        elapsedVirtualMillis, elapsedRealMillis, getHitRatio(),
+        getEvictionCount(), finalSize, retainedHeapBytes / 1024,
+        unsatisfiedTakes));
+    sb.append(String.format("%-9s %10s %10s %8s %9s %9s %9s %9s %9s%n",
+        "op", "count", "success", "errors", "p50 us", "p90 us", "p99 us", "p99.9 us",
+        "max us"));
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = latencies.get(operation);
+      sb.append(String.format(
+          "%-9s %10d %10d %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n", operation
+              .name().toLowerCase(), histogram.getTotalCount(),
+          successes.get(operation), errors.get(operation), micros(histogram.valueAtPercentile(50)),
+          micros(histogram.valueAtPercentile(90)),
+          micros(histogram.valueAtPercentile(99)),
+          micros(histogram.valueAtPercentile(99.9)),
+          micros(histogram.getMaxNanos())));
+    }
+    return sb.toString();
+  }
+
+  private static double micros(long nanos) {
+    return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,193 @@
+package com.redacted.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.redacted.AddressCache;
+import com.redacted.CacheClock;
+import com.redacted.ReadOptimizedAddressCache.ReadOptimizedAddressCacheBuilder;
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+
+/**
+ * Command-line entry point replaying a trace file against a
+ * {@link com.redacted.TimedAddressCache} ({@code --engine timed}, the
+ * default) or a {@link com.redacted.ReadOptimizedAddressCache} ({@code
+ * --engine read-optimized}). Every option except the trace may
+ * be given a comma-separated list of values; the trace is then replayed once
+ * per combination so that configurations can be compared side by side:
+ * 
+ * <pre>
+ * java com.redacted.simulator.Simulator --trace traffic.trace \
+ *     --engine timed,read-optimized --threads 4 --speedup 100 \
+ *     --capacity 10000,100000 \
+ *     --cleanup-rate 1000,5000 --ttl 300000
+ * </pre>
+ * 
+ * Note that the cleanup rate is in virtual milliseconds: it is divided by the
+ * speedup before being handed to the cache, whose background tasks run in
+ * real time.
+ */
+public final class Simulator {
+
+  private Simulator() {
+  }
+
+  public static void main(String[] args) throws IOException,
+      InterruptedException {
+    String trace = null;
+    String engine = "timed";
+    String threads = "1";
+    String speedup = "Infinity";
+    String capacity = String.valueOf(Integer.MAX_VALUE);
+    String cleanupRate = "5000";
+    String ttl = "300000";
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+      case "--trace":
+        trace = args[i + 1];
+        break;
+      case "--engine":
+        engine = args[i + 1];
+        break;
+      case "--threads":
+        threads = args[i + 1];
+        break;
+      case "--speedup":
+        speedup = args[i + 1];
+        break;
+      case "--capacity":
+        capacity = args[i + 1];
+        break;
+      case "--cleanup-rate":
+        cleanupRate = args[i + 1];
+        break;
+      case "--ttl":
+        ttl = args[i + 1];
+        break;
+      default:
+        usage("unknown option " + args[i]);
+      }
+    }
+    if (trace == null || args.length % 2 != 0) {
+      usage("a trace is required");
+    }
+
+    List<TraceEvent> events = TraceReader.readAll(new File(trace));
+    for (String threadCount : threads.split(",")) {
+      for (String speed : speedup.split(",")) {
+        TraceReplayer replayer = new TraceReplayer.TraceReplayerBuilder()
+            .threads(Integer.parseInt(threadCount))
+            .speedup(Double.parseDouble(speed)).build();
+        for (String engineName : engine.split(",")) {
+          for (String maximumCapacity : capacity.split(",")) {
+            for (String rate : cleanupRate.split(",")) {
+              for (String timeout : ttl.split(",")) {
+                String name = String.format(
+                    "engine=%s threads=%s speedup=%s capacity=%s "
+                        + "cleanup-rate=%s ttl=%s", engineName, threadCount,
+                    speed, maximumCapacity, rate, timeout);
+                System.out.println(replayer.replay(name, events,
+                    factory(engineName, Integer.parseInt(maximumCapacity),
+                        Long.parseLong(rate), Long.parseLong(timeout),
+                        Double.parseDouble(speed))));
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static AddressCacheFactory factory(String engine,
+      int maximumCapacity, long cleanupRateMillis, long ttlMillis,
+      double speedup) {
+    switch (engine) {
+    case "timed":
+      return timedAddressCacheFactory(maximumCapacity, cleanupRateMillis,
+          ttlMillis, speedup);
+    case "read-optimized":
+      return readOptimizedAddressCacheFactory(maximumCapacity,
+          cleanupRateMillis, ttlMillis, speedup);
+    default:
+      usage("unknown engine " + engine);
+      return null;
+    }
+  }
+
+  /**
+   * Creates a factory for {@link com.redacted.TimedAddressCache}s with the
+   * given configuration.
+   * 
+   * @param maximumCapacity
+   *          the capacity of the cache
+   * @param cleanupRateMillis
+   *          the cleanup rate, in virtual milliseconds
+   * @param ttlMillis
+   *          the default address timeout, in virtual milliseconds
+   * @param speedup
+   *          the speedup of the replay
+   * @return the factory
+   */
+  public static AddressCacheFactory timedAddressCacheFactory(
+      final int maximumCapacity, final long cleanupRateMillis,
+      final long ttlMillis, final double speedup) {
+    return new AddressCacheFactory() {
+
+      @Override
+      public AddressCache create(CacheClock clock) {
+        return new TimedAddressCacheBuilder().clock(clock)
+            .maximumCapacity(maximumCapacity)
+            .addressTimeout(ttlMillis, TimeUnit.MILLISECONDS)
+            .cleanupRate(realRateMillis(cleanupRateMillis, speedup),
+                TimeUnit.MILLISECONDS).build();
+      }
+    };
+  }
+
+  /**
+   * Creates a factory for {@link com.redacted.ReadOptimizedAddressCache}s
+   * with the given configuration.
+   * 
+   * @param maximumCapacity
+   *          the capacity of the cache
+   * @param cleanupRateMillis
+   *          the cleanup rate, in virtual milliseconds
+   * @param ttlMillis
+   *          the default address timeout, in virtual milliseconds
+   * @param speedup
+   *          the speedup of the replay
+   * @return the factory
+   */
+  public static AddressCacheFactory readOptimizedAddressCacheFactory(
+      final int maximumCapacity, final long cleanupRateMillis,
+      final long ttlMillis, final double speedup) {
+    return new AddressCacheFactory() {
+
+      @Override
+      public AddressCache create(CacheClock clock) {
+        return new ReadOptimizedAddressCacheBuilder().clock(clock)
+            .maximumCapacity(maximumCapacity)
+            .addressTimeout(ttlMillis, TimeUnit.MILLISECONDS)
+            .cleanupRate(realRateMillis(cleanupRateMillis, speedup),
+                TimeUnit.MILLISECONDS).build();
+      }
+    };
+  }
+
+  private static long realRateMillis(long cleanupRateMillis, double speedup) {
+    return Double.isInfinite(speedup) ? 1 : Math.max(1,
+        (long) (cleanupRateMillis / speedup));
+  }
+
+  private static void usage(String problem) {
+    System.err.println(problem);
+    System.err.println("usage: Simulator --trace <file> "
+        + "[--engine timed|read-optimized,...] [--threads n,...] "
+        + "[--speedup x,...] [--capacity n,...] [--cleanup-rate ms,...] "
+        + "[--ttl ms,...]");
+    System.exit(2);
+  }
+}
@@ -0,0 +1,97 @@
+package com.redacted.simulator;
+
+import java.net.InetAddress;
+
+/**
+ * A single recorded cache operation: the time at which it was issued, the
+ * operation itself and, depending on the operation, the {@link InetAddress}
+ * it targets and the time-to-live it was offered with.
+ */
+public final class TraceEvent {
+
+  /**
+   * The recordable {@link com.redacted.AddressCache} operations. Note that
+   * {@code REMOVE} maps to remove(InetAddress) when the event carries an
+   * address and to remove() otherwise.
+   */
+  public enum Operation {
+    OFFER, CONTAINS, REMOVE, PEEK, TAKE
+  }
+
+  /* Marks an offer recorded without an explicit time-to-live. */
+  public static final long NO_TTL = -1;
+
+  private final long timestampMillis;
+  private final Operation operation;
+  private final InetAddress address;
+  private final long ttlMillis;
+
+  /**
+   * Creates a new {@link TraceEvent}.
+   * 
+   * @param timestampMillis
+   *          the time the operation was issued, in milliseconds
+   * @param operation
+   *          the operation
+   * @param address
+   *          the targeted address, or {@code null} for operations without one
+   * @param ttlMillis
+   *          the time-to-live of an offer, or {@link #NO_TTL}
+   */
+  public TraceEvent(long timestampMillis, Operation operation,
+      InetAddress address, long ttlMillis) {
+    if (operation == null) {
+      throw new IllegalArgumentException("Operation cannot be null");
+    }
+    if (address == null
+        && (operation == Operation.OFFER || operation == Operation.CONTAINS)) {
+      throw new IllegalArgumentException(operation
+          + " requires an address");
+    }
+
+    this.timestampMillis = timestampMillis;
+    this.operation = operation;
+    this.address = address;
+    this.ttlMillis = ttlMillis;
+  }
+
+  public long getTimestampMillis() {
+    return timestampMillis;
+  }
+
+  public Operation getOperation() {
+    return operation;
+  }
+
+  /**
+   * Gets the targeted {@link InetAddress}.
+   * 
+   * @return the address, or {@code null} if the operation has none
+   */
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * Gets the time-to-live of an offer.
+   * 
+   * @return the time-to-live in milliseconds, or {@link #NO_TTL}
+   */
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(timestampMillis).append(' ')
+        .append(operation.name().toLowerCase());
+    if (address != null) {
+      sb.append(' ').append(address.getHostAddress());
+    }
+    if (ttlMillis != NO_TTL) {
+      sb.append(' ').append(ttlMillis);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,164 @@
+package com.redacted.simulator;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.redacted.simulator.TraceEvent.Operation;
+
+/**
+ * Reads {@link TraceEvent}s from a plain-text trace. Each non-empty line that
+ * does not start with {@code #} holds one event:
+ * 
+ * <pre>
+ * timestampMillis operation [address] [ttlMillis]
+ * </pre>
+ * 
+ * where operation is one of {@code offer}, {@code contains}, {@code remove},
+ * {@code peek} or {@code take}, and address is an IPv4 or IPv6 literal (host
+ * names are rejected so that reading a trace never does a DNS lookup). For
+ * example:
+ * 
+ * <pre>
+ * 1000 offer 10.0.0.1
+ * 1000 offer 10.0.0.2 60000
+ * 1005 contains 10.0.0.1
+ * 1010 take
+ * 1011 remove 10.0.0.2
+ * </pre>
+ * 
+ * Events must be in non-decreasing timestamp order.
+ */
+public final class TraceReader implements Closeable {
+
+  private final BufferedReader reader;
+  private int lineNumber;
+  private long lastTimestampMillis = Long.MIN_VALUE;
+
+  /**
+   * Creates a {@link TraceReader} over the given {@link Reader}.
+   * 
+   * @param reader
+   *          the source of the trace
+   */
+  public TraceReader(Reader reader) {
+    this.reader = new BufferedReader(reader);
+  }
+
+  /**
+   * Reads every event of the given trace file.
+   * 
+   * @param file
+   *          the trace file
+   * @return the events, in trace order
+   * @throws IOException
+   *           if the file cannot be read or is malformed
+   */
+  public static List<TraceEvent> readAll(File file) throws IOException {
+    try (TraceReader traceReader = new TraceReader(new InputStreamReader(
+        new FileInputStream(file), StandardCharsets.UTF_8))) {
+      List<TraceEvent> events = new ArrayList<>();
+      for (TraceEvent event = traceReader.next(); event != null; event = traceReader
+          .next()) {
+        events.add(event);
+      }
+      return events;
+    }
+  }
+
+  /**
+   * Reads the next event.
+   * 
+   * @return the next event, or {@code null} at the end of the trace
+   * @throws IOException
+   *           if the trace cannot be read or the line is malformed
+   */
+  public TraceEvent next() throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (!line.isEmpty() && line.charAt(0) != '#') {
+        return parse(line);
+      }
+    }
+    return null;
+  }
+
+  private TraceEvent parse(String line) throws IOException {
+    String[] fields = line.split("\\s+");
+    if (fields.length < 2 || fields.length > 4) {
+      throw malformed("expected 2 to 4 fields");
+    }
+
+    long timestampMillis = parseLong(fields[0]);
+    if (timestampMillis < lastTimestampMillis) {
+      throw malformed("timestamp goes backwards");
+    }
+    lastTimestampMillis = timestampMillis;
+
+    Operation operation;
+    try {
+      operation = Operation.valueOf(fields[1].toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw malformed("unknown operation " + fields[1]);
+    }
+
+    InetAddress address = fields.length > 2 ? parseAddress(fields[2]) : null;
+    long ttlMillis = TraceEvent.NO_TTL;
+    if (fields.length > 3) {
+      if (operation != Operation.OFFER) {
+        throw malformed("only offers take a time-to-live");
+      }
+      ttlMillis = parseLong(fields[3]);
+    }
+
+    try {
+      return new TraceEvent(timestampMillis, operation, address, ttlMillis);
+    } catch (IllegalArgumentException e) {
+      throw malformed(e.getMessage());
+    }
+  }
+
+  private long parseLong(String field) throws IOException {
+    try {
+      return Long.parseLong(field);
+    } catch (NumberFormatException e) {
+      throw malformed("not a number: " + field);
+    }
+  }
+
+  private InetAddress parseAddress(String field) throws IOException {
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (Character.digit(c, 16) < 0 && c != '.' && c != ':') {
+        throw malformed("not an address literal: " + field);
+      }
+    }
+
+    try {
+      return InetAddress.getByName(field);
+    } catch (UnknownHostException e) {
+      throw malformed("not an address literal: " + field);
+    }
+  }
+
+  private IOException malformed(String reason) {
+    return new IOException("Malformed trace at line " + lineNumber + ": "
+        + reason);
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
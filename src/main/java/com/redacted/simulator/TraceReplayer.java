@@ -0,0 +1,334 @@
+package com.redacted.simulator;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.redacted.AddressCache;
+import com.redacted.TimedAddressCache;
+import com.redacted.TimedInetAddress;
+import com.redacted.simulator.TraceEvent.Operation;
+
+/**
+ * Replays a recorded trace of {@link TraceEvent}s against an
+ * {@link AddressCache} and reports how it behaved. Events are replayed in
+ * virtual time (see {@link VirtualClock}) on a configurable number of threads.
+ * Events targeting the same {@link InetAddress} always go to the same thread
+ * so that their relative order is preserved; events without an address
+ * (peek(), remove() and take()) are spread round-robin.
+ * 
+ * A take() that can never be satisfied (every other thread is done or is
+ * itself waiting in take(), and the cache is empty) is interrupted so that
+ * the replay ends, and is reported as unsatisfied.
+ */
+public final class TraceReplayer {
+
+  /* How often the replay checks for threads stuck in take(). */
+  private static final long STALL_CHECK_MILLIS = 10;
+
+  private final int threads;
+  private final double speedup;
+
+  private TraceReplayer(TraceReplayerBuilder builder) {
+    threads = builder.threads;
+    speedup = builder.speedup;
+  }
+
+  /**
+   * Replays the given events against a cache created by the given factory.
+   * 
+   * @param name
+   *          the name of the configuration, used in the report
+   * @param events
+   *          the events, in trace order
+   * @param factory
+   *          creates the cache under test
+   * @return the report
+   * @throws InterruptedException
+   *           if interrupted while waiting for the replay to finish
+   */
+  public SimulationReport replay(String name, List<TraceEvent> events,
+      AddressCacheFactory factory) throws InterruptedException {
+    long startMillis = events.isEmpty() ? 0 : events.get(0)
+        .getTimestampMillis();
+    VirtualClock clock = new VirtualClock(startMillis, speedup);
+
+    List<List<TraceEvent>> partitions = partition(events);
+
+    long heapBefore = usedHeap();
+    AddressCache cache = factory.create(clock);
+    try {
+      List<ReplayWorker> workers = new ArrayList<>();
+      for (List<TraceEvent> partition : partitions) {
+        workers.add(new ReplayWorker(partition, cache, clock));
+      }
+
+      long realStartNanos = System.nanoTime();
+      clock.start();
+      for (ReplayWorker worker : workers) {
+        worker.thread.start();
+      }
+      long unsatisfiedTakes = awaitWorkers(workers, cache);
+      long elapsedRealMillis = TimeUnit.NANOSECONDS.toMillis(System
+          .nanoTime() - realStartNanos);
+      long elapsedVirtualMillis = clock.currentTimeMillis() - startMillis;
+
+      int finalSize = cache.size();
+      long retainedHeapBytes = Math.max(0, usedHeap() - heapBefore);
+
+      return summarize(name, workers, unsatisfiedTakes, finalSize,
+          retainedHeapBytes, elapsedRealMillis, elapsedVirtualMillis);
+    } finally {
+      cache.close();
+    }
+  }
+
+  private List<List<TraceEvent>> partition(List<TraceEvent> events) {
+    List<List<TraceEvent>> partitions = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      partitions.add(new ArrayList<TraceEvent>());
+    }
+
+    int next = 0;
+    for (TraceEvent event : events) {
+      int index;
+      if (event.getAddress() != null) {
+        index = (event.getAddress().hashCode() & Integer.MAX_VALUE) % threads;
+      } else {
+        index = next;
+        next = (next + 1) % threads;
+      }
+      partitions.get(index).add(event);
+    }
+
+    return partitions;
+  }
+
+  /**
+   * Waits for every worker to finish, interrupting one take() at a time while
+   * the replay is stuck.
+   * 
+   * @return the number of interrupted take() calls
+   */
+  private long awaitWorkers(List<ReplayWorker> workers, AddressCache cache)
+      throws InterruptedException {
+    long unsatisfiedTakes = 0;
+    boolean stalled = false;
+
+    while (true) {
+      ReplayWorker waiting = null;
+      int running = 0;
+      int taking = 0;
+      for (ReplayWorker worker : workers) {
+        if (worker.thread.isAlive()) {
+          running++;
+          if (worker.inTake) {
+            taking++;
+            waiting = worker;
+          }
+        }
+      }
+
+      if (running == 0) {
+        return unsatisfiedTakes;
+      }
+
+      // only give up on a take() after seeing the replay stuck twice in a row
+      if (running == taking && cache.isEmpty()) {
+        if (stalled) {
+          waiting.thread.interrupt();
+          unsatisfiedTakes++;
+          stalled = false;
+        } else {
+          stalled = true;
+        }
+      } else {
+        stalled = false;
+      }
+
+      Thread.sleep(STALL_CHECK_MILLIS);
+    }
+  }
+
+  private static SimulationReport summarize(String name,
+      List<ReplayWorker> workers, long unsatisfiedTakes, int finalSize,
+      long retainedHeapBytes, long elapsedRealMillis, long elapsedVirtualMillis) {
+    Map<Operation, LatencyHistogram> latencies = new EnumMap<>(
+        Operation.class);
+    Map<Operation, Long> successes = new EnumMap<>(Operation.class);
+    Map<Operation, Long> errors = new EnumMap<>(Operation.class);
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      long successCount = 0;
+      long errorCount = 0;
+      for (ReplayWorker worker : workers) {
+        histogram.merge(worker.latencies.get(operation));
+        successCount += worker.successes[operation.ordinal()];
+        errorCount += worker.errors[operation.ordinal()];
+      }
+      latencies.put(operation, histogram);
+      successes.put(operation, successCount);
+      errors.put(operation, errorCount);
+    }
+
+    long offersAccepted = successes.get(Operation.OFFER);
+    long removed = successes.get(Operation.REMOVE)
+        + successes.get(Operation.TAKE);
+
+    return new SimulationReport(name, latencies, successes, errors,
+        offersAccepted, removed, unsatisfiedTakes, finalSize,
+        retainedHeapBytes, elapsedRealMillis, elapsedVirtualMillis);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Replays one partition of the trace on its own thread, recording into its
+   * own histograms and counters.
+   */
+  private static final class ReplayWorker implements Runnable {
+
+    private final List<TraceEvent> events;
+    private final AddressCache cache;
+    private final VirtualClock clock;
+    private final Thread thread;
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(
+        Operation.class);
+    private final long[] successes = new long[Operation.values().length];
+    private final long[] errors = new long[Operation.values().length];
+
+    /* Whether this worker is (about to be) blocked in take(). */
+    private volatile boolean inTake;
+
+    private ReplayWorker(List<TraceEvent> events, AddressCache cache,
+        VirtualClock clock) {
+      this.events = events;
+      this.cache = cache;
+      this.clock = clock;
+      this.thread = new Thread(this, "trace-replay");
+      this.thread.setDaemon(true);
+
+      for (Operation operation : Operation.values()) {
+        latencies.put(operation, new LatencyHistogram());
+      }
+    }
+
+    @Override
+    public void run() {
+      for (TraceEvent event : events) {
+        try {
+          clock.awaitTime(event.getTimestampMillis());
+        } catch (InterruptedException e) {
+          // meant for a take() that completed in the meantime; carry on
+        }
+
+        Operation operation = event.getOperation();
+        long startNanos = System.nanoTime();
+        try {
+          if (execute(event)) {
+            successes[operation.ordinal()]++;
+          }
+        } catch (InterruptedException e) {
+          // an unsatisfiable take(), counted by the replayer
+        } catch (RuntimeException e) {
+          errors[operation.ordinal()]++;
+        }
+        latencies.get(operation).record(System.nanoTime() - startNanos);
+      }
+    }
+
+    private boolean execute(TraceEvent event) throws InterruptedException {
+      InetAddress address = event.getAddress();
+      switch (event.getOperation()) {
+      case OFFER:
+        if (event.getTtlMillis() != TraceEvent.NO_TTL
+            && cache instanceof TimedAddressCache) {
+          return ((TimedAddressCache) cache).offer(new TimedInetAddress(
+              address, new Date(clock.currentTimeMillis()
+                  + event.getTtlMillis())));
+        }
+        return cache.offer(address);
+      case CONTAINS:
+        return cache.contains(address);
+      case REMOVE:
+        return address != null ? cache.remove(address)
+            : cache.remove() != null;
+      case PEEK:
+        return cache.peek() != null;
+      case TAKE:
+        inTake = true;
+        try {
+          return cache.take() != null;
+        } finally {
+          inTake = false;
+        }
+      default:
+        throw new IllegalStateException("Unknown operation "
+            + event.getOperation());
+      }
+    }
+  }
+
+  /**
+   * Builder for {@link TraceReplayer}.
+   */
+  public static class TraceReplayerBuilder {
+
+    private int threads = 1;
+    private double speedup = Double.POSITIVE_INFINITY;
+
+    /**
+     * Sets the number of threads replaying the trace. Defaults to one.
+     * 
+     * @param threads
+     *          the number of threads
+     * @return the resulting {@link TraceReplayerBuilder}
+     */
+    public TraceReplayerBuilder threads(int threads) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("At least one thread is required");
+      }
+
+      this.threads = threads;
+      return this;
+    }
+
+    /**
+     * Sets how many times faster than recorded the trace is replayed.
+     * Defaults to {@link Double#POSITIVE_INFINITY}, i.e. as fast as possible.
+     * 
+     * @param speedup
+     *          the speedup
+     * @return the resulting {@link TraceReplayerBuilder}
+     */
+    public TraceReplayerBuilder speedup(double speedup) {
+      if (!(speedup > 0)) {
+        throw new IllegalArgumentException("Speedup must be positive");
+      }
+
+      this.speedup = speedup;
+      return this;
+    }
+
+    /**
+     * Builds a {@link TraceReplayer} from the {@link TraceReplayerBuilder}'s
+     * values.
+     * 
+     * @return the resulting {@link TraceReplayer}
+     */
+    public TraceReplayer build() {
+      return new TraceReplayer(this);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.redacted.simulator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.redacted.CacheClock;
+
+/**
+ * A {@link CacheClock} for replaying traces in accelerated virtual time.
+ * Virtual time starts at the trace's first timestamp once {@link #start()} is
+ * called and then advances {@code speedup} times faster than real time. With
+ * an infinite speedup, virtual time only moves when {@link #awaitTime(long)}
+ * jumps it forward to the next event, i.e. the trace is replayed as fast as
+ * the cache allows.
+ */
+public final class VirtualClock implements CacheClock {
+
+  private final long startMillis;
+  private final double speedup;
+
+  /* Virtual time never reads below this, in milliseconds. */
+  private final AtomicLong floorMillis;
+  private volatile long realStartNanos;
+
+  /**
+   * Creates a new {@link VirtualClock}.
+   * 
+   * @param startMillis
+   *          the virtual time at {@link #start()}, in milliseconds
+   * @param speedup
+   *          how many times faster than real time virtual time advances, or
+   *          {@link Double#POSITIVE_INFINITY} to replay as fast as possible
+   */
+  public VirtualClock(long startMillis, double speedup) {
+    if (!(speedup > 0)) {
+      throw new IllegalArgumentException("Speedup must be positive");
+    }
+
+    this.startMillis = startMillis;
+    this.speedup = speedup;
+    this.floorMillis = new AtomicLong(startMillis);
+    this.realStartNanos = System.nanoTime();
+  }
+
+  /**
+   * Anchors virtual time to the current real time.
+   */
+  public void start() {
+    realStartNanos = System.nanoTime();
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    long floor = floorMillis.get();
+    if (Double.isInfinite(speedup)) {
+      return floor;
+    }
+
+    long elapsedNanos = System.nanoTime() - realStartNanos;
+    long scaled = startMillis
+        + (long) (elapsedNanos * speedup / TimeUnit.MILLISECONDS.toNanos(1));
+    return Math.max(floor, scaled);
+  }
+
+  /**
+   * Blocks until virtual time has reached the given time. With an infinite
+   * speedup this returns immediately after moving virtual time forward.
+   * 
+   * @param virtualMillis
+   *          the virtual time to wait for, in milliseconds
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public void awaitTime(long virtualMillis) throws InterruptedException {
+    if (Double.isInfinite(speedup)) {
+      advanceTo(virtualMillis);
+      return;
+    }
+
+    long remainingMillis;
+    while ((remainingMillis = virtualMillis - currentTimeMillis()) > 0) {
+      long realNanos = (long) (TimeUnit.MILLISECONDS.toNanos(remainingMillis) / speedup);
+      TimeUnit.NANOSECONDS.sleep(Math.max(realNanos, 1));
+    }
+  }
+
+  /**
+   * Moves virtual time forward to the given time, if it is not already past
+   * it.
+   * 
+   * @param virtualMillis
+   *          the virtual time, in milliseconds
+   */
+  public void advanceTo(long virtualMillis) {
+    long floor;
+    while ((floor = floorMillis.get()) < virtualMillis) {
+      if (floorMillis.compareAndSet(floor, virtualMillis)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,522 @@
+package com.redacted;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * "Last-In-First-Out" order, as {@link AddressOrder.Lifo}, for very many
+ * threads blocked in take(), e.g. a virtual thread per downstream
+ * connection (see
+ * {@link TimedAddressCache.TimedAddressCacheBuilder#virtualThreadOrder()}).
+ *
+ * Addresses live in a doubly linked list indexed by a {@link HashMap}, under
+ * one {@link ReentrantLock}, so that remove(), contains() and moveFront() are
+ * O(1). A thread finding the list empty in take() joins a FIFO queue of
+ * waiters and parks without holding the lock; an offer while threads wait
+ * hands its address to the first of them and unparks it, and the woken
+ * thread returns the address without taking the lock again. Blocking never
+ * happens inside a monitor, so parked virtual threads do not pin their
+ * carrier threads. Platform threads spin briefly before parking, since
+ * parking and unparking them is far slower than a virtual thread's switch.
+ * Offers waiting for space wait on a {@link Condition} of the lock, which
+ * parks virtual threads just as cheaply. Only compiled by the Java 21 build.
+ */
+final class VirtualThreadLifo implements AddressOrder {
+
+  /* Times a platform thread checks for a handoff before it parks. */
+  private static final int PLATFORM_SPINS = 128;
+
+  private final int maximumCapacity;
+
+  /* Guards everything below, apart from what the waiters are handed. */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final Map<InetAddress, Node> nodes = new HashMap<>();
+
+  /* The cold end, retrieved last, and the newest address, retrieved next. */
+  private Node first;
+  private Node last;
+
+  /* Threads blocked in take(), longest waiting first. */
+  private Waiter firstWaiter;
+  private Waiter lastWaiter;
+
+  private boolean closed;
+
+  VirtualThreadLifo(int maximumCapacity) {
+    if (maximumCapacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+
+    this.maximumCapacity = maximumCapacity;
+  }
+
+  @Override
+  public boolean offer(TimedInetAddress timedAddress) {
+    Waiter waiter;
+    lock.lock();
+    try {
+      ensureOpen();
+      waiter = firstWaiter;
+      if (waiter == null && nodes.size() == maximumCapacity) {
+        return false;
+      }
+      place(timedAddress);
+    } finally {
+      lock.unlock();
+    }
+
+    wake(waiter);
+    return true;
+  }
+
+  @Override
+  public boolean offer(TimedInetAddress timedAddress, long timeoutNanos)
+      throws InterruptedException {
+    Waiter waiter;
+    lock.lock();
+    try {
+      ensureOpen();
+      while (firstWaiter == null && nodes.size() == maximumCapacity) {
+        if (timeoutNanos <= 0) {
+          return false;
+        }
+        timeoutNanos = notFull.awaitNanos(timeoutNanos);
+        ensureOpen();
+      }
+
+      waiter = firstWaiter;
+      place(timedAddress);
+    } finally {
+      lock.unlock();
+    }
+
+    wake(waiter);
+    return true;
+  }
+
+  @Override
+  public void put(TimedInetAddress timedAddress) throws InterruptedException {
+    Waiter waiter;
+    lock.lock();
+    try {
+      ensureOpen();
+      while (firstWaiter == null && nodes.size() == maximumCapacity) {
+        notFull.await();
+        ensureOpen();
+      }
+
+      waiter = firstWaiter;
+      place(timedAddress);
+    } finally {
+      lock.unlock();
+    }
+
+    wake(waiter);
+  }
+
+  /**
+   * Adds the given addresses in order. A duplicate address replaces the
+   * earlier one, in its own position.
+   */
+  @Override
+  public void addAll(Collection<TimedInetAddress> timedAddresses) {
+    lock.lock();
+    try {
+      for (TimedInetAddress timedAddress : timedAddresses) {
+        Node node = nodes.get(timedAddress.getInetAddress());
+        if (node != null) {
+          unlink(node);
+        } else if (nodes.size() == maximumCapacity) {
+          throw new IllegalStateException(
+              "Initial addresses exceed the maximum capacity");
+        }
+        linkLast(timedAddress);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void moveFront(TimedInetAddress timedAddress) {
+    lock.lock();
+    try {
+      Node node = nodes.get(timedAddress.getInetAddress());
+      if (node != null) {
+        unlink(node); // a new node, so that iterators never go backwards
+        linkFirst(timedAddress); // with the caller's date, as in Lifo
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(TimedInetAddress timedAddress) {
+    lock.lock();
+    try {
+      Node node = nodes.get(timedAddress.getInetAddress());
+      if (node == null) {
+        return false;
+      }
+      unlink(node);
+      notFull.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void removeAll(Set<InetAddress> addresses) {
+    lock.lock();
+    try {
+      int removed = 0;
+      for (InetAddress address : addresses) {
+        Node node = nodes.get(address);
+        if (node != null) {
+          unlink(node);
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        notFull.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean contains(TimedInetAddress timedAddress) {
+    lock.lock();
+    try {
+      return nodes.containsKey(timedAddress.getInetAddress());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public TimedInetAddress peek() {
+    lock.lock();
+    try {
+      return last == null ? null : last.timedAddress;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public TimedInetAddress poll() {
+    lock.lock();
+    try {
+      return last == null ? null : take(last);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes and returns the newest address, or joins the waiters and parks
+   * until an offer hands one over. An interrupted waiter leaves the queue
+   * and throws, unless an address was handed to it first, in which case it
+   * returns the address and stays interrupted.
+   */
+  @Override
+  public TimedInetAddress take() throws InterruptedException {
+    Waiter waiter;
+    lock.lock();
+    try {
+      ensureOpen();
+      if (last != null) {
+        return take(last);
+      }
+      waiter = enqueue(new Waiter(Thread.currentThread()));
+    } finally {
+      lock.unlock();
+    }
+
+    boolean spin = !Thread.currentThread().isVirtual();
+    for (int i = 0; spin && i < PLATFORM_SPINS && !waiter.isDone(); i++) {
+      Thread.onSpinWait();
+    }
+    while (!waiter.isDone()) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        lock.lock();
+        try {
+          if (!waiter.isDone()) {
+            dequeue(waiter);
+            throw new InterruptedException();
+          }
+        } finally {
+          lock.unlock();
+        }
+        Thread.currentThread().interrupt(); // handed over meanwhile
+      }
+    }
+
+    if (waiter.timedAddress == null) {
+      throw new IllegalStateException("Cache has been closed");
+    }
+    return waiter.timedAddress;
+  }
+
+  @Override
+  public TimedInetAddress pollCold() {
+    lock.lock();
+    try {
+      return first == null ? null : take(first);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return nodes.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns an iterator from the cold end to the newest address, taking the
+   * lock for each step. Removed nodes keep their link to the next node, so
+   * the iterator skips over removals, and moved addresses are relinked as new
+   * nodes, so it never goes backwards.
+   */
+  @Override
+  public Iterator<TimedInetAddress> iterator() {
+    lock.lock();
+    try {
+      final Node start = first;
+      return new Iterator<TimedInetAddress>() {
+
+        private Node next = start;
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public TimedInetAddress next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+
+          TimedInetAddress timedAddress = next.timedAddress;
+          lock.lock();
+          try {
+            Node node = next.next;
+            while (node != null && node.removed) {
+              node = node.next;
+            }
+            next = node;
+          } finally {
+            lock.unlock();
+          }
+          return timedAddress;
+        }
+      };
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes every address and wakes every blocked thread, which then throws
+   * an {@link IllegalStateException}, as do later calls of take(), put() and
+   * offer().
+   */
+  @Override
+  public void close() {
+    Waiter waiters;
+    lock.lock();
+    try {
+      closed = true;
+      for (Node node = first; node != null; node = node.next) {
+        node.removed = true;
+      }
+      nodes.clear();
+      first = null;
+      last = null;
+
+      waiters = firstWaiter;
+      for (Waiter waiter = waiters; waiter != null; waiter = waiter.next) {
+        waiter.done = true; // with no address
+      }
+      firstWaiter = null;
+      lastWaiter = null;
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+
+    for (Waiter waiter = waiters; waiter != null; waiter = waiter.next) {
+      LockSupport.unpark(waiter.thread);
+    }
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("Cache has been closed");
+    }
+  }
+
+  /**
+   * Hands the address to the first waiter, if any, or adds it as the newest
+   * address. The caller wakes the waiter once it has released the lock. Must
+   * hold the lock.
+   */
+  private void place(TimedInetAddress timedAddress) {
+    Waiter waiter = firstWaiter;
+    if (waiter == null) {
+      linkLast(timedAddress);
+      return;
+    }
+
+    dequeue(waiter);
+    waiter.timedAddress = timedAddress;
+    waiter.done = true;
+  }
+
+  private static void wake(Waiter waiter) {
+    if (waiter != null) {
+      LockSupport.unpark(waiter.thread);
+    }
+  }
+
+  /**
+   * Unlinks the given node and returns its address. Must hold the lock.
+   */
+  private TimedInetAddress take(Node node) {
+    unlink(node);
+    notFull.signal();
+    return node.timedAddress;
+  }
+
+  private void linkLast(TimedInetAddress timedAddress) {
+    Node node = new Node(timedAddress);
+    node.previous = last;
+    if (last == null) {
+      first = node;
+    } else {
+      last.next = node;
+    }
+    last = node;
+    nodes.put(timedAddress.getInetAddress(), node);
+  }
+
+  private void linkFirst(TimedInetAddress timedAddress) {
+    Node node = new Node(timedAddress);
+    node.next = first;
+    if (first == null) {
+      last = node;
+    } else {
+      first.previous = node;
+    }
+    first = node;
+    nodes.put(timedAddress.getInetAddress(), node);
+  }
+
+  /**
+   * Unlinks the given node, leaving its next link for iterators. Must hold
+   * the lock.
+   */
+  private void unlink(Node node) {
+    Node previous = node.previous;
+    Node next = node.next;
+    if (previous == null) {
+      first = next;
+    } else {
+      previous.next = next;
+    }
+    if (next == null) {
+      last = previous;
+    } else {
+      next.previous = previous;
+    }
+
+    node.previous = null;
+    node.removed = true;
+    nodes.remove(node.timedAddress.getInetAddress());
+  }
+
+  private Waiter enqueue(Waiter waiter) {
+    waiter.previous = lastWaiter;
+    if (lastWaiter == null) {
+      firstWaiter = waiter;
+    } else {
+      lastWaiter.next = waiter;
+    }
+    lastWaiter = waiter;
+    return waiter;
+  }
+
+  private void dequeue(Waiter waiter) {
+    if (waiter.previous == null) {
+      firstWaiter = waiter.next;
+    } else {
+      waiter.previous.next = waiter.next;
+    }
+    if (waiter.next == null) {
+      lastWaiter = waiter.previous;
+    } else {
+      waiter.next.previous = waiter.previous;
+    }
+    waiter.previous = null;
+    waiter.next = null;
+  }
+
+  /**
+   * An address in the list.
+   */
+  private static final class Node {
+
+    private final TimedInetAddress timedAddress;
+    private Node previous;
+    private Node next;
+    private boolean removed;
+
+    private Node(TimedInetAddress timedAddress) {
+      this.timedAddress = timedAddress;
+    }
+  }
+
+  /**
+   * A thread blocked in take(). Its links are guarded by the lock; it reads
+   * what it is handed without the lock.
+   */
+  private static final class Waiter {
+
+    private final Thread thread;
+    private Waiter previous;
+    private Waiter next;
+
+    /* Written before done, so visible once done is. */
+    private TimedInetAddress timedAddress;
+    private volatile boolean done;
+
+    private Waiter(Thread thread) {
+      this.thread = thread;
+    }
+
+    private boolean isDone() {
+      return done;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+
+public class AddressListsTest {
+
+  private static final Date DEFAULT_DATE = new Date(2147472000000L);
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("addresses", ".csv");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  private void write(String contents) throws IOException {
+    try (Writer writer = new FileWriter(file)) {
+      writer.write(contents);
+    }
+  }
+
+  @Test
+  public void testReadLiterals() throws Exception {
+    write("# blocklist\r\n161.74.139.24,1453569833129\r\n  \r\n"
+        + "2001:db8::1\n::\n::1\nfe80::\n::ffff:10.0.0.1\n"
+        + "2001:0db8:0000:0000:0000:ff00:0042:8329 , 42\n0.0.0.0");
+
+    List<TimedInetAddress> addresses = AddressLists.read(file, DEFAULT_DATE);
+    String[] expected = { "161.74.139.24", "2001:db8::1", "::", "::1",
+        "fe80::", "::ffff:10.0.0.1", "2001:db8::ff00:42:8329", "0.0.0.0" };
+    assertThat("Every address line was read.", expected.length,
+        is(addresses.size()));
+    for (int i = 0; i < expected.length; i++) {
+      assertThat("Parsed like InetAddress.getByName().",
+          InetAddress.getByName(expected[i]), is(addresses.get(i)
+              .getInetAddress()));
+    }
+
+    assertThat("Expiration dates are read.", 1453569833129L, is(addresses
+        .get(0).getExpirationDate().getTime()));
+    assertThat("Lines without one get the default.", DEFAULT_DATE,
+        is(addresses.get(1).getExpirationDate()));
+    assertThat("Blanks around fields are ignored.", 42L, is(addresses.get(6)
+        .getExpirationDate().getTime()));
+  }
+
+  @Test
+  public void testReadMalformed() throws Exception {
+    String[] malformed = { "example.com", "1.2.3", "1.2.3.256", "1.2.3.4.",
+        "1::2::3", "12345::", ":1", "1:2:3:4:5:6:7:8:9", "1.2.3.4,",
+        "1.2.3.4,soon" };
+    for (String line : malformed) {
+      write("10.0.0.1\n" + line + "\n");
+      try {
+        AddressLists.read(file, DEFAULT_DATE);
+        fail("Malformed line accepted: " + line);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testReadAcrossChunks() throws Exception {
+    int n = 1100000; // about 28 MB, i.e. more than one chunk
+    try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+      for (int i = 0; i < n; i++) {
+        writer.write("10." + (i >>> 16) + "." + ((i >>> 8) & 0xFF) + "."
+            + (i & 0xFF) + "," + (1000000000000L + i) + "\n");
+      }
+    }
+
+    List<TimedInetAddress> addresses = AddressLists.read(file, DEFAULT_DATE);
+    assertThat("No line is lost or read twice.", n, is(addresses.size()));
+    for (int i = 0; i < n; i += 9973) {
+      assertThat("Lines stay in file order.", 1000000000000L + i,
+          is(addresses.get(i).getExpirationDate().getTime()));
+    }
+  }
+
+  @Test
+  public void testExportRoundTrip() throws Exception {
+    Collection<TimedInetAddress> timedAddresses = new ArrayList<>();
+    timedAddresses.add(new TimedInetAddress(
+        InetAddress.getByName("161.74.139.24"), DEFAULT_DATE));
+    timedAddresses.add(new TimedInetAddress(InetAddress.getByName("::1"),
+        new Date(2147472000001L)));
+    timedAddresses.add(new TimedInetAddress(
+        InetAddress.getByName("38.103.53.43"), new Date(1453569833129L)));
+    timedAddresses.add(new TimedInetAddress(
+        InetAddress.getByName("2001:db8::ff00:42:8329"), DEFAULT_DATE));
+    TimedAddressCache cache = new TimedAddressCacheBuilder()
+        .addTimedAddresses(timedAddresses).threadless().build();
+    AddressLists.write(cache, file);
+    cache.close();
+
+    List<TimedInetAddress> exported = AddressLists.read(file, new Date(0));
+    assertThat("Expired addresses are not exported.", 3, is(exported.size()));
+    assertThat("Oldest first.", InetAddress.getByName("161.74.139.24"),
+        is(exported.get(0).getInetAddress()));
+    assertThat("Expiration dates are kept.", 2147472000001L, is(exported
+        .get(1).getExpirationDate().getTime()));
+
+    TimedAddressCache restored = new TimedAddressCacheBuilder().addAddresses(
+        file).threadless().build();
+    assertThat("The order is restored.",
+        InetAddress.getByName("2001:db8::ff00:42:8329"), is(restored.peek()));
+    restored.close();
+  }
+}
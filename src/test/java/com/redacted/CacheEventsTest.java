@@ -0,0 +1,74 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+
+public class CacheEventsTest {
+
+  @Test
+  public void testEventsAreRecorded() throws Exception {
+    InetAddress add1 = InetAddress.getByName("161.74.139.24");
+    InetAddress add2 = InetAddress.getByName("38.103.53.43");
+    Collection<TimedInetAddress> timedAddresses = new LinkedList<>();
+    timedAddresses.add(new TimedInetAddress(add1, new Date(1453569833129L)));
+
+    Path dump = Files.createTempFile("address-cache", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("com.redacted.Cleanup");
+      recording.enable("com.redacted.CapacityRejection");
+      recording.enable("com.redacted.SlowTake").withThreshold(Duration.ZERO);
+      recording.enable("com.redacted.MoveFront").withThreshold(Duration.ZERO);
+      recording.enable("com.redacted.BulkLoad");
+      recording.start();
+
+      TimedAddressCache cache = new TimedAddressCacheBuilder()
+          .addTimedAddresses(timedAddresses).maximumCapacity(1)
+          .cleanupInitialDelay(0, TimeUnit.MILLISECONDS).build();
+      Thread.sleep(500); // let the cleanup task evict the expired address
+      cache.offer(add2);
+      cache.offer(add2);
+      cache.offer(add1);
+      cache.take();
+      cache.close();
+
+      recording.stop();
+      recording.dump(dump);
+    }
+
+    Set<String> recorded = new HashSet<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+      recorded.add(event.getEventType().getName());
+    }
+    Files.delete(dump);
+
+    assertThat("Cleanup runs are recorded.", true,
+        is(recorded.contains("com.redacted.Cleanup")));
+    assertThat("Capacity rejections are recorded.", true,
+        is(recorded.contains("com.redacted.CapacityRejection")));
+    assertThat("Takes over the threshold are recorded.", true,
+        is(recorded.contains("com.redacted.SlowTake")));
+    assertThat("Moves to the front are recorded.", true,
+        is(recorded.contains("com.redacted.MoveFront")));
+    assertThat("The initial load is recorded.", true,
+        is(recorded.contains("com.redacted.BulkLoad")));
+  }
+}
@@ -0,0 +1,197 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskTierTest {
+
+  /* 13 bytes per IPv4 record, so about 20 records per segment. */
+  private static final long SEGMENT_SIZE = 256;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicLong now = new AtomicLong(1000000);
+  private DiskTier tier;
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = folder.newFolder("tier");
+    tier = new DiskTier(directory, SEGMENT_SIZE, new CacheClock() {
+
+      @Override
+      public long currentTimeMillis() {
+        return now.get();
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    tier.close();
+  }
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >>> 8),
+        (byte) i });
+  }
+
+  private TimedInetAddress timed(int i, long ttlMillis) throws Exception {
+    return new TimedInetAddress(address(i), new Date(now.get() + ttlMillis));
+  }
+
+  @Test
+  public void testSpillAndRemove() throws Exception {
+    tier.spill(timed(1, 1000));
+    tier.spill(new TimedInetAddress(InetAddress.getByName("2001:db8::1"),
+        new Date(now.get() + 2000)));
+    assertThat("Both are on disk.", 2, is(tier.size()));
+
+    TimedInetAddress removed = tier.remove(address(1));
+    assertThat("Removing reads the address back.", address(1),
+        is(removed.getInetAddress()));
+    assertThat("With its expiration date.", now.get() + 1000,
+        is(removed.getExpirationDate().getTime()));
+    assertThat("Once.", (Object) null, is((Object) tier.remove(address(1))));
+    assertThat("IPv6 addresses work too.", true, is(tier.remove(InetAddress
+        .getByName("2001:db8::1")) != null));
+    assertThat("Nothing is left.", 0, is(tier.size()));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    tier.spill(timed(1, 1000));
+    tier.spill(timed(2, -1));
+    assertThat("Expired addresses are not spilled.", 1, is(tier.size()));
+
+    now.addAndGet(2000);
+    assertThat("Expired addresses are not returned.", (Object) null,
+        is((Object) tier.remove(address(1))));
+  }
+
+  @Test
+  public void testIndexSurvivesResizeAndRemoval() throws Exception {
+    int n = 5000;
+    for (int i = 0; i < n; i++) {
+      tier.spill(timed(i, 100000 + i));
+    }
+    for (int i = 0; i < n; i += 2) {
+      tier.remove(address(i));
+    }
+
+    assertThat("Half are left.", n / 2, is(tier.size()));
+    for (int i = 1; i < n; i += 2) {
+      assertThat("Each with its own date.", now.get() + 100000 + i,
+          is(tier.remove(address(i)).getExpirationDate().getTime()));
+    }
+  }
+
+  @Test
+  public void testSegmentsAreReclaimed() throws Exception {
+    for (int i = 0; i < 200; i++) {
+      tier.spill(timed(i, 100000));
+    }
+    int full = tier.segments();
+    assertThat("Spills roll over into several segments.", true, is(full > 5));
+
+    for (int i = 0; i < 200; i++) {
+      if (i % 10 != 0) {
+        tier.remove(address(i));
+      }
+    }
+    for (int i = 200; i < 300; i++) { // roll over a few more times
+      tier.spill(timed(i, 100000));
+    }
+    assertThat("Mostly dead segments are compacted.", true,
+        is(tier.segments() < full));
+    for (int i = 0; i < 200; i += 10) {
+      assertThat("Live addresses survive compaction.", address(i),
+          is(tier.remove(address(i)).getInetAddress()));
+    }
+
+    now.addAndGet(200000);
+    for (int i = 300; i < 400; i++) {
+      tier.spill(timed(i, 100000));
+    }
+    // only the segment that was active at expiry may still hold some
+    assertThat("Expired segments are dropped.", true,
+        is(tier.size() < 100 + SEGMENT_SIZE / 13));
+  }
+
+  @Test
+  public void testRecordsAreReadFromBufferAndFile() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      tier.spill(timed(i, 100000 + i));
+    }
+    for (int i = 99; i >= 0; i--) { // the newest are still in the buffer
+      TimedInetAddress removed = tier.remove(address(i));
+      assertThat("The record is read back.", address(i),
+          is(removed.getInetAddress()));
+      assertThat("With its own date.", now.get() + 100000 + i,
+          is(removed.getExpirationDate().getTime()));
+    }
+  }
+
+  @Test
+  public void testPollNewest() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      tier.spill(timed(i, 100000));
+    }
+    tier.spill(timed(99, 200000)); // re-spilled with a later date
+    tier.remove(address(98));
+
+    List<TimedInetAddress> newest = tier.pollNewest(3);
+    assertThat("Up to the maximum are returned.", 3, is(newest.size()));
+    assertThat("Least recently spilled first.", address(96),
+        is(newest.get(0).getInetAddress()));
+    assertThat("Removed addresses are skipped.", address(97),
+        is(newest.get(1).getInetAddress()));
+    assertThat("Only the latest copy counts.", now.get() + 200000,
+        is(newest.get(2).getExpirationDate().getTime()));
+    assertThat("They leave the disk.", 96, is(tier.size()));
+
+    int polled = 0;
+    for (List<TimedInetAddress> batch = tier.pollNewest(10); !batch
+        .isEmpty(); batch = tier.pollNewest(10)) {
+      polled += batch.size();
+    }
+    assertThat("Every address is polled once.", 96, is(polled));
+    assertThat("Nothing is left.", 0, is(tier.size()));
+  }
+
+  @Test
+  public void testPollNewestDropsExpired() throws Exception {
+    for (int i = 0; i < 30; i++) {
+      tier.spill(timed(i, i < 20 ? 100000 : 1000));
+    }
+    now.addAndGet(2000);
+
+    List<TimedInetAddress> newest = tier.pollNewest(5);
+    assertThat("Expired addresses are skipped.", address(19),
+        is(newest.get(newest.size() - 1).getInetAddress()));
+    assertThat("And dropped.", 20 - newest.size(), is(tier.size()));
+  }
+
+  @Test
+  public void testCloseDeletesFiles() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      tier.spill(timed(i, 100000));
+    }
+    tier.close();
+    assertThat("No segment files are left.", 0,
+        is(directory.listFiles().length));
+  }
+}
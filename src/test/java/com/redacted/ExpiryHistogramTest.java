@@ -0,0 +1,121 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ExpiryHistogramTest {
+
+  private static final long NOW = 1500000000000L;
+
+  @Test
+  public void testForecast() {
+    ExpiryHistogram histogram = new ExpiryHistogram();
+    histogram.add(NOW - 5000, NOW); // overdue
+    for (int i = 0; i < 10; i++) {
+      histogram.add(NOW + 500, NOW);
+    }
+    for (int i = 0; i < 20; i++) {
+      histogram.add(NOW + 30 * 1000, NOW);
+    }
+    histogram.add(NOW + 30 * 60 * 1000, NOW);
+    histogram.add(NOW + 365L * 24 * 60 * 60 * 1000, NOW); // beyond every level
+
+    ExpiryForecast forecast = histogram.forecast(NOW);
+    assertThat("Everything counted.", 33L, is(forecast.getTotal()));
+    assertThat("Overdue and the next second.", 11L,
+        is(forecast.getExpiringWithin(1, TimeUnit.SECONDS)));
+    assertThat("The next minute.", 31L,
+        is(forecast.getExpiringWithin(1, TimeUnit.MINUTES)));
+    assertThat("The next hour.", 32L,
+        is(forecast.getExpiringWithin(1, TimeUnit.HOURS)));
+    assertThat("Not the far future.", 32L,
+        is(forecast.getExpiringWithin(10, TimeUnit.DAYS)));
+  }
+
+  @Test
+  public void testRemove() {
+    ExpiryHistogram histogram = new ExpiryHistogram();
+    histogram.add(NOW + 500, NOW);
+    histogram.add(NOW + 500, NOW);
+    histogram.add(NOW + 365L * 24 * 60 * 60 * 1000, NOW);
+    histogram.remove(NOW + 500, NOW);
+    histogram.remove(NOW + 365L * 24 * 60 * 60 * 1000, NOW);
+
+    ExpiryForecast forecast = histogram.forecast(NOW);
+    assertThat("One left.", 1L, is(forecast.getTotal()));
+    assertThat("In its bucket.", 1L,
+        is(forecast.getExpiringWithin(1, TimeUnit.SECONDS)));
+
+    histogram.clear();
+    assertThat("Cleared.", 0L, is(histogram.forecast(NOW).getTotal()));
+  }
+
+  @Test
+  public void testBucketsAreReused() {
+    ExpiryHistogram histogram = new ExpiryHistogram();
+    long later = NOW;
+    for (int round = 0; round < 10; round++) { // time moves on, windows wrap
+      later += 90 * 1000;
+      for (int i = 0; i < 100; i++) {
+        histogram.add(later + i * 1000, later);
+      }
+      for (int i = 0; i < 100; i++) {
+        histogram.remove(later + i * 1000, later + i * 1000);
+      }
+    }
+    assertThat("Every address removed.", 0L, is(histogram.forecast(later)
+        .getTotal()));
+  }
+
+  @Test
+  public void testRemoveAfterRollover() {
+    ExpiryHistogram histogram = new ExpiryHistogram();
+    long expiration = NOW + 3L * 24 * 60 * 60 * 1000; // beyond every level
+    histogram.add(expiration, NOW);
+
+    long later = expiration - 30 * 1000; // the windows now cover it
+    histogram.add(expiration, later);
+    histogram.remove(expiration, later);
+    assertThat("The remaining address is within the minute.", 1L, is(histogram
+        .forecast(later).getExpiringWithin(1, TimeUnit.MINUTES)));
+
+    histogram.remove(expiration, later);
+    ExpiryForecast forecast = histogram.forecast(later);
+    assertThat("Every address removed.", 0L, is(forecast.getTotal()));
+    assertThat("Nothing left to expire.", 0L, is(forecast.getExpiringWithin(
+        10, TimeUnit.DAYS)));
+  }
+
+  @Test
+  public void testRandomAgainstExactCounts() {
+    ExpiryHistogram histogram = new ExpiryHistogram();
+    Random random = new Random(42);
+    long[] expirations = new long[10000];
+    for (int i = 0; i < expirations.length; i++) {
+      expirations[i] = NOW + (long) (random.nextDouble() * 2 * 60 * 60 * 1000);
+      histogram.add(expirations[i], NOW);
+    }
+    for (int i = 0; i < expirations.length; i += 2) {
+      histogram.remove(expirations[i], NOW + 1000);
+    }
+
+    ExpiryForecast forecast = histogram.forecast(NOW);
+    for (long minutes : new long[] { 1, 10, 60 }) {
+      long exact = 0;
+      for (int i = 1; i < expirations.length; i += 2) {
+        if (expirations[i] < NOW + minutes * 60 * 1000) {
+          exact++;
+        }
+      }
+      long estimate = forecast.getExpiringWithin(minutes, TimeUnit.MINUTES);
+      assertThat("Within 2% of the exact count (" + exact + " vs. "
+          + estimate + ").", true, is(Math.abs(estimate - exact) <= Math.max(
+          10, exact / 50)));
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.redacted.NamespacedAddressCache.NamespacedAddressCacheBuilder;
+import com.redacted.ReadOptimizedAddressCache.ReadOptimizedAddressCacheBuilder;
+import com.redacted.SharedAddressCache.SharedAddressCacheBuilder;
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+
+/**
+ * Heap retained per cached address, by engine and configuration, against a
+ * budget per engine: containers are sized from these numbers, so growing one
+ * should be a deliberate change of its budget. The address objects count
+ * towards the footprint, since the cache holds the only reference to them.
+ * Bytes kept off the heap, in mapped or written files, count as well.
+ * Budgets are for the default layout of 4-byte references (compressed
+ * pointers, e.g. heaps under 32 GB), with some headroom for differences
+ * between JVMs, and double otherwise.
+ */
+public class FootprintTest {
+
+  /* Addresses offered per measurement. */
+  private static final int ADDRESSES = 20000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<AddressCache> caches = new ArrayList<>();
+
+  /**
+   * The kinds of address measured, in the order budgets are given.
+   */
+  private enum Kind {
+    IPV4("IPv4"), IPV6("IPv6"), IPV4_HOSTNAME("IPv4 with hostname"),
+    IPV6_HOSTNAME("IPv6 with hostname");
+
+    private final String label;
+
+    Kind(String label) {
+      this.label = label;
+    }
+  }
+
+  /**
+   * Builds an empty cache of the configuration measured.
+   */
+  private abstract static class CacheFactory {
+
+    abstract AddressCache build() throws Exception;
+
+    /**
+     * Returns the bytes the last cache built keeps off the heap, in mapped or
+     * written files. They are sized for the addresses, so all of them count
+     * towards the footprint. None by default.
+     */
+    long offHeapBytes() {
+      return 0;
+    }
+
+    /**
+     * Returns how many times each address is offered. Once by default.
+     */
+    int offersPerAddress() {
+      return 1;
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (AddressCache cache : caches) {
+      cache.close();
+    }
+  }
+
+  private static InetAddress address(Kind kind, int i) throws Exception {
+    byte[] bytes;
+    if (kind == Kind.IPV4 || kind == Kind.IPV4_HOSTNAME) {
+      bytes = new byte[] { 10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+    } else {
+      bytes = new byte[16];
+      bytes[0] = 0x20;
+      bytes[1] = 0x01;
+      bytes[2] = 0x0d;
+      bytes[3] = (byte) 0xb8;
+      bytes[13] = (byte) (i >>> 16);
+      bytes[14] = (byte) (i >>> 8);
+      bytes[15] = (byte) i;
+    }
+
+    if (kind == Kind.IPV4_HOSTNAME || kind == Kind.IPV6_HOSTNAME) {
+      return InetAddress.getByAddress("host-" + i + ".example.com", bytes);
+    }
+    return InetAddress.getByAddress(bytes);
+  }
+
+  /**
+   * Measures the heap retained per address of each kind, plus the bytes kept
+   * off the heap, and fails if any is over its budget.
+   *
+   * @param configuration
+   *          the engine and configuration, for messages
+   * @param budgets
+   *          the budget for each {@link Kind}, in bytes
+   */
+  private void assertWithinBudget(String configuration, CacheFactory factory,
+      long... budgets) throws Exception {
+    long scale = ObjectFootprint.REFERENCE_SIZE == 4 ? 1 : 2;
+    for (Kind kind : Kind.values()) {
+      AddressCache cache = factory.build();
+      caches.add(cache);
+      // the cache's fixed overhead cancels out
+      long before = ObjectFootprint.retainedBytes(cache);
+      for (int i = 0; i < ADDRESSES; i++) {
+        InetAddress address = address(kind, i); // one copy, however offered
+        for (int j = 0; j < factory.offersPerAddress(); j++) {
+          cache.offer(address);
+        }
+      }
+      assertThat("Every address cached.", ADDRESSES, is(cache.size()));
+      long heapPerAddress = (ObjectFootprint.retainedBytes(cache) - before)
+          / ADDRESSES;
+      long offHeapPerAddress = factory.offHeapBytes() / ADDRESSES;
+      long perAddress = heapPerAddress + offHeapPerAddress;
+
+      assertThat(configuration + ", " + kind.label + ": " + perAddress
+          + " bytes per address (" + offHeapPerAddress + " off the heap), "
+          + "over the budget of " + budgets[kind.ordinal()] * scale, true,
+          is(perAddress <= budgets[kind.ordinal()] * scale));
+    }
+  }
+
+  /**
+   * Returns the total length of the files in the given directory.
+   */
+  private static long directoryBytes(File directory) {
+    long bytes = 0;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        bytes += file.length();
+      }
+    }
+    return bytes;
+  }
+
+  @Test
+  public void testTimedAddressCache() throws Exception {
+    assertWithinBudget("TimedAddressCache", new CacheFactory() {
+
+      @Override
+      public AddressCache build() {
+        return new TimedAddressCacheBuilder().cleanupInitialDelay(1,
+            TimeUnit.HOURS).build();
+      }
+    }, 240, 310, 310, 380);
+  }
+
+  @Test
+  public void testTimedAddressCacheDeadlineOrder() throws Exception {
+    assertWithinBudget("TimedAddressCache, deadline order",
+        new CacheFactory() {
+
+          @Override
+          public AddressCache build() {
+            return new TimedAddressCacheBuilder().deadlineOrder()
+                .cleanupInitialDelay(1, TimeUnit.HOURS).build();
+          }
+        }, 300, 370, 370, 440);
+  }
+
+  @Test
+  public void testTimedAddressCacheThreadless() throws Exception {
+    assertWithinBudget("TimedAddressCache, threadless", new CacheFactory() {
+
+      @Override
+      public AddressCache build() {
+        return new TimedAddressCacheBuilder().threadless().build();
+      }
+    }, 240, 310, 310, 380);
+  }
+
+  @Test
+  public void testTimedAddressCacheTouchBuffer() throws Exception {
+    assertWithinBudget("TimedAddressCache, touch buffer", new CacheFactory() {
+
+      @Override
+      public AddressCache build() {
+        return new TimedAddressCacheBuilder().touchBuffer()
+            .cleanupInitialDelay(1, TimeUnit.HOURS).build();
+      }
+    }, 240, 310, 310, 380);
+  }
+
+  @Test
+  public void testTimedAddressCacheExpireAfterWrite() throws Exception {
+    assertWithinBudget("TimedAddressCache, expire after write",
+        new CacheFactory() {
+
+          @Override
+          public AddressCache build() {
+            return new TimedAddressCacheBuilder().expireAfterWrite()
+                .cleanupInitialDelay(1, TimeUnit.HOURS).build();
+          }
+        }, 240, 310, 310, 380);
+  }
+
+  @Test
+  public void testTimedAddressCacheExpireAfterAccess() throws Exception {
+    assertWithinBudget("TimedAddressCache, expire after access",
+        new CacheFactory() {
+
+          @Override
+          public AddressCache build() {
+            return new TimedAddressCacheBuilder().expireAfterAccess()
+                .cleanupInitialDelay(1, TimeUnit.HOURS).build();
+          }
+        }, 240, 310, 310, 380);
+  }
+
+  @Test
+  public void testTimedAddressCacheAdmission() throws Exception {
+    assertWithinBudget("TimedAddressCache, admission threshold",
+        new CacheFactory() {
+
+          @Override
+          public AddressCache build() {
+            return new TimedAddressCacheBuilder()
+                .admissionThreshold(2, ADDRESSES)
+                .cleanupInitialDelay(1, TimeUnit.HOURS).build();
+          }
+
+          @Override
+          int offersPerAddress() {
+            return 3; // admitted by the second or, if aging cleared the
+                      // first sighting, the third
+          }
+        }, 240, 310, 310, 380);
+  }
+
+  @Test
+  public void testTimedAddressCacheHeavyHitters() throws Exception {
+    assertWithinBudget("TimedAddressCache, heavy hitters", new CacheFactory() {
+
+      @Override
+      public AddressCache build() {
+        return new TimedAddressCacheBuilder().heavyHitters(100)
+            .cleanupInitialDelay(1, TimeUnit.HOURS).build();
+      }
+    }, 240, 310, 310, 380);
+  }
+
+  @Test
+  public void testTimedAddressCacheDiskTier() throws Exception {
+    assertWithinBudget("TimedAddressCache, disk tier", new CacheFactory() {
+
+      private File directory;
+
+      @Override
+      public AddressCache build() throws Exception {
+        // three quarters of the addresses are spilled to disk
+        directory = folder.newFolder();
+        return new TimedAddressCacheBuilder().diskTier(directory)
+            .maximumCapacity(ADDRESSES / 4)
+            .cleanupInitialDelay(1, TimeUnit.HOURS).build();
+      }
+
+      @Override
+      long offHeapBytes() {
+        return directoryBytes(directory);
+      }
+    }, 120, 150, 140, 170);
+  }
+
+  @Test
+  public void testReadOptimizedAddressCache() throws Exception {
+    assertWithinBudget("ReadOptimizedAddressCache", new CacheFactory() {
+
+      @Override
+      public AddressCache build() {
+        return new ReadOptimizedAddressCacheBuilder().cleanupInitialDelay(1,
+            TimeUnit.HOURS).build();
+      }
+    }, 190, 265, 265, 335);
+  }
+
+  @Test
+  public void testNamespacedAddressCache() throws Exception {
+    assertWithinBudget("NamespacedAddressCache", new CacheFactory() {
+
+      @Override
+      public AddressCache build() {
+        // the namespace reaches the container and the shared expiry index
+        return new NamespacedAddressCacheBuilder().cleanupInitialDelay(1,
+            TimeUnit.HOURS).build().namespace("tenant");
+      }
+    }, 200, 275, 275, 345);
+  }
+
+  @Test
+  public void testSharedAddressCache() throws Exception {
+    assertWithinBudget("SharedAddressCache", new CacheFactory() {
+
+      private File file;
+
+      @Override
+      public AddressCache build() throws Exception {
+        // addresses live in the mapped file, 48 bytes a slot, with 2 to 4
+        // times as many slots as the capacity
+        file = folder.newFile();
+        return new SharedAddressCacheBuilder().file(file)
+            .maximumCapacity(ADDRESSES).build();
+      }
+
+      @Override
+      long offHeapBytes() {
+        return file.length();
+      }
+    }, 210, 210, 210, 210);
+  }
+}
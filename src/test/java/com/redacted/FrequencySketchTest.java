@@ -0,0 +1,72 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.redacted.FrequencySketch.HeavyHitter;
+
+public class FrequencySketchTest {
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16),
+        (byte) (i >> 8), (byte) i });
+  }
+
+  @Test
+  public void testTopKFindsHotAddresses() throws Exception {
+    FrequencySketch sketch = new FrequencySketch(3);
+    for (int i = 0; i < 3000; i++) {
+      sketch.record(address(1));
+      if (i % 2 == 0) {
+        sketch.record(address(2));
+      }
+      if (i % 3 == 0) {
+        sketch.record(address(3));
+      }
+      sketch.record(address(100 + i)); // one-off noise
+    }
+
+    List<HeavyHitter> top = sketch.topK(3);
+    assertThat("Three heavy hitters are reported.", top.size(), is(3));
+    assertThat("The hottest address comes first.", top.get(0).getAddress(),
+        is(address(1)));
+    assertThat("Then the second hottest.", top.get(1).getAddress(),
+        is(address(2)));
+    assertThat("Then the third.", top.get(2).getAddress(), is(address(3)));
+  }
+
+  @Test
+  public void testEstimateNeverUndercounts() throws Exception {
+    FrequencySketch sketch = new FrequencySketch(1);
+    for (int i = 0; i < 50; i++) {
+      sketch.record(address(7));
+    }
+
+    assertThat("The estimate covers every occurrence.",
+        sketch.estimate(address(7)) >= 50, is(true));
+  }
+
+  @Test
+  public void testCountsAge() throws Exception {
+    FrequencySketch sketch = new FrequencySketch(1);
+    for (int i = 0; i < 1000; i++) {
+      sketch.record(address(1));
+    }
+    long before = sketch.topK(1).get(0).getEstimatedCount();
+
+    // 1024 counters per row age after 10240 recordings
+    for (int i = 0; i < 9240; i++) {
+      sketch.record(address(1000 + i));
+    }
+
+    assertThat("Old counts are halved (give or take collisions).",
+        sketch.estimate(address(1)) <= 600, is(true));
+    assertThat("So are the heavy hitters'.", sketch.topK(1).get(0)
+        .getEstimatedCount() < before, is(true));
+  }
+}
@@ -0,0 +1,170 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.redacted.NamespacedAddressCache.Namespace;
+import com.redacted.NamespacedAddressCache.NamespacedAddressCacheBuilder;
+
+public class NamespacedAddressCacheTest {
+
+  private static InetAddress add1;
+  private static InetAddress add2;
+  private static InetAddress add3;
+
+  private NamespacedAddressCache cache;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    add1 = InetAddress.getByName("161.74.139.24");
+    add2 = InetAddress.getByName("38.103.53.43");
+    add3 = InetAddress.getByName("134.239.164.154");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, (byte) (i >>> 16),
+        (byte) (i >>> 8), (byte) i });
+  }
+
+  @Test
+  public void testNamespacesAreIsolated() {
+    cache = new NamespacedAddressCacheBuilder().build();
+    Namespace a = cache.namespace("a");
+    Namespace b = cache.namespace("b");
+
+    assertThat("Offered to a.", true, is(a.offer(add1)));
+    assertThat("a contains it.", true, is(a.contains(add1)));
+    assertThat("b does not.", false, is(b.contains(add1)));
+    assertThat("The same name gives the same namespace.", true,
+        is(a == cache.namespace("a")));
+
+    b.offer(add2);
+    b.offer(add3);
+    assertThat("b is LIFO.", add3, is(b.remove()));
+    assertThat("Total size spans namespaces.", 2, is(cache.size()));
+  }
+
+  @Test
+  public void testQuotaRejects() {
+    cache = new NamespacedAddressCacheBuilder().defaultQuota(2).build();
+    Namespace a = cache.namespace("a");
+
+    a.offer(add1);
+    a.offer(add2);
+    assertThat("The quota is enforced.", false, is(a.offer(add3)));
+    assertThat("Rejections are counted.", 1L, is(a.getStats().getRejected()));
+    assertThat("Other namespaces have their own quota.", true, is(cache
+        .namespace("b").offer(add3)));
+  }
+
+  @Test
+  public void testBudgetEvictsLargestNamespace() throws Exception {
+    cache = new NamespacedAddressCacheBuilder().maximumCapacity(100).build();
+    Namespace noisy = cache.namespace("noisy");
+    Namespace quiet = cache.namespace("quiet");
+
+    for (int i = 0; i < 1000; i++) {
+      noisy.offer(address(i));
+    }
+    assertThat("The budget is shared.", 100, is(cache.size()));
+    assertThat("The noisy tenant made room from itself.", 900L,
+        is(noisy.getStats().getEvicted()));
+
+    for (int i = 0; i < 20; i++) {
+      assertThat("The quiet tenant is admitted.", true,
+          is(quiet.offer(address(5000 + i))));
+    }
+    assertThat("Still within budget.", 100, is(cache.size()));
+    assertThat("The quiet tenant kept its addresses.", 20, is(quiet.size()));
+    assertThat("Room came from the noisy tenant.", 80, is(noisy.size()));
+    assertThat("Its oldest addresses went first.", false,
+        is(noisy.contains(address(900))));
+    assertThat("Its newest stayed.", true, is(noisy.contains(address(999))));
+  }
+
+  @Test
+  public void testSharedCleanupExpiresEveryNamespace() throws Exception {
+    final AtomicLong now = new AtomicLong(1000000);
+    cache = new NamespacedAddressCacheBuilder()
+        .cleanupInitialDelay(10, TimeUnit.MILLISECONDS)
+        .cleanupRate(10, TimeUnit.MILLISECONDS).clock(new CacheClock() {
+
+          @Override
+          public long currentTimeMillis() {
+            return now.get();
+          }
+        }).build();
+
+    for (int i = 0; i < 50; i++) {
+      cache.namespace("tenant" + i).offer(
+          new TimedInetAddress(add1, new Date(now.get() + 1000)));
+    }
+    assertThat("One address per tenant.", 50, is(cache.size()));
+
+    now.addAndGet(2000);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cache.size() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat("The shared cleanup expired them all.", 0, is(cache.size()));
+    assertThat("Expirations are counted per tenant.", 1L,
+        is(cache.namespace("tenant7").getStats().getExpired()));
+  }
+
+  @Test
+  public void testCloseNamespaceReleasesTake() throws Exception {
+    cache = new NamespacedAddressCacheBuilder().build();
+    final Namespace a = cache.namespace("a");
+    final CountDownLatch failed = new CountDownLatch(1);
+    final AtomicReference<Exception> error = new AtomicReference<>();
+
+    Thread taker = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          a.take();
+        } catch (Exception e) {
+          error.set(e);
+          failed.countDown();
+        }
+      }
+    });
+    taker.start();
+    Thread.sleep(50);
+
+    a.close();
+    assertThat("take() was released.", true,
+        is(failed.await(1, TimeUnit.SECONDS)));
+    assertThat("With a clear exception.", true,
+        is(error.get() instanceof IllegalStateException));
+
+    try {
+      a.offer(add1);
+      fail("A closed namespace rejects operations.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertThat("The name can be reused.", true,
+        is(cache.namespace("a").offer(add1)));
+  }
+}
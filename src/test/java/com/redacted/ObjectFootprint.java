@@ -0,0 +1,187 @@
+package com.redacted;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import sun.misc.Unsafe;
+
+/**
+ * Measures the heap retained by an object graph from the running JVM's
+ * object layout: each object's size is worked out from its header size and
+ * field offsets (or array base offset and element size), as reported by
+ * {@link Unsafe}, rounded up to the object alignment. The walk does not
+ * enter classes, class loaders, threads or thread groups, which belong to the
+ * JVM rather than to the graph, nor the referents of weak and soft
+ * references. The graph should not change while it is measured. Like
+ * SharedMemory, it is compiled without the proprietary API warning for
+ * {@link Unsafe} (see pom.xml).
+ */
+final class ObjectFootprint {
+
+  /* Object alignment, the JVM default. */
+  private static final int ALIGNMENT = 8;
+
+  /* Size of a reference field or array element, 4 with compressed pointers. */
+  static final int REFERENCE_SIZE = Unsafe.ARRAY_OBJECT_INDEX_SCALE;
+
+  private static final Unsafe UNSAFE;
+  private static final int HEADER_SIZE;
+
+  static {
+    try {
+      Field field = Unsafe.class.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      UNSAFE = (Unsafe) field.get(null);
+      // the first field of an object starts right after the header
+      HEADER_SIZE = (int) UNSAFE.objectFieldOffset(Probe.class
+          .getDeclaredField("field"));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /* Per class, its instance fields and their offsets. */
+  private static final Map<Class<?>, Layout> LAYOUTS = Collections
+      .synchronizedMap(new HashMap<Class<?>, Layout>());
+
+  private ObjectFootprint() {
+  }
+
+  /**
+   * Returns the number of bytes of heap taken by the given object and every
+   * object reachable from it.
+   *
+   * @param root
+   *          the object
+   * @return the number of bytes
+   */
+  static long retainedBytes(Object root) {
+    Set<Object> visited = Collections
+        .newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    Deque<Object> pending = new ArrayDeque<>();
+    pending.push(root);
+    long bytes = 0;
+
+    while (!pending.isEmpty()) {
+      Object object = pending.pop();
+      if (!visited.add(object)) {
+        continue;
+      }
+
+      Class<?> type = object.getClass();
+      if (type.isArray()) {
+        int length = Array.getLength(object);
+        bytes += align(UNSAFE.arrayBaseOffset(type) + (long) length
+            * UNSAFE.arrayIndexScale(type));
+        if (!type.getComponentType().isPrimitive()) {
+          for (Object element : (Object[]) object) {
+            if (element != null && !isExcluded(element)) {
+              pending.push(element);
+            }
+          }
+        }
+        continue;
+      }
+
+      Layout layout = layout(type);
+      bytes += layout.size;
+      for (long offset : layout.referenceOffsets) {
+        Object referenced = UNSAFE.getObject(object, offset);
+        if (referenced != null && !isExcluded(referenced)) {
+          pending.push(referenced);
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static boolean isExcluded(Object object) {
+    return object instanceof Class || object instanceof ClassLoader
+        || object instanceof Thread || object instanceof ThreadGroup;
+  }
+
+  private static Layout layout(Class<?> type) {
+    Layout layout = LAYOUTS.get(type);
+    if (layout == null) {
+      layout = new Layout(type);
+      LAYOUTS.put(type, layout);
+    }
+    return layout;
+  }
+
+  private static long align(long size) {
+    return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+
+  /**
+   * The size of a class's instances, and where their references are.
+   */
+  private static final class Layout {
+
+    private final long size;
+    private final long[] referenceOffsets;
+
+    private Layout(Class<?> type) {
+      long end = HEADER_SIZE;
+      List<Long> references = new ArrayList<>();
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers())) {
+            continue;
+          }
+
+          long offset;
+          try {
+            offset = UNSAFE.objectFieldOffset(field);
+          } catch (UnsupportedOperationException e) {
+            continue; // hidden classes; their fields are not reported
+          }
+          end = Math.max(end, offset + sizeOf(field.getType()));
+          if (!field.getType().isPrimitive()
+              && !(c == Reference.class && field.getName().equals("referent"))) {
+            references.add(offset);
+          }
+        }
+      }
+
+      size = align(end);
+      referenceOffsets = new long[references.size()];
+      for (int i = 0; i < referenceOffsets.length; i++) {
+        referenceOffsets[i] = references.get(i);
+      }
+    }
+
+    private static int sizeOf(Class<?> type) {
+      if (type == long.class || type == double.class) {
+        return 8;
+      } else if (type == int.class || type == float.class) {
+        return 4;
+      } else if (type == short.class || type == char.class) {
+        return 2;
+      } else if (type == byte.class || type == boolean.class) {
+        return 1;
+      }
+      return REFERENCE_SIZE;
+    }
+  }
+
+  /**
+   * A class whose only field follows the object header.
+   */
+  private static final class Probe {
+
+    @SuppressWarnings("unused")
+    private byte field;
+  }
+}
@@ -0,0 +1,236 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.redacted.ReadOptimizedAddressCache.ReadOptimizedAddressCacheBuilder;
+
+public class ReadOptimizedAddressCacheTest {
+
+  private static InetAddress add1;
+  private static InetAddress add2;
+  private static InetAddress add3;
+  private static InetAddress add4;
+
+  private static Date pastDate;
+  private static Date futureDate;
+
+  private ReadOptimizedAddressCache cache;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    add1 = InetAddress.getByName("161.74.139.24");
+    add2 = InetAddress.getByName("38.103.53.43");
+    add3 = InetAddress.getByName("134.239.164.154");
+    add4 = InetAddress.getByName("205.189.163.68");
+
+    pastDate = new Date(1453569833129L);
+    futureDate = new Date(2147472000000L);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    Collection<TimedInetAddress> timedAddresses = new LinkedList<>();
+    timedAddresses.add(new TimedInetAddress(add1, futureDate));
+    timedAddresses.add(new TimedInetAddress(add2, futureDate));
+    timedAddresses.add(new TimedInetAddress(add3, pastDate));
+    cache = new ReadOptimizedAddressCacheBuilder().addTimedAddresses(
+        timedAddresses).build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    cache.close();
+  }
+
+  @Test
+  public void testContains() {
+    assertThat("Valid addresses are contained.", true,
+        is(cache.contains(add1)));
+    assertThat("Expired addresses are not.", false, is(cache.contains(add3)));
+    assertThat("Unknown addresses are not.", false, is(cache.contains(add4)));
+  }
+
+  @Test
+  public void testPeekSkipsExpired() {
+    assertThat("The newest unexpired address is peeked.", add2,
+        is(cache.peek()));
+  }
+
+  @Test
+  public void testPeekEmpty() {
+    ReadOptimizedAddressCache tCache = new ReadOptimizedAddressCacheBuilder()
+        .build();
+    assertThat("Peeking an empty cache returns null.", (Object) null,
+        is((Object) tCache.peek()));
+    tCache.close();
+  }
+
+  @Test
+  public void testOfferExisting() {
+    assertThat("Re-offers are not accepted.", false, is(cache.offer(add2)));
+    assertThat("The re-offered address moves to the front.", add1,
+        is(cache.peek()));
+  }
+
+  @Test
+  public void testOfferExpired() {
+    assertThat("An expired address can be offered again.", true,
+        is(cache.offer(add3)));
+    assertThat("It is now the newest address.", add3, is(cache.peek()));
+  }
+
+  @Test
+  public void testRemoveAddress() {
+    assertThat("Existing addresses are removed.", true,
+        is(cache.remove(add1)));
+    assertThat("Missing addresses are not.", false, is(cache.remove(add4)));
+    assertThat("Only the other address is left.", add2, is(cache.peek()));
+  }
+
+  @Test
+  public void testRemoveAndTake() throws Exception {
+    assertThat("Removes the newest unexpired address.", add2,
+        is(cache.remove()));
+    assertThat("Takes the next one.", add1, is(cache.take()));
+    assertThat("Nothing is left.", true, is(cache.isEmpty()));
+    assertThat("Removing from an empty cache returns null.", (Object) null,
+        is((Object) cache.remove()));
+  }
+
+  @Test
+  public void testTakeWaitsForOffer() throws Exception {
+    final ReadOptimizedAddressCache tCache = new ReadOptimizedAddressCacheBuilder()
+        .build();
+    final AtomicReference<InetAddress> taken = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          taken.set(tCache.take());
+        } catch (InterruptedException e) {
+          // leave taken unset
+        }
+        done.countDown();
+      }
+    }).start();
+
+    Thread.sleep(100);
+    tCache.offer(add4);
+    assertThat("The waiting take() receives the offered address.", true,
+        is(done.await(1, TimeUnit.SECONDS)));
+    assertThat("The address is the one offered.", add4, is(taken.get()));
+    tCache.close();
+  }
+
+  @Test
+  public void testCloseReleasesTake() throws Exception {
+    final ReadOptimizedAddressCache tCache = new ReadOptimizedAddressCacheBuilder()
+        .build();
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          tCache.take();
+        } catch (Exception e) {
+          failure.set(e);
+        }
+        done.countDown();
+      }
+    }).start();
+
+    Thread.sleep(100);
+    tCache.close();
+    assertThat("The waiting take() is released.", true,
+        is(done.await(1, TimeUnit.SECONDS)));
+    assertThat("It fails because the cache is closed.", true,
+        is(failure.get() instanceof IllegalStateException));
+  }
+
+  @Test
+  public void testMaximumCapacity() {
+    ReadOptimizedAddressCache tCache = new ReadOptimizedAddressCacheBuilder()
+        .maximumCapacity(1).build();
+    assertThat("Add one element.", true, is(tCache.offer(add1)));
+    assertThat("Cannot add second element (cache is at maximum capacity).",
+        false, is(tCache.offer(add2)));
+    tCache.close();
+  }
+
+  @Test
+  public void testCleanupTask() throws Exception {
+    assertThat("The expired address has not been evicted yet.", 3,
+        is(cache.size()));
+    Thread.sleep(1000);
+    assertThat("The cleanup task evicts the expired address.", 2,
+        is(cache.size()));
+  }
+
+  @Test
+  public void testConcurrentReadersAndWriters() throws Exception {
+    final ReadOptimizedAddressCache tCache = new ReadOptimizedAddressCacheBuilder()
+        .build();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread writer = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 20000; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[] { 10,
+                0, (byte) (i >> 8), (byte) i });
+            tCache.offer(address);
+            if (i % 3 == 0) {
+              tCache.remove();
+            }
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+    Thread reader = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 200000; i++) {
+            tCache.peek();
+            tCache.contains(add1);
+            tCache.size();
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+    writer.start();
+    reader.start();
+    writer.join();
+    reader.join();
+
+    if (failure.get() != null) {
+      fail("Concurrent access failed: " + failure.get());
+    }
+    tCache.close();
+  }
+}
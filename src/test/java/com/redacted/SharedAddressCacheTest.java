@@ -0,0 +1,236 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.redacted.SharedAddressCache.SharedAddressCacheBuilder;
+
+/**
+ * Each test opens the same file twice, standing in for two processes: the
+ * instances share nothing but the mapped file.
+ */
+public class SharedAddressCacheTest {
+
+  private static InetAddress add1;
+  private static InetAddress add2;
+  private static InetAddress add3;
+  private static InetAddress add6;
+
+  private static Date pastDate;
+  private static Date futureDate;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private SharedAddressCache first;
+  private SharedAddressCache second;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    add1 = InetAddress.getByName("161.74.139.24");
+    add2 = InetAddress.getByName("38.103.53.43");
+    add3 = InetAddress.getByName("134.239.164.154");
+    add6 = InetAddress.getByName("2001:db8::1");
+
+    pastDate = new Date(1453569833129L);
+    futureDate = new Date(2147472000000L);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    file = new File(folder.getRoot(), "addresses.cache");
+    first = builder().build();
+    second = builder().build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    first.close();
+    second.close();
+  }
+
+  private SharedAddressCacheBuilder builder() {
+    return new SharedAddressCacheBuilder().file(file).maximumCapacity(1000)
+        .cleanupRate(20, TimeUnit.MILLISECONDS);
+  }
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >>> 8),
+        (byte) i });
+  }
+
+  @Test
+  public void testSharedContents() throws Exception {
+    assertThat("Offered by one process.", true, is(first.offer(add1)));
+    assertThat("IPv6 too.", true, is(first.offer(add6)));
+    assertThat("Seen by the other.", true, is(second.contains(add1)));
+    assertThat("Seen by the other.", true, is(second.contains(add6)));
+    assertThat("Not offered.", false, is(second.contains(add2)));
+    assertThat("Same size.", 2, is(second.size()));
+
+    assertThat("Already cached for the other.", false, is(second.offer(add1)));
+    assertThat("LIFO across processes.", add6, is(second.remove()));
+    assertThat("Removed for both.", false, is(first.contains(add6)));
+    assertThat("Remove by address.", true, is(second.remove(add1)));
+    assertThat("Both are empty.", true, is(first.isEmpty()));
+  }
+
+  @Test
+  public void testLifoOrder() throws Exception {
+    first.offer(add1);
+    second.offer(add2);
+    first.offer(add3);
+    assertThat("Newest first.", add3, is(second.peek()));
+
+    second.offer(add3); // moves to the front
+    assertThat("Re-offered address is retrieved last.", add2,
+        is(first.remove()));
+    assertThat("Then.", add1, is(first.remove()));
+    assertThat("Then.", add3, is(first.remove()));
+    assertThat("Then nothing.", (Object) null, is((Object) first.remove()));
+  }
+
+  @Test
+  public void testNewProcessStartsWarm() throws Exception {
+    first.offer(add1);
+    second.offer(add2);
+    first.close();
+    second.close();
+
+    SharedAddressCache third = builder().maximumCapacity(5).build();
+    try {
+      assertThat("The file's capacity wins.", 1000,
+          is(third.getMaximumCapacity()));
+      assertThat("Contents survive.", add2, is(third.peek()));
+      assertThat("Contents survive.", true, is(third.contains(add1)));
+    } finally {
+      third.close();
+    }
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    first.offer(new TimedInetAddress(add1, futureDate));
+    first.offer(new TimedInetAddress(add2, pastDate));
+    assertThat("Expired addresses are not seen.", false,
+        is(second.contains(add2)));
+    assertThat("Or retrieved.", add1, is(second.remove()));
+    assertThat("Or removed.", false, is(second.remove(add2)));
+  }
+
+  @Test
+  public void testOneSweeper() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      second.offer(new TimedInetAddress(address(i), new Date(System
+          .currentTimeMillis() + 50)));
+    }
+    Thread.sleep(300);
+
+    assertThat("Exactly one process sweeps.", true,
+        is(first.isSweeper() != second.isSweeper()));
+    assertThat("Expired addresses are swept.", 0, is(first.size()));
+
+    SharedAddressCache sweeper = first.isSweeper() ? first : second;
+    SharedAddressCache other = sweeper == first ? second : first;
+    sweeper.close();
+    Thread.sleep(200);
+    assertThat("The other takes over.", true, is(other.isSweeper()));
+  }
+
+  @Test
+  public void testCapacityAndProbing() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      assertThat("Offered.", true, is(first.offer(address(i))));
+    }
+    assertThat("Full.", false, is(second.offer(add1)));
+
+    for (int i = 0; i < 1000; i += 2) {
+      assertThat("Removed.", true, is(second.remove(address(i))));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertThat("Probe sequences survive removals.", i % 2 == 1,
+          is(first.contains(address(i))));
+    }
+    for (int i = 999; i > 0; i -= 2) {
+      assertThat("List survives slots moving.", address(i), is(first.remove()));
+    }
+  }
+
+  @Test
+  public void testTakeWokenByOtherProcess() throws Exception {
+    final AtomicReference<InetAddress> taken = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          taken.set(first.take());
+        } catch (InterruptedException e) {
+          // fall through
+        }
+        done.countDown();
+      }
+    }.start();
+
+    Thread.sleep(50);
+    second.offer(add1);
+    assertThat("take() returns.", true, is(done.await(1, TimeUnit.SECONDS)));
+    assertThat("With the other process's address.", add1, is(taken.get()));
+  }
+
+  @Test
+  public void testDeadHolderIsTakenOver() throws Exception {
+    first.offer(add1);
+    first.offer(add2);
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      SharedMemory memory = new SharedMemory(channel.map(
+          FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+      memory.putLongVolatile(16, 12345); // a token nobody will release
+      memory.putLongVolatile(24, memory.getLongVolatile(24) + 1); // mid-change
+    }
+
+    long start = System.nanoTime();
+    assertThat("The lock is taken over.", true, is(second.offer(add3)));
+    assertThat("Only after the timeout.", true, is(System.nanoTime() - start
+        >= TimeUnit.SECONDS.toNanos(4)));
+    assertThat("The rebuilt table keeps the addresses.", add3,
+        is(first.remove()));
+    assertThat("In order.", add2, is(first.remove()));
+    assertThat("All of them.", add1, is(first.remove()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testForeignFile() throws Exception {
+    File foreign = folder.newFile("foreign");
+    try (FileOutputStream out = new FileOutputStream(foreign)) {
+      out.write(new byte[4096]);
+    }
+    new SharedAddressCacheBuilder().file(foreign).build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosed() throws Exception {
+    first.close();
+    first.offer(add1);
+  }
+}
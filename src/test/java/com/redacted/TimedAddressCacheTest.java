@@ -5,14 +5,27 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -290,6 +303,15 @@ public class TimedAddressCacheTest {
         cache.peek(), is(add20));
   }
 
+  @Test
+  public void testPeekEmpty() {
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .build();
+    assertThat("Peeking an empty cache returns null.", (Object) null,
+        is((Object) tCache.peek()));
+    tCache.close();
+  }
+
   @Test
   public void testRemove() {
     assertThat(
@@ -338,6 +360,245 @@ public class TimedAddressCacheTest {
     }
   }
 
+  @Test
+  public void testCleanupScheduledByExpiry() throws Exception {
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .cleanupInitialDelay(0, TimeUnit.MILLISECONDS)
+        .cleanupRate(1, TimeUnit.HOURS).build();
+    tCache.offer(new TimedInetAddress(add1, new Date(
+        System.currentTimeMillis() + 200)));
+    tCache.offer(add2);
+    assertThat("Both addresses are cached.", 2, is(tCache.size()));
+
+    Thread.sleep(1000);
+    assertThat(
+        "The expiring address is evicted long before the cleanup rate is up.",
+        false, is(tCache.contains(add1)));
+    assertThat("The other address stays.", 1, is(tCache.size()));
+    tCache.close();
+  }
+
+  @Test
+  public void testCleanupPauseBudget() throws Exception {
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .addAddresses(addresses).addTimedAddresses(timedAddresses)
+        .cleanupPauseBudget(1, TimeUnit.NANOSECONDS).build();
+    Thread.sleep(1000);
+    assertThat(
+        "Runs cut short by the budget still evict every expired address.",
+        15, is(tCache.size()));
+    tCache.close();
+  }
+
+  @Test
+  public void testThreadlessStartsNoThreads() {
+    Collection<Thread> before = Thread.getAllStackTraces().keySet();
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .addAddresses(addresses).addTimedAddresses(timedAddresses)
+        .threadless().build();
+    tCache.offer(add1);
+    tCache.peek();
+
+    Collection<Thread> started = new LinkedList<>(Thread.getAllStackTraces()
+        .keySet());
+    started.removeAll(before);
+    assertThat("No threads are started for the cache.", true,
+        is(started.isEmpty()));
+    tCache.close();
+  }
+
+  @Test
+  public void testThreadlessNeverReturnsExpired() throws Exception {
+    Collection<TimedInetAddress> expiredLast = new LinkedList<>();
+    expiredLast.add(tAddValid6);
+    expiredLast.add(tAddExpired1);
+    expiredLast.add(tAddExpired2);
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .addTimedAddresses(expiredLast).threadless().build();
+
+    assertThat("Expired addresses are not contained.", false,
+        is(tCache.contains(add11)));
+    assertThat("Peek skips expired addresses.", add16, is(tCache.peek()));
+    assertThat("Take skips expired addresses.", add16, is(tCache.take()));
+    assertThat("Nothing valid is left.", (Object) null,
+        is((Object) tCache.remove()));
+    assertThat("Expired addresses are evicted along the way.", true,
+        is(tCache.isEmpty()));
+    tCache.close();
+  }
+
+  @Test
+  public void testThreadlessSweepsOnOperations() throws Exception {
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .addAddresses(addresses).addTimedAddresses(timedAddresses)
+        .threadless().build();
+    assertThat("Nothing is swept before the cache is used.", 20,
+        is(tCache.size()));
+
+    tCache.contains(add1);
+    assertThat("A single operation sweeps the due addresses.", 15,
+        is(tCache.size()));
+    assertThat("Expired addresses can be offered again.", true,
+        is(tCache.offer(add11)));
+    tCache.close();
+  }
+
+  @Test
+  public void testTopK() {
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .heavyHitters(2).build();
+    for (int i = 0; i < 10; i++) {
+      tCache.offer(add1);
+      if (i % 2 == 0) {
+        tCache.contains(add2);
+      }
+    }
+    tCache.offer(add3);
+
+    assertThat("The hottest address comes first.", add1, is(tCache.topK(2)
+        .get(0).getAddress()));
+    assertThat("Lookups count too.", add2, is(tCache.topK(2).get(1)
+        .getAddress()));
+    tCache.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testTopKNotEnabled() {
+    cache.topK(1);
+  }
+
+  @Test
+  public void testAdmissionThreshold() throws Exception {
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .maximumCapacity(10).admissionThreshold(2, 1000).build();
+    assertThat("Even with room, the first offer is not admitted.", false,
+        is(tCache.offer(add1)));
+    assertThat("Nothing is cached.", 0, is(tCache.size()));
+    assertThat("The second offer is.", true, is(tCache.offer(add1)));
+    assertThat("The address is now cached.", add1, is(tCache.peek()));
+    assertThat("Re-offers are not filtered.", false, is(tCache.offer(add1)));
+    assertThat("It stays cached.", 1, is(tCache.size()));
+    tCache.close();
+  }
+
+  @Test
+  public void testAdmissionSightingsFade() throws Exception {
+    File directory = File.createTempFile("tier", "");
+    directory.delete();
+    TimedAddressCache tCache = new TimedAddressCache.TimedAddressCacheBuilder()
+        .maximumCapacity(1).diskTier(directory).admissionThreshold(2, 100)
+        .build();
+    tCache.offer(add2);
+    tCache.offer(add1);
+    for (int i = 0; i < 100; i++) { // a window of other offers
+      tCache.offer(InetAddress.getByAddress(new byte[] { 10, 2, 0, (byte) i }));
+    }
+
+    assertThat("The earlier sighting has faded.", false,
+        is(tCache.offer(add1)));
+    assertThat("Recent ones count.", true, is(tCache.offer(add1)));
+    tCache.close();
+    directory.delete();
+  }
+
+  @Test
+  public void testAdmissionThresholdResistsScans() throws Exception {
+    InetAddress[] hot = { add1, add2, add3, add4, add5 };
+    File filteredDirectory = File.createTempFile("tier", "");
+    filteredDirectory.delete();
+    File unfilteredDirectory = File.createTempFile("tier", "");
+    unfilteredDirectory.delete();
+    TimedAddressCache filtered = new TimedAddressCache.TimedAddressCacheBuilder()
+        .maximumCapacity(10).diskTier(filteredDirectory)
+        .admissionThreshold(2, 1000).build();
+    TimedAddressCache unfiltered = new TimedAddressCache.TimedAddressCacheBuilder()
+        .maximumCapacity(10).diskTier(unfilteredDirectory).build();
+    for (InetAddress address : hot) {
+      filtered.offer(address);
+      filtered.offer(address); // admitted on the second sighting
+      unfiltered.offer(address);
+    }
+
+    for (int i = 0; i < 500; i++) { // a burst of one-off addresses
+      InetAddress scanned = InetAddress.getByAddress(new byte[] { 10, 1,
+          (byte) (i >> 8), (byte) i });
+      filtered.offer(scanned);
+      unfiltered.offer(scanned);
+    }
+
+    int filteredInMemory = 0;
+    for (TimedInetAddress timedAddress : filtered.snapshot()) {
+      filteredInMemory += Arrays.asList(hot).contains(
+          timedAddress.getInetAddress()) ? 1 : 0;
+    }
+    int unfilteredInMemory = 0;
+    for (TimedInetAddress timedAddress : unfiltered.snapshot()) {
+      unfilteredInMemory += Arrays.asList(hot).contains(
+          timedAddress.getInetAddress()) ? 1 : 0;
+    }
+    assertThat("Scanned addresses push the hot set to disk without a filter.",
+        0, is(unfilteredInMemory));
+    assertThat("With a filter, the hot set stays in memory.", hot.length,
+        is(filteredInMemory));
+    filtered.close();
+    unfiltered.close();
+    filteredDirectory.delete();
+    unfilteredDirectory.delete();
+  }
+
+  @Test
+  public void testAdmissionThresholdKeepsScansOutOfFreeSlots()
+      throws Exception {
+    TimedAddressCache filtered = new TimedAddressCache.TimedAddressCacheBuilder()
+        .maximumCapacity(100).admissionThreshold(2, 1000).build();
+    TimedAddressCache unfiltered = new TimedAddressCache.TimedAddressCacheBuilder()
+        .maximumCapacity(100).build();
+
+    int scanned = 0;
+    for (; scanned < 1000; scanned++) { // a burst of one-off addresses
+      InetAddress address = InetAddress.getByAddress(new byte[] { 10, 1,
+          (byte) (scanned >> 8), (byte) scanned });
+      filtered.offer(address);
+      unfiltered.offer(address);
+    }
+
+    int filteredHits = 0;
+    int unfilteredHits = 0;
+    int requests = 0;
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 50; i++) { // a hot set, offered when missing
+        InetAddress address = InetAddress.getByAddress(new byte[] { 10, 2,
+            0, (byte) i });
+        requests++;
+        if (filtered.contains(address)) {
+          filteredHits++;
+        } else {
+          filtered.offer(address);
+        }
+        if (unfiltered.contains(address)) {
+          unfilteredHits++;
+        } else {
+          unfiltered.offer(address);
+        }
+      }
+      for (int i = 0; i < 100; i++, scanned++) { // and the scan goes on
+        InetAddress address = InetAddress.getByAddress(new byte[] { 10, 1,
+            (byte) (scanned >> 8), (byte) scanned });
+        filtered.offer(address);
+        unfiltered.offer(address);
+      }
+    }
+
+    assertThat("Without a filter, the scan takes every slot.", 0,
+        is(unfilteredHits));
+    // at best 18 of 20 rounds, less the slots false positives let in
+    assertThat("With one, most of the hot set gets in on its second request "
+        + "and hits from then on: " + filteredHits + " of " + requests, true,
+        is(filteredHits >= requests * 3 / 4));
+    filtered.close();
+    unfiltered.close();
+  }
+
   @Test
   public void testIsEmpty() {
     assertThat("Initial cache size is not empty.", true,
@@ -353,4 +614,863 @@ public class TimedAddressCacheTest {
     assertThat("Cannot add second element (cache is at maximum capacity).",
         true, is(not(tCache.offer(add2))));
   }
+
+  @Test
+  public void testBulkLoadFromIterator() throws Exception {
+    int n = 50000; // enough to split across fork/join tasks
+    Collection<InetAddress> bulk = new LinkedList<>();
+    for (int i = 0; i < n; i++) {
+      bulk.add(InetAddress.getByAddress(new byte[] { 10, (byte) (i >>> 16),
+          (byte) (i >>> 8), (byte) i }));
+    }
+
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .expectedAddresses(n).addAddresses(bulk.iterator()).threadless()
+        .build();
+    assertThat("Every address was loaded.", n, is(tCache.size()));
+    assertThat("Every address is contained.", true,
+        is(tCache.contains(InetAddress.getByName("10.0.0.0"))));
+    assertThat("Insertion order is kept.",
+        InetAddress.getByName("10.0.195.79"), is(tCache.peek()));
+    tCache.close();
+  }
+
+  @Test
+  public void testBulkLoadDuplicateKeepsLatestExpiration() throws Exception {
+    Collection<TimedInetAddress> duplicates = new LinkedList<>();
+    duplicates.add(new TimedInetAddress(add1, futureDate1));
+    duplicates.add(new TimedInetAddress(add1, pastDate1));
+
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .addTimedAddresses(duplicates.iterator()).threadless().build();
+    assertThat("The latest expiration date wins.", true,
+        is(tCache.contains(add1)));
+    tCache.close();
+  }
+
+  @Test
+  public void testMaintenanceKeepsMappedExpiration() throws Exception {
+    Collection<TimedInetAddress> duplicates = new LinkedList<>();
+    duplicates.add(new TimedInetAddress(add1, futureDate1));
+    duplicates.add(new TimedInetAddress(add1, pastDate1));
+
+    // the deque keeps both; the maintenance task must not re-map the older
+    final CountDownLatch expired = new CountDownLatch(1);
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .addTimedAddresses(duplicates.iterator())
+        .maintenanceInitialDelay(10, TimeUnit.MILLISECONDS)
+        .cleanupInitialDelay(300, TimeUnit.MILLISECONDS)
+        .listener(new CacheListenerAdapter() {
+
+          @Override
+          public void expired(InetAddress address) {
+            expired.countDown();
+          }
+        }).build();
+
+    assertThat("Maintenance runs, then the cleanup, which expires nothing.",
+        false, is(expired.await(600, TimeUnit.MILLISECONDS)));
+    tCache.close();
+  }
+
+  @Test
+  public void testListenerGetsChangesToAnAddressInOrder() throws Exception {
+    final List<String> changes = Collections
+        .synchronizedList(new ArrayList<String>());
+    final CountDownLatch reporting = new CountDownLatch(1);
+    final TimedAddressCache tCache = new TimedAddressCacheBuilder().listener(
+        new CacheListenerAdapter() {
+
+          @Override
+          public void offered(TimedInetAddress timedAddress) {
+            reporting.countDown();
+            try {
+              Thread.sleep(200); // a slow report, overtaken without the lock
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            changes.add("offered");
+          }
+
+          @Override
+          public void removed(InetAddress address) {
+            changes.add("removed");
+          }
+        }).build();
+
+    Thread offering = new Thread() {
+
+      @Override
+      public void run() {
+        tCache.offer(add1);
+      }
+    };
+    offering.start();
+    reporting.await();
+    assertThat("Removed once offered.", true, is(tCache.remove(add1)));
+    offering.join();
+
+    assertThat("Reported in the order made.",
+        Arrays.asList("offered", "removed"), is(changes));
+    tCache.close();
+  }
+
+  @Test
+  public void testBulkLoadFromFile() throws Exception {
+    File file = File.createTempFile("addresses", ".txt");
+    file.deleteOnExit();
+    try (Writer writer = new FileWriter(file)) {
+      writer.write("# addresses\n161.74.139.24\n\n2001:db8::1\n");
+    }
+
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .addAddresses(file).build();
+    assertThat("Both lines were loaded.", 2, is(tCache.size()));
+    assertThat("IPv6 literals are parsed.", true,
+        is(tCache.contains(InetAddress.getByName("2001:db8::1"))));
+    tCache.close();
+
+    try (Writer writer = new FileWriter(file)) {
+      writer.write("example.com\n");
+    }
+    try {
+      new TimedAddressCacheBuilder().addAddresses(file);
+      fail("Host names are not looked up.");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPutWaitsForTake() throws Exception {
+    final TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .maximumCapacity(1).build();
+    tCache.offer(add1);
+
+    final CountDownLatch added = new CountDownLatch(1);
+    Thread producer = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          tCache.put(add2);
+          added.countDown();
+        } catch (InterruptedException e) {
+          // test fails below
+        }
+      }
+    });
+    producer.start();
+
+    assertThat("put() waits while the cache is full.", false,
+        is(added.await(100, TimeUnit.MILLISECONDS)));
+    assertThat("take() frees space.", add1, is(tCache.take()));
+    assertThat("The producer is woken.", true,
+        is(added.await(1, TimeUnit.SECONDS)));
+    assertThat("Its address was added.", true, is(tCache.contains(add2)));
+    tCache.close();
+  }
+
+  @Test
+  public void testOfferTimeout() throws Exception {
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .maximumCapacity(1).build();
+    tCache.offer(add1);
+
+    long start = System.nanoTime();
+    assertThat("The offer times out on a full cache.", false,
+        is(tCache.offer(add2, 50, TimeUnit.MILLISECONDS)));
+    assertThat("After waiting.", true,
+        is(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50)));
+    assertThat("Re-offers do not wait.", false,
+        is(tCache.offer(add1, 1, TimeUnit.DAYS)));
+    tCache.close();
+  }
+
+  @Test
+  public void testOfferWaitsForExpiry() throws Exception {
+    for (boolean threadless : new boolean[] { false, true }) {
+      TimedAddressCacheBuilder builder = new TimedAddressCacheBuilder()
+          .maximumCapacity(1).cleanupInitialDelay(0, TimeUnit.MILLISECONDS);
+      TimedAddressCache tCache = threadless ? builder.threadless().build()
+          : builder.build();
+      tCache.offer(new TimedInetAddress(add1, new Date(System
+          .currentTimeMillis() + 100)));
+
+      assertThat("Expiry frees space for a waiting offer.", true,
+          is(tCache.offer(add2, 5, TimeUnit.SECONDS)));
+      assertThat("The expired address is gone.", false,
+          is(tCache.contains(add1)));
+      tCache.close();
+    }
+  }
+
+  @Test
+  public void testDeadlineOrder() throws Exception {
+    long now = System.currentTimeMillis();
+    TimedAddressCache tCache = new TimedAddressCacheBuilder().deadlineOrder()
+        .build();
+    tCache.offer(new TimedInetAddress(add1, new Date(now + 30000)));
+    tCache.offer(new TimedInetAddress(add2, new Date(now + 10000)));
+    tCache.offer(new TimedInetAddress(add3, new Date(now + 20000)));
+    tCache.offer(new TimedInetAddress(add4, new Date(now + 40000)));
+
+    assertThat("The soonest to expire is next.", add2, is(tCache.peek()));
+    assertThat("Re-offers do not change the order.", false,
+        is(tCache.offer(add4)));
+    assertThat("Still the soonest.", add2, is(tCache.peek()));
+
+    assertThat("Any address can be removed.", true, is(tCache.remove(add2)));
+    assertThat("The next soonest follows.", add3, is(tCache.remove()));
+    assertThat("Then the next.", add1, is(tCache.take()));
+    assertThat("One left.", 1, is(tCache.size()));
+    tCache.close();
+  }
+
+  @Test
+  public void testDeadlineOrderPollCold() throws Exception {
+    AddressOrder order = new AddressOrder.Deadline(10);
+    order.offer(tAddValid8);
+    order.offer(tAddValid6);
+    order.offer(tAddValid7);
+
+    assertThat("The address expiring last.", tAddValid8, is(order.pollCold()));
+    assertThat("Then the next latest.", tAddValid7, is(order.pollCold()));
+    assertThat("The heap order is kept.", tAddValid6, is(order.poll()));
+    assertThat("Nothing is left.", (Object) null, is((Object) order.pollCold()));
+  }
+
+  @Test
+  public void testDeadlineOrderBulkLoad() throws Exception {
+    long now = System.currentTimeMillis();
+    Collection<TimedInetAddress> bulk = new LinkedList<>();
+    for (int i = 0; i < 1000; i++) {
+      bulk.add(new TimedInetAddress(InetAddress.getByAddress(new byte[] { 10,
+          0, (byte) (i >>> 8), (byte) i }), new Date(now + 1000000
+          - (i * 7919 % 1000) * 1000)));
+    }
+
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .addTimedAddresses(bulk).deadlineOrder().threadless().build();
+    long previous = 0;
+    InetAddress address;
+    while ((address = tCache.remove()) != null) {
+      long expiration = 0;
+      for (TimedInetAddress timedAddress : bulk) {
+        if (timedAddress.getInetAddress().equals(address)) {
+          expiration = timedAddress.getExpirationDate().getTime();
+        }
+      }
+      assertThat("Addresses come out in deadline order.", true,
+          is(expiration >= previous));
+      previous = expiration;
+    }
+    assertThat("Every address came out.", 0, is(tCache.size()));
+    tCache.close();
+  }
+
+  @Test
+  public void testDiskTier() throws Exception {
+    File directory = File.createTempFile("tier", "");
+    directory.delete();
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .maximumCapacity(2).diskTier(directory).threadless().build();
+
+    assertThat("Offered.", true, is(tCache.offer(add1)));
+    assertThat("Offered.", true, is(tCache.offer(add2)));
+    assertThat("Room is made by spilling to disk.", true,
+        is(tCache.offer(add3)));
+    assertThat("Both tiers count.", 3, is(tCache.size()));
+    assertThat("Memory holds the newest.", add3, is(tCache.peek()));
+
+    assertThat("contains() falls through to disk.", true,
+        is(tCache.contains(add1)));
+    assertThat("And promotes the address.", add1, is(tCache.peek()));
+    assertThat("Re-offers find addresses on disk.", false,
+        is(tCache.offer(add2)));
+    assertThat("remove() falls through to disk.", true,
+        is(tCache.remove(add3)));
+    assertThat("Two are left.", 2, is(tCache.size()));
+
+    tCache.close();
+    assertThat("The disk tier is deleted on close.", 0,
+        is(directory.listFiles().length));
+    directory.delete();
+  }
+
+  @Test
+  public void testDiskTierRetrievalFallsBackToDisk() throws Exception {
+    File directory = File.createTempFile("tier", "");
+    directory.delete();
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .maximumCapacity(2).diskTier(directory).build();
+    InetAddress[] addresses = new InetAddress[6];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i });
+      tCache.offer(addresses[i]);
+    }
+
+    for (int i = addresses.length - 1; i >= 3; i--) {
+      assertThat("remove() goes on to disk in order.", addresses[i],
+          is(tCache.remove()));
+    }
+    assertThat("peek() refills memory from disk.", addresses[2],
+        is(tCache.peek()));
+    for (int i = 2; i >= 0; i--) {
+      assertThat("take() goes on to disk without blocking.", addresses[i],
+          is(tCache.take()));
+    }
+    assertThat("Both tiers are empty.", 0, is(tCache.size()));
+    assertThat("Nothing is left.", null, is(tCache.remove()));
+
+    tCache.close();
+    directory.delete();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDiskTierWithDeadlineOrder() throws Exception {
+    new TimedAddressCacheBuilder().deadlineOrder()
+        .diskTier(new File("unused")).build();
+  }
+
+  @Test
+  public void testTouchBufferKeepsOrder() throws Exception {
+    TimedAddressCache eager = new TimedAddressCacheBuilder().build();
+    TimedAddressCache buffered = new TimedAddressCacheBuilder().touchBuffer()
+        .build();
+    InetAddress[] addresses = new InetAddress[100];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i });
+      eager.offer(addresses[i]);
+      buffered.offer(addresses[i]);
+    }
+    for (int i = 0; i < 1000; i++) {
+      InetAddress address = addresses[i * 7919 % 13];
+      assertThat("Re-offers are not accepted.", false,
+          is(buffered.offer(address)));
+      eager.offer(address);
+    }
+    buffered.remove(addresses[5]); // re-offered, then removed
+    eager.remove(addresses[5]);
+
+    assertThat("Same order once drained.", eager.snapshot(),
+        is(buffered.snapshot()));
+    for (int i = 0; i < addresses.length - 1; i++) {
+      assertThat("Same retrieval order.", eager.remove(), is(buffered.remove()));
+    }
+    assertThat("Removed addresses are not brought back.", true,
+        is(buffered.isEmpty()));
+    eager.close();
+    buffered.close();
+  }
+
+  @Test
+  public void testTouchBufferKeepsOrderAcrossThreads() throws Exception {
+    TimedAddressCache eager = new TimedAddressCacheBuilder().build();
+    final TimedAddressCache buffered = new TimedAddressCacheBuilder()
+        .touchBuffer().build();
+    final InetAddress[] addresses = new InetAddress[50];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i });
+      eager.offer(addresses[i]);
+      buffered.offer(addresses[i]);
+    }
+
+    // threads take turns, so the re-offers have one order, but land in
+    // different stripes
+    final int threads = 4;
+    final int reoffers = 4000;
+    final AtomicInteger turn = new AtomicInteger();
+    Thread[] reoffering = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int first = t;
+      reoffering[t] = new Thread() {
+
+        @Override
+        public void run() {
+          for (int i = first; i < reoffers; i += threads) {
+            while (turn.get() != i) {
+              Thread.yield();
+            }
+            buffered.offer(addresses[i * 7919 % 37]);
+            turn.incrementAndGet();
+          }
+        }
+      };
+      reoffering[t].start();
+    }
+    for (Thread thread : reoffering) {
+      thread.join();
+    }
+    for (int i = 0; i < reoffers; i++) {
+      eager.offer(addresses[i * 7919 % 37]);
+    }
+
+    assertThat("Same order as eager moves across threads.", eager.snapshot(),
+        is(buffered.snapshot()));
+    eager.close();
+    buffered.close();
+  }
+
+  @Test
+  public void testTouchBufferUnderContention() throws Exception {
+    final TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .touchBuffer().build();
+    final InetAddress[] hot = { add1, add2, add3 };
+    for (InetAddress address : hot) {
+      tCache.offer(address);
+    }
+    tCache.offer(add4);
+
+    final CountDownLatch done = new CountDownLatch(8);
+    for (int t = 0; t < 8; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100000; i++) {
+            tCache.offer(hot[i % hot.length]);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertThat("Producers finish.", true, is(done.await(30, TimeUnit.SECONDS)));
+
+    assertThat("No duplicates.", 4, is(tCache.size()));
+    assertThat("Hot addresses are behind the cold one.", add4,
+        is(tCache.remove()));
+    assertThat("The hot addresses are still there.", 3, is(tCache.snapshot()
+        .size()));
+    tCache.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testTouchBufferWithDeadlineOrder() throws Exception {
+    new TimedAddressCacheBuilder().deadlineOrder().touchBuffer().build();
+  }
+
+  @Test
+  public void testCloseRejectsCalls() throws Exception {
+    TimedAddressCache tCache = new TimedAddressCacheBuilder().build();
+    tCache.offer(add1);
+    assertThat("Open.", TimedAddressCache.State.OPEN, is(tCache.getState()));
+    tCache.close();
+    assertThat("Closed.", TimedAddressCache.State.CLOSED,
+        is(tCache.getState()));
+
+    try {
+      tCache.offer(add2);
+      fail("Expected offer() to be rejected.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      tCache.contains(add1);
+      fail("Expected contains() to be rejected.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      tCache.take();
+      fail("Expected take() to be rejected.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    tCache.close(); // no effect
+  }
+
+  @Test
+  public void testCloseWakesBlockedThreads() throws Exception {
+    for (TimedAddressCacheBuilder builder : new TimedAddressCacheBuilder[] {
+        new TimedAddressCacheBuilder().maximumCapacity(1),
+        new TimedAddressCacheBuilder().maximumCapacity(1).deadlineOrder() }) {
+      final TimedAddressCache empty = builder.build();
+      final TimedAddressCache full = new TimedAddressCacheBuilder()
+          .maximumCapacity(1).build();
+      full.offer(add1);
+
+      final CountDownLatch rejected = new CountDownLatch(5);
+      for (int i = 0; i < 5; i++) {
+        final boolean taker = i < 4;
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              if (taker) {
+                empty.take();
+              } else {
+                full.put(add2);
+              }
+            } catch (IllegalStateException e) {
+              rejected.countDown();
+            } catch (InterruptedException e) {
+              // test fails below
+            }
+          }
+        }.start();
+      }
+      Thread.sleep(100);
+
+      long start = System.nanoTime();
+      empty.close();
+      full.close();
+      assertThat("Every blocked thread is woken and rejected.", true,
+          is(rejected.await(1, TimeUnit.SECONDS)));
+      assertThat("Right away.", true,
+          is(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+  }
+
+  @Test
+  public void testLifoCloseWakesWithoutInterrupting() throws Exception {
+    final AddressOrder order = new AddressOrder.Lifo(1);
+    final AtomicInteger rejected = new AtomicInteger();
+    final AtomicInteger interrupted = new AtomicInteger();
+    List<Thread> takers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread taker = new Thread() {
+        @Override
+        public void run() {
+          try {
+            order.take();
+          } catch (IllegalStateException e) {
+            rejected.incrementAndGet();
+          } catch (InterruptedException e) {
+            // not counted
+          }
+          if (Thread.currentThread().isInterrupted()) {
+            interrupted.incrementAndGet();
+          }
+        }
+      };
+      taker.start();
+      takers.add(taker);
+    }
+    Thread.sleep(100);
+
+    order.close();
+    for (Thread taker : takers) {
+      taker.join(1000);
+    }
+    assertThat("Every taker is woken and rejected.", 4, is(rejected.get()));
+    assertThat("None is interrupted.", 0, is(interrupted.get()));
+    assertThat("Nothing is left behind.", 0, is(order.size()));
+    assertThat("Nothing to peek.", null, is(order.peek()));
+
+    try {
+      order.offer(new TimedInetAddress(add1));
+      fail("Expected offer() to be rejected.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertThat("Not added.", 0, is(order.size()));
+  }
+
+  @Test
+  public void testSnapshotOnClose() throws Exception {
+    final File file = File.createTempFile("snapshot", ".txt");
+    file.deleteOnExit();
+    final boolean[] written = new boolean[1];
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .snapshotOnClose(file).onClose(new Runnable() {
+
+          @Override
+          public void run() {
+            written[0] = file.length() > 0;
+          }
+        }).build();
+    tCache.offer(add1);
+    tCache.offer(add2);
+    tCache.offer(add3);
+    tCache.close();
+
+    assertThat("Hooks run after the snapshot is written.", true,
+        is(written[0]));
+    TimedAddressCache restarted = new TimedAddressCacheBuilder().addAddresses(
+        file).build();
+    assertThat("Restored.", 3, is(restarted.size()));
+    assertThat("In order.", add3, is(restarted.remove()));
+    restarted.close();
+  }
+
+  @Test
+  public void testCloseTimeout() throws Exception {
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .closeTimeout(100, TimeUnit.MILLISECONDS).onClose(new Runnable() {
+
+          @Override
+          public void run() {
+            try {
+              Thread.sleep(10000);
+            } catch (InterruptedException e) {
+              // abandoned
+            }
+          }
+        }).build();
+
+    long start = System.nanoTime();
+    tCache.close();
+    assertThat("A slow hook is abandoned at the deadline.", true,
+        is(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)));
+    assertThat("Closed regardless.", TimedAddressCache.State.CLOSED,
+        is(tCache.getState()));
+  }
+
+  @Test
+  public void testExpiryForecast() throws Exception {
+    long now = System.currentTimeMillis();
+    TimedAddressCache tCache = new TimedAddressCacheBuilder().addTimedAddresses(
+        Arrays.asList(new TimedInetAddress(add1, new Date(
+            now + 60 * 60 * 1000)))).build();
+    tCache.offer(new TimedInetAddress(add2, new Date(now + 10 * 1000)));
+    tCache.offer(new TimedInetAddress(add3, new Date(now + 20 * 1000)));
+    tCache.offer(new TimedInetAddress(add4, new Date(now + 5 * 60 * 1000)));
+
+    ExpiryForecast forecast = tCache.expiryForecast();
+    assertThat("Bulk-loaded and offered addresses count.", 4L,
+        is(forecast.getTotal()));
+    assertThat("Two within the minute.", 2L,
+        is(forecast.getExpiringWithin(1, TimeUnit.MINUTES)));
+
+    tCache.remove(add2);
+    tCache.remove(); // add4, the newest
+    forecast = tCache.expiryForecast();
+    assertThat("Removals count.", 2L, is(forecast.getTotal()));
+    assertThat("One within the minute.", 1L,
+        is(forecast.getExpiringWithin(1, TimeUnit.MINUTES)));
+    assertThat("Two within two hours.", 2L,
+        is(forecast.getExpiringWithin(2, TimeUnit.HOURS)));
+    tCache.close();
+  }
+
+  @Test
+  public void testParallelExpirySweep() throws Exception {
+    for (boolean deadline : new boolean[] { false, true }) {
+      long now = System.currentTimeMillis();
+      LinkedList<TimedInetAddress> wave = new LinkedList<>();
+      for (int i = 0; i < 50000; i++) { // every 50th outlives the wave
+        wave.add(new TimedInetAddress(InetAddress.getByAddress(new byte[] {
+            10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i }), new Date(now
+            + (i % 50 == 0 ? 60 * 60 * 1000 : 300))));
+      }
+
+      final AtomicInteger expiredCount = new AtomicInteger();
+      TimedAddressCacheBuilder builder = new TimedAddressCacheBuilder()
+          .addTimedAddresses(wave).expiryPool(ForkJoinPool.commonPool())
+          .listener(new CacheListenerAdapter() {
+
+            @Override
+            public void expired(InetAddress address) {
+              expiredCount.incrementAndGet();
+            }
+          });
+      TimedAddressCache tCache = deadline ? builder.deadlineOrder().build()
+          : builder.build();
+
+      long deadlineMillis = System.currentTimeMillis() + 10000;
+      while ((tCache.size() > 1000 || expiredCount.get() < 49000)
+          && System.currentTimeMillis() < deadlineMillis) {
+        Thread.sleep(10);
+      }
+      assertThat("The wave is swept.", 1000, is(tCache.size()));
+      assertThat("Every expiration is reported.", 49000,
+          is(expiredCount.get()));
+      assertThat("The survivors are left.", true,
+          is(tCache.contains(wave.get(49950).getInetAddress())));
+      assertThat("Forecast agrees.", 1000L,
+          is(tCache.expiryForecast().getTotal()));
+      assertThat("The newest survivor is next.", wave.get(deadline ? 0
+          : 49950).getInetAddress(), is(tCache.take()));
+      tCache.close();
+    }
+  }
+
+  @Test
+  public void testExpireAfterWrite() throws Exception {
+    final AtomicLong now = new AtomicLong(1000000);
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .clock(new CacheClock() {
+
+          @Override
+          public long currentTimeMillis() {
+            return now.get();
+          }
+        }).addressTimeout(1000, TimeUnit.MILLISECONDS).threadless()
+        .expireAfterWrite().build();
+    tCache.offer(add1);
+    tCache.offer(add2);
+
+    now.addAndGet(600);
+    tCache.offer(add1);
+    assertThat("Lookups do not renew.", true, is(tCache.contains(add2)));
+    now.addAndGet(600);
+    assertThat("The address offered once expired.", false,
+        is(tCache.contains(add2)));
+    assertThat("The re-offered one was renewed.", true,
+        is(tCache.contains(add1)));
+    assertThat("From the re-offer.", new Date(1001600), is(tCache.snapshot()
+        .get(0).getExpirationDate()));
+    assertThat("Forecast agrees.", 1L, is(tCache.expiryForecast()
+        .getExpiringWithin(1, TimeUnit.SECONDS)));
+
+    now.addAndGet(500);
+    assertThat("Expires a timeout after the last offer.", false,
+        is(tCache.contains(add1)));
+    tCache.close();
+  }
+
+  @Test
+  public void testListenerGetsRenewals() throws Exception {
+    final AtomicLong now = new AtomicLong(1000000);
+    final List<String> changes = new ArrayList<>();
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .clock(new CacheClock() {
+
+          @Override
+          public long currentTimeMillis() {
+            return now.get();
+          }
+        }).addressTimeout(1000, TimeUnit.MILLISECONDS).threadless()
+        .expireAfterAccess().listener(new CacheListenerAdapter() {
+
+          @Override
+          public void offered(TimedInetAddress timedAddress) {
+            changes.add("offered");
+          }
+
+          @Override
+          public void movedFront(InetAddress address) {
+            changes.add("movedFront");
+          }
+
+          @Override
+          public void renewed(InetAddress address, Date expirationDate) {
+            changes.add("renewed " + expirationDate.getTime());
+          }
+        }).build();
+
+    tCache.offer(add1);
+    now.addAndGet(600);
+    tCache.offer(add1);
+    now.addAndGet(100);
+    tCache.contains(add1);
+    assertThat("Renewals reported with their dates, before the move.",
+        Arrays.asList("offered", "renewed 1001600", "movedFront",
+            "renewed 1001700"), is(changes));
+    tCache.close();
+  }
+
+  @Test
+  public void testExpireAfterAccess() throws Exception {
+    final AtomicLong now = new AtomicLong(1000000);
+    CacheClock clock = new CacheClock() {
+
+      @Override
+      public long currentTimeMillis() {
+        return now.get();
+      }
+    };
+    TimedAddressCache tCache = new TimedAddressCacheBuilder().clock(clock)
+        .addressTimeout(1000, TimeUnit.MILLISECONDS)
+        .cleanupInitialDelay(10, TimeUnit.MILLISECONDS)
+        .cleanupRate(10, TimeUnit.MILLISECONDS).expireAfterAccess().build();
+    tCache.offer(add1);
+    tCache.offer(add2);
+
+    for (int i = 0; i < 5; i++) { // past the dates the addresses were indexed
+      now.addAndGet(600);
+      assertThat("Each lookup renews.", true, is(tCache.contains(add1)));
+      Thread.sleep(50); // for the cleanup to run
+    }
+    assertThat("Only the address looked up is left.", 1, is(tCache.size()));
+    assertThat("It is next.", add1, is(tCache.peek()));
+
+    now.addAndGet(1100);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (tCache.size() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat("Expires a timeout after the last lookup.", 0,
+        is(tCache.size()));
+    assertThat("Forecast agrees.", 0L,
+        is(tCache.expiryForecast().getTotal()));
+    tCache.close();
+
+    tCache = new TimedAddressCacheBuilder().clock(clock)
+        .addressTimeout(1000, TimeUnit.MILLISECONDS).threadless()
+        .expireAfterAccess().build();
+    tCache.offer(add1);
+    now.addAndGet(600);
+    tCache.contains(add1);
+    now.addAndGet(600);
+    assertThat("Threadless reads go by the renewed date.", add1,
+        is(tCache.take()));
+    tCache.close();
+  }
+
+  @Test
+  public void testExpireAfterAccessWithExpiryPool() throws Exception {
+    final AtomicLong now = new AtomicLong(1000000);
+    TimedAddressCache tCache = new TimedAddressCacheBuilder()
+        .clock(new CacheClock() {
+
+          @Override
+          public long currentTimeMillis() {
+            return now.get();
+          }
+        }).addressTimeout(1000, TimeUnit.MILLISECONDS)
+        .cleanupInitialDelay(10, TimeUnit.MILLISECONDS)
+        .cleanupRate(10, TimeUnit.MILLISECONDS).expireAfterAccess()
+        .expiryPool(ForkJoinPool.commonPool()).build();
+    int n = 10000; // enough for a parallel sweep
+    for (int i = 0; i < n; i++) {
+      tCache.offer(InetAddress.getByAddress(new byte[] { 10,
+          (byte) (i >>> 16), (byte) (i >>> 8), (byte) i }));
+    }
+
+    now.addAndGet(600);
+    for (int i = 0; i < n; i++) { // renews the map's date, not the order's
+      tCache.contains(InetAddress.getByAddress(new byte[] { 10,
+          (byte) (i >>> 16), (byte) (i >>> 8), (byte) i }));
+    }
+    now.addAndGet(600); // past the dates they were offered with
+    Thread.sleep(100);
+    assertThat("Renewed addresses survive their first date.", n,
+        is(tCache.size()));
+
+    now.addAndGet(1000); // past the renewed dates
+    long deadline = System.currentTimeMillis() + 5000;
+    while (tCache.size() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat("The sweep removes them from the order too.", 0,
+        is(tCache.size()));
+    assertThat("Nothing left to peek.", null, is(tCache.peek()));
+    tCache.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSlidingExpirationWithDeadlineOrder() throws Exception {
+    new TimedAddressCacheBuilder().deadlineOrder().expireAfterAccess().build();
+  }
+
+  @Test
+  public void testVirtualThreadOrderNeedsJava21Build() throws Exception {
+    boolean java21Build;
+    try {
+      Class.forName("com.redacted.VirtualThreadLifo");
+      java21Build = true;
+    } catch (ClassNotFoundException e) {
+      java21Build = false;
+    }
+    Assume.assumeFalse(java21Build); // covered by VirtualThreadLifoTest
+
+    try {
+      new TimedAddressCacheBuilder().virtualThreadOrder().build();
+      fail("Built without the virtual thread order.");
+    } catch (IllegalStateException e) {
+      assertThat("Explains why.", "The virtual thread order requires the "
+          + "Java 21 build", is(e.getMessage()));
+    }
+  }
 }
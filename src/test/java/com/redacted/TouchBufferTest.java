@@ -0,0 +1,90 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TouchBufferTest {
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >>> 8),
+        (byte) i });
+  }
+
+  @Test
+  public void testDrainCoalescesRepeats() throws Exception {
+    TouchBuffer buffer = new TouchBuffer(1);
+    buffer.record(address(1));
+    buffer.record(address(2));
+    buffer.record(address(1));
+    buffer.record(address(3));
+
+    assertThat("Each address once, by its last re-offer.", Arrays.asList(
+        address(2), address(1), address(3)), is(new ArrayList<>(buffer
+        .drain())));
+    assertThat("Drained.", true, is(buffer.drain().isEmpty()));
+  }
+
+  @Test
+  public void testFullStripeDrops() throws Exception {
+    TouchBuffer buffer = new TouchBuffer(1);
+    for (int i = 0; i < TouchBuffer.STRIPE_SIZE - 1; i++) {
+      assertThat("Room left.", false, is(buffer.record(address(i))));
+    }
+    assertThat("Full now.", true, is(buffer.record(address(100))));
+    assertThat("Dropped.", true, is(buffer.record(address(101))));
+
+    Set<InetAddress> drained = buffer.drain();
+    assertThat("Everything but the errors re-offer.",
+        TouchBuffer.STRIPE_SIZE, is(drained.size()));
+    assertThat("The errors re-offer is gone.", false,
+        is(drained.contains(address(101))));
+    assertThat("Room again after draining.", false,
+        is(buffer.record(address(101))));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    final TouchBuffer buffer = new TouchBuffer(4);
+    final AtomicInteger errors = new AtomicInteger();
+    final Set<InetAddress> drained = new HashSet<>();
+    final CountDownLatch done = new CountDownLatch(4);
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 10000; i++) {
+              if (buffer.record(address(thread * 10000 + i))) {
+                synchronized (drained) {
+                  drained.addAll(buffer.drain());
+                }
+              }
+            }
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertThat("Recorders finish.", true, is(done.await(30, TimeUnit.SECONDS)));
+    drained.addAll(buffer.drain());
+
+    assertThat("No errors.", true, is(errors.get() == 0));
+    assertThat("Only recorded addresses come out.", true,
+        is(drained.size() <= 40000));
+    assertThat("Most re-offers are kept.", true, is(drained.size() > 10000));
+  }
+}
@@ -0,0 +1,271 @@
+package com.redacted.replication;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redacted.TimedAddressCache;
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+import com.redacted.TimedInetAddress;
+import com.redacted.replication.ReplicationPrimary.ReplicaStatus;
+import com.redacted.replication.ReplicationPrimary.ReplicationPrimaryBuilder;
+import com.redacted.replication.ReplicationReplica.ReplicationReplicaBuilder;
+
+public class ReplicationTest {
+
+  private final List<ReplicationReplica> replicas = new ArrayList<>();
+  private final List<ReplicationPrimary> primaries = new ArrayList<>();
+  private final List<TimedAddressCache> caches = new ArrayList<>();
+
+  private TimedAddressCache primaryCache;
+  private ReplicationPrimary primary;
+
+  @Before
+  public void setUp() throws Exception {
+    startPrimary(new ReplicationPrimaryBuilder());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (ReplicationReplica replica : replicas) {
+      replica.close();
+    }
+    for (ReplicationPrimary primary : primaries) {
+      primary.close();
+    }
+    for (TimedAddressCache cache : caches) {
+      cache.close();
+    }
+  }
+
+  private void startPrimary(ReplicationPrimaryBuilder builder)
+      throws Exception {
+    startPrimary(builder, new TimedAddressCacheBuilder());
+  }
+
+  private void startPrimary(ReplicationPrimaryBuilder builder,
+      TimedAddressCacheBuilder cacheBuilder) throws Exception {
+    primary = builder.build();
+    primaryCache = cacheBuilder.maximumCapacity(100000).listener(primary)
+        .build();
+    primary.start(primaryCache);
+    primaries.add(primary);
+    caches.add(primaryCache);
+  }
+
+  private TimedAddressCache replicaCache() {
+    TimedAddressCache cache = new TimedAddressCacheBuilder().maximumCapacity(
+        100000).build();
+    caches.add(cache);
+    return cache;
+  }
+
+  private ReplicationReplica follow(TimedAddressCache cache) {
+    ReplicationReplica replica = new ReplicationReplicaBuilder(
+        primary.getLocalAddress(), cache).reconnectDelay(10,
+        TimeUnit.MILLISECONDS).build();
+    replicas.add(replica);
+    return replica;
+  }
+
+  private void awaitCaughtUp(ReplicationReplica replica) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (replica.getAppliedSequence() < primary.getSequence()
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat("Caught up in time.", primary.getSequence(),
+        is(replica.getAppliedSequence()));
+  }
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, (byte) (i >>> 16),
+        (byte) (i >>> 8), (byte) i });
+  }
+
+  private static List<InetAddress> addresses(TimedAddressCache cache) {
+    List<InetAddress> addresses = new ArrayList<>();
+    for (TimedInetAddress timedAddress : cache.snapshot()) {
+      addresses.add(timedAddress.getInetAddress());
+    }
+    return addresses;
+  }
+
+  @Test
+  public void testReplicaConverges() throws Exception {
+    TimedAddressCache cache = replicaCache();
+    ReplicationReplica replica = follow(cache);
+
+    for (int i = 0; i < 1000; i++) {
+      primaryCache.offer(address(i));
+    }
+    primaryCache.offer(address(10)); // moved to the front
+    primaryCache.remove(address(20));
+    primaryCache.remove(); // takes address 999
+    primaryCache.take(); // takes address 998
+    primaryCache.offer(InetAddress.getByName("2001:db8::1"));
+    awaitCaughtUp(replica);
+
+    assertThat("Same size.", primaryCache.size(), is(cache.size()));
+    assertThat("Moved to the front.", address(10),
+        is(addresses(cache).get(0)));
+    assertThat("Removed.", false, is(cache.contains(address(20))));
+    assertThat("Taken.", false, is(cache.contains(address(999))));
+    assertThat("Same order.", addresses(primaryCache), is(addresses(cache)));
+  }
+
+  @Test
+  public void testLateReplicaGetsSnapshot() throws Exception {
+    for (int i = 0; i < 500; i++) {
+      primaryCache.offer(address(i));
+    }
+
+    TimedAddressCache cache = replicaCache();
+    cache.offer(address(100000)); // stale, replaced by the snapshot
+    ReplicationReplica replica = follow(cache);
+    awaitCaughtUp(replica);
+    primaryCache.offer(address(500));
+    awaitCaughtUp(replica);
+
+    assertThat("Resynced once.", 1, is(replica.getResyncs()));
+    assertThat("Stale address dropped.", false,
+        is(cache.contains(address(100000))));
+    assertThat("Same order.", addresses(primaryCache), is(addresses(cache)));
+  }
+
+  @Test
+  public void testExpirationDatesReplicated() throws Exception {
+    TimedAddressCache cache = replicaCache();
+    ReplicationReplica replica = follow(cache);
+
+    primaryCache.offer(new TimedInetAddress(address(1), new Date(
+        System.currentTimeMillis() + 100)));
+    awaitCaughtUp(replica);
+    assertThat("Replicated.", true, is(cache.contains(address(1))));
+    Thread.sleep(300);
+    assertThat("Expires on the replica too.", false,
+        is(cache.contains(address(1))));
+  }
+
+  @Test
+  public void testRenewalsReplicated() throws Exception {
+    startPrimary(new ReplicationPrimaryBuilder(),
+        new TimedAddressCacheBuilder().expireAfterAccess().addressTimeout(
+            1000, TimeUnit.MILLISECONDS));
+    TimedAddressCache cache = replicaCache(); // renewed by the primary
+    ReplicationReplica replica = follow(cache);
+
+    primaryCache.offer(address(1));
+    primaryCache.offer(address(2));
+    awaitCaughtUp(replica);
+    Thread.sleep(50);
+    primaryCache.offer(address(1)); // renewed and moved to the front
+    primaryCache.contains(address(2)); // renewed
+    awaitCaughtUp(replica);
+
+    assertThat("Same addresses and order.",
+        primaryCache.snapshot(), is(cache.snapshot()));
+    List<Date> dates = new ArrayList<>();
+    for (TimedInetAddress timedAddress : cache.snapshot()) {
+      dates.add(timedAddress.getExpirationDate());
+    }
+    List<Date> primaryDates = new ArrayList<>();
+    for (TimedInetAddress timedAddress : primaryCache.snapshot()) {
+      primaryDates.add(timedAddress.getExpirationDate());
+    }
+    assertThat("Renewed dates.", primaryDates, is(dates));
+  }
+
+  @Test
+  public void testOverwrittenLogForcesResync() throws Exception {
+    startPrimary(new ReplicationPrimaryBuilder().logCapacity(16)
+        .maximumBatchSize(1));
+    TimedAddressCache cache = replicaCache();
+    ReplicationReplica replica = follow(cache);
+    awaitCaughtUp(replica);
+
+    // one change per round trip cannot keep up with a tight loop
+    for (int i = 0; i < 10000; i++) {
+      primaryCache.offer(address(i));
+    }
+    awaitCaughtUp(replica);
+    assertThat("Resynced after falling behind.", true,
+        is(replica.getResyncs() > 1));
+    assertThat("Same order.", addresses(primaryCache), is(addresses(cache)));
+  }
+
+  @Test
+  public void testLogOverwritesOldestChanges() throws Exception {
+    DeltaLog log = new DeltaLog(3); // rounded up to 4
+    for (int i = 0; i < 6; i++) {
+      log.append(DeltaLog.REMOVE, address(i).getAddress(), 0, i);
+    }
+
+    DataOutputStream out = new DataOutputStream(new ByteArrayOutputStream());
+    assertThat("Overwritten.", -1, is(log.read(1, 10, out)));
+    assertThat("Still there.", 4, is(log.read(2, 10, out)));
+    assertThat("Up to the maximum.", 1, is(log.read(5, 10, out)));
+    assertThat("Nothing yet.", 0, is(log.read(6, 10, out)));
+    assertThat("Oldest change left.", 2L, is(log.timestamp(0)));
+    assertThat("No change yet.", -1L, is(log.timestamp(6)));
+  }
+
+  @Test
+  public void testLagReported() throws Exception {
+    TimedAddressCache cache = replicaCache();
+    ReplicationReplica replica = follow(cache);
+    for (int i = 0; i < 10000; i++) {
+      primaryCache.offer(address(i));
+    }
+    awaitCaughtUp(replica);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    List<ReplicaStatus> replicas = primary.getReplicas();
+    while ((replicas.isEmpty() || replicas.get(0).getLagChanges() > 0)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      replicas = primary.getReplicas();
+    }
+    assertThat("One replica.", 1, is(replicas.size()));
+    assertThat("Acknowledged everything.", primary.getSequence(),
+        is(replicas.get(0).getAcknowledgedSequence()));
+    assertThat("No lag.", 0L, is(replicas.get(0).getLagMillis()));
+    assertThat("Replica agrees.", 0L, is(replica.getLagChanges()));
+    assertThat("Connected.", true, is(replica.isConnected()));
+  }
+
+  @Test
+  public void testBodyCompression() throws Exception {
+    ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bodyBytes);
+    for (int i = 0; i < 1000; i++) {
+      body.writeByte(DeltaLog.OFFER);
+      ReplicationProtocol.writeAddress(body, address(i).getAddress());
+      body.writeLong(1500000000000L + i);
+    }
+
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    ReplicationProtocol.writeBody(new DataOutputStream(frame),
+        bodyBytes.toByteArray(), bodyBytes.size());
+    assertThat("Compressed.", true, is(frame.size() < bodyBytes.size() / 2));
+
+    byte[] inflated = ReplicationProtocol.readBody(new DataInputStream(
+        new ByteArrayInputStream(frame.toByteArray())));
+    assertThat("Round trip.", true, is(Arrays.equals(
+        bodyBytes.toByteArray(), inflated)));
+  }
+}
@@ -0,0 +1,232 @@
+package com.redacted.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.redacted.TimedAddressCache;
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+import com.redacted.TimedInetAddress;
+import com.redacted.server.AddressCacheClient.AddressCacheClientBuilder;
+import com.redacted.server.AddressCacheServer.AddressCacheServerBuilder;
+
+public class AddressCacheServerTest {
+
+  private static InetAddress add1;
+  private static InetAddress add2;
+  private static InetAddress add6;
+
+  private TimedAddressCache cache;
+  private AddressCacheServer server;
+  private AddressCacheClient client;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    add1 = InetAddress.getByName("161.74.139.24");
+    add2 = InetAddress.getByName("38.103.53.43");
+    add6 = InetAddress.getByName("2001:db8::1");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new TimedAddressCacheBuilder().maximumCapacity(10000).build();
+    server = new AddressCacheServerBuilder(cache).build();
+    client = connect();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.close();
+    cache.close();
+  }
+
+  private AddressCacheClient connect() throws Exception {
+    return new AddressCacheClientBuilder(server.getLocalAddress()).build();
+  }
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >>> 8),
+        (byte) i });
+  }
+
+  @Test
+  public void testOperations() throws Exception {
+    assertThat("Empty.", true, is(client.isEmpty()));
+    assertThat("Nothing to peek.", (Object) null, is((Object) client.peek()));
+
+    assertThat("Offered.", true, is(client.offer(add1)));
+    assertThat("Offered.", true, is(client.offer(add6)));
+    assertThat("Already cached.", false, is(client.offer(add1)));
+    assertThat("On the server.", true, is(cache.contains(add6)));
+    assertThat("Contains.", true, is(client.contains(add1)));
+    assertThat("Does not contain.", false, is(client.contains(add2)));
+    assertThat("Size.", 2, is(client.size()));
+
+    assertThat("Peek.", add6, is(client.peek()));
+    assertThat("Remove.", add6, is(client.remove()));
+    assertThat("Remove by address.", true, is(client.remove(add1)));
+    assertThat("Removed.", false, is(client.remove(add1)));
+    assertThat("Empty again.", 0, is(cache.size()));
+  }
+
+  @Test
+  public void testTimeToLive() throws Exception {
+    client.offer(new TimedInetAddress(add1, new Date(
+        System.currentTimeMillis() + 100)));
+    assertThat("Cached.", true, is(client.contains(add1)));
+    Thread.sleep(300);
+    assertThat("Expired.", false, is(client.contains(add1)));
+  }
+
+  @Test
+  public void testPipelining() throws Exception {
+    List<CompletableFuture<Boolean>> offers = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      offers.add(client.offerAsync(address(i)));
+    }
+    CompletableFuture<Boolean> contains = client.containsAsync(address(4999));
+
+    for (CompletableFuture<Boolean> offer : offers) {
+      assertThat("Every pipelined offer succeeds.", true, is(offer.get(5,
+          TimeUnit.SECONDS)));
+    }
+    assertThat("In order.", true, is(contains.get(5, TimeUnit.SECONDS)));
+    assertThat("All arrived.", 5000, is(cache.size()));
+  }
+
+  @Test
+  public void testTakeDoesNotBlockOtherRequests() throws Exception {
+    CompletableFuture<InetAddress> take = client.takeAsync();
+    assertThat("Later requests are answered meanwhile.", 0,
+        is(client.size()));
+    assertThat("The take is pending.", false, is(take.isDone()));
+
+    AddressCacheClient other = connect();
+    try {
+      other.offer(add2);
+      assertThat("Taken.", add2, is(take.get(5, TimeUnit.SECONDS)));
+      other.offer(add1);
+      assertThat("Blocking take.", add1, is(client.take()));
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test
+  public void testCancelledTake() throws Exception {
+    CompletableFuture<InetAddress> take = client.takeAsync();
+    Thread.sleep(50);
+    client.cancelTake(take);
+    Thread.sleep(50);
+
+    client.offer(add1);
+    assertThat("The cancelled take leaves the address cached.", true,
+        is(client.contains(add1)));
+  }
+
+  @Test
+  public void testTakeCancelledAfterCompletion() throws Exception {
+    long expiration = System.currentTimeMillis() + 60 * 60 * 1000;
+    client.offer(new TimedInetAddress(add1, new Date(expiration)));
+    CompletableFuture<InetAddress> take = client.takeAsync();
+    assertThat("Taken.", add1, is(take.get(5, TimeUnit.SECONDS)));
+
+    client.cancelTake(take); // as take() does if interrupted meanwhile
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!cache.contains(add1) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat("The address is offered back.", true,
+        is(cache.contains(add1)));
+    assertThat("With the time it had left.", true, is(Math.abs(cache
+        .snapshot().get(0).getExpirationDate().getTime() - expiration) < 5000));
+  }
+
+  @Test
+  public void testTakeThreadsAreBounded() throws Exception {
+    AddressCacheServer bounded = new AddressCacheServerBuilder(cache)
+        .takeThreads(2).build();
+    AddressCacheClient other = new AddressCacheClientBuilder(bounded
+        .getLocalAddress()).build();
+    try {
+      List<CompletableFuture<InetAddress>> takes = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        takes.add(other.takeAsync());
+      }
+      assertThat("Other requests are answered meanwhile.", 0,
+          is(other.size()));
+
+      for (int i = 0; i < 10; i++) {
+        client.offer(address(i));
+      }
+      for (CompletableFuture<InetAddress> take : takes) {
+        assertThat("Queued takes are served in turn.", true, is(take.get(5,
+            TimeUnit.SECONDS) != null));
+      }
+      assertThat("Every address was taken.", 0, is(cache.size()));
+    } finally {
+      other.close();
+      bounded.close();
+    }
+  }
+
+  @Test
+  public void testServerError() throws Exception {
+    cache.close();
+    try {
+      client.offer(add1);
+      fail("Expected the server's error.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      client.size();
+      fail("Expected the server's error.");
+    } catch (IllegalStateException e) {
+      // the connection survives errors
+    }
+  }
+
+  @Test
+  public void testMalformedFrameClosesConnection() throws Exception {
+    try (Socket socket = new Socket(server.getLocalAddress().getAddress(),
+        server.getLocalAddress().getPort())) {
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(Integer.MAX_VALUE);
+      out.flush();
+      assertThat("The server hangs up.", -1, is(new DataInputStream(socket
+          .getInputStream()).read()));
+    }
+    assertThat("Other clients are unaffected.", true, is(client.offer(add1)));
+  }
+
+  @Test
+  public void testCloseFailsPendingRequests() throws Exception {
+    CompletableFuture<InetAddress> take = client.takeAsync();
+    client.close();
+    try {
+      take.get(5, TimeUnit.SECONDS);
+      fail("Expected the take to fail.");
+    } catch (ExecutionException e) {
+      assertThat("Reported as closed.", true,
+          is(e.getCause() instanceof IllegalStateException));
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.redacted.simulator;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.redacted.simulator.TraceEvent.Operation;
+
+public class TraceReplayerTest {
+
+  private static final String TRACE = "# a small trace\n"
+      + "1000 offer 10.0.0.1\n"
+      + "1000 offer 10.0.0.2 60000\n"
+      + "1001 offer 10.0.0.1\n"
+      + "1005 contains 10.0.0.1\n"
+      + "1005 contains 10.0.0.9\n"
+      + "1010 peek\n"
+      + "1200 contains 10.0.0.1\n"
+      + "1200 remove 10.0.0.1\n";
+
+  private static List<TraceEvent> read(String trace) throws IOException {
+    List<TraceEvent> events = new ArrayList<>();
+    try (TraceReader reader = new TraceReader(new StringReader(trace))) {
+      for (TraceEvent event = reader.next(); event != null; event = reader
+          .next()) {
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  @Test
+  public void testReadTrace() throws Exception {
+    List<TraceEvent> events = read(TRACE);
+
+    assertThat("Comments are skipped.", events.size(), is(8));
+    assertThat("Offers keep their time-to-live.", events.get(1)
+        .getTtlMillis(), is(60000L));
+    assertThat("Events without an address have none.", events.get(5)
+        .getAddress(), is((Object) null));
+  }
+
+  @Test
+  public void testReadMalformedTrace() {
+    try {
+      read("1000 offer example.com\n");
+      fail("Host names should be rejected.");
+    } catch (IOException e) {
+      // expected
+    }
+
+    try {
+      read("1000 offer 10.0.0.1\n999 peek\n");
+      fail("Timestamps going backwards should be rejected.");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    TraceReplayer replayer = new TraceReplayer.TraceReplayerBuilder()
+        .threads(2).build();
+    SimulationReport report = replayer.replay("test", read(TRACE),
+        Simulator.timedAddressCacheFactory(Integer.MAX_VALUE, 5000, 300000,
+            Double.POSITIVE_INFINITY));
+
+    assertThat("Every offer is replayed.", report.getCount(Operation.OFFER),
+        is(3L));
+    assertThat("Re-offers are not new entries.",
+        report.getSuccessCount(Operation.OFFER), is(2L));
+    assertThat("Two of three lookups hit.", report.getHitRatio(),
+        is(2.0 / 3));
+    assertThat("Only one address is left.", report.getFinalSize(), is(1));
+    assertThat("Latencies are recorded.",
+        report.getLatencyNanos(Operation.CONTAINS, 100) > 0, is(true));
+  }
+
+  @Test
+  public void testReplayUnsatisfiedTake() throws Exception {
+    TraceReplayer replayer = new TraceReplayer.TraceReplayerBuilder()
+        .threads(1).build();
+    SimulationReport report = replayer.replay("test",
+        read("1000 offer 10.0.0.1\n1001 take\n1002 take\n"),
+        Simulator.timedAddressCacheFactory(Integer.MAX_VALUE, 5000, 300000,
+            Double.POSITIVE_INFINITY));
+
+    assertThat("The first take succeeds.",
+        report.getSuccessCount(Operation.TAKE), is(1L));
+    assertThat("The second take can never succeed.",
+        report.getUnsatisfiedTakes(), is(1L));
+  }
+
+  @Test
+  public void testVirtualClockAcceleration() throws Exception {
+    VirtualClock clock = new VirtualClock(0, 1000);
+    clock.start();
+    long realStartNanos = System.nanoTime();
+    clock.awaitTime(200);
+
+    assertThat("Virtual time reaches the target.",
+        clock.currentTimeMillis() >= 200, is(true));
+    assertThat("200 virtual ms pass in well under 200 real ms.",
+        System.nanoTime() - realStartNanos < 100 * 1000 * 1000L, is(true));
+  }
+
+  @Test
+  public void testLatencyHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+
+    long median = histogram.valueAtPercentile(50);
+    assertThat("Median is within the histogram's precision.",
+        Math.abs(median - 500000) <= 500000 / 16, is(true));
+    assertThat("Maximum is exact.", histogram.valueAtPercentile(100),
+        is(1000000L));
+  }
+}
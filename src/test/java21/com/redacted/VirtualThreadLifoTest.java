@@ -0,0 +1,317 @@
+package com.redacted;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.redacted.TimedAddressCache.TimedAddressCacheBuilder;
+
+public class VirtualThreadLifoTest {
+
+  private static InetAddress address(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] { 10, (byte) (i >>> 16),
+        (byte) (i >>> 8), (byte) i });
+  }
+
+  private static int index(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    return (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | bytes[3] & 0xff;
+  }
+
+  private static TimedInetAddress timed(int i) throws Exception {
+    return new TimedInetAddress(address(i), new Date(
+        System.currentTimeMillis() + 60000));
+  }
+
+  private static List<TimedInetAddress> contents(AddressOrder order) {
+    List<TimedInetAddress> contents = new ArrayList<>();
+    for (Iterator<TimedInetAddress> it = order.iterator(); it.hasNext();) {
+      contents.add(it.next());
+    }
+    return contents;
+  }
+
+  /**
+   * Waits until the given number of threads is parked in the order.
+   */
+  private static void awaitWaiters(CountDownLatch started) throws Exception {
+    assertThat("Consumers started.", true,
+        is(started.await(30, TimeUnit.SECONDS)));
+    Thread.sleep(200); // from the latch to parking in take()
+  }
+
+  @Test
+  public void testLifoOrder() throws Exception {
+    AddressOrder order = new VirtualThreadLifo(10);
+    order.offer(timed(1));
+    order.offer(timed(2));
+    order.offer(timed(3));
+
+    assertThat("The newest is next.", timed(3), is(order.peek()));
+    order.moveFront(timed(3));
+    assertThat("Moved to the cold end.", Arrays.asList(timed(3), timed(1),
+        timed(2)), is(contents(order)));
+    assertThat("Polled newest first.", timed(2), is(order.poll()));
+    assertThat("Cold end.", timed(3), is(order.pollCold()));
+    assertThat("Removed.", true, is(order.remove(timed(1))));
+    assertThat("Empty.", 0, is(order.size()));
+    assertThat("Nothing next.", (Object) null, is((Object) order.poll()));
+  }
+
+  @Test
+  public void testMoveFrontKeepsTheGivenDate() throws Exception {
+    AddressOrder order = new VirtualThreadLifo(10);
+    order.offer(new TimedInetAddress(address(1), new Date(1000)));
+    order.offer(timed(2));
+
+    order.moveFront(new TimedInetAddress(address(1), new Date(2000)));
+    assertThat("A renewed date reaches the order, as in Lifo.", new Date(
+        2000), is(order.pollCold().getExpirationDate()));
+  }
+
+  @Test
+  public void testIteratorSkipsRemovals() throws Exception {
+    AddressOrder order = new VirtualThreadLifo(10);
+    for (int i = 0; i < 5; i++) {
+      order.offer(timed(i));
+    }
+
+    Iterator<TimedInetAddress> it = order.iterator();
+    assertThat("First.", timed(0), is(it.next()));
+    order.remove(timed(2));
+    order.moveFront(timed(3));
+    assertThat("Next.", timed(1), is(it.next()));
+    assertThat("Skips the removed and the moved.", timed(4), is(it.next()));
+    assertThat("Done.", false, is(it.hasNext()));
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    AddressOrder order = new VirtualThreadLifo(2);
+    order.offer(timed(1));
+    order.offer(timed(2));
+    assertThat("Full.", false, is(order.offer(timed(3))));
+    assertThat("Times out.", false, is(order.offer(timed(3),
+        TimeUnit.MILLISECONDS.toNanos(50))));
+  }
+
+  @Test
+  public void testPutWaitsForSpace() throws Exception {
+    final AddressOrder order = new VirtualThreadLifo(1);
+    order.offer(timed(1));
+    Thread producer = Thread.ofVirtual().start(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          order.put(timed(2));
+        } catch (Exception e) {
+          // checked below
+        }
+      }
+    });
+
+    Thread.sleep(100);
+    assertThat("Still blocked.", true, is(producer.isAlive()));
+    assertThat("Makes space.", timed(1), is(order.poll()));
+    producer.join(5000);
+    assertThat("Put once there was space.", timed(2), is(order.peek()));
+  }
+
+  @Test
+  public void testHandoffToWaitingVirtualThreads() throws Exception {
+    final AddressOrder order = new VirtualThreadLifo(10);
+    final Set<TimedInetAddress> taken = ConcurrentHashMap.newKeySet();
+    final CountDownLatch started = new CountDownLatch(10000);
+    List<Thread> consumers = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      consumers.add(Thread.ofVirtual().start(new Runnable() {
+
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            taken.add(order.take());
+          } catch (InterruptedException e) {
+            // counted below
+          }
+        }
+      }));
+    }
+
+    awaitWaiters(started);
+    for (int i = 0; i < 10000; i++) {
+      assertThat("Handed over, despite the capacity of 10.", true,
+          is(order.offer(timed(i))));
+    }
+    for (Thread consumer : consumers) {
+      consumer.join(5000);
+    }
+    assertThat("Each address to one consumer.", 10000, is(taken.size()));
+    assertThat("Nothing left in the order.", 0, is(order.size()));
+  }
+
+  @Test
+  public void testInterruptedWaiterLeaves() throws Exception {
+    final AddressOrder order = new VirtualThreadLifo(10);
+    final AtomicInteger interrupted = new AtomicInteger();
+    Thread consumer = Thread.ofVirtual().start(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          order.take();
+        } catch (InterruptedException e) {
+          interrupted.incrementAndGet();
+        }
+      }
+    });
+
+    Thread.sleep(100);
+    consumer.interrupt();
+    consumer.join(5000);
+    assertThat("Interrupted.", 1, is(interrupted.get()));
+    order.offer(timed(1));
+    assertThat("Not handed to the departed waiter.", 1, is(order.size()));
+  }
+
+  @Test
+  public void testCloseWakesWaiters() throws Exception {
+    final AddressOrder order = new VirtualThreadLifo(10);
+    final AtomicInteger closed = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1000);
+    List<Thread> consumers = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      consumers.add(Thread.ofVirtual().start(new Runnable() {
+
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            order.take();
+          } catch (IllegalStateException e) {
+            closed.incrementAndGet();
+          } catch (InterruptedException e) {
+            // not counted
+          }
+        }
+      }));
+    }
+
+    awaitWaiters(started);
+    order.close();
+    for (Thread consumer : consumers) {
+      consumer.join(5000);
+    }
+    assertThat("Every waiter woken.", 1000, is(closed.get()));
+  }
+
+  @Test
+  public void testTimedAddressCache() throws Exception {
+    final TimedAddressCache cache = new TimedAddressCacheBuilder()
+        .virtualThreadOrder().maximumCapacity(100).build();
+    final Set<InetAddress> taken = ConcurrentHashMap.newKeySet();
+    final CountDownLatch started = new CountDownLatch(1000);
+    List<Thread> consumers = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      consumers.add(Thread.ofVirtual().start(new Runnable() {
+
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            taken.add(cache.take());
+          } catch (InterruptedException e) {
+            // counted below
+          }
+        }
+      }));
+    }
+
+    awaitWaiters(started);
+    for (int i = 0; i < 1000; i++) {
+      cache.offer(address(i));
+    }
+    for (Thread consumer : consumers) {
+      consumer.join(5000);
+    }
+    assertThat("Every address taken once.", 1000, is(taken.size()));
+    assertThat("Nothing left.", 0, is(cache.size()));
+
+    cache.offer(address(1));
+    cache.offer(address(2));
+    assertThat("LIFO otherwise.", address(2), is(cache.peek()));
+    cache.close();
+  }
+
+  /**
+   * Parks a million virtual threads in take() and hands each an address,
+   * printing the handoff latency. Run with -Dbenchmark=true and a heap of a
+   * few gigabytes.
+   */
+  @Test
+  public void testMillionWaitingConsumers() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    final int consumers = 1000000;
+    final TimedAddressCache cache = new TimedAddressCacheBuilder()
+        .virtualThreadOrder().build();
+    final long[] offeredNanos = new long[consumers];
+    final long[] latencyNanos = new long[consumers];
+    final CountDownLatch started = new CountDownLatch(consumers);
+    final CountDownLatch done = new CountDownLatch(consumers);
+    for (int i = 0; i < consumers; i++) {
+      Thread.ofVirtual().start(new Runnable() {
+
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            InetAddress address = cache.take();
+            int index = index(address);
+            latencyNanos[index] = System.nanoTime() - offeredNanos[index];
+          } catch (InterruptedException e) {
+            // left at zero
+          }
+          done.countDown();
+        }
+      });
+    }
+
+    assertThat("Consumers started.", true,
+        is(started.await(5, TimeUnit.MINUTES)));
+    Thread.sleep(1000);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < consumers; i++) {
+      offeredNanos[i] = System.nanoTime();
+      cache.offer(address(i));
+    }
+    assertThat("Every consumer served.", true,
+        is(done.await(5, TimeUnit.MINUTES)));
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    Arrays.sort(latencyNanos);
+    System.out.printf(
+        "%d waiting consumers served in %d ms; handoff latency p50 %d us, "
+            + "p99 %d us, max %d us%n", consumers,
+        TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+        latencyNanos[consumers / 2] / 1000,
+        latencyNanos[consumers / 100 * 99] / 1000,
+        latencyNanos[consumers - 1] / 1000);
+    assertThat("Nothing left.", 0, is(cache.size()));
+    cache.close();
+  }
+}